@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.os;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures reading a parceled bundle when only some of its values are looked at.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class BundlePerfTest {
+    private static final int KEYS = 50;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Parcel mParcel;
+    private Parcel mOut;
+
+    @Before
+    public void setUp() {
+        final Bundle source = new Bundle();
+        for (int i = 0; i < KEYS; i++) {
+            final Bundle inner = new Bundle();
+            inner.putString("name", "value" + i);
+            inner.putLongArray("longs", new long[32]);
+            source.putBundle("key" + i, inner);
+        }
+        mParcel = Parcel.obtain();
+        source.writeToParcel(mParcel, 0);
+        mOut = Parcel.obtain();
+    }
+
+    @After
+    public void tearDown() {
+        mParcel.recycle();
+        mParcel = null;
+        mOut.recycle();
+        mOut = null;
+    }
+
+    private Bundle readBundle() {
+        mParcel.setDataPosition(0);
+        return new Bundle(mParcel);
+    }
+
+    @Test
+    public void timeGetOneValue() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            readBundle().getBundle("key" + (KEYS / 2));
+        }
+    }
+
+    @Test
+    public void timeGetAllValues() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            readBundle().unparcel();
+        }
+    }
+
+    @Test
+    public void timeContainsKey() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            readBundle().containsKey("key0");
+        }
+    }
+
+    @Test
+    public void timeRewriteAfterGetOneValue() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final Bundle b = readBundle();
+            b.getBundle("key0");
+            mOut.setDataPosition(0);
+            b.writeToParcel(mOut, 0);
+        }
+    }
+}
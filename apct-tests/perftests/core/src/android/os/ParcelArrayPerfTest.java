@@ -39,9 +39,12 @@ public class ParcelArrayPerfTest {
 
     @Parameters(name = "size={0}")
     public static Collection<Object[]> data() {
-        return Arrays.asList(new Object[][] { {1}, {10}, {100}, {1000} });
+        return Arrays.asList(new Object[][] { {1}, {10}, {100}, {1000}, {10000} });
     }
 
+    /** Size of a record of three longs, like one entry of NetworkStats. */
+    private static final int RECORD_SIZE = 24;
+
     private final int mSize;
 
     private Parcel mWriteParcel;
@@ -49,10 +52,12 @@ public class ParcelArrayPerfTest {
     private byte[] mByteArray;
     private int[] mIntArray;
     private long[] mLongArray;
+    private byte[] mRecords;
 
     private Parcel mByteParcel;
     private Parcel mIntParcel;
     private Parcel mLongParcel;
+    private Parcel mRecordParcel;
 
     public ParcelArrayPerfTest(int size) {
         mSize = size;
@@ -65,6 +70,7 @@ public class ParcelArrayPerfTest {
         mByteArray = new byte[mSize];
         mIntArray = new int[mSize];
         mLongArray = new long[mSize];
+        mRecords = new byte[mSize * RECORD_SIZE];
 
         mByteParcel = Parcel.obtain();
         mByteParcel.writeByteArray(mByteArray);
@@ -72,12 +78,18 @@ public class ParcelArrayPerfTest {
         mIntParcel.writeIntArray(mIntArray);
         mLongParcel = Parcel.obtain();
         mLongParcel.writeLongArray(mLongArray);
+        mRecordParcel = Parcel.obtain();
+        mRecordParcel.writeRecords(mRecords, RECORD_SIZE, mSize);
     }
 
     @After
     public void tearDown() {
         mWriteParcel.recycle();
         mWriteParcel = null;
+        mByteParcel.recycle();
+        mIntParcel.recycle();
+        mLongParcel.recycle();
+        mRecordParcel.recycle();
     }
 
     @Test
@@ -160,4 +172,22 @@ public class ParcelArrayPerfTest {
             mLongParcel.readLongArray(mLongArray);
         }
     }
+
+    @Test
+    public void timeWriteRecords() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mWriteParcel.setDataPosition(0);
+            mWriteParcel.writeRecords(mRecords, RECORD_SIZE, mSize);
+        }
+    }
+
+    @Test
+    public void timeCreateRecords() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mRecordParcel.setDataPosition(0);
+            mRecordParcel.createRecords(RECORD_SIZE);
+        }
+    }
 }
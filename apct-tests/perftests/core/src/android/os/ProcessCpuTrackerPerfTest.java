@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.os;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.internal.os.ProcessCpuTracker;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compares updating a {@link ProcessCpuTracker} that reopens every /proc file with one that
+ * keeps them open.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ProcessCpuTrackerPerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private void timeUpdate(boolean includeThreads, boolean keepProcFilesOpen) {
+        final ProcessCpuTracker tracker =
+                new ProcessCpuTracker(includeThreads, keepProcFilesOpen);
+        tracker.init();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            tracker.update();
+        }
+    }
+
+    @Test
+    public void timeUpdateReopeningFiles() {
+        timeUpdate(false, false);
+    }
+
+    @Test
+    public void timeUpdateKeepingFilesOpen() {
+        timeUpdate(false, true);
+    }
+
+    @Test
+    public void timeUpdateWithThreadsReopeningFiles() {
+        timeUpdate(true, false);
+    }
+
+    @Test
+    public void timeUpdateWithThreadsKeepingFilesOpen() {
+        timeUpdate(true, true);
+    }
+}
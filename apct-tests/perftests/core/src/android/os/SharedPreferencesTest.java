@@ -28,9 +28,13 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+
 @RunWith(AndroidJUnit4.class)
 @LargeTest
 public class SharedPreferencesTest {
+    private static final int NUM_KEYS = 1000;
+
     @Rule
     public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
 
@@ -44,4 +48,66 @@ public class SharedPreferencesTest {
             prefs = context.getSharedPreferences("test", Context.MODE_PRIVATE);
         }
     }
+
+    @Test
+    public void timeCommitOneKeyOfManyXml() {
+        timeCommitOneKeyOfMany("commit-xml", Context.MODE_PRIVATE);
+    }
+
+    @Test
+    public void timeCommitOneKeyOfManyLog() {
+        timeCommitOneKeyOfMany("commit-log",
+                Context.MODE_PRIVATE | Context.MODE_LOG_STRUCTURED_PREFERENCES);
+    }
+
+    @Test
+    public void timeLoadManyKeysXml() {
+        timeLoadManyKeys("load-xml", Context.MODE_PRIVATE);
+    }
+
+    @Test
+    public void timeLoadManyKeysLog() {
+        timeLoadManyKeys("load-log",
+                Context.MODE_PRIVATE | Context.MODE_LOG_STRUCTURED_PREFERENCES);
+    }
+
+    private void timeCommitOneKeyOfMany(String name, int mode) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final SharedPreferences prefs =
+                context.getSharedPreferences(getPrefsWithManyKeys(name, mode), mode);
+        int i = 0;
+        while (state.keepRunning()) {
+            prefs.edit().putInt("counter", i++).commit();
+        }
+    }
+
+    private void timeLoadManyKeys(String name, int mode) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final File file = getPrefsWithManyKeys(name, mode);
+        // In log mode the preferences are stored next to the xml file
+        final File dataFile = (mode & Context.MODE_LOG_STRUCTURED_PREFERENCES) != 0
+                ? new File(file.getParentFile(), name + ".log") : file;
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            dataFile.setLastModified(dataFile.lastModified() + 1000);
+            state.resumeTiming();
+            // Reloads the preferences as they appear to have changed behind our back
+            context.getSharedPreferences(file, mode | Context.MODE_MULTI_PROCESS)
+                    .getInt("counter", 0);
+        }
+    }
+
+    private File getPrefsWithManyKeys(String name, int mode) {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final File file = context.getSharedPreferencesPath(name);
+        final SharedPreferences.Editor editor =
+                context.getSharedPreferences(file, mode).edit().clear();
+        for (int i = 0; i < NUM_KEYS; i++) {
+            editor.putString("key" + i, "value of key " + i);
+        }
+        editor.commit();
+        return file;
+    }
 }
@@ -34,6 +34,7 @@ import android.util.ArraySet;
 
 import static android.text.Layout.Alignment.ALIGN_NORMAL;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Locale;
@@ -117,6 +118,28 @@ public class DynamicLayoutPerfTest {
         return builder;
     }
 
+    @Test
+    public void testBuildParagraphs() {
+        // Paragraphs without replacement spans are plain text, which StaticLayout caches.
+        final SpannableStringBuilder text = getText();
+        final ArrayList<CharSequence> paragraphs = new ArrayList<>();
+        for (int start = 0, end; start < text.length(); start = end + 1) {
+            end = TextUtils.indexOf(text, '\n', start);
+            final ReplacementSpan[] spans = text.getSpans(start, end, ReplacementSpan.class);
+            paragraphs.add(spans.length > 0
+                    ? text.subSequence(start, end) : text.toString().substring(start, end));
+        }
+        final TextPaint paint = new TextPaint();
+
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < paragraphs.size(); i++) {
+                final CharSequence paragraph = paragraphs.get(i);
+                StaticLayout.Builder.obtain(paragraph, 0, paragraph.length(), paint, 300).build();
+            }
+        }
+    }
+
     @Test
     public void testGetBlocksAlwaysNeedToBeRedrawn() {
         final SpannableStringBuilder text = getText();
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.text;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.MetricAffectingSpan;
+import android.text.style.StyleSpan;
+import android.text.style.UnderlineSpan;
+import android.text.style.URLSpan;
+import android.view.DisplayListCanvas;
+import android.view.RenderNode;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized.Parameters;
+import org.junit.runners.Parameterized;
+
+/**
+ * Span queries on text with many spans, like rich chat messages and code in editors, for each
+ * of the Spanned implementations.
+ */
+@LargeTest
+@RunWith(Parameterized.class)
+public class SpanQueryPerfTest {
+    private static final int WORDS = 2000;
+    private static final int WIDTH = 1000;
+
+    @Parameters(name = "{0}")
+    public static Collection cases() {
+        return Arrays.asList(new Object[][] {
+            { "SpannableString_10", SpannableString.class, 10 },
+            { "SpannableString_100", SpannableString.class, 100 },
+            { "SpannableString_1000", SpannableString.class, 1000 },
+            { "SpannedString_1000", SpannedString.class, 1000 },
+            { "SpannableStringBuilder_10", SpannableStringBuilder.class, 10 },
+            { "SpannableStringBuilder_100", SpannableStringBuilder.class, 100 },
+            { "SpannableStringBuilder_1000", SpannableStringBuilder.class, 1000 },
+        });
+    }
+
+    private final Spanned mText;
+
+    public SpanQueryPerfTest(String metricKey, Class<?> type, int spanCount) {
+        // metricKey is used in the final report automatically.
+        final SpannableStringBuilder builder = new SpannableStringBuilder();
+        final Random random = new Random(0);
+        for (int i = 0; i < WORDS; i++) {
+            builder.append("word").append(Integer.toString(i)).append(' ');
+        }
+        final int length = builder.length();
+        for (int i = 0; i < spanCount; i++) {
+            final Object span;
+            switch (i % 4) {
+                case 0: span = new StyleSpan(0); break;
+                case 1: span = new UnderlineSpan(); break;
+                case 2: span = new ForegroundColorSpan(0xFF0000FF); break;
+                default: span = new URLSpan("http://example.com"); break;
+            }
+            final int start = random.nextInt(length);
+            final int end = Math.min(length, start + 1 + random.nextInt(40));
+            builder.setSpan(span, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+
+        if (type == SpannableString.class) {
+            mText = new SpannableString(builder);
+        } else if (type == SpannedString.class) {
+            mText = new SpannedString(builder);
+        } else {
+            mText = builder;
+        }
+    }
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Test
+    public void testGetSpans() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final int length = mText.length();
+        int start = 0;
+        while (state.keepRunning()) {
+            mText.getSpans(start, start + 50, Object.class);
+            start = (start + 50) % (length - 50);
+        }
+    }
+
+    @Test
+    public void testGetSpansOfType() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final int length = mText.length();
+        int start = 0;
+        while (state.keepRunning()) {
+            mText.getSpans(start, start + 50, MetricAffectingSpan.class);
+            start = (start + 50) % (length - 50);
+        }
+    }
+
+    @Test
+    public void testGetSpanStart() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final Object[] spans = mText.getSpans(0, mText.length(), Object.class);
+        int i = 0;
+        while (state.keepRunning()) {
+            mText.getSpanStart(spans[i]);
+            i = (i + 1) % spans.length;
+        }
+    }
+
+    @Test
+    public void testNextSpanTransition() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final int length = mText.length();
+        while (state.keepRunning()) {
+            for (int i = 0; i < length; i = mText.nextSpanTransition(i, length, Object.class)) {
+            }
+        }
+    }
+
+    @Test
+    public void testDraw() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final StaticLayout layout = StaticLayout.Builder.obtain(mText, 0, mText.length(),
+                new TextPaint(), WIDTH).build();
+        final RenderNode node = RenderNode.create("benchmark", null);
+        while (state.keepRunning()) {
+            final DisplayListCanvas canvas = node.start(WIDTH, layout.getHeight());
+            layout.draw(canvas);
+            node.end(canvas);
+        }
+    }
+}
@@ -50,19 +50,22 @@ public class EditTextLongTextPerfTest {
     @Parameters(name = "{0}")
     public static Collection cases() {
         return Arrays.asList(new Object[][] {
-            { "10x30K", 10, 30000 },
-            { "300x1K", 300, 1000 },
+            { "10x30K", 10, 30000, 0 },
+            { "300x1K", 300, 1000, 0 },
+            { "100Kx1_words", 100000, 1, 8 },
         });
     }
 
     private final String mMetricKey;
     private final int mChars;
     private final int mLines;
+    private final int mWordLength;
 
-    public EditTextLongTextPerfTest(String metricKey, int chars, int lines) {
+    public EditTextLongTextPerfTest(String metricKey, int chars, int lines, int wordLength) {
         mMetricKey = metricKey;
         mChars = chars;
         mLines = lines;
+        mWordLength = wordLength;
     }
 
     @Rule
@@ -80,6 +83,10 @@ public class EditTextLongTextPerfTest {
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < mLines; i++) {
             for (int j = 0; j < mChars; j++) {
+                if (mWordLength > 0 && j % (mWordLength + 1) == mWordLength) {
+                    sb.append(' ');
+                    continue;
+                }
                 char c = alphabet.charAt(r.nextInt(alphabet.length()));
                 sb.append(c);
             }
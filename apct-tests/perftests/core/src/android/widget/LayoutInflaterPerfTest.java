@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.widget;
+
+import android.app.Activity;
+import android.content.Context;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.perftests.utils.StubActivity;
+import android.support.test.filters.LargeTest;
+import android.support.test.rule.ActivityTestRule;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.android.internal.policy.PhoneLayoutInflater;
+import com.android.perftests.core.R;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Inflates the layouts of {@link LayoutPerfTest} over and over, with and without compiling
+ * them in the inflater.
+ */
+@LargeTest
+@RunWith(Parameterized.class)
+public class LayoutInflaterPerfTest {
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection layouts() {
+        return Arrays.asList(new Object[][] {
+                { "relative", R.layout.test_relative_layout },
+                { "linear", R.layout.test_linear_layout },
+                { "linear_weighted", R.layout.test_linear_layout_weighted },
+                { "simple_view", R.layout.test_simple_view },
+        });
+    }
+
+    private final int mLayoutId;
+
+    public LayoutInflaterPerfTest(String key, int layoutId) {
+        // key is used in the final report automatically.
+        mLayoutId = layoutId;
+    }
+
+    @Rule
+    public ActivityTestRule<StubActivity> mActivityRule =
+            new ActivityTestRule(StubActivity.class);
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Test
+    public void timeInflate() throws Throwable {
+        inflate(mActivityRule.getActivity().getLayoutInflater());
+    }
+
+    @Test
+    public void timeInflateNotCompiled() throws Throwable {
+        inflate(new NotCompilingLayoutInflater(mActivityRule.getActivity()));
+    }
+
+    private void inflate(LayoutInflater inflater) throws Throwable {
+        mActivityRule.runOnUiThread(() -> {
+            final Activity activity = mActivityRule.getActivity();
+            final ViewGroup root = new FrameLayout(activity);
+
+            // Same trees either way.
+            final View expected = new NotCompilingLayoutInflater(activity)
+                    .inflate(mLayoutId, root, false);
+            for (int i = 0; i < 3; i++) {
+                assertSameTree(expected, inflater.inflate(mLayoutId, root, false));
+            }
+
+            final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+            while (state.keepRunning()) {
+                inflater.inflate(mLayoutId, root, false);
+            }
+        });
+    }
+
+    private static void assertSameTree(View expected, View actual) {
+        assertEquals(expected.getClass(), actual.getClass());
+        assertEquals(expected.getId(), actual.getId());
+        if (expected instanceof ViewGroup) {
+            final ViewGroup expectedGroup = (ViewGroup) expected;
+            final ViewGroup actualGroup = (ViewGroup) actual;
+            assertEquals(expectedGroup.getChildCount(), actualGroup.getChildCount());
+            for (int i = 0; i < expectedGroup.getChildCount(); i++) {
+                assertSameTree(expectedGroup.getChildAt(i), actualGroup.getChildAt(i));
+            }
+        }
+    }
+
+    /** Inflates the way {@link LayoutInflater} did before it compiled layouts. */
+    private static class NotCompilingLayoutInflater extends PhoneLayoutInflater {
+        NotCompilingLayoutInflater(Context context) {
+            super(context);
+            setCompiledLayoutsEnabled(false);
+        }
+    }
+}
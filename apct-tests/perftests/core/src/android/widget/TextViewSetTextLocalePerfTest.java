@@ -20,6 +20,7 @@ import android.app.Activity;
 import android.os.Bundle;
 import android.perftests.utils.PerfStatusReporter;
 import android.util.Log;
+import android.view.View.MeasureSpec;
 
 import android.perftests.utils.BenchmarkState;
 import android.perftests.utils.StubActivity;
@@ -77,4 +78,22 @@ public class TextViewSetTextLocalePerfTest {
             textView.setTextLocale(mSecondLocale);
         }
     }
+
+    @Test
+    public void testSetTextLocaleAndMeasure() {
+        TextView textView = new TextView(mActivityRule.getActivity());
+        textView.setText("The quick brown fox jumps over the lazy dog");
+        final int widthMeasureSpec = MeasureSpec.makeMeasureSpec(300, MeasureSpec.EXACTLY);
+        final int heightMeasureSpec = MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED);
+
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+
+        // Each locale lays out the same text again, which the measured text cache remembers.
+        while (state.keepRunning()) {
+            textView.setTextLocale(mFirstLocale);
+            textView.measure(widthMeasureSpec, heightMeasureSpec);
+            textView.setTextLocale(mSecondLocale);
+            textView.measure(widthMeasureSpec, heightMeasureSpec);
+        }
+    }
 }
@@ -479,9 +479,12 @@ class ContextImpl extends Context {
             final File source = sourceContext.getSharedPreferencesPath(name);
             final File target = getSharedPreferencesPath(name);
 
-            final int res = moveFiles(source.getParentFile(), target.getParentFile(),
+            final int xmlRes = moveFiles(source.getParentFile(), target.getParentFile(),
                     source.getName());
-            if (res > 0) {
+            // Preferences in MODE_LOG_STRUCTURED_PREFERENCES live in a log next to the xml.
+            final int logRes = moveFiles(source.getParentFile(), target.getParentFile(),
+                    SharedPreferencesLog.makeLogFile(source).getName());
+            if (xmlRes > 0 || logRes > 0) {
                 // We moved at least one file, so evict any in-memory caches for
                 // either location
                 final ArrayMap<File, SharedPreferencesImpl> cache =
@@ -489,7 +492,7 @@ class ContextImpl extends Context {
                 cache.remove(source);
                 cache.remove(target);
             }
-            return res != -1;
+            return xmlRes != -1 && logRes != -1;
         }
     }
 
@@ -498,6 +501,8 @@ class ContextImpl extends Context {
         synchronized (ContextImpl.class) {
             final File prefs = getSharedPreferencesPath(name);
             final File prefsBackup = SharedPreferencesImpl.makeBackupFile(prefs);
+            final File prefsLog = SharedPreferencesLog.makeLogFile(prefs);
+            final File prefsLogCompact = SharedPreferencesLog.makeCompactFile(prefsLog);
 
             // Evict any in-memory caches
             final ArrayMap<File, SharedPreferencesImpl> cache = getSharedPreferencesCacheLocked();
@@ -505,9 +510,12 @@ class ContextImpl extends Context {
 
             prefs.delete();
             prefsBackup.delete();
+            prefsLog.delete();
+            prefsLogCompact.delete();
 
             // We failed if files are still lingering
-            return !(prefs.exists() || prefsBackup.exists());
+            return !(prefs.exists() || prefsBackup.exists() || prefsLog.exists()
+                    || prefsLogCompact.exists());
         }
     }
 
@@ -17,6 +17,7 @@
 package android.app;
 
 import android.annotation.Nullable;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.FileUtils;
 import android.os.Looper;
@@ -65,7 +66,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
     private final File mFile;
     private final File mBackupFile;
+    private final File mLogFile;
     private final int mMode;
+    /** Non-null if in {@link Context#MODE_LOG_STRUCTURED_PREFERENCES} mode. */
+    @Nullable private final SharedPreferencesLog mLog;
     private final Object mLock = new Object();
     private final Object mWritingToDiskLock = new Object();
 
@@ -90,6 +94,17 @@ final class SharedPreferencesImpl implements SharedPreferences {
     private final WeakHashMap<OnSharedPreferenceChangeListener, Object> mListeners =
             new WeakHashMap<OnSharedPreferenceChangeListener, Object>();
 
+    /**
+     * Changes committed to memory but not yet to {@link #mLog}, by key. A {@code null} value
+     * means the key was removed.
+     */
+    @GuardedBy("mLock")
+    private Map<String, Object> mPendingLogChanges = new HashMap<>();
+
+    /** Whether the map was cleared before {@link #mPendingLogChanges} were made. */
+    @GuardedBy("mLock")
+    private boolean mPendingLogClear;
+
     /** Current memory state (always increasing) */
     @GuardedBy("this")
     private long mCurrentMemoryStateGeneration;
@@ -106,7 +121,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
     SharedPreferencesImpl(File file, int mode) {
         mFile = file;
         mBackupFile = makeBackupFile(file);
+        mLogFile = SharedPreferencesLog.makeLogFile(file);
         mMode = mode;
+        mLog = (mode & Context.MODE_LOG_STRUCTURED_PREFERENCES) != 0
+                ? new SharedPreferencesLog(mLogFile) : null;
         mLoaded = false;
         mMap = null;
         mThrowable = null;
@@ -135,17 +153,28 @@ final class SharedPreferencesImpl implements SharedPreferences {
             }
         }
 
+        // Read the file of the current mode, falling back to the other one so that the
+        // preferences carry over when the mode changes. They move over on the next write.
+        final boolean readLog = mLogFile.exists() && (mLog != null || !mFile.exists());
+        final File file = readLog ? mLogFile : mFile;
+
         // Debugging
-        if (mFile.exists() && !mFile.canRead()) {
-            Log.w(TAG, "Attempt to read preferences file " + mFile + " without permission");
+        if (file.exists() && !file.canRead()) {
+            Log.w(TAG, "Attempt to read preferences file " + file + " without permission");
         }
 
         Map<String, Object> map = null;
         StructStat stat = null;
         Throwable thrown = null;
         try {
-            stat = Os.stat(mFile.getPath());
-            if (mFile.canRead()) {
+            stat = Os.stat(file.getPath());
+            if (file.canRead() && readLog) {
+                try {
+                    map = (mLog != null ? mLog : new SharedPreferencesLog(mLogFile)).read();
+                } catch (Exception e) {
+                    Log.w(TAG, "Cannot read " + file.getAbsolutePath(), e);
+                }
+            } else if (file.canRead()) {
                 BufferedInputStream str = null;
                 try {
                     str = new BufferedInputStream(
@@ -223,7 +252,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
              * violation, but we explicitly want this one.
              */
             BlockGuard.getThreadPolicy().onReadFromDisk();
-            stat = Os.stat(mFile.getPath());
+            stat = Os.stat(mLog != null ? mLogFile.getPath() : mFile.getPath());
         } catch (ErrnoException e) {
             return true;
         }
@@ -499,8 +528,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
             synchronized (SharedPreferencesImpl.this.mLock) {
                 // We optimistically don't make a deep copy until
                 // a memory commit comes in when we're already
-                // writing to disk.
-                if (mDiskWritesInFlight > 0) {
+                // writing to disk. Writes to the log only read the
+                // map under mLock, so it never needs a copy.
+                if (mDiskWritesInFlight > 0 && mLog == null) {
                     // We can't modify our mMap as a currently
                     // in-flight write owns it.  Clone it before
                     // modifying it.
@@ -523,6 +553,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
                         if (!mapToWriteToDisk.isEmpty()) {
                             changesMade = true;
                             mapToWriteToDisk.clear();
+                            if (mLog != null) {
+                                mPendingLogChanges.clear();
+                                mPendingLogClear = true;
+                            }
                         }
                         mClear = false;
                     }
@@ -547,6 +581,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                             }
                             mapToWriteToDisk.put(k, v);
                         }
+                        if (mLog != null) {
+                            mPendingLogChanges.put(k, v == this ? null : v);
+                        }
 
                         changesMade = true;
                         if (hasListeners) {
@@ -666,7 +703,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
         QueuedWork.queue(writeToDiskRunnable, !isFromSyncCommit);
     }
 
-    private static FileOutputStream createFileOutputStream(File file) {
+    static FileOutputStream createFileOutputStream(File file) {
         FileOutputStream str = null;
         try {
             str = new FileOutputStream(file);
@@ -691,6 +728,11 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
     @GuardedBy("mWritingToDiskLock")
     private void writeToFile(MemoryCommitResult mcr, boolean isFromSyncCommit) {
+        if (mLog != null) {
+            writeToLog(mcr);
+            return;
+        }
+
         long startTime = 0;
         long existsTime = 0;
         long backupExistsTime = 0;
@@ -802,6 +844,11 @@ final class SharedPreferencesImpl implements SharedPreferences {
             // Writing was successful, delete the backup file if there is one.
             mBackupFile.delete();
 
+            // As well as the log the preferences may have been migrated from.
+            if (mLogFile.exists()) {
+                mLogFile.delete();
+            }
+
             if (DEBUG) {
                 deleteTime = System.currentTimeMillis();
             }
@@ -844,4 +891,81 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
         mcr.setDiskWriteResult(false, false);
     }
+
+    /**
+     * Appends the changes committed to memory since the last write to {@link #mLog}, or
+     * compacts it if it has grown too large.
+     */
+    @GuardedBy("mWritingToDiskLock")
+    private void writeToLog(MemoryCommitResult mcr) {
+        final boolean logExists = mLogFile.exists();
+        final long memoryStateGeneration;
+        final Map<String, Object> changes;
+        final boolean clear;
+        Map<String, Object> map = null;
+        synchronized (mLock) {
+            // Every write takes all the changes made up to now, so a commit may well have
+            // been written out along with an earlier one.
+            if (logExists && mDiskStateGeneration >= mcr.memoryStateGeneration) {
+                mcr.setDiskWriteResult(false, true);
+                return;
+            }
+            memoryStateGeneration = mCurrentMemoryStateGeneration;
+            changes = mPendingLogChanges;
+            clear = mPendingLogClear;
+            mPendingLogChanges = new HashMap<>();
+            mPendingLogClear = false;
+            if (!logExists || mLog.needsCompaction()) {
+                map = new HashMap<>(mMap);
+            }
+        }
+
+        try {
+            long fsyncDuration = 0;
+            if (map == null) {
+                try {
+                    fsyncDuration = mLog.append(changes, clear);
+                } catch (IOException e) {
+                    // The changes may not be on disk. Rather than leaving them to some later
+                    // compaction, write out the whole map now.
+                    Log.w(TAG, "writeToLog: append failed, compacting:", e);
+                    synchronized (mLock) {
+                        map = new HashMap<>(mMap);
+                    }
+                }
+            }
+            if (map != null) {
+                fsyncDuration = mLog.compact(map);
+                ContextImpl.setFilePermissionsFromMode(mLogFile.getPath(), mMode, 0);
+                // The log now has everything, including whatever was migrated from xml.
+                mFile.delete();
+                mBackupFile.delete();
+            }
+
+            try {
+                final StructStat stat = Os.stat(mLogFile.getPath());
+                synchronized (mLock) {
+                    mStatTimestamp = stat.st_mtim;
+                    mStatSize = stat.st_size;
+                }
+            } catch (ErrnoException e) {
+                // Do nothing
+            }
+
+            mDiskStateGeneration = memoryStateGeneration;
+            mcr.setDiskWriteResult(true, true);
+
+            mSyncTimes.add((int) fsyncDuration);
+            mNumSync++;
+            if (DEBUG || mNumSync % 1024 == 0 || fsyncDuration > MAX_FSYNC_DURATION_MILLIS) {
+                mSyncTimes.log(TAG, "Time required to fsync " + mLogFile + ": ");
+            }
+            return;
+        } catch (IOException e) {
+            // Compaction failed too. The log knows it may be inconsistent now and will compact
+            // on the next write, which picks up the changes lost here from the map.
+            Log.w(TAG, "writeToLog: Got exception:", e);
+        }
+        mcr.setDiskWriteResult(false, false);
+    }
 }
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import android.os.FileUtils;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Log-structured file backing {@link SharedPreferencesImpl} in
+ * {@link android.content.Context#MODE_LOG_STRUCTURED_PREFERENCES} mode.
+ * <p>
+ * The file is a sequence of checksummed entries, each holding the puts, removes and clears
+ * of one write. A commit appends the keys it changed rather than rewriting the whole map, and
+ * is applied on read either in full or not at all.
+ * Once the log holds much more than the live map it is compacted: the map is written out as
+ * a fresh log next to it, which then atomically replaces it. Reads map the file and decode
+ * it in place. A torn entry at the end ends the read, and the next write compacts so that it
+ * is never appended after.
+ */
+final class SharedPreferencesLog {
+    private static final String TAG = "SharedPreferencesImpl";
+
+    private static final int MAGIC = 0x53504c47; // SPLG
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_CLEAR = 3;
+
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_STRING_SET = 2;
+    private static final byte TYPE_INT = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_FLOAT = 5;
+    private static final byte TYPE_BOOLEAN = 6;
+
+    /** The log is not compacted while it is smaller than this. */
+    private static final long MIN_COMPACT_BYTES = 32 * 1024;
+
+    private final File mFile;
+    private final File mCompactFile;
+
+    private final Object mLock = new Object();
+    /** Bytes of valid entries in the log, or -1 if it needs to be rewritten before appending. */
+    @GuardedBy("mLock")
+    private long mLogBytes = -1;
+    /** Size of the log as of the last compaction or read. */
+    @GuardedBy("mLock")
+    private long mCompactedBytes;
+
+    SharedPreferencesLog(File file) {
+        mFile = file;
+        mCompactFile = makeCompactFile(file);
+    }
+
+    /** Returns the log used for the preferences normally stored in {@code prefsFile}. */
+    static File makeLogFile(File prefsFile) {
+        String path = prefsFile.getPath();
+        if (path.endsWith(".xml")) {
+            path = path.substring(0, path.length() - 4);
+        }
+        return new File(path + ".log");
+    }
+
+    /** Returns the file a compaction of {@code logFile} is written to before replacing it. */
+    static File makeCompactFile(File logFile) {
+        return new File(logFile.getPath() + ".new");
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Replays the log into a map.
+     */
+    Map<String, Object> read() throws IOException {
+        final Map<String, Object> map = new HashMap<>();
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(mFile);
+            final FileChannel channel = in.getChannel();
+            final long length = channel.size();
+            final MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (length < HEADER_SIZE || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                throw new IOException("Not a preferences log: " + mFile);
+            }
+
+            final CRC32 crc = new CRC32();
+            byte[] entry = new byte[256];
+            long validBytes = HEADER_SIZE;
+            try {
+                while (buf.remaining() > 0) {
+                    final int entryLength = buf.getInt();
+                    if (entryLength <= 0 || entryLength > buf.remaining() - 4) {
+                        break;
+                    }
+                    if (entry.length < entryLength) {
+                        entry = new byte[Math.max(entryLength, entry.length * 2)];
+                    }
+                    buf.get(entry, 0, entryLength);
+                    crc.reset();
+                    crc.update(entry, 0, entryLength);
+                    if ((int) crc.getValue() != buf.getInt()) {
+                        break;
+                    }
+                    final ByteBuffer ops = ByteBuffer.wrap(entry, 0, entryLength);
+                    while (ops.hasRemaining()) {
+                        applyOp(map, ops);
+                    }
+                    validBytes += 8 + entryLength;
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                // Torn or corrupt entry; everything before it stands.
+            }
+
+            synchronized (mLock) {
+                if (validBytes < length) {
+                    Log.w(TAG, "Ignoring " + (length - validBytes) + " trailing bytes of "
+                            + mFile);
+                    mLogBytes = -1;
+                } else {
+                    mLogBytes = length;
+                }
+                // We don't know how much of it is live; let it double before compacting.
+                mCompactedBytes = validBytes;
+            }
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        return map;
+    }
+
+    private static void applyOp(Map<String, Object> map, ByteBuffer entry) {
+        final byte op = entry.get();
+        if (op == OP_CLEAR) {
+            map.clear();
+            return;
+        }
+        final String key = readString(entry);
+        if (op == OP_REMOVE) {
+            map.remove(key);
+            return;
+        }
+        if (op != OP_PUT) {
+            throw new IllegalArgumentException("Unknown op " + op);
+        }
+        final Object value;
+        final byte type = entry.get();
+        switch (type) {
+            case TYPE_STRING:
+                value = readString(entry);
+                break;
+            case TYPE_STRING_SET: {
+                final int size = entry.getInt();
+                if (size < 0 || size > entry.remaining()) {
+                    throw new IllegalArgumentException("Bad set size " + size);
+                }
+                final Set<String> set = new HashSet<>(size);
+                for (int i = 0; i < size; i++) {
+                    set.add(readString(entry));
+                }
+                value = set;
+                break;
+            }
+            case TYPE_INT:
+                value = entry.getInt();
+                break;
+            case TYPE_LONG:
+                value = entry.getLong();
+                break;
+            case TYPE_FLOAT:
+                value = entry.getFloat();
+                break;
+            case TYPE_BOOLEAN:
+                value = entry.get() != 0;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown type " + type);
+        }
+        map.put(key, value);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        final int length = buf.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > buf.remaining()) {
+            throw new IllegalArgumentException("Bad string length " + length);
+        }
+        final String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length,
+                StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return s;
+    }
+
+    /**
+     * Returns whether the next write has to be a {@link #compact}, either because the log
+     * can't be appended to or because it has grown well past the size of the map.
+     */
+    boolean needsCompaction() {
+        synchronized (mLock) {
+            return mLogBytes < 0
+                    || mLogBytes > Math.max(MIN_COMPACT_BYTES, mCompactedBytes * 2);
+        }
+    }
+
+    /**
+     * Appends the given changes and syncs them to disk.
+     *
+     * @param changes new values by key; a {@code null} value removes the key.
+     * @param clear whether the map was cleared before the changes were made.
+     * @return how long the fsync took, in milliseconds.
+     */
+    long append(Map<String, Object> changes, boolean clear) throws IOException {
+        final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        final EntryWriter writer = new EntryWriter(entries);
+        if (clear) {
+            writer.writeClear();
+        }
+        for (Map.Entry<String, Object> e : changes.entrySet()) {
+            writer.write(e.getKey(), e.getValue());
+        }
+        writer.finishEntry();
+
+        synchronized (mLock) {
+            if (mLogBytes < 0) {
+                throw new IOException("Log needs to be compacted first");
+            }
+            final FileOutputStream str = new FileOutputStream(mFile, true);
+            try {
+                entries.writeTo(str);
+                final long syncStart = System.currentTimeMillis();
+                FileUtils.sync(str);
+                mLogBytes += entries.size();
+                return System.currentTimeMillis() - syncStart;
+            } catch (IOException e) {
+                // We don't know how much of it made it out.
+                mLogBytes = -1;
+                throw e;
+            } finally {
+                IoUtils.closeQuietly(str);
+            }
+        }
+    }
+
+    /**
+     * Replaces the log with one holding just the entries of {@code map}.
+     *
+     * @return how long the fsync took, in milliseconds.
+     */
+    long compact(Map<String, Object> map) throws IOException {
+        synchronized (mLock) {
+            mLogBytes = -1;
+            final FileOutputStream str = SharedPreferencesImpl.createFileOutputStream(mCompactFile);
+            if (str == null) {
+                throw new IOException("Couldn't create " + mCompactFile);
+            }
+            final long syncStart;
+            final long size;
+            try {
+                final BufferedOutputStream out = new BufferedOutputStream(str, 16 * 1024);
+                final DataOutputStream header = new DataOutputStream(out);
+                header.writeInt(MAGIC);
+                header.writeInt(VERSION);
+                final EntryWriter writer = new EntryWriter(out);
+                for (Map.Entry<String, Object> e : map.entrySet()) {
+                    writer.write(e.getKey(), e.getValue());
+                    writer.finishEntry();
+                }
+                out.flush();
+                size = str.getChannel().position();
+                syncStart = System.currentTimeMillis();
+                FileUtils.sync(str);
+            } catch (IOException e) {
+                IoUtils.closeQuietly(str);
+                mCompactFile.delete();
+                throw e;
+            }
+            final long syncDuration = System.currentTimeMillis() - syncStart;
+            str.close();
+            if (!mCompactFile.renameTo(mFile)) {
+                mCompactFile.delete();
+                throw new IOException("Couldn't rename " + mCompactFile + " to " + mFile);
+            }
+            mLogBytes = size;
+            mCompactedBytes = size;
+            return syncDuration;
+        }
+    }
+
+    void delete() {
+        synchronized (mLock) {
+            mFile.delete();
+            mLogBytes = -1;
+        }
+    }
+
+    /**
+     * Encodes entries as [length, ops, crc32(ops)], where the ops are those written since the
+     * previous entry was finished.
+     */
+    private static final class EntryWriter {
+        private final OutputStream mOut;
+        private final ByteArrayOutputStream mEntry = new ByteArrayOutputStream(64);
+        private final DataOutputStream mData = new DataOutputStream(mEntry);
+        private final CRC32 mCrc = new CRC32();
+        private final byte[] mInt = new byte[4];
+
+        EntryWriter(OutputStream out) {
+            mOut = out;
+        }
+
+        void writeClear() throws IOException {
+            mData.writeByte(OP_CLEAR);
+        }
+
+        void write(String key, Object value) throws IOException {
+            if (value == null) {
+                mData.writeByte(OP_REMOVE);
+                writeString(key);
+                return;
+            }
+            mData.writeByte(OP_PUT);
+            writeString(key);
+            if (value instanceof String) {
+                mData.writeByte(TYPE_STRING);
+                writeString((String) value);
+            } else if (value instanceof Set) {
+                @SuppressWarnings("unchecked")
+                final Set<String> set = (Set<String>) value;
+                mData.writeByte(TYPE_STRING_SET);
+                mData.writeInt(set.size());
+                for (String s : set) {
+                    writeString(s);
+                }
+            } else if (value instanceof Integer) {
+                mData.writeByte(TYPE_INT);
+                mData.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                mData.writeByte(TYPE_LONG);
+                mData.writeLong((Long) value);
+            } else if (value instanceof Float) {
+                mData.writeByte(TYPE_FLOAT);
+                mData.writeFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                mData.writeByte(TYPE_BOOLEAN);
+                mData.writeBoolean((Boolean) value);
+            } else {
+                throw new IOException("Unsupported value for " + key + ": " + value.getClass());
+            }
+        }
+
+        private void writeString(String s) throws IOException {
+            if (s == null) {
+                mData.writeInt(-1);
+                return;
+            }
+            final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            mData.writeInt(bytes.length);
+            mData.write(bytes);
+        }
+
+        void finishEntry() throws IOException {
+            mData.flush();
+            if (mEntry.size() == 0) {
+                return;
+            }
+            mCrc.reset();
+            mCrc.update(mEntry.toByteArray());
+            writeInt(mEntry.size());
+            mEntry.writeTo(mOut);
+            writeInt((int) mCrc.getValue());
+            mEntry.reset();
+        }
+
+        private void writeInt(int v) throws IOException {
+            mInt[0] = (byte) (v >>> 24);
+            mInt[1] = (byte) (v >>> 16);
+            mInt[2] = (byte) (v >>> 8);
+            mInt[3] = (byte) v;
+            mOut.write(mInt);
+        }
+    }
+}
@@ -101,6 +101,7 @@ public abstract class Context {
             MODE_WORLD_READABLE,
             MODE_WORLD_WRITEABLE,
             MODE_MULTI_PROCESS,
+            MODE_LOG_STRUCTURED_PREFERENCES,
     })
     @Retention(RetentionPolicy.SOURCE)
     public @interface PreferencesMode {}
@@ -218,6 +219,17 @@ public abstract class Context {
      */
     public static final int MODE_NO_LOCALIZED_COLLATORS = 0x0010;
 
+    /**
+     * SharedPreference loading flag: when set, the preferences are stored as
+     * an append-only log of changes instead of an XML file, so that a commit
+     * only writes the keys it changed. The log is compacted once it grows
+     * past twice the size of its contents.
+     *
+     * @see #getSharedPreferences
+     * @hide
+     */
+    public static final int MODE_LOG_STRUCTURED_PREFERENCES = 0x0020;
+
     /** @hide */
     @IntDef(flag = true,
             value = {
@@ -5518,6 +5518,14 @@ public class Intent implements Parcelable, Cloneable {
      */
     public static final int FLAG_RECEIVER_VISIBLE_TO_INSTANT_APPS = 0x00200000;
 
+    /**
+     * If set, the broadcast is delivered on a queue of its own, set aside for long-running
+     * ordered broadcasts such as {@link #ACTION_BOOT_COMPLETED} so that they don't hold up
+     * other background broadcasts.
+     * @hide
+     */
+    public static final int FLAG_RECEIVER_OFFLOAD = 0x80000000;
+
     /**
      * @hide Flags that can't be changed with PendingIntent.
      */
@@ -21,8 +21,12 @@ import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
 import static android.net.NetworkStatsHistory.DataStreamUtils.readFullLongArray;
+import static android.net.NetworkStatsHistory.DataStreamUtils.readVarLong;
 import static android.net.NetworkStatsHistory.DataStreamUtils.readVarLongArray;
+import static android.net.NetworkStatsHistory.DataStreamUtils.readZigZagVarLong;
+import static android.net.NetworkStatsHistory.DataStreamUtils.writeVarLong;
 import static android.net.NetworkStatsHistory.DataStreamUtils.writeVarLongArray;
+import static android.net.NetworkStatsHistory.DataStreamUtils.writeZigZagVarLong;
 import static android.net.NetworkStatsHistory.Entry.UNKNOWN;
 import static android.net.NetworkStatsHistory.ParcelUtils.readLongArray;
 import static android.net.NetworkStatsHistory.ParcelUtils.writeLongArray;
@@ -203,6 +207,116 @@ public class NetworkStatsHistory implements Parcelable {
         writeVarLongArray(out, operations, bucketCount);
     }
 
+    /**
+     * Read a history written by {@link #writeCompactToStream}, keeping only the
+     * buckets that overlap the given window. The skipped buckets are decoded
+     * but never stored.
+     *
+     * @param length number of bytes the history takes in the stream, which
+     *            bounds how many buckets it can hold.
+     */
+    public static NetworkStatsHistory readCompactFromStream(DataInputStream in, int length,
+            long start, long end) throws IOException {
+        final long bucketDuration = readVarLong(in);
+        final long count = readVarLong(in);
+        final int fields = (int) readVarLong(in);
+        if (count < 0 || count > length) {
+            throw new ProtocolException("unexpected bucket count: " + count);
+        }
+        if (count == 0) {
+            return new NetworkStatsHistory(bucketDuration, 0, fields);
+        }
+
+        // every bucket takes at least a byte, but don't trust the length
+        // with an allocation either; grow as buckets are actually read
+        final boolean aligned = in.readBoolean();
+        long[] starts = new long[(int) Math.min(count, 32)];
+        starts[0] = readZigZagVarLong(in);
+        for (int i = 1; i < count; i++) {
+            final long delta = readVarLong(in);
+            if (i == starts.length) {
+                starts = Arrays.copyOf(starts, (int) Math.min(count, starts.length * 2L));
+            }
+            starts[i] = starts[i - 1] + (aligned ? delta * bucketDuration : delta);
+        }
+
+        // starts are sorted, so the overlapping buckets are a contiguous run
+        int first = 0;
+        while (first < starts.length && starts[first] + bucketDuration <= start) first++;
+        int last = first;
+        while (last < starts.length && starts[last] < end) last++;
+
+        final NetworkStatsHistory history = new NetworkStatsHistory(
+                bucketDuration, last - first, fields);
+        System.arraycopy(starts, first, history.bucketStart, 0, last - first);
+        readCompactColumn(in, history.activeTime, starts.length, first);
+        readCompactColumn(in, history.rxBytes, starts.length, first);
+        readCompactColumn(in, history.rxPackets, starts.length, first);
+        readCompactColumn(in, history.txBytes, starts.length, first);
+        readCompactColumn(in, history.txPackets, starts.length, first);
+        readCompactColumn(in, history.operations, starts.length, first);
+        history.bucketCount = last - first;
+        history.totalBytes = total(history.rxBytes) + total(history.txBytes);
+        return history;
+    }
+
+    private static void readCompactColumn(DataInputStream in, long[] values, int count,
+            int first) throws IOException {
+        if (values == null) return;
+        for (int i = 0; i < count; i++) {
+            final long value = readZigZagVarLong(in);
+            if (i >= first && i - first < values.length) {
+                values[i - first] = value;
+            }
+        }
+    }
+
+    /**
+     * Write this history in a compact columnar form: bucket starts are stored
+     * as deltas, in units of {@link #bucketDuration} when aligned, and every
+     * field as a column of zig-zag variable-length longs. Fields that are not
+     * tracked are omitted entirely.
+     */
+    public void writeCompactToStream(DataOutputStream out) throws IOException {
+        int fields = 0;
+        if (activeTime != null) fields |= FIELD_ACTIVE_TIME;
+        if (rxBytes != null) fields |= FIELD_RX_BYTES;
+        if (rxPackets != null) fields |= FIELD_RX_PACKETS;
+        if (txBytes != null) fields |= FIELD_TX_BYTES;
+        if (txPackets != null) fields |= FIELD_TX_PACKETS;
+        if (operations != null) fields |= FIELD_OPERATIONS;
+
+        writeVarLong(out, bucketDuration);
+        writeVarLong(out, bucketCount);
+        writeVarLong(out, fields);
+        if (bucketCount == 0) return;
+
+        boolean aligned = bucketDuration > 0;
+        for (int i = 1; i < bucketCount && aligned; i++) {
+            aligned = (bucketStart[i] - bucketStart[i - 1]) % bucketDuration == 0;
+        }
+        out.writeBoolean(aligned);
+        writeZigZagVarLong(out, bucketStart[0]);
+        for (int i = 1; i < bucketCount; i++) {
+            final long delta = bucketStart[i] - bucketStart[i - 1];
+            writeVarLong(out, aligned ? delta / bucketDuration : delta);
+        }
+        writeCompactColumn(out, activeTime, bucketCount);
+        writeCompactColumn(out, rxBytes, bucketCount);
+        writeCompactColumn(out, rxPackets, bucketCount);
+        writeCompactColumn(out, txBytes, bucketCount);
+        writeCompactColumn(out, txPackets, bucketCount);
+        writeCompactColumn(out, operations, bucketCount);
+    }
+
+    private static void writeCompactColumn(DataOutputStream out, long[] values, int count)
+            throws IOException {
+        if (values == null) return;
+        for (int i = 0; i < count; i++) {
+            writeZigZagVarLong(out, values[i]);
+        }
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -759,6 +873,24 @@ public class NetworkStatsHistory implements Parcelable {
             }
         }
 
+        /**
+         * Read variable-length {@link Long} written by
+         * {@link #writeZigZagVarLong(DataOutputStream, long)}.
+         */
+        public static long readZigZagVarLong(DataInputStream in) throws IOException {
+            final long value = readVarLong(in);
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        /**
+         * Write variable-length {@link Long} using protobuf-style zig-zag
+         * encoding, so that small negative values stay short.
+         */
+        public static void writeZigZagVarLong(DataOutputStream out, long value)
+                throws IOException {
+            writeVarLong(out, (value << 1) ^ (value >> 63));
+        }
+
         public static long[] readVarLongArray(DataInputStream in) throws IOException {
             final int size = in.readInt();
             if (size == -1) return null;
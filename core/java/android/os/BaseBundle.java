@@ -43,6 +43,13 @@ public class BaseBundle {
     // Keep in sync with frameworks/native/libs/binder/PersistableBundle.cpp.
     static final int BUNDLE_MAGIC = 0x4C444E42; // 'B' 'N' 'D' 'L'
 
+    /**
+     * Magic for the Java-only layout written by {@link Bundle}, in which each value is
+     * preceded by its length, so that a single value can be found without reading the ones
+     * before it.  PersistableBundle keeps {@link #BUNDLE_MAGIC}, which native code reads.
+     */
+    static final int BUNDLE_MAGIC_INDEXED = 0x58444E42; // 'B' 'N' 'D' 'X'
+
     /**
      * Flag indicating that this Bundle is okay to "defuse." That is, it's okay
      * for system processes to ignore any {@link BadParcelableException}
@@ -90,6 +97,19 @@ public class BaseBundle {
      */
     Parcel mParcelledData = null;
 
+    /**
+     * Whether mParcelledData uses the {@link #BUNDLE_MAGIC_INDEXED} layout.
+     */
+    private boolean mParcelledIndexed;
+
+    /*
+     * Once the keys of an indexed parcel have been read, mMap holds a LazyValue for each
+     * value that is still in mLazySource.  mLazyValues is an upper bound on how many there
+     * are; when it reaches zero the source parcel is recycled.
+     */
+    private Parcel mLazySource;
+    private int mLazyValues;
+
     /**
      * The ClassLoader used when unparcelling data from mParcelledData.
      */
@@ -231,7 +251,87 @@ public class BaseBundle {
                             + ": no parcelled data");
                 }
             }
+            if (mLazyValues > 0) {
+                for (int i = mMap.size() - 1; i >= 0; i--) {
+                    resolveValueLocked(i);
+                }
+                releaseLazySourceLocked();
+            }
+        }
+    }
+
+    /**
+     * Like {@link #unparcel()}, but values that were parcelled in the indexed layout are
+     * left in the parcel until {@link #getValue} asks for them.  Enough for anything that
+     * only looks at or replaces keys.
+     */
+    /* package */ void unparcelKeys() {
+        synchronized (this) {
+            final Parcel source = mParcelledData;
+            if (source != null) {
+                initializeFromParcelLocked(source, /*recycleParcel=*/ true);
+            }
+        }
+    }
+
+    /**
+     * Reads the values still parcelled if the parcel they are in holds any file descriptor,
+     * so that walking {@link #mMap} tells which values have one.  Values of a parcel without
+     * file descriptors are left parcelled.
+     */
+    /* package */ void unparcelValuesWithFileDescriptors() {
+        synchronized (this) {
+            if (mLazyValues > 0 && mLazySource.hasFileDescriptors()) {
+                for (int i = mMap.size() - 1; i >= 0; i--) {
+                    resolveValueLocked(i);
+                }
+                releaseLazySourceLocked();
+            }
+        }
+    }
+
+    /**
+     * Returns the value for {@code key}, reading only that value if it is still parcelled.
+     */
+    /* package */ Object getValue(String key) {
+        unparcelKeys();
+        final Object o = mMap.get(key);
+        if (!(o instanceof LazyValue)) {
+            return o;
+        }
+        synchronized (this) {
+            final int i = mMap.indexOfKey(key);
+            return i >= 0 ? resolveValueLocked(i) : null;
+        }
+    }
+
+    private Object resolveValueLocked(int index) {
+        final Object o = mMap.valueAt(index);
+        if (!(o instanceof LazyValue)) {
+            return o;
+        }
+        Object value = null;
+        try {
+            value = ((LazyValue) o).read(mClassLoader);
+            mMap.setValueAt(index, value);
+        } catch (BadParcelableException e) {
+            if (sShouldDefuse) {
+                Log.w(TAG, "Failed to parse Bundle value, but defusing quietly", e);
+                mMap.removeAt(index);
+            } else {
+                throw e;
+            }
+        }
+        if (--mLazyValues <= 0) {
+            releaseLazySourceLocked();
         }
+        return value;
+    }
+
+    private void releaseLazySourceLocked() {
+        recycleParcel(mLazySource);
+        mLazySource = null;
+        mLazyValues = 0;
     }
 
     private void initializeFromParcelLocked(@NonNull Parcel parcelledData, boolean recycleParcel) {
@@ -240,6 +340,9 @@ public class BaseBundle {
                     + "clobber all data inside!", new Throwable());
         }
 
+        // Whatever the map held before is about to be replaced.
+        releaseLazySourceLocked();
+
         if (isEmptyParcel(parcelledData)) {
             if (DEBUG) {
                 Log.d(TAG, "unparcel "
@@ -270,7 +373,17 @@ public class BaseBundle {
             map.ensureCapacity(count);
         }
         try {
-            parcelledData.readArrayMapInternal(map, count, mClassLoader);
+            if (!mParcelledIndexed) {
+                parcelledData.readArrayMapInternal(map, count, mClassLoader);
+            } else if (recycleParcel) {
+                // We own the parcel, so the values can stay in it until they are asked for.
+                readIndexedArrayMap(parcelledData, map, count, null);
+                mLazySource = parcelledData;
+                mLazyValues = map.size();
+                recycleParcel = false;
+            } else {
+                readIndexedArrayMap(parcelledData, map, count, mClassLoader);
+            }
         } catch (BadParcelableException e) {
             if (sShouldDefuse) {
                 Log.w(TAG, "Failed to parse Bundle, but defusing quietly", e);
@@ -291,6 +404,54 @@ public class BaseBundle {
         }
     }
 
+    /**
+     * Reads {@code count} entries written by {@link #writeIndexedArrayMap}.  With a null
+     * {@code loader} the values are not read; each is left as a {@link LazyValue} instead.
+     */
+    private static void readIndexedArrayMap(Parcel parcel, ArrayMap<String, Object> map,
+            int count, ClassLoader loader) {
+        for (int i = 0; i < count; i++) {
+            final String key = parcel.readString();
+            final int length = parcel.readInt();
+            if (length < 0) {
+                throw new BadParcelableException("Bad length " + length + " for key " + key);
+            }
+            final int offset = parcel.dataPosition();
+            map.append(key, loader == null
+                    ? new LazyValue(parcel, offset, length) : parcel.readValue(loader));
+            parcel.setDataPosition(MathUtils.addOrThrow(offset, length));
+        }
+        map.validate();
+    }
+
+    private static void writeIndexedArrayMap(Parcel parcel, ArrayMap<String, Object> map) {
+        final int N = map.size();
+        parcel.writeInt(N);
+        for (int i = 0; i < N; i++) {
+            parcel.writeString(map.keyAt(i));
+            final Object value = map.valueAt(i);
+            final int lengthPos = parcel.dataPosition();
+            parcel.writeInt(-1); // dummy, will hold length
+            final int startPos = parcel.dataPosition();
+            if (value instanceof LazyValue) {
+                ((LazyValue) value).writeTo(parcel);
+            } else {
+                parcel.writeValue(value);
+            }
+            final int endPos = parcel.dataPosition();
+            parcel.setDataPosition(lengthPos);
+            parcel.writeInt(endPos - startPos);
+            parcel.setDataPosition(endPos);
+        }
+    }
+
+    /**
+     * Whether this kind of bundle is written with {@link #BUNDLE_MAGIC_INDEXED}.
+     */
+    boolean writesIndexedParcel() {
+        return false;
+    }
+
     /**
      * @hide
      */
@@ -330,7 +491,7 @@ public class BaseBundle {
      * @return the number of mappings as an int.
      */
     public int size() {
-        unparcel();
+        unparcelKeys();
         return mMap.size();
     }
 
@@ -338,7 +499,7 @@ public class BaseBundle {
      * Returns true if the mapping of this Bundle is empty, false otherwise.
      */
     public boolean isEmpty() {
-        unparcel();
+        unparcelKeys();
         return mMap.isEmpty();
     }
 
@@ -369,6 +530,8 @@ public class BaseBundle {
         } else if (isParcelled()) {
             return mParcelledData.compareData(other.mParcelledData) == 0;
         } else {
+            unparcel();
+            other.unparcel();
             return mMap.equals(other.mMap);
         }
     }
@@ -377,8 +540,11 @@ public class BaseBundle {
      * Removes all elements from the mapping of this Bundle.
      */
     public void clear() {
-        unparcel();
-        mMap.clear();
+        unparcelKeys();
+        synchronized (this) {
+            mMap.clear();
+            releaseLazySourceLocked();
+        }
     }
 
     void copyInternal(BaseBundle from, boolean deep) {
@@ -395,6 +561,7 @@ public class BaseBundle {
             } else {
                 mParcelledData = null;
             }
+            mParcelledIndexed = from.mParcelledIndexed;
 
             if (from.mMap != null) {
                 if (!deep) {
@@ -411,6 +578,20 @@ public class BaseBundle {
                 mMap = null;
             }
 
+            if (from.mLazyValues > 0) {
+                // Values still in the source parcel get a copy of it, so the two bundles can
+                // resolve and recycle independently.
+                mLazySource = Parcel.obtain();
+                mLazySource.appendFrom(from.mLazySource, 0, from.mLazySource.dataSize());
+                mLazyValues = from.mLazyValues;
+                for (int i = mMap.size() - 1; i >= 0; i--) {
+                    final Object value = mMap.valueAt(i);
+                    if (value instanceof LazyValue) {
+                        mMap.setValueAt(i, ((LazyValue) value).copyTo(mLazySource));
+                    }
+                }
+            }
+
             mClassLoader = from.mClassLoader;
         }
     }
@@ -464,7 +645,7 @@ public class BaseBundle {
      * @return true if the key is part of the mapping, false otherwise
      */
     public boolean containsKey(String key) {
-        unparcel();
+        unparcelKeys();
         return mMap.containsKey(key);
     }
 
@@ -476,8 +657,7 @@ public class BaseBundle {
      */
     @Nullable
     public Object get(String key) {
-        unparcel();
-        return mMap.get(key);
+        return getValue(key);
     }
 
     /**
@@ -486,7 +666,7 @@ public class BaseBundle {
      * @param key a String key
      */
     public void remove(String key) {
-        unparcel();
+        unparcelKeys();
         mMap.remove(key);
     }
 
@@ -496,7 +676,7 @@ public class BaseBundle {
      * @param bundle a PersistableBundle
      */
     public void putAll(PersistableBundle bundle) {
-        unparcel();
+        unparcelKeys();
         bundle.unparcel();
         mMap.putAll(bundle.mMap);
     }
@@ -507,7 +687,7 @@ public class BaseBundle {
      * @param map a Map
      */
     void putAll(ArrayMap map) {
-        unparcel();
+        unparcelKeys();
         mMap.putAll(map);
     }
 
@@ -517,7 +697,7 @@ public class BaseBundle {
      * @return a Set of String keys
      */
     public Set<String> keySet() {
-        unparcel();
+        unparcelKeys();
         return mMap.keySet();
     }
 
@@ -529,7 +709,7 @@ public class BaseBundle {
      * @param value a boolean
      */
     public void putBoolean(@Nullable String key, boolean value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -541,7 +721,7 @@ public class BaseBundle {
      * @param value a byte
      */
     void putByte(@Nullable String key, byte value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -553,7 +733,7 @@ public class BaseBundle {
      * @param value a char
      */
     void putChar(@Nullable String key, char value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -565,7 +745,7 @@ public class BaseBundle {
      * @param value a short
      */
     void putShort(@Nullable String key, short value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -577,7 +757,7 @@ public class BaseBundle {
      * @param value an int
      */
     public void putInt(@Nullable String key, int value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -589,7 +769,7 @@ public class BaseBundle {
      * @param value a long
      */
     public void putLong(@Nullable String key, long value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -601,7 +781,7 @@ public class BaseBundle {
      * @param value a float
      */
     void putFloat(@Nullable String key, float value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -613,7 +793,7 @@ public class BaseBundle {
      * @param value a double
      */
     public void putDouble(@Nullable String key, double value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -625,7 +805,7 @@ public class BaseBundle {
      * @param value a String, or null
      */
     public void putString(@Nullable String key, @Nullable String value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -637,7 +817,7 @@ public class BaseBundle {
      * @param value a CharSequence, or null
      */
     void putCharSequence(@Nullable String key, @Nullable CharSequence value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -649,7 +829,7 @@ public class BaseBundle {
      * @param value an ArrayList<Integer> object, or null
      */
     void putIntegerArrayList(@Nullable String key, @Nullable ArrayList<Integer> value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -661,7 +841,7 @@ public class BaseBundle {
      * @param value an ArrayList<String> object, or null
      */
     void putStringArrayList(@Nullable String key, @Nullable ArrayList<String> value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -673,7 +853,7 @@ public class BaseBundle {
      * @param value an ArrayList<CharSequence> object, or null
      */
     void putCharSequenceArrayList(@Nullable String key, @Nullable ArrayList<CharSequence> value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -685,7 +865,7 @@ public class BaseBundle {
      * @param value a Serializable object, or null
      */
     void putSerializable(@Nullable String key, @Nullable Serializable value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -697,7 +877,7 @@ public class BaseBundle {
      * @param value a boolean array object, or null
      */
     public void putBooleanArray(@Nullable String key, @Nullable boolean[] value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -709,7 +889,7 @@ public class BaseBundle {
      * @param value a byte array object, or null
      */
     void putByteArray(@Nullable String key, @Nullable byte[] value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -721,7 +901,7 @@ public class BaseBundle {
      * @param value a short array object, or null
      */
     void putShortArray(@Nullable String key, @Nullable short[] value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -733,7 +913,7 @@ public class BaseBundle {
      * @param value a char array object, or null
      */
     void putCharArray(@Nullable String key, @Nullable char[] value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -745,7 +925,7 @@ public class BaseBundle {
      * @param value an int array object, or null
      */
     public void putIntArray(@Nullable String key, @Nullable int[] value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -757,7 +937,7 @@ public class BaseBundle {
      * @param value a long array object, or null
      */
     public void putLongArray(@Nullable String key, @Nullable long[] value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -769,7 +949,7 @@ public class BaseBundle {
      * @param value a float array object, or null
      */
     void putFloatArray(@Nullable String key, @Nullable float[] value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -781,7 +961,7 @@ public class BaseBundle {
      * @param value a double array object, or null
      */
     public void putDoubleArray(@Nullable String key, @Nullable double[] value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -793,7 +973,7 @@ public class BaseBundle {
      * @param value a String array object, or null
      */
     public void putStringArray(@Nullable String key, @Nullable String[] value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -805,7 +985,7 @@ public class BaseBundle {
      * @param value a CharSequence array object, or null
      */
     void putCharSequenceArray(@Nullable String key, @Nullable CharSequence[] value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -817,7 +997,6 @@ public class BaseBundle {
      * @return a boolean value
      */
     public boolean getBoolean(String key) {
-        unparcel();
         if (DEBUG) Log.d(TAG, "Getting boolean in "
                 + Integer.toHexString(System.identityHashCode(this)));
         return getBoolean(key, false);
@@ -854,8 +1033,7 @@ public class BaseBundle {
      * @return a boolean value
      */
     public boolean getBoolean(String key, boolean defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -875,7 +1053,6 @@ public class BaseBundle {
      * @return a byte value
      */
     byte getByte(String key) {
-        unparcel();
         return getByte(key, (byte) 0);
     }
 
@@ -888,8 +1065,7 @@ public class BaseBundle {
      * @return a byte value
      */
     Byte getByte(String key, byte defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -909,7 +1085,6 @@ public class BaseBundle {
      * @return a char value
      */
     char getChar(String key) {
-        unparcel();
         return getChar(key, (char) 0);
     }
 
@@ -922,8 +1097,7 @@ public class BaseBundle {
      * @return a char value
      */
     char getChar(String key, char defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -943,7 +1117,6 @@ public class BaseBundle {
      * @return a short value
      */
     short getShort(String key) {
-        unparcel();
         return getShort(key, (short) 0);
     }
 
@@ -956,8 +1129,7 @@ public class BaseBundle {
      * @return a short value
      */
     short getShort(String key, short defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -977,7 +1149,6 @@ public class BaseBundle {
      * @return an int value
      */
     public int getInt(String key) {
-        unparcel();
         return getInt(key, 0);
     }
 
@@ -990,8 +1161,7 @@ public class BaseBundle {
      * @return an int value
      */
    public int getInt(String key, int defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1011,7 +1181,6 @@ public class BaseBundle {
      * @return a long value
      */
     public long getLong(String key) {
-        unparcel();
         return getLong(key, 0L);
     }
 
@@ -1024,8 +1193,7 @@ public class BaseBundle {
      * @return a long value
      */
     public long getLong(String key, long defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1045,7 +1213,6 @@ public class BaseBundle {
      * @return a float value
      */
     float getFloat(String key) {
-        unparcel();
         return getFloat(key, 0.0f);
     }
 
@@ -1058,8 +1225,7 @@ public class BaseBundle {
      * @return a float value
      */
     float getFloat(String key, float defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1079,7 +1245,6 @@ public class BaseBundle {
      * @return a double value
      */
     public double getDouble(String key) {
-        unparcel();
         return getDouble(key, 0.0);
     }
 
@@ -1092,8 +1257,7 @@ public class BaseBundle {
      * @return a double value
      */
     public double getDouble(String key, double defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1115,8 +1279,7 @@ public class BaseBundle {
      */
     @Nullable
     public String getString(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (String) o;
         } catch (ClassCastException e) {
@@ -1151,8 +1314,7 @@ public class BaseBundle {
      */
     @Nullable
     CharSequence getCharSequence(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (CharSequence) o;
         } catch (ClassCastException e) {
@@ -1187,8 +1349,7 @@ public class BaseBundle {
      */
     @Nullable
     Serializable getSerializable(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1210,8 +1371,7 @@ public class BaseBundle {
      */
     @Nullable
     ArrayList<Integer> getIntegerArrayList(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1233,8 +1393,7 @@ public class BaseBundle {
      */
     @Nullable
     ArrayList<String> getStringArrayList(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1256,8 +1415,7 @@ public class BaseBundle {
      */
     @Nullable
     ArrayList<CharSequence> getCharSequenceArrayList(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1279,8 +1437,7 @@ public class BaseBundle {
      */
     @Nullable
     public boolean[] getBooleanArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1302,8 +1459,7 @@ public class BaseBundle {
      */
     @Nullable
     byte[] getByteArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1325,8 +1481,7 @@ public class BaseBundle {
      */
     @Nullable
     short[] getShortArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1348,8 +1503,7 @@ public class BaseBundle {
      */
     @Nullable
     char[] getCharArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1371,8 +1525,7 @@ public class BaseBundle {
      */
     @Nullable
     public int[] getIntArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1394,8 +1547,7 @@ public class BaseBundle {
      */
     @Nullable
     public long[] getLongArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1417,8 +1569,7 @@ public class BaseBundle {
      */
     @Nullable
     float[] getFloatArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1440,8 +1591,7 @@ public class BaseBundle {
      */
     @Nullable
     public double[] getDoubleArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1463,8 +1613,7 @@ public class BaseBundle {
      */
     @Nullable
     public String[] getStringArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1486,8 +1635,7 @@ public class BaseBundle {
      */
     @Nullable
     CharSequence[] getCharSequenceArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1509,6 +1657,7 @@ public class BaseBundle {
         if (parcel.hasReadWriteHelper()) {
             unparcel();
         }
+        final boolean indexed = writesIndexedParcel() && !parcel.hasReadWriteHelper();
         // Keep implementation in sync with writeToParcel() in
         // frameworks/native/libs/binder/PersistableBundle.cpp.
         final ArrayMap<String, Object> map;
@@ -1521,14 +1670,27 @@ public class BaseBundle {
                 } else {
                     int length = mParcelledData.dataSize();
                     parcel.writeInt(length);
-                    parcel.writeInt(BUNDLE_MAGIC);
+                    parcel.writeInt(mParcelledIndexed ? BUNDLE_MAGIC_INDEXED : BUNDLE_MAGIC);
                     parcel.appendFrom(mParcelledData, 0, length);
                 }
                 return;
             }
+            if (mLazyValues > 0) {
+                if (indexed) {
+                    // Values nobody has read are copied through as they are; this must stay
+                    // under the lock, as resolving the last of them recycles their source.
+                    writeMapToParcel(parcel, mMap, true);
+                    return;
+                }
+                unparcel();
+            }
             map = mMap;
         }
+        writeMapToParcel(parcel, map, indexed);
+    }
 
+    private static void writeMapToParcel(Parcel parcel, ArrayMap<String, Object> map,
+            boolean indexed) {
         // Special case for empty bundles.
         if (map == null || map.size() <= 0) {
             parcel.writeInt(0);
@@ -1536,10 +1698,14 @@ public class BaseBundle {
         }
         int lengthPos = parcel.dataPosition();
         parcel.writeInt(-1); // dummy, will hold length
-        parcel.writeInt(BUNDLE_MAGIC);
+        parcel.writeInt(indexed ? BUNDLE_MAGIC_INDEXED : BUNDLE_MAGIC);
 
         int startPos = parcel.dataPosition();
-        parcel.writeArrayMapInternal(map);
+        if (indexed) {
+            writeIndexedArrayMap(parcel, map);
+        } else {
+            parcel.writeArrayMapInternal(map);
+        }
         int endPos = parcel.dataPosition();
 
         // Backpatch length
@@ -1568,14 +1734,16 @@ public class BaseBundle {
         } else if (length == 0) {
             // Empty Bundle or end of data.
             mParcelledData = NoImagePreloadHolder.EMPTY_PARCEL;
+            mParcelledIndexed = false;
             return;
         }
 
         final int magic = parcel.readInt();
-        if (magic != BUNDLE_MAGIC) {
+        if (magic != BUNDLE_MAGIC && magic != BUNDLE_MAGIC_INDEXED) {
             throw new IllegalStateException("Bad magic number for Bundle: 0x"
                     + Integer.toHexString(magic));
         }
+        mParcelledIndexed = magic == BUNDLE_MAGIC_INDEXED;
 
         if (parcel.hasReadWriteHelper()) {
             // If the parcel has a read-write helper, then we can't lazily-unparcel it, so just
@@ -1645,4 +1813,37 @@ public class BaseBundle {
         }
         pw.decreaseIndent();
     }
+
+    /**
+     * A value of an indexed bundle that has not been read out of its parcel yet.
+     */
+    static final class LazyValue {
+        private final Parcel mSource;
+        private final int mOffset;
+        private final int mLength;
+
+        LazyValue(Parcel source, int offset, int length) {
+            mSource = source;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        Object read(ClassLoader loader) {
+            mSource.setDataPosition(mOffset);
+            return mSource.readValue(loader);
+        }
+
+        void writeTo(Parcel dest) {
+            dest.appendFrom(mSource, mOffset, mLength);
+        }
+
+        LazyValue copyTo(Parcel source) {
+            return new LazyValue(source, mOffset, mLength);
+        }
+
+        @Override
+        public String toString() {
+            return "(parcelled, " + mLength + " bytes)";
+        }
+    }
 }
@@ -284,7 +284,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      * @param bundle a Bundle
      */
     public void putAll(Bundle bundle) {
-        unparcel();
+        unparcelKeys();
         bundle.unparcel();
         mMap.putAll(bundle.mMap);
 
@@ -297,6 +297,11 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
         }
     }
 
+    @Override
+    boolean writesIndexedParcel() {
+        return true;
+    }
+
     /**
      * Return the size of {@link #mParcelledData} in bytes if available, otherwise {@code 0}.
      *
@@ -322,7 +327,9 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
                     fdFound = true;
                 }
             } else {
-                // It's been unparcelled, so we need to walk the map
+                // It's been unparcelled, so we need to walk the map.  Values left parcelled
+                // after this come from a parcel without file descriptors.
+                unparcelValuesWithFileDescriptors();
                 for (int i=mMap.size()-1; i>=0; i--) {
                     Object obj = mMap.valueAt(i);
                     if (obj instanceof Parcelable) {
@@ -497,7 +504,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      * @param value a Parcelable object, or null
      */
     public void putParcelable(@Nullable String key, @Nullable Parcelable value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
         mFlags &= ~FLAG_HAS_FDS_KNOWN;
     }
@@ -510,7 +517,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      * @param value a Size object, or null
      */
     public void putSize(@Nullable String key, @Nullable Size value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -522,7 +529,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      * @param value a SizeF object, or null
      */
     public void putSizeF(@Nullable String key, @Nullable SizeF value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -535,7 +542,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      * @param value an array of Parcelable objects, or null
      */
     public void putParcelableArray(@Nullable String key, @Nullable Parcelable[] value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
         mFlags &= ~FLAG_HAS_FDS_KNOWN;
     }
@@ -550,14 +557,14 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     public void putParcelableArrayList(@Nullable String key,
             @Nullable ArrayList<? extends Parcelable> value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
         mFlags &= ~FLAG_HAS_FDS_KNOWN;
     }
 
     /** {@hide} */
     public void putParcelableList(String key, List<? extends Parcelable> value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
         mFlags &= ~FLAG_HAS_FDS_KNOWN;
     }
@@ -572,7 +579,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     public void putSparseParcelableArray(@Nullable String key,
             @Nullable SparseArray<? extends Parcelable> value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
         mFlags &= ~FLAG_HAS_FDS_KNOWN;
     }
@@ -694,7 +701,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      * @param value a Bundle object, or null
      */
     public void putBundle(@Nullable String key, @Nullable Bundle value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -713,7 +720,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      * @param value an IBinder object, or null
      */
     public void putBinder(@Nullable String key, @Nullable IBinder value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -729,7 +736,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Deprecated
     public void putIBinder(@Nullable String key, @Nullable IBinder value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -873,8 +880,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public Size getSize(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (Size) o;
         } catch (ClassCastException e) {
@@ -893,8 +899,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public SizeF getSizeF(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (SizeF) o;
         } catch (ClassCastException e) {
@@ -913,8 +918,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public Bundle getBundle(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -936,8 +940,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public <T extends Parcelable> T getParcelable(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -959,8 +962,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public Parcelable[] getParcelableArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -982,8 +984,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public <T extends Parcelable> ArrayList<T> getParcelableArrayList(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1006,8 +1007,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public <T extends Parcelable> SparseArray<T> getSparseParcelableArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1155,8 +1155,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public IBinder getBinder(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1182,8 +1181,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Deprecated
     @Nullable
     public IBinder getIBinder(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
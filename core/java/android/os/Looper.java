@@ -24,6 +24,8 @@ import android.util.Printer;
 import android.util.Slog;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.os.LooperStats;
+
 /**
   * Class used to run a message loop for a thread.  Threads by default do
   * not have a message loop associated with them; to create one, call
@@ -80,6 +82,9 @@ public final class Looper {
     /* If set, the looper will show a warning log if a message dispatch takes longer than time. */
     private long mSlowDispatchThresholdMs;
 
+    /* If set and enabled, every dispatched message is accounted for in these stats. */
+    private LooperStats mStats;
+
      /** Initialize the current thread as a looper.
       * This gives you a chance to create handlers that then reference
       * this looper, before actually starting the loop. Be sure to call
@@ -158,7 +163,11 @@ public final class Looper {
             if (traceTag != 0 && Trace.isTagEnabled(traceTag)) {
                 Trace.traceBegin(traceTag, msg.target.getTraceName(msg));
             }
-            final long start = (slowDispatchThresholdMs == 0) ? 0 : SystemClock.uptimeMillis();
+            final LooperStats stats = me.mStats;
+            final boolean measure = stats != null && stats.isEnabled();
+            final long start = (slowDispatchThresholdMs == 0 && !measure)
+                    ? 0 : SystemClock.uptimeMillis();
+            final long startNanos = measure ? System.nanoTime() : 0;
             final long end;
             try {
                 msg.target.dispatchMessage(msg);
@@ -168,6 +177,9 @@ public final class Looper {
                     Trace.traceEnd(traceTag);
                 }
             }
+            if (measure) {
+                stats.messageDispatched(msg, start, System.nanoTime() - startNanos);
+            }
             if (slowDispatchThresholdMs > 0) {
                 final long time = end - start;
                 if (time > slowDispatchThresholdMs) {
@@ -248,6 +260,20 @@ public final class Looper {
         mSlowDispatchThresholdMs = slowDispatchThresholdMs;
     }
 
+    /**
+     * Set the stats that this looper's dispatches are accounted for in, while they are
+     * enabled. Call before the looper starts running.
+     * {@hide}
+     */
+    public void setStats(LooperStats stats) {
+        mStats = stats;
+    }
+
+    /** {@hide} */
+    public LooperStats getStats() {
+        return mStats;
+    }
+
     /**
      * Quits the looper.
      * <p>
@@ -93,6 +93,9 @@ public final class Message implements Parcelable {
     /** If set message is asynchronous */
     /*package*/ static final int FLAG_ASYNCHRONOUS = 1 << 1;
 
+    /** If set message is urgent */
+    /*package*/ static final int FLAG_URGENT = 1 << 2;
+
     /** Flags to clear in the copyFrom method */
     /*package*/ static final int FLAGS_TO_CLEAR_ON_COPY_FROM = FLAG_IN_USE;
 
@@ -464,6 +467,37 @@ public final class Message implements Parcelable {
         }
     }
 
+    /**
+     * Returns true if the message is urgent.
+     *
+     * @see #setUrgent(boolean)
+     * @hide
+     */
+    public boolean isUrgent() {
+        return (flags & FLAG_URGENT) != 0;
+    }
+
+    /**
+     * Sets whether the message is urgent, meaning that on queues that
+     * {@link MessageQueue#setUrgentMessagesEnabled allow it}, it is delivered ahead of
+     * other messages that are already due, though never ahead of earlier urgent messages
+     * or past a synchronization barrier.  Meant for latency critical work on threads
+     * shared with bulk work.  To keep that work from starving, only a limited run of
+     * urgent messages is let ahead.
+     *
+     * @param urgent True if the message is urgent.
+     *
+     * @see #isUrgent()
+     * @hide
+     */
+    public void setUrgent(boolean urgent) {
+        if (urgent) {
+            flags |= FLAG_URGENT;
+        } else {
+            flags &= ~FLAG_URGENT;
+        }
+    }
+
     /*package*/ boolean isInUse() {
         return ((flags & FLAG_IN_USE) == FLAG_IN_USE);
     }
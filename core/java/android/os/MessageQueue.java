@@ -41,6 +41,10 @@ public final class MessageQueue {
     private static final String TAG = "MessageQueue";
     private static final boolean DEBUG = false;
 
+    // How many urgent messages in a row may be delivered ahead of due messages before
+    // the others get a turn.
+    /*package*/ static final int MAX_CONSECUTIVE_URGENT = 16;
+
     // True if the message queue can be quit.
     private final boolean mQuitAllowed;
 
@@ -48,6 +52,9 @@ public final class MessageQueue {
     private long mPtr; // used by native code
 
     Message mMessages;
+    // The last message in the queue, or null if not known.  Lets messages that are due
+    // after all the others be appended without walking the queue.
+    private Message mLastMessage;
     private final ArrayList<IdleHandler> mIdleHandlers = new ArrayList<IdleHandler>();
     private SparseArray<FileDescriptorRecord> mFileDescriptorRecords;
     private IdleHandler[] mPendingIdleHandlers;
@@ -60,6 +67,14 @@ public final class MessageQueue {
     // Barriers are indicated by messages with a null target whose arg1 field carries the token.
     private int mNextBarrierToken;
 
+    // Whether urgent messages are let ahead of due messages; see Message#setUrgent.
+    private boolean mUrgentMessagesEnabled;
+    // Urgent messages let ahead since a message that is not urgent was last delivered.
+    private int mConsecutiveUrgent;
+    // Fairness counters, reported by dump().
+    private int mUrgentPromoted;
+    private int mUrgentDeferred;
+
     private native static long nativeInit();
     private native static void nativeDestroy(long ptr);
     private native void nativePollOnce(long ptr, int timeoutMillis); /*non-static for callbacks*/
@@ -349,6 +364,12 @@ public final class MessageQueue {
                         } else {
                             mMessages = msg.next;
                         }
+                        if (msg == mLastMessage) {
+                            mLastMessage = prevMsg;
+                        }
+                        if (!msg.isUrgent()) {
+                            mConsecutiveUrgent = 0;
+                        }
                         msg.next = null;
                         if (DEBUG) Log.v(TAG, "Returning message: " + msg);
                         msg.markInUse();
@@ -487,6 +508,9 @@ public final class MessageQueue {
                 msg.next = p;
                 mMessages = msg;
             }
+            if (p == null) {
+                mLastMessage = msg;
+            }
             return token;
         }
     }
@@ -523,6 +547,9 @@ public final class MessageQueue {
                 mMessages = p.next;
                 needWake = mMessages == null || mMessages.target != null;
             }
+            if (p == mLastMessage) {
+                mLastMessage = prev;
+            }
             p.recycleUnchecked();
 
             // If the loop is quitting then it is already awake.
@@ -558,25 +585,43 @@ public final class MessageQueue {
                 // New head, wake up the event queue if blocked.
                 msg.next = p;
                 mMessages = msg;
+                if (p == null) {
+                    mLastMessage = msg;
+                }
                 needWake = mBlocked;
+            } else if (mUrgentMessagesEnabled && msg.isUrgent() && p.target != null
+                    && when <= SystemClock.uptimeMillis()) {
+                // The head is due, so the queue isn't blocked for long.
+                enqueueUrgentMessageLocked(msg, when);
+                needWake = false;
             } else {
                 // Inserted within the middle of the queue.  Usually we don't have to wake
                 // up the event queue unless there is a barrier at the head of the queue
                 // and the message is the earliest asynchronous message in the queue.
                 needWake = mBlocked && p.target == null && msg.isAsynchronous();
-                Message prev;
-                for (;;) {
-                    prev = p;
-                    p = p.next;
-                    if (p == null || when < p.when) {
-                        break;
+                if (!needWake && mLastMessage != null && when >= mLastMessage.when) {
+                    // Due after everything else; append.
+                    msg.next = null;
+                    mLastMessage.next = msg;
+                    mLastMessage = msg;
+                } else {
+                    Message prev;
+                    for (;;) {
+                        prev = p;
+                        p = p.next;
+                        if (p == null || when < p.when) {
+                            break;
+                        }
+                        if (needWake && p.isAsynchronous()) {
+                            needWake = false;
+                        }
                     }
-                    if (needWake && p.isAsynchronous()) {
-                        needWake = false;
+                    msg.next = p; // invariant: p == prev.next
+                    prev.next = msg;
+                    if (p == null) {
+                        mLastMessage = msg;
                     }
                 }
-                msg.next = p; // invariant: p == prev.next
-                prev.next = msg;
             }
 
             // We can assume mPtr != 0 because mQuitting is false.
@@ -587,6 +632,57 @@ public final class MessageQueue {
         return true;
     }
 
+    /**
+     * Inserts a due urgent message ahead of the other due messages, behind any earlier
+     * urgent messages and barriers, unless too many have been let ahead in a row.
+     * The head of the queue must be a due message, not a barrier.
+     */
+    private void enqueueUrgentMessageLocked(Message msg, long when) {
+        Message prev = null;
+        Message p = mMessages;
+        if (mConsecutiveUrgent < MAX_CONSECUTIVE_URGENT) {
+            for (Message q = p; q != null && q.when <= when; q = q.next) {
+                if (q.target == null || q.isUrgent()) {
+                    prev = q;
+                }
+            }
+            p = prev != null ? prev.next : mMessages;
+            if (p != null && p.when <= when) {
+                mConsecutiveUrgent++;
+                mUrgentPromoted++;
+            }
+        } else {
+            mUrgentDeferred++;
+            while (p != null && p.when <= when) {
+                prev = p;
+                p = p.next;
+            }
+        }
+        // Keep the queue ordered; the message is due either way.
+        msg.when = (p != null) ? Math.min(when, p.when) : when;
+        msg.next = p;
+        if (prev != null) {
+            prev.next = msg;
+        } else {
+            mMessages = msg;
+        }
+        if (p == null) {
+            mLastMessage = msg;
+        }
+    }
+
+    /**
+     * Sets whether messages marked {@link Message#setUrgent urgent} are delivered ahead of
+     * other due messages on this queue.
+     *
+     * @hide
+     */
+    public void setUrgentMessagesEnabled(boolean enabled) {
+        synchronized (this) {
+            mUrgentMessagesEnabled = enabled;
+        }
+    }
+
     boolean hasMessages(Handler h, int what, Object object) {
         if (h == null) {
             return false;
@@ -651,6 +747,9 @@ public final class MessageQueue {
                    && (object == null || p.obj == object)) {
                 Message n = p.next;
                 mMessages = n;
+                if (p == mLastMessage) {
+                    mLastMessage = null;
+                }
                 p.recycleUnchecked();
                 p = n;
             }
@@ -662,6 +761,9 @@ public final class MessageQueue {
                     if (n.target == h && n.what == what
                         && (object == null || n.obj == object)) {
                         Message nn = n.next;
+                        if (n == mLastMessage) {
+                            mLastMessage = p;
+                        }
                         n.recycleUnchecked();
                         p.next = nn;
                         continue;
@@ -685,6 +787,9 @@ public final class MessageQueue {
                    && (object == null || p.obj == object)) {
                 Message n = p.next;
                 mMessages = n;
+                if (p == mLastMessage) {
+                    mLastMessage = null;
+                }
                 p.recycleUnchecked();
                 p = n;
             }
@@ -696,6 +801,9 @@ public final class MessageQueue {
                     if (n.target == h && n.callback == r
                         && (object == null || n.obj == object)) {
                         Message nn = n.next;
+                        if (n == mLastMessage) {
+                            mLastMessage = p;
+                        }
                         n.recycleUnchecked();
                         p.next = nn;
                         continue;
@@ -719,6 +827,9 @@ public final class MessageQueue {
                     && (object == null || p.obj == object)) {
                 Message n = p.next;
                 mMessages = n;
+                if (p == mLastMessage) {
+                    mLastMessage = null;
+                }
                 p.recycleUnchecked();
                 p = n;
             }
@@ -729,6 +840,9 @@ public final class MessageQueue {
                 if (n != null) {
                     if (n.target == h && (object == null || n.obj == object)) {
                         Message nn = n.next;
+                        if (n == mLastMessage) {
+                            mLastMessage = p;
+                        }
                         n.recycleUnchecked();
                         p.next = nn;
                         continue;
@@ -747,6 +861,7 @@ public final class MessageQueue {
             p = n;
         }
         mMessages = null;
+        mLastMessage = null;
     }
 
     private void removeAllFutureMessagesLocked() {
@@ -768,6 +883,7 @@ public final class MessageQueue {
                     p = n;
                 }
                 p.next = null;
+                mLastMessage = p;
                 do {
                     p = n;
                     n = p.next;
@@ -789,6 +905,10 @@ public final class MessageQueue {
             }
             pw.println(prefix + "(Total messages: " + n + ", polling=" + isPollingLocked()
                     + ", quitting=" + mQuitting + ")");
+            if (mUrgentMessagesEnabled) {
+                pw.println(prefix + "(Urgent messages: promoted=" + mUrgentPromoted
+                        + ", deferred=" + mUrgentDeferred + ")");
+            }
         }
     }
 
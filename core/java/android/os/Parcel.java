@@ -261,6 +261,12 @@ public final class Parcel {
     // see libbinder's binder/Status.h
     private static final int EX_TRANSACTION_FAILED = -129;
 
+    /**
+     * Primitive arrays at least this long are copied in and out of the parcel with one JNI
+     * call rather than one per element. The wire format is the same either way.
+     */
+    private static final int BULK_ARRAY_THRESHOLD = 16;
+
     @CriticalNative
     private static native int nativeDataSize(long nativePtr);
     @CriticalNative
@@ -283,6 +289,8 @@ public final class Parcel {
 
     private static native void nativeWriteByteArray(long nativePtr, byte[] b, int offset, int len);
     private static native void nativeWriteBlob(long nativePtr, byte[] b, int offset, int len);
+    private static native void nativeWriteArrayData(long nativePtr, Object array, int byteOffset,
+            int byteCount);
     @FastNative
     private static native void nativeWriteInt(long nativePtr, int val);
     @FastNative
@@ -298,6 +306,7 @@ public final class Parcel {
     private static native byte[] nativeCreateByteArray(long nativePtr);
     private static native boolean nativeReadByteArray(long nativePtr, byte[] dest, int destLen);
     private static native byte[] nativeReadBlob(long nativePtr);
+    private static native boolean nativeReadArrayData(long nativePtr, Object dest, int byteCount);
     @CriticalNative
     private static native int nativeReadInt(long nativePtr);
     @CriticalNative
@@ -1080,6 +1089,10 @@ public final class Parcel {
         if (val != null) {
             int N = val.length;
             writeInt(N);
+            if (N >= BULK_ARRAY_THRESHOLD) {
+                nativeWriteArrayData(mNativePtr, val, 0, Math.multiplyExact(N, 4));
+                return;
+            }
             for (int i=0; i<N; i++) {
                 writeInt(val[i]);
             }
@@ -1092,6 +1105,10 @@ public final class Parcel {
         int N = readInt();
         if (N >= 0 && N <= (dataAvail() >> 2)) {
             int[] val = new int[N];
+            if (N >= BULK_ARRAY_THRESHOLD) {
+                readArrayData(val, N * 4);
+                return val;
+            }
             for (int i=0; i<N; i++) {
                 val[i] = readInt();
             }
@@ -1104,6 +1121,10 @@ public final class Parcel {
     public final void readIntArray(int[] val) {
         int N = readInt();
         if (N == val.length) {
+            if (N >= BULK_ARRAY_THRESHOLD) {
+                readArrayData(val, Math.multiplyExact(N, 4));
+                return;
+            }
             for (int i=0; i<N; i++) {
                 val[i] = readInt();
             }
@@ -1116,6 +1137,10 @@ public final class Parcel {
         if (val != null) {
             int N = val.length;
             writeInt(N);
+            if (N >= BULK_ARRAY_THRESHOLD) {
+                nativeWriteArrayData(mNativePtr, val, 0, Math.multiplyExact(N, 8));
+                return;
+            }
             for (int i=0; i<N; i++) {
                 writeLong(val[i]);
             }
@@ -1129,6 +1154,10 @@ public final class Parcel {
         // >>3 because stored longs are 64 bits
         if (N >= 0 && N <= (dataAvail() >> 3)) {
             long[] val = new long[N];
+            if (N >= BULK_ARRAY_THRESHOLD) {
+                readArrayData(val, N * 8);
+                return val;
+            }
             for (int i=0; i<N; i++) {
                 val[i] = readLong();
             }
@@ -1141,6 +1170,10 @@ public final class Parcel {
     public final void readLongArray(long[] val) {
         int N = readInt();
         if (N == val.length) {
+            if (N >= BULK_ARRAY_THRESHOLD) {
+                readArrayData(val, Math.multiplyExact(N, 8));
+                return;
+            }
             for (int i=0; i<N; i++) {
                 val[i] = readLong();
             }
@@ -1153,6 +1186,10 @@ public final class Parcel {
         if (val != null) {
             int N = val.length;
             writeInt(N);
+            if (N >= BULK_ARRAY_THRESHOLD) {
+                nativeWriteArrayData(mNativePtr, val, 0, Math.multiplyExact(N, 4));
+                return;
+            }
             for (int i=0; i<N; i++) {
                 writeFloat(val[i]);
             }
@@ -1166,6 +1203,10 @@ public final class Parcel {
         // >>2 because stored floats are 4 bytes
         if (N >= 0 && N <= (dataAvail() >> 2)) {
             float[] val = new float[N];
+            if (N >= BULK_ARRAY_THRESHOLD) {
+                readArrayData(val, N * 4);
+                return val;
+            }
             for (int i=0; i<N; i++) {
                 val[i] = readFloat();
             }
@@ -1178,6 +1219,10 @@ public final class Parcel {
     public final void readFloatArray(float[] val) {
         int N = readInt();
         if (N == val.length) {
+            if (N >= BULK_ARRAY_THRESHOLD) {
+                readArrayData(val, Math.multiplyExact(N, 4));
+                return;
+            }
             for (int i=0; i<N; i++) {
                 val[i] = readFloat();
             }
@@ -1190,6 +1235,10 @@ public final class Parcel {
         if (val != null) {
             int N = val.length;
             writeInt(N);
+            if (N >= BULK_ARRAY_THRESHOLD) {
+                nativeWriteArrayData(mNativePtr, val, 0, Math.multiplyExact(N, 8));
+                return;
+            }
             for (int i=0; i<N; i++) {
                 writeDouble(val[i]);
             }
@@ -1203,6 +1252,10 @@ public final class Parcel {
         // >>3 because stored doubles are 8 bytes
         if (N >= 0 && N <= (dataAvail() >> 3)) {
             double[] val = new double[N];
+            if (N >= BULK_ARRAY_THRESHOLD) {
+                readArrayData(val, N * 8);
+                return val;
+            }
             for (int i=0; i<N; i++) {
                 val[i] = readDouble();
             }
@@ -1215,6 +1268,10 @@ public final class Parcel {
     public final void readDoubleArray(double[] val) {
         int N = readInt();
         if (N == val.length) {
+            if (N >= BULK_ARRAY_THRESHOLD) {
+                readArrayData(val, Math.multiplyExact(N, 8));
+                return;
+            }
             for (int i=0; i<N; i++) {
                 val[i] = readDouble();
             }
@@ -1223,6 +1280,62 @@ public final class Parcel {
         }
     }
 
+    private void readArrayData(Object dest, int byteCount) {
+        if (!nativeReadArrayData(mNativePtr, dest, byteCount)) {
+            throw new BadParcelableException("Array of " + byteCount
+                    + " bytes doesn't fit in the " + dataAvail() + " bytes left");
+        }
+    }
+
+    /**
+     * Write {@code count} fixed-layout records of {@code recordSize} bytes each, packed back
+     * to back in {@code records} (for example through a {@link java.nio.ByteBuffer} in
+     * {@link java.nio.ByteOrder#nativeOrder native order}), with a single copy. Records are
+     * read back with {@link #createRecords}.
+     * {@hide}
+     */
+    public final void writeRecords(byte[] records, int recordSize, int count) {
+        if (records == null) {
+            writeInt(-1);
+            return;
+        }
+        if (recordSize <= 0 || count < 0) {
+            throw new IllegalArgumentException("Bad record layout: " + count + " records of "
+                    + recordSize + " bytes");
+        }
+        final int byteCount = Math.multiplyExact(recordSize, count);
+        Arrays.checkOffsetAndCount(records.length, 0, byteCount);
+        writeInt(count);
+        writeInt(recordSize);
+        nativeWriteArrayData(mNativePtr, records, 0, byteCount);
+    }
+
+    /**
+     * Read records written by {@link #writeRecords}, returning them packed back to back, or
+     * null if a null array was written.
+     *
+     * @param recordSize Size of each record in bytes, which must match the writer's.
+     * @throws BadParcelableException if the records were written with another layout.
+     * {@hide}
+     */
+    public final byte[] createRecords(int recordSize) {
+        final int count = readInt();
+        if (count < 0) {
+            return null;
+        }
+        final int writtenSize = readInt();
+        if (writtenSize != recordSize) {
+            throw new BadParcelableException("Expected records of " + recordSize
+                    + " bytes but got " + writtenSize);
+        }
+        if (count > dataAvail() / recordSize) {
+            throw new BadParcelableException("Bad record count " + count);
+        }
+        final byte[] records = new byte[count * recordSize];
+        readArrayData(records, records.length);
+        return records;
+    }
+
     public final void writeStringArray(String[] val) {
         if (val != null) {
             int N = val.length;
@@ -184,7 +184,7 @@ public final class PersistableBundle extends BaseBundle implements Cloneable, Pa
      * @param value a Bundle object, or null
      */
     public void putPersistableBundle(@Nullable String key, @Nullable PersistableBundle value) {
-        unparcel();
+        unparcelKeys();
         mMap.put(key, value);
     }
 
@@ -198,8 +198,7 @@ public final class PersistableBundle extends BaseBundle implements Cloneable, Pa
      */
     @Nullable
     public PersistableBundle getPersistableBundle(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -8069,6 +8069,12 @@ public final class Settings {
        public static final String NETSTATS_SAMPLE_ENABLED = "netstats_sample_enabled";
        /** {@hide} */
        public static final String NETSTATS_AUGMENT_ENABLED = "netstats_augment_enabled";
+       /**
+        * Whether network stats are written in the indexed columnar format, which
+        * is cheaper to query but can't be read by releases that predate it.
+        * {@hide}
+        */
+       public static final String NETSTATS_COLUMNAR_ENABLED = "netstats_columnar_enabled";
 
        /** {@hide} */
        public static final String NETSTATS_DEV_BUCKET_DURATION = "netstats_dev_bucket_duration";
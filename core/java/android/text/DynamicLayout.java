@@ -18,6 +18,7 @@ package android.text;
 
 import android.graphics.Paint;
 import android.graphics.Rect;
+import android.text.style.ParagraphStyle;
 import android.text.style.ReplacementSpan;
 import android.text.style.UpdateLayout;
 import android.text.style.WrapTogetherSpan;
@@ -42,6 +43,12 @@ public class DynamicLayout extends Layout
     private static final int PRIORITY = 128;
     private static final int BLOCK_MINIMUM_CHARACTER_LENGTH = 400;
 
+    /** Paragraphs at least this long are reflowed from the lines around an edit only. */
+    private static final int LINE_REFLOW_MINIMUM_PARAGRAPH_LENGTH = 2000;
+
+    /** How far past an edit to lay out, looking for line breaks the old layout has too. */
+    private static final int LINE_REFLOW_LOOKAHEAD = 500;
+
     /**
      * Make a layout for the specified text that will be updated as
      * the text is changed.
@@ -203,6 +210,10 @@ public class DynamicLayout extends Layout
         CharSequence text = mDisplay;
         int len = text.length();
 
+        final int editStart = where;
+        final int editDelta = after - before;
+        final int editEnd = where + after;
+
         // seek back to the start of the paragraph
 
         int find = TextUtils.lastIndexOf(text, '\n', where - 1);
@@ -232,6 +243,7 @@ public class DynamicLayout extends Layout
 
         // seek further out to cover anything that is forced to wrap together
 
+        boolean wrapsTogether = false;
         if (text instanceof Spanned) {
             Spanned sp = (Spanned) text;
             boolean again;
@@ -241,6 +253,7 @@ public class DynamicLayout extends Layout
 
                 Object[] force = sp.getSpans(where, where + after,
                                              WrapTogetherSpan.class);
+                wrapsTogether |= force.length > 0;
 
                 for (int i = 0; i < force.length; i++) {
                     int st = sp.getSpanStart(force[i]);
@@ -266,17 +279,6 @@ public class DynamicLayout extends Layout
             } while (again);
         }
 
-        // find affected region of old layout
-
-        int startline = getLineForOffset(where);
-        int startv = getLineTop(startline);
-
-        int endline = getLineForOffset(where + before);
-        if (where + after == len)
-            endline = getLineCount();
-        int endv = getLineTop(endline);
-        boolean islast = (endline == getLineCount());
-
         // generate new layout for affected text
 
         StaticLayout reflowed;
@@ -294,8 +296,7 @@ public class DynamicLayout extends Layout
             b = StaticLayout.Builder.obtain(text, where, where + after, getPaint(), getWidth());
         }
 
-        b.setText(text, where, where + after)
-                .setPaint(getPaint())
+        b.setPaint(getPaint())
                 .setWidth(getWidth())
                 .setTextDirection(getTextDirectionHeuristic())
                 .setLineSpacing(getSpacingAdd(), getSpacingMultiplier())
@@ -304,14 +305,50 @@ public class DynamicLayout extends Layout
                 .setBreakStrategy(mBreakStrategy)
                 .setHyphenationFrequency(mHyphenationFrequency)
                 .setJustificationMode(mJustificationMode);
-        reflowed.generate(b, false, true);
-        int n = reflowed.getLineCount();
-        // If the new layout has a blank line at the end, but it is not
-        // the very end of the buffer, then we already have a line that
-        // starts there, so disregard the blank line.
 
-        if (where + after != len && reflowed.getLineStart(n - 1) == where + after)
-            n--;
+        // In a long paragraph, lay out from the line before the edit only up to the first line
+        // start after it that the old layout has too; the lines from there on stay the same.
+        int n = -1;
+        if (!wrapsTogether && after >= LINE_REFLOW_MINIMUM_PARAGRAPH_LENGTH) {
+            final int lineStart = getLineReflowStart(text, where, where + after, editStart);
+            final int lineEnd = getLineReflowEnd(text, where + after, editEnd);
+            if (lineStart >= 0 && lineEnd >= 0 && (lineStart > where || lineEnd < where + after)
+                    && isLeftToRight(text, where, lineStart, lineEnd)) {
+                b.setText(text, lineStart, lineEnd);
+                reflowed.generate(b, false, true);
+                final int syncLine = findSyncLine(reflowed, editEnd, editDelta, len);
+                if (syncLine > 0) {
+                    final int syncStart = reflowed.getLineStart(syncLine);
+                    where = lineStart;
+                    before = syncStart - editDelta - lineStart;
+                    after = syncStart - lineStart;
+                    n = syncLine;
+                }
+            }
+        }
+
+        if (n < 0) {
+            b.setText(text, where, where + after);
+            reflowed.generate(b, false, true);
+            n = reflowed.getLineCount();
+            // If the new layout has a blank line at the end, but it is not
+            // the very end of the buffer, then we already have a line that
+            // starts there, so disregard the blank line.
+
+            if (where + after != len && reflowed.getLineStart(n - 1) == where + after)
+                n--;
+        }
+
+        // find affected region of old layout
+
+        int startline = getLineForOffset(where);
+        int startv = getLineTop(startline);
+
+        int endline = getLineForOffset(where + before);
+        if (where + after == len)
+            endline = getLineCount();
+        int endv = getLineTop(endline);
+        boolean islast = (endline == getLineCount());
 
         // remove affected lines from old layout
         mInts.deleteAt(startline, endline - startline);
@@ -391,6 +428,116 @@ public class DynamicLayout extends Layout
         }
     }
 
+    /**
+     * Returns where to start laying out the paragraph [paraStart, paraEnd) line by line after an
+     * edit at {@code editStart}: the start of the line before the edited one, or of the closest
+     * line before that which starts after whitespace, or -1 if line breaks in the paragraph may
+     * depend on more than the lines around the edit.
+     */
+    private int getLineReflowStart(CharSequence text, int paraStart, int paraEnd, int editStart) {
+        // Greedy breaking decides each line from its start; optimal breaking, ellipsizing and
+        // justification look at the whole paragraph.
+        if (mEllipsize || mBreakStrategy != BREAK_STRATEGY_SIMPLE
+                || mJustificationMode != JUSTIFICATION_MODE_NONE) {
+            return -1;
+        }
+        // Leading margins, tab stops and line heights depend on the first line of the paragraph.
+        if (text instanceof Spanned && ((Spanned) text).getSpans(paraStart, paraEnd,
+                ParagraphStyle.class).length > 0) {
+            return -1;
+        }
+        // Offsets before the edit are the same in the old layout.
+        final int paraLine = getLineForOffset(paraStart);
+        int line = Math.max(paraLine, getLineForOffset(editStart) - 1);
+        // A line that starts inside a word, after a hyphenated or forced break, breaks
+        // differently when laid out without the start of the word.
+        while (line > paraLine && !Character.isWhitespace(text.charAt(getLineStart(line) - 1))) {
+            line--;
+        }
+        if (getParagraphDirection(line) != DIR_LEFT_TO_RIGHT) {
+            return -1;
+        }
+        return getLineStart(line);
+    }
+
+    /**
+     * Returns where to stop laying out line by line after an edit ending at {@code editEnd}:
+     * after a space at least {@link #LINE_REFLOW_LOOKAHEAD} past the edit, so that no word is
+     * cut short, or at the end of the paragraph. Returns -1 if there is no such space.
+     */
+    private static int getLineReflowEnd(CharSequence text, int paraEnd, int editEnd) {
+        final int from = editEnd + LINE_REFLOW_LOOKAHEAD;
+        if (from >= paraEnd) {
+            return paraEnd;
+        }
+        final int limit = Math.min(paraEnd, from + LINE_REFLOW_LOOKAHEAD);
+        for (int i = from; i < limit; i++) {
+            if (text.charAt(i) == ' ') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns whether laying out [start, end) on its own gives the same directions as laying it
+     * out with the rest of the paragraph starting at {@code paraStart}: the range needs no bidi,
+     * and the paragraph is left to right for a reason that is not after the range.
+     */
+    private boolean isLeftToRight(CharSequence text, int paraStart, int start, int end) {
+        final TextDirectionHeuristic textDir = getTextDirectionHeuristic();
+        if (textDir != TextDirectionHeuristics.LTR
+                && textDir != TextDirectionHeuristics.FIRSTSTRONG_LTR
+                && textDir != TextDirectionHeuristics.ANYRTL_LTR) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (TextUtils.couldAffectRtl(text.charAt(i))) {
+                return false;
+            }
+        }
+        if (textDir != TextDirectionHeuristics.FIRSTSTRONG_LTR) {
+            // With ANYRTL_LTR, the old paragraph was left to right so it had no right to left
+            // text, and the range adds none.
+            return true;
+        }
+        for (int i = paraStart; i < end; i++) {
+            switch (Character.getDirectionality(text.charAt(i))) {
+                case Character.DIRECTIONALITY_LEFT_TO_RIGHT:
+                    return true;
+                case Character.DIRECTIONALITY_RIGHT_TO_LEFT:
+                case Character.DIRECTIONALITY_RIGHT_TO_LEFT_ARABIC:
+                    return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the first line of {@code reflowed}, other than its first, that starts at or after
+     * {@code editEnd}, before the end {@code len} of the text, where a line of the old layout
+     * starts too, {@code editDelta} characters earlier; or -1 if there is none. The last line of
+     * {@code reflowed} may be cut short, but its start is right.
+     */
+    private int findSyncLine(StaticLayout reflowed, int editEnd, int editDelta, int len) {
+        final int count = reflowed.getLineCount();
+        for (int i = 1; i < count; i++) {
+            final int start = reflowed.getLineStart(i);
+            if (start < editEnd) {
+                continue;
+            }
+            if (start == len) {
+                // The blank line at the end of the text is laid out with the last paragraph.
+                return -1;
+            }
+            final int oldStart = start - editDelta;
+            if (getLineStart(getLineForOffset(oldStart)) == oldStart) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     private boolean contentMayProtrudeFromLineTopOrBottom(CharSequence text, int start, int end) {
         if (text instanceof Spanned) {
             final Spanned spanned = (Spanned) text;
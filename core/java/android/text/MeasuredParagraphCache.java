@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.text;
+
+import android.util.LruCache;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Process-wide cache of the character widths and line breaks {@link StaticLayout} computes
+ * for paragraphs of plain text, so that laying out the same paragraph again with an equal
+ * paint and width skips shaping and line breaking. List items binding the same labels and
+ * TextViews going back to a width they had before hit it.
+ * <p>
+ * Thread safe. Entries hold copies of the text and the paint, so a layout built on a
+ * background thread leaves results that a later build of the same text on the UI thread
+ * uses.
+ *
+ * @hide
+ */
+public final class MeasuredParagraphCache {
+    /** Budget for the entries, counting their arrays. */
+    @VisibleForTesting
+    static final int MAX_SIZE_BYTES = 512 * 1024;
+
+    /** Longer paragraphs are not cached, so a single long text can't flush the cache. */
+    static final int MAX_PARAGRAPH_LENGTH = 2000;
+
+    // Rough size of the objects of an entry besides its arrays.
+    private static final int ENTRY_OVERHEAD_BYTES = 200;
+
+    private static final LruCache<Key, Entry> sCache = new LruCache<Key, Entry>(MAX_SIZE_BYTES) {
+        @Override
+        protected int sizeOf(Key key, Entry entry) {
+            return ENTRY_OVERHEAD_BYTES + key.mLength * 2 + entry.mWidths.length * 4
+                    + entry.mBreaks.length * 12;
+        }
+    };
+
+    private MeasuredParagraphCache() {
+    }
+
+    /**
+     * The inputs to measuring and breaking a paragraph. Lookups use keys that refer to the
+     * caller's buffer and paint; {@link #put} stores copies.
+     */
+    static final class Key {
+        private final char[] mChars;
+        private final int mLength;
+        private final TextPaint mPaint;
+        private final TextDirectionHeuristic mTextDir;
+        private final int mWidth;
+        private final int mBreakStrategy;
+        private final int mHyphenationFrequency;
+        private final boolean mJustify;
+        private final int mHashCode;
+
+        Key(char[] chars, int length, TextPaint paint, TextDirectionHeuristic textDir,
+                int width, int breakStrategy, int hyphenationFrequency, boolean justify) {
+            mChars = chars;
+            mLength = length;
+            mPaint = paint;
+            mTextDir = textDir;
+            mWidth = width;
+            mBreakStrategy = breakStrategy;
+            mHyphenationFrequency = hyphenationFrequency;
+            mJustify = justify;
+
+            int hash = 0;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + chars[i];
+            }
+            hash = 31 * hash + width;
+            hash = 31 * hash + Float.floatToIntBits(paint.getTextSize());
+            hash = 31 * hash + System.identityHashCode(paint.getTypeface());
+            hash = 31 * hash + paint.getFlags();
+            hash = 31 * hash + paint.getTextLocales().hashCode();
+            hash = 31 * hash + (breakStrategy << 4 | hyphenationFrequency << 1 | (justify ? 1 : 0));
+            mHashCode = hash;
+        }
+
+        private Key copy() {
+            final char[] chars = new char[mLength];
+            System.arraycopy(mChars, 0, chars, 0, mLength);
+            final TextPaint paint = new TextPaint();
+            paint.set(mPaint);
+            return new Key(chars, mLength, paint, mTextDir, mWidth, mBreakStrategy,
+                    mHyphenationFrequency, mJustify);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            if (mHashCode != other.mHashCode || mLength != other.mLength
+                    || mWidth != other.mWidth || mTextDir != other.mTextDir
+                    || mBreakStrategy != other.mBreakStrategy
+                    || mHyphenationFrequency != other.mHyphenationFrequency
+                    || mJustify != other.mJustify) {
+                return false;
+            }
+            for (int i = 0; i < mLength; i++) {
+                if (mChars[i] != other.mChars[i]) {
+                    return false;
+                }
+            }
+            return mPaint == other.mPaint || mPaint.hasEqualAttributes(other.mPaint);
+        }
+    }
+
+    /** The character widths and line breaks of a paragraph. */
+    static final class Entry {
+        private final float[] mWidths;
+        private final int[] mBreaks;
+        private final float[] mLineWidths;
+        private final int[] mFlags;
+
+        private Entry(float[] widths, int length, StaticLayout.LineBreaks lineBreaks,
+                int breakCount) {
+            mWidths = new float[length];
+            System.arraycopy(widths, 0, mWidths, 0, length);
+            mBreaks = new int[breakCount];
+            System.arraycopy(lineBreaks.breaks, 0, mBreaks, 0, breakCount);
+            mLineWidths = new float[breakCount];
+            System.arraycopy(lineBreaks.widths, 0, mLineWidths, 0, breakCount);
+            mFlags = new int[breakCount];
+            System.arraycopy(lineBreaks.flags, 0, mFlags, 0, breakCount);
+        }
+
+        /**
+         * Copies the widths into {@code widths} and the breaks into {@code lineBreaks}, growing
+         * its arrays as needed.
+         *
+         * @return The number of breaks.
+         */
+        int copyTo(float[] widths, StaticLayout.LineBreaks lineBreaks) {
+            System.arraycopy(mWidths, 0, widths, 0, mWidths.length);
+            final int breakCount = mBreaks.length;
+            if (lineBreaks.breaks.length < breakCount) {
+                lineBreaks.breaks = new int[breakCount];
+                lineBreaks.widths = new float[breakCount];
+                lineBreaks.flags = new int[breakCount];
+            }
+            System.arraycopy(mBreaks, 0, lineBreaks.breaks, 0, breakCount);
+            System.arraycopy(mLineWidths, 0, lineBreaks.widths, 0, breakCount);
+            System.arraycopy(mFlags, 0, lineBreaks.flags, 0, breakCount);
+            return breakCount;
+        }
+    }
+
+    static Entry get(Key key) {
+        return sCache.get(key);
+    }
+
+    /**
+     * Remembers the widths and the first {@code breakCount} breaks computed for the paragraph
+     * of {@code key}, before they are changed for ellipsizing.
+     */
+    static void put(Key key, float[] widths, StaticLayout.LineBreaks lineBreaks,
+            int breakCount) {
+        sCache.put(key.copy(), new Entry(widths, key.mLength, lineBreaks, breakCount));
+    }
+
+    /** Drops all entries, when memory is low. */
+    public static void clear() {
+        sCache.evictAll();
+    }
+
+    @VisibleForTesting
+    static int getHitCount() {
+        return sCache.hitCount();
+    }
+
+    @VisibleForTesting
+    static int getMissCount() {
+        return sCache.missCount();
+    }
+
+    /** Prints the size and hit rate of the cache. */
+    public static void dump(PrintWriter pw) {
+        final int hits = sCache.hitCount();
+        final int misses = sCache.missCount();
+        final int lookups = hits + misses;
+        pw.printf("Text measurement cache: %.2f of %.2f kB, %d hits, %d misses (%d%% hit rate),"
+                + " %d evictions\n",
+                sCache.size() / 1024.0f, sCache.maxSize() / 1024.0f, hits, misses,
+                lookups == 0 ? 0 : (100 * hits / lookups), sCache.evictionCount());
+    }
+}
@@ -987,7 +987,7 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
      * @param elementCount the size of the int[] to be returned
      * @return an int[] with elementCount length
      */
-    private static int[] obtain(final int elementCount) {
+    /* package */ static int[] obtain(final int elementCount) {
         int[] result = null;
         synchronized (sCachedIntBuffer) {
             // try finding a tmp buffer with length of at least elementCount
@@ -1018,7 +1018,7 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
      *
      * @param buffer buffer to be recycled
      */
-    private static void recycle(int[] buffer) {
+    /* package */ static void recycle(int[] buffer) {
         synchronized (sCachedIntBuffer) {
             for (int i = 0; i < sCachedIntBuffer.length; i++) {
                 if (sCachedIntBuffer[i] == null || buffer.length > sCachedIntBuffer[i].length) {
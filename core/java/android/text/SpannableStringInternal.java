@@ -22,6 +22,8 @@ import com.android.internal.util.GrowingArrayUtils;
 import libcore.util.EmptyArray;
 
 import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 
 /* package */ abstract class SpannableStringInternal
 {
@@ -84,6 +86,8 @@ import java.lang.reflect.Array;
             mSpanCount = src.mSpanCount;
             System.arraycopy(src.mSpans, 0, mSpans, 0, src.mSpans.length);
             System.arraycopy(src.mSpanData, 0, mSpanData, 0, mSpanData.length);
+            // Same spans at the same offsets, so the index of the source holds for this too.
+            mSpanIndex = src.mSpanIndex;
         } else {
             int count = 0;
             int[] srcData = src.mSpanData;
@@ -194,6 +198,7 @@ import java.lang.reflect.Array;
                 data[i * COLUMNS + START] = start;
                 data[i * COLUMNS + END] = end;
                 data[i * COLUMNS + FLAGS] = flags;
+                mSpanIndex = null;
 
                 sendSpanChanged(what, ostart, oend, nstart, nend);
                 return;
@@ -217,6 +222,7 @@ import java.lang.reflect.Array;
         mSpanData[mSpanCount * COLUMNS + END] = end;
         mSpanData[mSpanCount * COLUMNS + FLAGS] = flags;
         mSpanCount++;
+        mSpanIndex = null;
 
         if (this instanceof Spannable)
             sendSpanAdded(what, nstart, nend);
@@ -239,6 +245,7 @@ import java.lang.reflect.Array;
                                  data, i * COLUMNS, c * COLUMNS);
 
                 mSpanCount--;
+                mSpanIndex = null;
 
                 sendSpanRemoved(what, ostart, oend);
                 return;
@@ -247,6 +254,12 @@ import java.lang.reflect.Array;
     }
 
     public int getSpanStart(Object what) {
+        final SpanIndex index = mSpanIndex;
+        if (index != null) {
+            final Integer i = index.mIndexOfSpan.get(what);
+            return i == null ? -1 : mSpanData[i * COLUMNS + START];
+        }
+
         int count = mSpanCount;
         Object[] spans = mSpans;
         int[] data = mSpanData;
@@ -261,6 +274,12 @@ import java.lang.reflect.Array;
     }
 
     public int getSpanEnd(Object what) {
+        final SpanIndex index = mSpanIndex;
+        if (index != null) {
+            final Integer i = index.mIndexOfSpan.get(what);
+            return i == null ? -1 : mSpanData[i * COLUMNS + END];
+        }
+
         int count = mSpanCount;
         Object[] spans = mSpans;
         int[] data = mSpanData;
@@ -275,6 +294,12 @@ import java.lang.reflect.Array;
     }
 
     public int getSpanFlags(Object what) {
+        final SpanIndex index = mSpanIndex;
+        if (index != null) {
+            final Integer i = index.mIndexOfSpan.get(what);
+            return i == null ? 0 : mSpanData[i * COLUMNS + FLAGS];
+        }
+
         int count = mSpanCount;
         Object[] spans = mSpans;
         int[] data = mSpanData;
@@ -289,6 +314,14 @@ import java.lang.reflect.Array;
     }
 
     public <T> T[] getSpans(int queryStart, int queryEnd, Class<T> kind) {
+        final SpanIndex index = kind != null ? getSpanIndex() : null;
+        if (index != null) {
+            return getSpans(index, queryStart, queryEnd, kind);
+        }
+        return scanSpans(queryStart, queryEnd, kind);
+    }
+
+    private <T> T[] scanSpans(int queryStart, int queryEnd, Class<T> kind) {
         int count = 0;
 
         int spanCount = mSpanCount;
@@ -378,6 +411,11 @@ import java.lang.reflect.Array;
             kind = Object.class;
         }
 
+        final SpanIndex index = getSpanIndex();
+        if (index != null) {
+            return nextSpanTransition(index, start, limit, kind, index.root());
+        }
+
         for (int i = 0; i < count; i++) {
             int st = data[i * COLUMNS + START];
             int en = data[i * COLUMNS + END];
@@ -391,8 +429,188 @@ import java.lang.reflect.Array;
         return limit;
     }
 
+    /**
+     * Returns the index of the spans, building it if there are enough spans for it to pay off,
+     * or null.
+     */
+    private SpanIndex getSpanIndex() {
+        SpanIndex index = mSpanIndex;
+        if (index == null && mSpanCount >= SPAN_INDEX_MIN_COUNT) {
+            index = new SpanIndex(mSpans, mSpanData, mSpanCount);
+            mSpanIndex = index;
+        }
+        return index;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T[] getSpans(SpanIndex index, int queryStart, int queryEnd, Class<T> kind) {
+        final int[] found = SpannableStringBuilder.obtain(index.mCount);
+        final int count = getSpansRec(index, queryStart, queryEnd, kind, index.root(), found, 0);
+        if (count == 0) {
+            SpannableStringBuilder.recycle(found);
+            return ArrayUtils.emptyArray(kind);
+        }
+
+        // Same order as scanSpans(): by priority, then in the order the spans were set.
+        Arrays.sort(found, 0, count);
+        for (int i = 1; i < count; i++) {
+            final int span = found[i];
+            final int prio = mSpanData[span * COLUMNS + FLAGS] & Spanned.SPAN_PRIORITY;
+            if (prio == 0) {
+                continue;
+            }
+            int j = i;
+            for (; j > 0; j--) {
+                final int p = mSpanData[found[j - 1] * COLUMNS + FLAGS] & Spanned.SPAN_PRIORITY;
+                if (p >= prio) {
+                    break;
+                }
+                found[j] = found[j - 1];
+            }
+            found[j] = span;
+        }
+
+        final T[] ret = (T[]) Array.newInstance(kind, count);
+        for (int i = 0; i < count; i++) {
+            ret[i] = (T) mSpans[found[i]];
+        }
+        SpannableStringBuilder.recycle(found);
+        return ret;
+    }
+
+    /**
+     * Adds the spans under node {@code i} of {@code index} that getSpans() returns to
+     * {@code found}, starting at {@code count}.
+     *
+     * @return The number of spans in {@code found}.
+     */
+    private int getSpansRec(SpanIndex index, int queryStart, int queryEnd, Class kind, int i,
+            int[] found, int count) {
+        if ((i & 1) != 0) {
+            // internal tree node
+            int left = leftChild(i);
+            if (index.mMax[left] >= queryStart) {
+                count = getSpansRec(index, queryStart, queryEnd, kind, left, found, count);
+            }
+        }
+        if (i >= index.mCount) return count;
+        int spanStart = index.mStarts[i];
+        if (spanStart <= queryEnd) {
+            int spanEnd = index.mEnds[i];
+            int span = index.mOrder[i];
+            if (spanEnd >= queryStart &&
+                    (spanStart == spanEnd || queryStart == queryEnd ||
+                        (spanStart != queryEnd && spanEnd != queryStart)) &&
+                    (Object.class == kind || kind.isInstance(mSpans[span]))) {
+                found[count++] = span;
+            }
+            if ((i & 1) != 0) {
+                count = getSpansRec(index, queryStart, queryEnd, kind, rightChild(i), found,
+                        count);
+            }
+        }
+        return count;
+    }
+
+    private int nextSpanTransition(SpanIndex index, int start, int limit, Class kind, int i) {
+        if ((i & 1) != 0) {
+            // internal tree node
+            int left = leftChild(i);
+            if (index.mMax[left] > start) {
+                limit = nextSpanTransition(index, start, limit, kind, left);
+            }
+        }
+        if (i < index.mCount) {
+            int st = index.mStarts[i];
+            int en = index.mEnds[i];
+            Object span = mSpans[index.mOrder[i]];
+            if (st > start && st < limit && kind.isInstance(span))
+                limit = st;
+            if (en > start && en < limit && kind.isInstance(span))
+                limit = en;
+            if (st < limit && (i & 1) != 0) {
+                limit = nextSpanTransition(index, start, limit, kind, rightChild(i));
+            }
+        }
+
+        return limit;
+    }
+
+    // (i+1) & ~i is equal to 2^(the number of trailing ones in i)
+    private static int leftChild(int i) {
+        return i - (((i + 1) & ~i) >> 1);
+    }
+
+    private static int rightChild(int i) {
+        return i + (((i + 1) & ~i) >> 1);
+    }
+
+    /**
+     * An interval tree over the spans, laid out like the one of {@link SpannableStringBuilder}:
+     * node i is the span with the i-th smallest start, its children are found with
+     * {@link #leftChild} and {@link #rightChild}, and mMax[i] is the largest end in the subtree
+     * of node i. Built when a query finds none after a change to the spans, so that setting
+     * many spans in a row doesn't rebuild it each time.
+     * <p>
+     * Immutable, so copies of the text can share it and threads reading the same
+     * {@link SpannedString} can publish it to each other without locking.
+     */
+    private static final class SpanIndex {
+        final int mCount;
+        /** The index in mSpans of the span of each node. */
+        final int[] mOrder;
+        final int[] mStarts;
+        final int[] mEnds;
+        final int[] mMax;
+        final IdentityHashMap<Object, Integer> mIndexOfSpan;
+
+        SpanIndex(Object[] spans, int[] data, int count) {
+            // Sort by start, then by insertion order.
+            final long[] keys = new long[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = ((long) data[i * COLUMNS + START] << 32) | i;
+            }
+            Arrays.sort(keys);
+
+            mCount = count;
+            mOrder = new int[count];
+            mStarts = new int[count];
+            mEnds = new int[count];
+            mIndexOfSpan = new IdentityHashMap<>(count);
+            for (int i = 0; i < count; i++) {
+                final int span = (int) keys[i];
+                mOrder[i] = span;
+                mStarts[i] = data[span * COLUMNS + START];
+                mEnds[i] = data[span * COLUMNS + END];
+                mIndexOfSpan.put(spans[span], span);
+            }
+            mMax = new int[2 * root() + 1];
+            calcMax(root());
+        }
+
+        int root() {
+            return Integer.highestOneBit(mCount) - 1;
+        }
+
+        private int calcMax(int i) {
+            int max = 0;
+            if ((i & 1) != 0) {
+                // internal tree node
+                max = calcMax(leftChild(i));
+            }
+            if (i < mCount) {
+                max = Math.max(max, mEnds[i]);
+                if ((i & 1) != 0) {
+                    max = Math.max(max, calcMax(rightChild(i)));
+                }
+            }
+            mMax[i] = max;
+            return max;
+        }
+    }
+
     private void sendSpanAdded(Object what, int start, int end) {
-        SpanWatcher[] recip = getSpans(start, end, SpanWatcher.class);
+        SpanWatcher[] recip = scanSpans(start, end, SpanWatcher.class);
         int n = recip.length;
 
         for (int i = 0; i < n; i++) {
@@ -401,7 +619,7 @@ import java.lang.reflect.Array;
     }
 
     private void sendSpanRemoved(Object what, int start, int end) {
-        SpanWatcher[] recip = getSpans(start, end, SpanWatcher.class);
+        SpanWatcher[] recip = scanSpans(start, end, SpanWatcher.class);
         int n = recip.length;
 
         for (int i = 0; i < n; i++) {
@@ -410,8 +628,8 @@ import java.lang.reflect.Array;
     }
 
     private void sendSpanChanged(Object what, int s, int e, int st, int en) {
-        SpanWatcher[] recip = getSpans(Math.min(s, st), Math.max(e, en),
-                                       SpanWatcher.class);
+        SpanWatcher[] recip = scanSpans(Math.min(s, st), Math.max(e, en),
+                                        SpanWatcher.class);
         int n = recip.length;
 
         for (int i = 0; i < n; i++) {
@@ -498,6 +716,8 @@ import java.lang.reflect.Array;
     private Object[] mSpans;
     private int[] mSpanData;
     private int mSpanCount;
+    // Null until a query needs it, and after changes to the spans.
+    private SpanIndex mSpanIndex;
 
     /* package */ static final Object[] EMPTY = new Object[0];
 
@@ -505,4 +725,7 @@ import java.lang.reflect.Array;
     private static final int END = 1;
     private static final int FLAGS = 2;
     private static final int COLUMNS = 3;
+
+    // With fewer spans, scanning them is about as fast as building and using a SpanIndex.
+    private static final int SPAN_INDEX_MIN_COUNT = 16;
 }
@@ -703,76 +703,107 @@ public class StaticLayout extends Layout {
                 }
             }
 
-            nSetupParagraph(b.mNativePtr, chs, paraEnd - paraStart,
-                    firstWidth, firstWidthLineCount, restWidth,
-                    variableTabStops, TAB_INCREMENT, b.mBreakStrategy, b.mHyphenationFrequency,
-                    // TODO: Support more justification mode, e.g. letter spacing, stretching.
-                    b.mJustificationMode != Layout.JUSTIFICATION_MODE_NONE);
-            if (mLeftIndents != null || mRightIndents != null) {
-                // TODO(raph) performance: it would be better to do this once per layout rather
-                // than once per paragraph, but that would require a change to the native
-                // interface.
-                int leftLen = mLeftIndents == null ? 0 : mLeftIndents.length;
-                int rightLen = mRightIndents == null ? 0 : mRightIndents.length;
-                int indentsLen = Math.max(1, Math.max(leftLen, rightLen) - mLineCount);
-                int[] indents = new int[indentsLen];
-                for (int i = 0; i < indentsLen; i++) {
-                    int leftMargin = mLeftIndents == null ? 0 :
-                            mLeftIndents[Math.min(i + mLineCount, leftLen - 1)];
-                    int rightMargin = mRightIndents == null ? 0 :
-                            mRightIndents[Math.min(i + mLineCount, rightLen - 1)];
-                    indents[i] = leftMargin + rightMargin;
-                }
-                nSetIndents(b.mNativePtr, indents);
+            // Plain paragraphs laid out before with the same paint and width are in the cache.
+            MeasuredParagraphCache.Key cacheKey = null;
+            MeasuredParagraphCache.Entry cached = null;
+            if (spanned == null && mLeftIndents == null && mRightIndents == null
+                    && paraEnd > paraStart
+                    && paraEnd - paraStart <= MeasuredParagraphCache.MAX_PARAGRAPH_LENGTH
+                    && paint.getClass() == TextPaint.class) {
+                cacheKey = new MeasuredParagraphCache.Key(chs, paraEnd - paraStart, paint,
+                        textDir, outerWidth, b.mBreakStrategy, b.mHyphenationFrequency,
+                        b.mJustificationMode != Layout.JUSTIFICATION_MODE_NONE);
+                cached = MeasuredParagraphCache.get(cacheKey);
             }
 
-            // measurement has to be done before performing line breaking
-            // but we don't want to recompute fontmetrics or span ranges the
-            // second time, so we cache those and then use those stored values
             int fmCacheCount = 0;
             int spanEndCacheCount = 0;
-            for (int spanStart = paraStart, spanEnd; spanStart < paraEnd; spanStart = spanEnd) {
-                if (fmCacheCount * 4 >= fmCache.length) {
-                    int[] grow = new int[fmCacheCount * 4 * 2];
-                    System.arraycopy(fmCache, 0, grow, 0, fmCacheCount * 4);
-                    fmCache = grow;
+            int breakCount;
+            if (cached != null) {
+                // A single run without spans, as measured below.
+                paint.getFontMetricsInt(fm);
+                fmCache[0] = fm.top;
+                fmCache[1] = fm.bottom;
+                fmCache[2] = fm.ascent;
+                fmCache[3] = fm.descent;
+                fmCacheCount = 1;
+                spanEndCache[0] = paraEnd;
+                spanEndCacheCount = 1;
+                breakCount = cached.copyTo(widths, lineBreaks);
+            } else {
+                nSetupParagraph(b.mNativePtr, chs, paraEnd - paraStart,
+                        firstWidth, firstWidthLineCount, restWidth,
+                        variableTabStops, TAB_INCREMENT, b.mBreakStrategy, b.mHyphenationFrequency,
+                        // TODO: Support more justification mode, e.g. letter spacing, stretching.
+                        b.mJustificationMode != Layout.JUSTIFICATION_MODE_NONE);
+                if (mLeftIndents != null || mRightIndents != null) {
+                    // TODO(raph) performance: it would be better to do this once per layout rather
+                    // than once per paragraph, but that would require a change to the native
+                    // interface.
+                    int leftLen = mLeftIndents == null ? 0 : mLeftIndents.length;
+                    int rightLen = mRightIndents == null ? 0 : mRightIndents.length;
+                    int indentsLen = Math.max(1, Math.max(leftLen, rightLen) - mLineCount);
+                    int[] indents = new int[indentsLen];
+                    for (int i = 0; i < indentsLen; i++) {
+                        int leftMargin = mLeftIndents == null ? 0 :
+                                mLeftIndents[Math.min(i + mLineCount, leftLen - 1)];
+                        int rightMargin = mRightIndents == null ? 0 :
+                                mRightIndents[Math.min(i + mLineCount, rightLen - 1)];
+                        indents[i] = leftMargin + rightMargin;
+                    }
+                    nSetIndents(b.mNativePtr, indents);
                 }
 
-                if (spanEndCacheCount >= spanEndCache.length) {
-                    int[] grow = new int[spanEndCacheCount * 2];
-                    System.arraycopy(spanEndCache, 0, grow, 0, spanEndCacheCount);
-                    spanEndCache = grow;
-                }
+                // measurement has to be done before performing line breaking
+                // but we don't want to recompute fontmetrics or span ranges the
+                // second time, so we cache those and then use those stored values
+                for (int spanStart = paraStart, spanEnd; spanStart < paraEnd; spanStart = spanEnd) {
+                    if (fmCacheCount * 4 >= fmCache.length) {
+                        int[] grow = new int[fmCacheCount * 4 * 2];
+                        System.arraycopy(fmCache, 0, grow, 0, fmCacheCount * 4);
+                        fmCache = grow;
+                    }
 
-                if (spanned == null) {
-                    spanEnd = paraEnd;
-                    int spanLen = spanEnd - spanStart;
-                    measured.addStyleRun(paint, spanLen, fm);
-                } else {
-                    spanEnd = spanned.nextSpanTransition(spanStart, paraEnd,
-                            MetricAffectingSpan.class);
-                    int spanLen = spanEnd - spanStart;
-                    MetricAffectingSpan[] spans =
-                            spanned.getSpans(spanStart, spanEnd, MetricAffectingSpan.class);
-                    spans = TextUtils.removeEmptySpans(spans, spanned, MetricAffectingSpan.class);
-                    measured.addStyleRun(paint, spans, spanLen, fm);
-                }
+                    if (spanEndCacheCount >= spanEndCache.length) {
+                        int[] grow = new int[spanEndCacheCount * 2];
+                        System.arraycopy(spanEndCache, 0, grow, 0, spanEndCacheCount);
+                        spanEndCache = grow;
+                    }
 
-                // the order of storage here (top, bottom, ascent, descent) has to match the code below
-                // where these values are retrieved
-                fmCache[fmCacheCount * 4 + 0] = fm.top;
-                fmCache[fmCacheCount * 4 + 1] = fm.bottom;
-                fmCache[fmCacheCount * 4 + 2] = fm.ascent;
-                fmCache[fmCacheCount * 4 + 3] = fm.descent;
-                fmCacheCount++;
+                    if (spanned == null) {
+                        spanEnd = paraEnd;
+                        int spanLen = spanEnd - spanStart;
+                        measured.addStyleRun(paint, spanLen, fm);
+                    } else {
+                        spanEnd = spanned.nextSpanTransition(spanStart, paraEnd,
+                                MetricAffectingSpan.class);
+                        int spanLen = spanEnd - spanStart;
+                        MetricAffectingSpan[] spans =
+                                spanned.getSpans(spanStart, spanEnd, MetricAffectingSpan.class);
+                        spans = TextUtils.removeEmptySpans(spans, spanned,
+                                MetricAffectingSpan.class);
+                        measured.addStyleRun(paint, spans, spanLen, fm);
+                    }
 
-                spanEndCache[spanEndCacheCount] = spanEnd;
-                spanEndCacheCount++;
-            }
+                    // the order of storage here (top, bottom, ascent, descent) has to match the
+                    // code below where these values are retrieved
+                    fmCache[fmCacheCount * 4 + 0] = fm.top;
+                    fmCache[fmCacheCount * 4 + 1] = fm.bottom;
+                    fmCache[fmCacheCount * 4 + 2] = fm.ascent;
+                    fmCache[fmCacheCount * 4 + 3] = fm.descent;
+                    fmCacheCount++;
 
-            nGetWidths(b.mNativePtr, widths);
-            int breakCount = nComputeLineBreaks(b.mNativePtr, lineBreaks, lineBreaks.breaks,
-                    lineBreaks.widths, lineBreaks.flags, lineBreaks.breaks.length);
+                    spanEndCache[spanEndCacheCount] = spanEnd;
+                    spanEndCacheCount++;
+                }
+
+                nGetWidths(b.mNativePtr, widths);
+                breakCount = nComputeLineBreaks(b.mNativePtr, lineBreaks, lineBreaks.breaks,
+                        lineBreaks.widths, lineBreaks.flags, lineBreaks.breaks.length);
+                if (cacheKey != null) {
+                    MeasuredParagraphCache.put(cacheKey, widths, lineBreaks, breakCount);
+                }
+            }
 
             int[] breaks = lineBreaks.breaks;
             float[] lineWidths = lineBreaks.widths;
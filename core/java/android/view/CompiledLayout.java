@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.view;
+
+import android.content.res.XmlResourceParser;
+import android.text.TextUtils;
+
+import com.android.internal.R;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * What {@link LayoutInflater} knows about the elements of one layout file, in document order,
+ * so that inflating it again can skip work that only depends on the file: whether an element
+ * may set a theme of its own, and which constructor builds its view.
+ * <p>
+ * Inflation checks every element against the recorded name and depth, and stops using the
+ * compiled layout for the rest of the file on the first mismatch.
+ */
+final class CompiledLayout {
+    /** The element sets android:theme or a style, which may set one. */
+    private static final int FLAG_THEME_OR_STYLE = 1 << 0;
+
+    private final CharSequence mFile;
+    private final int mCookie;
+
+    // Per element, in document order; null until compiled.
+    private String[] mNames;
+    private int[] mDepths;
+    private int[] mSubtreeSizes;
+    private int[] mFlags;
+    private Constructor<? extends View>[] mConstructors;
+
+    /**
+     * @param file The file the layout resource resolved to.
+     * @param cookie The asset cookie of the file.
+     */
+    CompiledLayout(CharSequence file, int cookie) {
+        mFile = file;
+        mCookie = cookie;
+    }
+
+    boolean isFrom(CharSequence file, int cookie) {
+        return cookie == mCookie && TextUtils.equals(file, mFile);
+    }
+
+    boolean isCompiled() {
+        return mNames != null;
+    }
+
+    /** Records the elements of the layout file that {@code parser} is at the start of. */
+    @SuppressWarnings("unchecked")
+    void compile(XmlResourceParser parser) throws XmlPullParserException, IOException {
+        final ArrayList<String> names = new ArrayList<>();
+        final ArrayList<Integer> depths = new ArrayList<>();
+        final ArrayList<Integer> flags = new ArrayList<>();
+        final ArrayList<Integer> starts = new ArrayList<>();
+        int[] subtreeSizes = new int[16];
+
+        int type;
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (type == XmlPullParser.START_TAG) {
+                starts.add(names.size());
+                names.add(parser.getName());
+                depths.add(parser.getDepth());
+                flags.add(hasThemeOrStyle(parser) ? FLAG_THEME_OR_STYLE : 0);
+            } else if (type == XmlPullParser.END_TAG) {
+                final int element = starts.remove(starts.size() - 1);
+                if (element >= subtreeSizes.length) {
+                    subtreeSizes = Arrays.copyOf(subtreeSizes,
+                            Math.max(element + 1, subtreeSizes.length * 2));
+                }
+                subtreeSizes[element] = names.size() - element - 1;
+            }
+        }
+
+        final int count = names.size();
+        final String[] nameArray = names.toArray(new String[count]);
+        final int[] depthArray = new int[count];
+        final int[] flagArray = new int[count];
+        for (int i = 0; i < count; i++) {
+            depthArray[i] = depths.get(i);
+            flagArray[i] = flags.get(i);
+        }
+        mDepths = depthArray;
+        mFlags = flagArray;
+        mSubtreeSizes = Arrays.copyOf(subtreeSizes, count);
+        mConstructors = new Constructor[count];
+        mNames = nameArray;
+    }
+
+    private static boolean hasThemeOrStyle(XmlResourceParser parser) {
+        if (parser.getStyleAttribute() != 0) {
+            return true;
+        }
+        for (int i = parser.getAttributeCount() - 1; i >= 0; i--) {
+            if (parser.getAttributeNameResource(i) == R.attr.theme) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int getElementCount() {
+        return mNames.length;
+    }
+
+    /** Whether {@code element} is the one with {@code name} at {@code depth}. */
+    boolean matches(int element, int depth, String name) {
+        return element < mNames.length && mDepths[element] == depth
+                && name.equals(mNames[element]);
+    }
+
+    /** The index of the element after {@code element} and all of its descendants. */
+    int getNextSibling(int element) {
+        return element + 1 + mSubtreeSizes[element];
+    }
+
+    /**
+     * Whether the theme of {@code element} only depends on the context it is inflated in,
+     * not on its own attributes.
+     */
+    boolean usesContextTheme(int element) {
+        return (mFlags[element] & FLAG_THEME_OR_STYLE) == 0;
+    }
+
+    Constructor<? extends View> getConstructor(int element) {
+        return mConstructors[element];
+    }
+
+    void setConstructor(int element, Constructor<? extends View> constructor) {
+        mConstructors[element] = constructor;
+    }
+}
@@ -29,6 +29,7 @@ import android.os.Message;
 import android.os.Trace;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.SparseArray;
 import android.util.TypedValue;
 import android.util.Xml;
 import android.widget.FrameLayout;
@@ -108,6 +109,21 @@ public abstract class LayoutInflater {
     private static final int[] ATTRS_THEME = new int[] {
             com.android.internal.R.attr.theme };
 
+    /** Layouts beyond this many make the inflater forget the ones it compiled. */
+    private static final int MAX_COMPILED_LAYOUTS = 64;
+
+    // Layouts inflated from resources, by resource ID; null unless enabled.
+    private SparseArray<CompiledLayout> mCompiledLayouts;
+
+    // The compiled layout being inflated, and the index of its next element; mCompiled is
+    // null when the file being parsed is not compiled, or stopped matching it.
+    private CompiledLayout mCompiled;
+    private int mCompiledNext;
+
+    // The theme override of the last context an element without its own was inflated in.
+    private Context mThemeContext;
+    private int mThemeResId;
+
     /**
      * Hook to allow clients of the LayoutInflater to restrict the set of Views that are allowed
      * to be inflated.
@@ -221,6 +237,25 @@ public abstract class LayoutInflater {
         setFilter(original.mFilter);
     }
 
+    /**
+     * Sets whether layouts inflated more than once from resources are compiled: the inflater
+     * then remembers the constructor of each element and reuses the theme lookup of elements
+     * that do not set a theme or style, instead of resolving both again for every view.
+     * Only for inflaters whose {@link #onCreateView} always makes the same class of view for
+     * the same element.
+     *
+     * @hide
+     */
+    protected void setCompiledLayoutsEnabled(boolean enabled) {
+        synchronized (mConstructorArgs) {
+            if (!enabled) {
+                mCompiledLayouts = null;
+            } else if (mCompiledLayouts == null) {
+                mCompiledLayouts = new SparseArray<>();
+            }
+        }
+    }
+
     /**
      * Obtains the LayoutInflater from the given context.
      */
@@ -418,14 +453,60 @@ public abstract class LayoutInflater {
                     + Integer.toHexString(resource) + ")");
         }
 
+        final CompiledLayout compiled;
+        synchronized (mConstructorArgs) {
+            compiled = getCompiledLayout(res, resource);
+        }
         final XmlResourceParser parser = res.getLayout(resource);
         try {
-            return inflate(parser, root, attachToRoot);
+            return inflate(parser, root, attachToRoot, compiled);
         } finally {
             parser.close();
         }
     }
 
+    /**
+     * Returns the compiled form of {@code resource}, or null if compiling is disabled or the
+     * layout was not inflated before with the current configuration.
+     */
+    private CompiledLayout getCompiledLayout(Resources res, @LayoutRes int resource) {
+        if (mCompiledLayouts == null) {
+            return null;
+        }
+        if (mTempValue == null) {
+            mTempValue = new TypedValue();
+        }
+        final TypedValue value = mTempValue;
+        try {
+            res.getValue(resource, value, true);
+        } catch (Resources.NotFoundException e) {
+            return null;
+        }
+
+        // Compile on the second use only, so layouts inflated once don't pay for it.
+        final CompiledLayout compiled = mCompiledLayouts.get(resource);
+        if (compiled == null || !compiled.isFrom(value.string, value.assetCookie)) {
+            if (compiled == null && mCompiledLayouts.size() >= MAX_COMPILED_LAYOUTS) {
+                mCompiledLayouts.clear();
+            }
+            mCompiledLayouts.put(resource, new CompiledLayout(value.string, value.assetCookie));
+            return null;
+        }
+        if (!compiled.isCompiled()) {
+            final XmlResourceParser parser = res.getLayout(resource);
+            try {
+                compiled.compile(parser);
+            } catch (XmlPullParserException | IOException e) {
+                // Inflating will report the error, if it is one.
+                mCompiledLayouts.remove(resource);
+                return null;
+            } finally {
+                parser.close();
+            }
+        }
+        return compiled;
+    }
+
     /**
      * Inflate a new view hierarchy from the specified XML node. Throws
      * {@link InflateException} if there is an error.
@@ -449,6 +530,11 @@ public abstract class LayoutInflater {
      *         the inflated XML file.
      */
     public View inflate(XmlPullParser parser, @Nullable ViewGroup root, boolean attachToRoot) {
+        return inflate(parser, root, attachToRoot, null);
+    }
+
+    private View inflate(XmlPullParser parser, @Nullable ViewGroup root, boolean attachToRoot,
+            CompiledLayout compiled) {
         synchronized (mConstructorArgs) {
             Trace.traceBegin(Trace.TRACE_TAG_VIEW, "inflate");
 
@@ -458,6 +544,15 @@ public abstract class LayoutInflater {
             mConstructorArgs[0] = inflaterContext;
             View result = root;
 
+            // Views may inflate other layouts while being constructed.
+            final CompiledLayout lastCompiled = mCompiled;
+            final int lastCompiledNext = mCompiledNext;
+            final Context lastThemeContext = mThemeContext;
+            final int lastThemeResId = mThemeResId;
+            mCompiled = compiled;
+            mCompiledNext = 0;
+            mThemeContext = null;
+
             try {
                 // Look for the root node.
                 int type;
@@ -472,6 +567,7 @@ public abstract class LayoutInflater {
                 }
 
                 final String name = parser.getName();
+                final int element = nextCompiledElement(parser, name);
 
                 if (DEBUG) {
                     System.out.println("**************************");
@@ -489,7 +585,9 @@ public abstract class LayoutInflater {
                     rInflate(parser, root, inflaterContext, attrs, false);
                 } else {
                     // Temp is the root view that was found in the xml
-                    final View temp = createViewFromTag(root, name, inflaterContext, attrs);
+                    final View temp = element >= 0
+                            ? createViewFromTag(root, name, inflaterContext, attrs, false, element)
+                            : createViewFromTag(root, name, inflaterContext, attrs);
 
                     ViewGroup.LayoutParams params = null;
 
@@ -544,6 +642,10 @@ public abstract class LayoutInflater {
                 // Don't retain static reference on context.
                 mConstructorArgs[0] = lastContext;
                 mConstructorArgs[1] = null;
+                mCompiled = lastCompiled;
+                mCompiledNext = lastCompiledNext;
+                mThemeContext = lastThemeContext;
+                mThemeResId = lastThemeResId;
 
                 Trace.traceEnd(Trace.TRACE_TAG_VIEW);
             }
@@ -747,18 +849,32 @@ public abstract class LayoutInflater {
      */
     View createViewFromTag(View parent, String name, Context context, AttributeSet attrs,
             boolean ignoreThemeAttr) {
+        return createViewFromTag(parent, name, context, attrs, ignoreThemeAttr, -1);
+    }
+
+    /**
+     * Creates a view from a tag name, using what {@link #mCompiled} knows about
+     * {@code element}, its index in the compiled layout, or nothing if that is -1.
+     */
+    private View createViewFromTag(View parent, String name, Context context,
+            AttributeSet attrs, boolean ignoreThemeAttr, int element) {
         if (name.equals("view")) {
             name = attrs.getAttributeValue(null, "class");
         }
 
         // Apply a theme wrapper, if allowed and one is specified.
         if (!ignoreThemeAttr) {
-            final TypedArray ta = context.obtainStyledAttributes(attrs, ATTRS_THEME);
-            final int themeResId = ta.getResourceId(0, 0);
+            final int themeResId;
+            if (element >= 0 && mCompiled.usesContextTheme(element)) {
+                themeResId = getContextThemeResId(context);
+            } else {
+                final TypedArray ta = context.obtainStyledAttributes(attrs, ATTRS_THEME);
+                themeResId = ta.getResourceId(0, 0);
+                ta.recycle();
+            }
             if (themeResId != 0) {
                 context = new ContextThemeWrapper(context, themeResId);
             }
-            ta.recycle();
         }
 
         if (name.equals(TAG_1995)) {
@@ -780,6 +896,13 @@ public abstract class LayoutInflater {
                 view = mPrivateFactory.onCreateView(parent, name, context, attrs);
             }
 
+            if (view == null && element >= 0 && mFilter == null) {
+                final Constructor<? extends View> constructor = mCompiled.getConstructor(element);
+                if (constructor != null && verifyClassLoader(constructor)) {
+                    view = createCompiledView(constructor, name, context, attrs);
+                }
+            }
+
             if (view == null) {
                 final Object lastContext = mConstructorArgs[0];
                 mConstructorArgs[0] = context;
@@ -792,6 +915,15 @@ public abstract class LayoutInflater {
                 } finally {
                     mConstructorArgs[0] = lastContext;
                 }
+
+                if (element >= 0 && view != null) {
+                    // Remember the constructor createView() found, if that made the view.
+                    final Constructor<? extends View> constructor = sConstructorMap.get(name);
+                    if (constructor != null
+                            && constructor.getDeclaringClass() == view.getClass()) {
+                        mCompiled.setConstructor(element, constructor);
+                    }
+                }
             }
 
             return view;
@@ -812,6 +944,68 @@ public abstract class LayoutInflater {
         }
     }
 
+    /**
+     * Makes the view of a compiled element with the constructor {@link #createView} found for
+     * it before; the filter, if any, was applied then.
+     */
+    private View createCompiledView(Constructor<? extends View> constructor, String name,
+            Context context, AttributeSet attrs) throws Exception {
+        Trace.traceBegin(Trace.TRACE_TAG_VIEW, name);
+        final Object lastContext = mConstructorArgs[0];
+        try {
+            final Object[] args = mConstructorArgs;
+            args[0] = context;
+            args[1] = attrs;
+
+            final View view = constructor.newInstance(args);
+            if (view instanceof ViewStub) {
+                // Use the same context when inflating ViewStub later.
+                final ViewStub viewStub = (ViewStub) view;
+                viewStub.setLayoutInflater(cloneInContext(context));
+            }
+            return view;
+        } finally {
+            mConstructorArgs[0] = lastContext;
+            Trace.traceEnd(Trace.TRACE_TAG_VIEW);
+        }
+    }
+
+    /**
+     * Returns the theme override that {@code context} gives elements without a theme or style
+     * attribute of their own, the same for all of them.
+     */
+    private int getContextThemeResId(Context context) {
+        if (context != mThemeContext) {
+            final TypedArray ta = context.obtainStyledAttributes(ATTRS_THEME);
+            mThemeResId = ta.getResourceId(0, 0);
+            ta.recycle();
+            mThemeContext = context;
+        }
+        return mThemeResId;
+    }
+
+    /**
+     * Returns the index in {@link #mCompiled} of the element the parser is at the start of, or
+     * -1 if none; on a mismatch, the rest of the file is inflated without the compiled layout.
+     */
+    private int nextCompiledElement(XmlPullParser parser, String name) {
+        if (mCompiled == null) {
+            return -1;
+        }
+        if (!mCompiled.matches(mCompiledNext, parser.getDepth(), name)) {
+            mCompiled = null;
+            return -1;
+        }
+        return mCompiledNext++;
+    }
+
+    /** Moves past the children of {@code element}, which were consumed without inflating. */
+    private void skipCompiledChildren(int element) {
+        if (element >= 0 && mCompiled != null) {
+            mCompiledNext = mCompiled.getNextSibling(element);
+        }
+    }
+
     /**
      * Recursive method used to inflate internal (non-root) children. This
      * method calls through to {@link #rInflate} using the parent context as
@@ -846,21 +1040,34 @@ public abstract class LayoutInflater {
             }
 
             final String name = parser.getName();
+            final int element = nextCompiledElement(parser, name);
 
             if (TAG_REQUEST_FOCUS.equals(name)) {
                 pendingRequestFocus = true;
                 consumeChildElements(parser);
+                skipCompiledChildren(element);
             } else if (TAG_TAG.equals(name)) {
                 parseViewTag(parser, parent, attrs);
+                skipCompiledChildren(element);
             } else if (TAG_INCLUDE.equals(name)) {
                 if (parser.getDepth() == 0) {
                     throw new InflateException("<include /> cannot be the root element");
                 }
-                parseInclude(parser, context, parent, attrs);
+                // The included layout is another file.
+                final CompiledLayout compiled = mCompiled;
+                mCompiled = null;
+                try {
+                    parseInclude(parser, context, parent, attrs);
+                } finally {
+                    mCompiled = compiled;
+                }
+                skipCompiledChildren(element);
             } else if (TAG_MERGE.equals(name)) {
                 throw new InflateException("<merge /> must be the root element");
             } else {
-                final View view = createViewFromTag(parent, name, context, attrs);
+                final View view = element >= 0
+                        ? createViewFromTag(parent, name, context, attrs, false, element)
+                        : createViewFromTag(parent, name, context, attrs);
                 final ViewGroup viewGroup = (ViewGroup) parent;
                 final ViewGroup.LayoutParams params = viewGroup.generateLayoutParams(attrs);
                 rInflateChildren(parser, view, attrs, true);
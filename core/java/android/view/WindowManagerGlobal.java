@@ -26,6 +26,7 @@ import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemProperties;
+import android.text.MeasuredParagraphCache;
 import android.util.AndroidRuntimeException;
 import android.util.ArraySet;
 import android.util.Log;
@@ -501,6 +502,11 @@ public final class WindowManagerGlobal {
     }
 
     public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Text is measured again for the next frame shown anyway.
+            MeasuredParagraphCache.clear();
+        }
+
         if (ThreadedRenderer.isAvailable()) {
             if (shouldDestroyEglContext(level)) {
                 // Destroy all hardware surfaces and resources associated to
@@ -592,6 +598,8 @@ public final class WindowManagerGlobal {
                 pw.printf("Total Views:        %d\n", viewsCount);
                 pw.printf("Total DisplayList:  %.2f kB\n\n", displayListsSize / 1024.0f);
             }
+
+            MeasuredParagraphCache.dump(pw);
         } finally {
             pw.flush();
         }
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.FileUtils;
+import android.os.Handler;
+import android.os.Parcel;
+import android.util.Slog;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import libcore.io.IoUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Battery history that no longer fits in the in-memory history buffer of
+ * {@link BatteryStatsImpl}, kept as a sequence of segment files, oldest first.
+ * <p>
+ * Each segment is a full history buffer that starts with an absolute record, so it can be
+ * decoded on its own given the history tag pool. Segment ids only ever increase. Files are
+ * written and deleted on the given handler; until a segment has been written, readers are
+ * served its contents from memory.
+ */
+final class BatteryStatsHistory {
+    private static final String TAG = "BatteryStatsHistory";
+    private static final String SEGMENT_SUFFIX = ".bin";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /** The oldest segments are deleted once there are more than this many. */
+    @VisibleForTesting
+    static final int MAX_SEGMENTS = 32;
+
+    private final File mDir;
+    private final Handler mHandler;
+    /** The oldest segments are deleted once they take up more than this many bytes. */
+    private final long mMaxBytes;
+
+    /** Size of each segment, keyed (and so ordered) by segment id. */
+    @GuardedBy("this")
+    private final SparseIntArray mSegmentSizes = new SparseIntArray();
+    /** Contents of the segments whose files have not been written yet. */
+    @GuardedBy("this")
+    private final SparseArray<byte[]> mPendingSegments = new SparseArray<>();
+    @GuardedBy("this")
+    private int mNextSegmentId;
+    @GuardedBy("this")
+    private long mTotalBytes;
+
+    BatteryStatsHistory(File dir, Handler handler, long maxBytes) {
+        mDir = dir;
+        mHandler = handler;
+        mMaxBytes = maxBytes;
+        mDir.mkdirs();
+
+        final File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String name = file.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX)) {
+                // Including partial writes from before a crash.
+                file.delete();
+                continue;
+            }
+            try {
+                final int id = Integer.parseInt(
+                        name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                mSegmentSizes.put(id, (int) file.length());
+                mTotalBytes += file.length();
+                mNextSegmentId = Math.max(mNextSegmentId, id + 1);
+            } catch (NumberFormatException e) {
+                file.delete();
+            }
+        }
+        synchronized (this) {
+            trimToBudgetLocked();
+        }
+    }
+
+    /**
+     * Returns the id the next segment will get. Every segment added before this call has a
+     * smaller id.
+     */
+    synchronized int getNextSegmentId() {
+        return mNextSegmentId;
+    }
+
+    /** Returns the ids of the current segments, oldest first. */
+    synchronized int[] getSegmentIds() {
+        final int[] ids = new int[mSegmentSizes.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = mSegmentSizes.keyAt(i);
+        }
+        return ids;
+    }
+
+    synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /** Returns how many bytes of segments are kept, at most. */
+    long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Appends the contents of {@code buffer} as the newest segment. The file is written
+     * asynchronously; the caller is free to reuse the buffer as soon as this returns.
+     */
+    synchronized void add(Parcel buffer) {
+        final int id = mNextSegmentId++;
+        final byte[] data = buffer.marshall();
+        mSegmentSizes.put(id, data.length);
+        mPendingSegments.put(id, data);
+        mTotalBytes += data.length;
+        mHandler.post(() -> writeSegment(id, data));
+
+        trimToBudgetLocked();
+    }
+
+    @GuardedBy("this")
+    private void trimToBudgetLocked() {
+        // Always keep the newest segment, whatever its size.
+        while (mSegmentSizes.size() > MAX_SEGMENTS
+                || (mTotalBytes > mMaxBytes && mSegmentSizes.size() > 1)) {
+            removeSegmentLocked(mSegmentSizes.keyAt(0));
+        }
+    }
+
+    /**
+     * Removes the segments with an id of at least {@code id}. Used when the rest of the
+     * history is restored from a snapshot taken before those segments were added.
+     */
+    synchronized void trimFrom(int id) {
+        for (int i = mSegmentSizes.size() - 1; i >= 0 && mSegmentSizes.keyAt(i) >= id; i--) {
+            removeSegmentLocked(mSegmentSizes.keyAt(i));
+        }
+    }
+
+    /** Removes all segments. */
+    synchronized void reset() {
+        for (int i = mSegmentSizes.size() - 1; i >= 0; i--) {
+            removeSegmentLocked(mSegmentSizes.keyAt(i));
+        }
+    }
+
+    @GuardedBy("this")
+    private void removeSegmentLocked(int id) {
+        mTotalBytes -= mSegmentSizes.get(id);
+        mSegmentSizes.delete(id);
+        mPendingSegments.remove(id);
+        // Posted after the segment's write, if that hasn't happened yet.
+        mHandler.post(() -> getSegmentFile(id).delete());
+    }
+
+    /**
+     * Returns a parcel positioned at the start of the given segment, or {@code null} if it
+     * has been removed or can't be read. The caller must recycle the parcel.
+     */
+    Parcel readSegment(int id) {
+        byte[] data;
+        synchronized (this) {
+            if (mSegmentSizes.indexOfKey(id) < 0) {
+                return null;
+            }
+            data = mPendingSegments.get(id);
+        }
+        if (data == null) {
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream(getSegmentFile(id));
+                data = BatteryStatsHelper.readFully(in);
+            } catch (IOException e) {
+                Slog.w(TAG, "Error reading history segment " + id, e);
+                return null;
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
+        }
+        final Parcel parcel = Parcel.obtain();
+        parcel.unmarshall(data, 0, data.length);
+        parcel.setDataPosition(0);
+        return parcel;
+    }
+
+    private void writeSegment(int id, byte[] data) {
+        final File file = getSegmentFile(id);
+        final File tmp = new File(mDir, file.getName() + TMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(data);
+            FileUtils.sync(out);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            // Keep serving the segment from memory.
+            Slog.w(TAG, "Error writing history segment " + id, e);
+            tmp.delete();
+            return;
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+        synchronized (this) {
+            mPendingSegments.remove(id);
+        }
+    }
+
+    private File getSegmentFile(int id) {
+        return new File(mDir, id + SEGMENT_SUFFIX);
+    }
+}
@@ -120,7 +120,7 @@ public class BatteryStatsImpl extends BatteryStats {
     private static final int MAGIC = 0xBA757475; // 'BATSTATS'
 
     // Current on-disk Parcel version
-    private static final int VERSION = 167 + (USE_OLD_HISTORY ? 1000 : 0);
+    private static final int VERSION = 168 + (USE_OLD_HISTORY ? 1000 : 0);
 
     // Maximum number of items we will record in the history.
     private static final int MAX_HISTORY_ITEMS;
@@ -161,6 +161,8 @@ public class BatteryStatsImpl extends BatteryStats {
     protected Clocks mClocks;
 
     private final JournaledFile mFile;
+    /** History spilled out of mHistoryBuffer; null if this instance has no files. */
+    private final BatteryStatsHistory mHistorySegments;
     public final AtomicFile mCheckinFile;
     public final AtomicFile mDailyFile;
 
@@ -346,6 +348,7 @@ public class BatteryStatsImpl extends BatteryStats {
     final HistoryItem mHistoryLastLastWritten = new HistoryItem();
     final HistoryItem mHistoryReadTmp = new HistoryItem();
     final HistoryItem mHistoryAddTmp = new HistoryItem();
+    final HistoryItem mHistorySegmentStartTmp = new HistoryItem();
     final HashMap<HistoryTag, Integer> mHistoryTagPool = new HashMap<>();
     String[] mReadHistoryStrings;
     int[] mReadHistoryUids;
@@ -403,6 +406,9 @@ public class BatteryStatsImpl extends BatteryStats {
     private HistoryItem mHistoryIterator;
     private boolean mReadOverflow;
     private boolean mIteratingHistory;
+    private int[] mReadHistorySegmentIds;
+    private int mReadHistorySegmentIdx;
+    private Parcel mReadHistorySegment;
 
     int mStartCount;
 
@@ -699,6 +705,7 @@ public class BatteryStatsImpl extends BatteryStats {
     public BatteryStatsImpl(Clocks clocks) {
         init(clocks);
         mFile = null;
+        mHistorySegments = null;
         mCheckinFile = null;
         mDailyFile = null;
         mHandler = null;
@@ -3341,6 +3348,20 @@ public class BatteryStatsImpl extends BatteryStats {
             // events.
             recordResetDueToOverflow = true;
 
+        } else if (dataSize >= MAX_HISTORY_BUFFER && mHistorySegments != null) {
+            // Move the full buffer out to a segment and carry on in an empty one. Like every
+            // segment, it starts with an absolute record so it can be read on its own.
+            mHistorySegments.add(mHistoryBuffer);
+            mHistoryBuffer.setDataSize(0);
+            mHistoryBuffer.setDataPosition(0);
+            mHistoryBufferLastPos = -1;
+            mHistorySegmentStartTmp.setTo(cur);
+            mHistorySegmentStartTmp.wakelockTag = null;
+            mHistorySegmentStartTmp.wakeReasonTag = null;
+            mHistorySegmentStartTmp.eventCode = HistoryItem.EVENT_NONE;
+            mHistorySegmentStartTmp.currentTime = System.currentTimeMillis();
+            addHistoryBufferLocked(elapsedRealtimeMs, uptimeMs, HistoryItem.CMD_CURRENT_TIME,
+                    mHistorySegmentStartTmp);
         } else if (dataSize >= MAX_HISTORY_BUFFER) {
             if (!mHistoryOverflow) {
                 mHistoryOverflow = true;
@@ -8831,8 +8852,14 @@ public class BatteryStatsImpl extends BatteryStats {
         if (systemDir != null) {
             mFile = new JournaledFile(new File(systemDir, "batterystats.bin"),
                     new File(systemDir, "batterystats.bin.tmp"));
+            // Written on the same thread as mFile, so a summary never refers to a segment
+            // that hasn't made it to disk.
+            mHistorySegments = new BatteryStatsHistory(new File(systemDir, "battery-history"),
+                    BackgroundThread.getHandler(),
+                    (long) BatteryStatsHistory.MAX_SEGMENTS * MAX_HISTORY_BUFFER);
         } else {
             mFile = null;
+            mHistorySegments = null;
         }
         mCheckinFile = new AtomicFile(new File(systemDir, "batterystats-checkin.bin"));
         mDailyFile = new AtomicFile(new File(systemDir, "batterystats-daily.xml"));
@@ -8924,6 +8951,7 @@ public class BatteryStatsImpl extends BatteryStats {
     public BatteryStatsImpl(Clocks clocks, Parcel p) {
         init(clocks);
         mFile = null;
+        mHistorySegments = null;
         mCheckinFile = null;
         mDailyFile = null;
         mHandler = null;
@@ -9344,10 +9372,16 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public int getHistoryTotalSize() {
+        if (mHistorySegments != null) {
+            return (int) mHistorySegments.getMaxBytes() + MAX_HISTORY_BUFFER;
+        }
         return MAX_HISTORY_BUFFER;
     }
 
     public int getHistoryUsedSize() {
+        if (mHistorySegments != null) {
+            return (int) mHistorySegments.getTotalBytes() + mHistoryBuffer.dataSize();
+        }
         return mHistoryBuffer.dataSize();
     }
 
@@ -9355,9 +9389,12 @@ public class BatteryStatsImpl extends BatteryStats {
     public boolean startIteratingHistoryLocked() {
         if (DEBUG_HISTORY) Slog.i(TAG, "ITERATING: buff size=" + mHistoryBuffer.dataSize()
                 + " pos=" + mHistoryBuffer.dataPosition());
-        if (mHistoryBuffer.dataSize() <= 0) {
+        mReadHistorySegmentIds = mHistorySegments != null
+                ? mHistorySegments.getSegmentIds() : EmptyArray.INT;
+        if (mHistoryBuffer.dataSize() <= 0 && mReadHistorySegmentIds.length == 0) {
             return false;
         }
+        mReadHistorySegmentIdx = 0;
         mHistoryBuffer.setDataPosition(0);
         mReadOverflow = false;
         mIteratingHistory = true;
@@ -9398,18 +9435,14 @@ public class BatteryStatsImpl extends BatteryStats {
 
     @Override
     public boolean getNextHistoryLocked(HistoryItem out) {
-        final int pos = mHistoryBuffer.dataPosition();
-        if (pos == 0) {
-            out.clear();
-        }
-        boolean end = pos >= mHistoryBuffer.dataSize();
-        if (end) {
+        final Parcel src = getHistoryReadParcelLocked(out);
+        if (src == null) {
             return false;
         }
 
         final long lastRealtime = out.time;
         final long lastWalltime = out.currentTime;
-        readHistoryDelta(mHistoryBuffer, out);
+        readHistoryDelta(src, out);
         if (out.cmd != HistoryItem.CMD_CURRENT_TIME
                 && out.cmd != HistoryItem.CMD_RESET && lastWalltime != 0) {
             out.currentTime = lastWalltime + (out.time - lastRealtime);
@@ -9417,11 +9450,47 @@ public class BatteryStatsImpl extends BatteryStats {
         return true;
     }
 
+    /**
+     * Returns the parcel holding the next history record: the spilled segments first, one at
+     * a time, then mHistoryBuffer. Clears {@code out} at the start of each of them, or
+     * returns null once all have been read.
+     */
+    private Parcel getHistoryReadParcelLocked(HistoryItem out) {
+        while (true) {
+            if (mReadHistorySegment != null) {
+                if (mReadHistorySegment.dataPosition() < mReadHistorySegment.dataSize()) {
+                    return mReadHistorySegment;
+                }
+                mReadHistorySegment.recycle();
+                mReadHistorySegment = null;
+            }
+            if (mReadHistorySegmentIdx >= mReadHistorySegmentIds.length) {
+                break;
+            }
+            mReadHistorySegment = mHistorySegments.readSegment(
+                    mReadHistorySegmentIds[mReadHistorySegmentIdx++]);
+            if (mReadHistorySegment != null) {
+                out.clear();
+            }
+        }
+
+        final int pos = mHistoryBuffer.dataPosition();
+        if (pos == 0) {
+            out.clear();
+        }
+        return pos < mHistoryBuffer.dataSize() ? mHistoryBuffer : null;
+    }
+
     @Override
     public void finishIteratingHistoryLocked() {
         mIteratingHistory = false;
         mHistoryBuffer.setDataPosition(mHistoryBuffer.dataSize());
         mReadHistoryStrings = null;
+        mReadHistorySegmentIds = null;
+        if (mReadHistorySegment != null) {
+            mReadHistorySegment.recycle();
+            mReadHistorySegment = null;
+        }
     }
 
     @Override
@@ -9635,6 +9704,9 @@ public class BatteryStatsImpl extends BatteryStats {
         initDischarge();
 
         clearHistoryLocked();
+        if (mHistorySegments != null) {
+            mHistorySegments.reset();
+        }
     }
 
     private void initActiveHistoryEventsLocked(long elapsedRealtimeMs, long uptimeMs) {
@@ -10777,7 +10849,7 @@ public class BatteryStatsImpl extends BatteryStats {
                     || level >= 90
                     || (mDischargeCurrentLevel < 20 && level >= 80)
                     || (getHighDischargeAmountSinceCharge() >= 200
-                            && mHistoryBuffer.dataSize() >= MAX_HISTORY_BUFFER))) {
+                            && getHistoryUsedSize() >= MAX_HISTORY_BUFFER))) {
                 Slog.i(TAG, "Resetting battery stats: level=" + level + " status=" + oldStatus
                         + " dischargeLevel=" + mDischargeCurrentLevel
                         + " lowAmount=" + getLowDischargeAmountSinceCharge()
@@ -11623,6 +11695,9 @@ public class BatteryStatsImpl extends BatteryStats {
         try {
             File file = mFile.chooseForRead();
             if (!file.exists()) {
+                if (mHistorySegments != null) {
+                    mHistorySegments.reset();
+                }
                 return;
             }
             FileInputStream stream = new FileInputStream(file);
@@ -11650,6 +11725,9 @@ public class BatteryStatsImpl extends BatteryStats {
             }
             addHistoryBufferLocked(elapsedRealtime, uptime, HistoryItem.CMD_START, mHistoryCur);
             startRecordingHistory(elapsedRealtime, uptime, false);
+        } else if (mHistorySegments != null) {
+            // No history was restored for the segments to precede.
+            mHistorySegments.reset();
         }
 
         recordDailyStatsIfNeededLocked(false);
@@ -11659,8 +11737,18 @@ public class BatteryStatsImpl extends BatteryStats {
         return 0;
     }
 
-    void readHistory(Parcel in, boolean andOldHistory) throws ParcelFormatException {
+    /**
+     * @param maxBufSize the history buffer size from which the parcel is treated as corrupt
+     */
+    void readHistory(Parcel in, boolean andOldHistory, int maxBufSize)
+            throws ParcelFormatException {
         final long historyBaseTime = in.readLong();
+        final int nextHistorySegmentId = in.readInt();
+        if (mHistorySegments != null && nextHistorySegmentId >= 0) {
+            // Segments added after this snapshot was taken hold records that are also in the
+            // buffer we're about to restore.
+            mHistorySegments.trimFrom(nextHistorySegmentId);
+        }
 
         mHistoryBuffer.setDataSize(0);
         mHistoryBuffer.setDataPosition(0);
@@ -11689,7 +11777,7 @@ public class BatteryStatsImpl extends BatteryStats {
 
         int bufSize = in.readInt();
         int curPos = in.dataPosition();
-        if (bufSize >= (MAX_MAX_HISTORY_BUFFER*3)) {
+        if (bufSize >= maxBufSize) {
             throw new ParcelFormatException("File corrupt: history data buffer too large " +
                     bufSize);
         } else if ((bufSize&~3) != bufSize) {
@@ -11746,7 +11834,13 @@ public class BatteryStatsImpl extends BatteryStats {
         }
     }
 
-    void writeHistory(Parcel out, boolean inclData, boolean andOldHistory) {
+    /**
+     * @param segments if non-null, the history spilled to segment files is put in the buffer
+     *         too, ahead of the in-memory buffer, for readers that don't have the files. Holds
+     *         the segments read by {@link #readHistorySegments}; any spilled since are read here.
+     */
+    void writeHistory(Parcel out, boolean inclData, boolean andOldHistory,
+            SparseArray<Parcel> segments) {
         if (DEBUG_HISTORY) {
             StringBuilder sb = new StringBuilder(128);
             sb.append("****************** WRITING mHistoryBaseTime: ");
@@ -11756,6 +11850,7 @@ public class BatteryStatsImpl extends BatteryStats {
             Slog.i(TAG, sb.toString());
         }
         out.writeLong(mHistoryBaseTime + mLastHistoryElapsedRealtime);
+        out.writeInt(mHistorySegments != null ? mHistorySegments.getNextSegmentId() : -1);
         if (!inclData) {
             out.writeInt(0);
             out.writeInt(0);
@@ -11768,10 +11863,32 @@ public class BatteryStatsImpl extends BatteryStats {
             out.writeString(tag.string);
             out.writeInt(tag.uid);
         }
-        out.writeInt(mHistoryBuffer.dataSize());
+        final int sizePos = out.dataPosition();
+        out.writeInt(0);
+        int size = 0;
+        if (segments != null && mHistorySegments != null) {
+            // Every segment starts with an absolute record, so they decode back to back.
+            for (int id : mHistorySegments.getSegmentIds()) {
+                Parcel segment = segments.get(id);
+                if (segment == null) {
+                    segment = mHistorySegments.readSegment(id);
+                    if (segment == null) {
+                        continue;
+                    }
+                    segments.put(id, segment);
+                }
+                out.appendFrom(segment, 0, segment.dataSize());
+                size += segment.dataSize();
+            }
+        }
         if (DEBUG_HISTORY) Slog.i(TAG, "***************** WRITING HISTORY: "
-                + mHistoryBuffer.dataSize() + " bytes at " + out.dataPosition());
+                + (size + mHistoryBuffer.dataSize()) + " bytes at " + (sizePos + 4));
         out.appendFrom(mHistoryBuffer, 0, mHistoryBuffer.dataSize());
+        size += mHistoryBuffer.dataSize();
+        final int endPos = out.dataPosition();
+        out.setDataPosition(sizePos);
+        out.writeInt(size);
+        out.setDataPosition(endPos);
 
         if (andOldHistory) {
             writeOldHistory(out);
@@ -11798,7 +11915,7 @@ public class BatteryStatsImpl extends BatteryStats {
             return;
         }
 
-        readHistory(in, true);
+        readHistory(in, true, MAX_MAX_HISTORY_BUFFER*3);
 
         mStartCount = in.readInt();
         mUptime = in.readLong();
@@ -12224,7 +12341,8 @@ public class BatteryStatsImpl extends BatteryStats {
 
         out.writeInt(VERSION);
 
-        writeHistory(out, inclHistory, true);
+        // The segment files hold the rest of the history.
+        writeHistory(out, inclHistory, true, null);
 
         out.writeInt(mStartCount);
         out.writeLong(computeUptime(NOW_SYS, STATS_SINCE_CHARGED));
@@ -12685,7 +12803,9 @@ public class BatteryStatsImpl extends BatteryStats {
             throw new ParcelFormatException("Bad magic number: #" + Integer.toHexString(magic));
         }
 
-        readHistory(in, false);
+        // Parcels from getStatisticsStream() carry the spilled segments in the buffer too.
+        readHistory(in, false,
+                MAX_MAX_HISTORY_BUFFER * (3 + BatteryStatsHistory.MAX_SEGMENTS));
 
         mStartCount = in.readInt();
         mStartClockTime = in.readLong();
@@ -12883,15 +13003,52 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public void writeToParcel(Parcel out, int flags) {
-        writeToParcelLocked(out, true, flags);
+        writeToParcelLocked(out, true, flags, null);
     }
 
     public void writeToParcelWithoutUids(Parcel out, int flags) {
-        writeToParcelLocked(out, false, flags);
+        writeToParcelLocked(out, false, flags, null);
+    }
+
+    /**
+     * Reads the history spilled to segment files, keyed by segment id, for
+     * {@link #writeToParcelWithHistory}. This reads files, so call it without holding the
+     * stats lock. Recycle the result with {@link #recycleHistorySegments}.
+     */
+    public SparseArray<Parcel> readHistorySegments() {
+        final SparseArray<Parcel> segments = new SparseArray<>();
+        if (mHistorySegments != null) {
+            for (int id : mHistorySegments.getSegmentIds()) {
+                final Parcel segment = mHistorySegments.readSegment(id);
+                if (segment != null) {
+                    segments.put(id, segment);
+                }
+            }
+        }
+        return segments;
+    }
+
+    public static void recycleHistorySegments(SparseArray<Parcel> segments) {
+        for (int i = 0; i < segments.size(); i++) {
+            segments.valueAt(i).recycle();
+        }
+        segments.clear();
+    }
+
+    /**
+     * Like {@link #writeToParcel}, but with the history spilled to segment files in front of the
+     * in-memory history. The result can be many times the binder transaction limit, so only
+     * hand it out through a file descriptor.
+     *
+     * @param segments the segments from {@link #readHistorySegments}
+     */
+    public void writeToParcelWithHistory(Parcel out, SparseArray<Parcel> segments) {
+        writeToParcelLocked(out, true, 0, segments);
     }
 
     @SuppressWarnings("unused")
-    void writeToParcelLocked(Parcel out, boolean inclUids, int flags) {
+    void writeToParcelLocked(Parcel out, boolean inclUids, int flags,
+            SparseArray<Parcel> segments) {
         // Need to update with current kernel wake lock counts.
         pullPendingStateUpdatesLocked();
 
@@ -12906,7 +13063,7 @@ public class BatteryStatsImpl extends BatteryStats {
 
         out.writeInt(MAGIC);
 
-        writeHistory(out, true, false);
+        writeHistory(out, true, false, segments);
 
         out.writeInt(mStartCount);
         out.writeLong(startClockTime);
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Binder;
+import android.os.BinderCallsStatsProto;
+import android.os.BinderMethodStatsProto;
+import android.os.SystemClock;
+import android.util.TimeUtils;
+import android.util.proto.ProtoOutputStream;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Collects statistics about the binder calls a process handles, per interface descriptor and
+ * transaction code: call counts, CPU time, latency histograms and reply sizes.
+ * <p>
+ * Calls are accumulated into one of {@link #STRIPES} sets of counters picked by the calling
+ * thread, so binder threads rarely contend; the sets are merged when the stats are reported.
+ * Counters live in arrays allocated when collection is first enabled, so measuring a call
+ * allocates nothing but its {@link CallSession}; methods beyond {@link #MAX_METHODS} are
+ * counted together. Only one in {@link #setSamplingInterval every N} calls is measured.
+ * Disabled unless a process turns it on; system_server can, see BinderCallsStatsService.
+ */
+public class BinderCallsStats {
+    /** Upper bounds, in microseconds, of every latency bucket but the last. */
+    private static final long[] LATENCY_BUCKET_LIMITS_MICROS =
+            { 100, 500, 1000, 5000, 10000, 50000, 100000 };
+
+    @VisibleForTesting
+    static final int MAX_METHODS = 512;
+    /** Open addressed index from method to slot; a power of two, at most half full. */
+    private static final int INDEX_SIZE = 1024;
+
+    /** Number of counter sets calls are spread over; a power of two. */
+    private static final int STRIPES = 4;
+
+    /** Slot of the methods past {@link #MAX_METHODS}. */
+    private static final int OTHER_SLOT = 0;
+    private static final String OTHER_DESCRIPTOR = "(other)";
+
+    private static final BinderCallsStats sInstance = new BinderCallsStats();
+
+    /** A call being measured, from {@link #callStarted} to {@link #callEnded}. */
+    public static final class CallSession {
+        final Binder binder;
+        final int code;
+        final long startTimeNanos;
+        final long startCpuTimeMicros;
+
+        CallSession(Binder binder, int code) {
+            this.binder = binder;
+            this.code = code;
+            startCpuTimeMicros = SystemClock.currentThreadTimeMicro();
+            startTimeNanos = System.nanoTime();
+        }
+    }
+
+    /** One set of counters, guarded by itself. */
+    private static final class Stripe {
+        final int[] index = new int[INDEX_SIZE];
+        final String[] descriptors = new String[MAX_METHODS];
+        final int[] codes = new int[MAX_METHODS];
+        /** Latency of the calls; also counts them. */
+        final BucketedStats latencyMicros =
+                new BucketedStats(LATENCY_BUCKET_LIMITS_MICROS, MAX_METHODS);
+        final long[] cpuTimeMicros = new long[MAX_METHODS];
+        final long[] replyBytes = new long[MAX_METHODS];
+        final long[] maxReplyBytes = new long[MAX_METHODS];
+        int methodCount;
+
+        Stripe() {
+            reset();
+        }
+
+        int getSlot(String descriptor, int code) {
+            int i = (descriptor.hashCode() * 31 + code) & (INDEX_SIZE - 1);
+            while (true) {
+                final int slot = index[i] - 1;
+                if (slot < 0) {
+                    break;
+                }
+                if (codes[slot] == code && descriptor.equals(descriptors[slot])) {
+                    return slot;
+                }
+                i = (i + 1) & (INDEX_SIZE - 1);
+            }
+            if (methodCount >= MAX_METHODS) {
+                return OTHER_SLOT;
+            }
+            final int slot = methodCount++;
+            descriptors[slot] = descriptor;
+            codes[slot] = code;
+            index[i] = slot + 1;
+            return slot;
+        }
+
+        void add(int slot, long cpuTime, long reply, long maxReply) {
+            cpuTimeMicros[slot] += cpuTime;
+            replyBytes[slot] += reply;
+            if (maxReply > maxReplyBytes[slot]) {
+                maxReplyBytes[slot] = maxReply;
+            }
+        }
+
+        /** Adds the counters of {@code other} to these. */
+        void addAll(Stripe other) {
+            for (int i = 0; i < other.methodCount; i++) {
+                if (other.latencyMicros.getCount(i) == 0) {
+                    continue;
+                }
+                final int slot = i == OTHER_SLOT
+                        ? OTHER_SLOT : getSlot(other.descriptors[i], other.codes[i]);
+                add(slot, other.cpuTimeMicros[i], other.replyBytes[i], other.maxReplyBytes[i]);
+                latencyMicros.addAll(slot, other.latencyMicros, i);
+            }
+        }
+
+        void reset() {
+            Arrays.fill(index, 0);
+            Arrays.fill(descriptors, null);
+            Arrays.fill(codes, 0);
+            latencyMicros.reset();
+            Arrays.fill(cpuTimeMicros, 0);
+            Arrays.fill(replyBytes, 0);
+            Arrays.fill(maxReplyBytes, 0);
+            descriptors[OTHER_SLOT] = OTHER_DESCRIPTOR;
+            codes[OTHER_SLOT] = -1;
+            methodCount = OTHER_SLOT + 1;
+        }
+
+        /** Slots with calls, by descending CPU time. */
+        Integer[] getSortedSlots() {
+            int count = 0;
+            final Integer[] slots = new Integer[methodCount];
+            for (int i = 0; i < methodCount; i++) {
+                if (latencyMicros.getCount(i) > 0) {
+                    slots[count++] = i;
+                }
+            }
+            final Integer[] sorted = Arrays.copyOf(slots, count);
+            Arrays.sort(sorted, Comparator.comparingLong((Integer slot) -> cpuTimeMicros[slot])
+                    .reversed());
+            return sorted;
+        }
+    }
+
+    private volatile boolean mEnabled;
+    private volatile int mSamplingInterval = 1;
+    // Deliberately unsynchronized; a lost update only shifts which call is sampled.
+    private int mSampleCounter;
+
+    private final Object mLock = new Object();
+    /** Allocated the first time collection is enabled; never changes after that. */
+    private volatile Stripe[] mStripes;
+    @GuardedBy("mLock")
+    private long mStartTime = SystemClock.elapsedRealtime();
+
+    @VisibleForTesting
+    BinderCallsStats() {
+    }
+
+    public static BinderCallsStats getInstance() {
+        return sInstance;
+    }
+
+    public void setEnabled(boolean enabled) {
+        if (enabled && mStripes == null) {
+            synchronized (mLock) {
+                if (mStripes == null) {
+                    final Stripe[] stripes = new Stripe[STRIPES];
+                    for (int i = 0; i < STRIPES; i++) {
+                        stripes[i] = new Stripe();
+                    }
+                    mStripes = stripes;
+                    mStartTime = SystemClock.elapsedRealtime();
+                }
+            }
+        }
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /** Measures one in {@code interval} calls. */
+    public void setSamplingInterval(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Bad sampling interval " + interval);
+        }
+        mSamplingInterval = interval;
+    }
+
+    /**
+     * Called by {@link Binder} before a transaction is dispatched.
+     *
+     * @return The session to pass to {@link #callEnded}, or null if the call isn't measured.
+     */
+    public CallSession callStarted(Binder binder, int code) {
+        if (!mEnabled) {
+            return null;
+        }
+        final int interval = mSamplingInterval;
+        if (interval > 1 && (++mSampleCounter % interval) != 0) {
+            return null;
+        }
+        return new CallSession(binder, code);
+    }
+
+    /** Called by {@link Binder} once the transaction of {@code s} is done. */
+    public void callEnded(CallSession s, int replySize) {
+        final long latencyMicros = (System.nanoTime() - s.startTimeNanos) / 1000;
+        final long cpuTimeMicros = SystemClock.currentThreadTimeMicro() - s.startCpuTimeMicros;
+        String descriptor = s.binder.getInterfaceDescriptor();
+        if (descriptor == null) {
+            descriptor = s.binder.getClass().getName();
+        }
+        final Stripe stripe =
+                mStripes[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+        synchronized (stripe) {
+            final int slot = stripe.getSlot(descriptor, s.code);
+            stripe.add(slot, cpuTimeMicros, replySize, replySize);
+            stripe.latencyMicros.add(slot, latencyMicros);
+        }
+    }
+
+    public void reset() {
+        synchronized (mLock) {
+            final Stripe[] stripes = mStripes;
+            if (stripes != null) {
+                for (Stripe stripe : stripes) {
+                    synchronized (stripe) {
+                        stripe.reset();
+                    }
+                }
+            }
+            mStartTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Returns the counters of all stripes added together. Each stripe is only held while it
+     * is copied, so calls keep being recorded meanwhile.
+     */
+    private Stripe getMergedStats() {
+        final Stripe merged = new Stripe();
+        final Stripe[] stripes = mStripes;
+        if (stripes != null) {
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    merged.addAll(stripe);
+                }
+            }
+        }
+        return merged;
+    }
+
+    public void dump(PrintWriter pw) {
+        final Stripe stats = getMergedStats();
+        synchronized (mLock) {
+            pw.print("Binder calls stats (sampling 1/"); pw.print(mSamplingInterval);
+            pw.print(mEnabled ? "" : ", disabled"); pw.print(", over ");
+            TimeUtils.formatDuration(SystemClock.elapsedRealtime() - mStartTime, pw);
+            pw.println("):");
+        }
+        pw.print("  Latency buckets (");
+        stats.latencyMicros.dumpBucketLimits(pw);
+        pw.println(", in us)");
+        for (int slot : stats.getSortedSlots()) {
+            final long calls = stats.latencyMicros.getCount(slot);
+            pw.print("  "); pw.print(stats.descriptors[slot]);
+            pw.print("#"); pw.print(stats.codes[slot]);
+            pw.print(": calls="); pw.print(calls);
+            pw.print(" cpu="); pw.print(stats.cpuTimeMicros[slot]);
+            pw.print("us avg="); pw.print(stats.cpuTimeMicros[slot] / calls);
+            pw.print("us latency avg="); pw.print(stats.latencyMicros.getTotal(slot) / calls);
+            pw.print("us max="); pw.print(stats.latencyMicros.getMax(slot));
+            pw.print("us reply avg="); pw.print(stats.replyBytes[slot] / calls);
+            pw.print("B max="); pw.print(stats.maxReplyBytes[slot]);
+            pw.print("B hist="); stats.latencyMicros.dumpHistogram(pw, slot);
+            pw.println();
+        }
+    }
+
+    public void writeToProto(ProtoOutputStream proto) {
+        final Stripe stats = getMergedStats();
+        synchronized (mLock) {
+            proto.write(BinderCallsStatsProto.SAMPLING_INTERVAL, mSamplingInterval);
+            proto.write(BinderCallsStatsProto.DURATION_MILLIS,
+                    SystemClock.elapsedRealtime() - mStartTime);
+        }
+        for (long limit : LATENCY_BUCKET_LIMITS_MICROS) {
+            proto.write(BinderCallsStatsProto.LATENCY_BUCKET_LIMITS_MICROS, limit);
+        }
+        for (int slot : stats.getSortedSlots()) {
+            final long token = proto.start(BinderCallsStatsProto.METHODS);
+            proto.write(BinderMethodStatsProto.DESCRIPTOR, stats.descriptors[slot]);
+            proto.write(BinderMethodStatsProto.CODE, stats.codes[slot]);
+            proto.write(BinderMethodStatsProto.CALL_COUNT, stats.latencyMicros.getCount(slot));
+            proto.write(BinderMethodStatsProto.CPU_TIME_MICROS, stats.cpuTimeMicros[slot]);
+            proto.write(BinderMethodStatsProto.LATENCY_MICROS, stats.latencyMicros.getTotal(slot));
+            proto.write(BinderMethodStatsProto.MAX_LATENCY_MICROS,
+                    stats.latencyMicros.getMax(slot));
+            proto.write(BinderMethodStatsProto.REPLY_BYTES, stats.replyBytes[slot]);
+            proto.write(BinderMethodStatsProto.MAX_REPLY_BYTES, stats.maxReplyBytes[slot]);
+            for (int i = 0; i < stats.latencyMicros.getBucketCount(); i++) {
+                proto.write(BinderMethodStatsProto.LATENCY_HISTOGRAM,
+                        stats.latencyMicros.getHistogram(slot, i));
+            }
+            proto.end(token);
+        }
+    }
+
+    @VisibleForTesting
+    long getCallCount(String descriptor, int code) {
+        final Stripe stats = getMergedStats();
+        for (int i = 0; i < stats.methodCount; i++) {
+            if (stats.codes[i] == code && descriptor.equals(stats.descriptors[i])) {
+                return stats.latencyMicros.getCount(i);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Count, total, maximum and histogram of the values measured for each of a fixed number of
+ * slots, such as the kinds of messages a looper dispatches or the methods of a binder.
+ * <p>
+ * Callers map what they measure to slots themselves. Counters live in arrays allocated up
+ * front, so recording a value allocates nothing.
+ * <p>
+ * Not thread safe; callers serialize access themselves.
+ */
+public final class BucketedStats {
+    private final long[] mBucketLimits;
+    private final int mBuckets;
+    private final long[] mCounts;
+    private final long[] mTotals;
+    private final long[] mMaxes;
+    private final int[] mHistograms;
+
+    /**
+     * @param bucketLimits Ascending upper bounds of every bucket but the last, which holds
+     *         everything larger.
+     * @param slots Number of slots to keep counters for.
+     */
+    public BucketedStats(long[] bucketLimits, int slots) {
+        mBucketLimits = bucketLimits;
+        mBuckets = bucketLimits.length + 1;
+        mCounts = new long[slots];
+        mTotals = new long[slots];
+        mMaxes = new long[slots];
+        mHistograms = new int[slots * mBuckets];
+    }
+
+    /** Returns the bucket {@code value} falls into with the given limits. */
+    public static int getBucket(long[] bucketLimits, long value) {
+        for (int i = 0; i < bucketLimits.length; i++) {
+            if (value < bucketLimits[i]) {
+                return i;
+            }
+        }
+        return bucketLimits.length;
+    }
+
+    public int getSlotCount() {
+        return mCounts.length;
+    }
+
+    public void add(int slot, long value) {
+        mCounts[slot]++;
+        mTotals[slot] += value;
+        if (value > mMaxes[slot]) {
+            mMaxes[slot] = value;
+        }
+        mHistograms[slot * mBuckets + getBucket(mBucketLimits, value)]++;
+    }
+
+    /** Adds the counters of {@code otherSlot} in {@code other}, with the same limits, to these. */
+    public void addAll(int slot, BucketedStats other, int otherSlot) {
+        mCounts[slot] += other.mCounts[otherSlot];
+        mTotals[slot] += other.mTotals[otherSlot];
+        if (other.mMaxes[otherSlot] > mMaxes[slot]) {
+            mMaxes[slot] = other.mMaxes[otherSlot];
+        }
+        for (int i = 0; i < mBuckets; i++) {
+            mHistograms[slot * mBuckets + i] += other.mHistograms[otherSlot * mBuckets + i];
+        }
+    }
+
+    public long getCount(int slot) {
+        return mCounts[slot];
+    }
+
+    public long getTotal(int slot) {
+        return mTotals[slot];
+    }
+
+    public long getMax(int slot) {
+        return mMaxes[slot];
+    }
+
+    public int getBucketCount() {
+        return mBuckets;
+    }
+
+    /** Returns how many values of {@code slot} fell into {@code bucket}. */
+    public int getHistogram(int slot, int bucket) {
+        return mHistograms[slot * mBuckets + bucket];
+    }
+
+    public void reset() {
+        Arrays.fill(mCounts, 0);
+        Arrays.fill(mTotals, 0);
+        Arrays.fill(mMaxes, 0);
+        Arrays.fill(mHistograms, 0);
+    }
+
+    /** Prints the bucket limits as {@code <10 <50 more}. */
+    public void dumpBucketLimits(PrintWriter pw) {
+        dumpBucketLimits(pw, mBucketLimits);
+    }
+
+    /** Prints the given bucket limits as {@code <10 <50 more}. */
+    public static void dumpBucketLimits(PrintWriter pw, long[] bucketLimits) {
+        for (int i = 0; i < bucketLimits.length; i++) {
+            pw.print("<"); pw.print(bucketLimits[i]); pw.print(" ");
+        }
+        pw.print("more");
+    }
+
+    /** Prints the histogram of {@code slot} as space separated counts. */
+    public void dumpHistogram(PrintWriter pw, int slot) {
+        for (int i = 0; i < mBuckets; i++) {
+            if (i > 0) {
+                pw.print(" ");
+            }
+            pw.print(mHistograms[slot * mBuckets + i]);
+        }
+    }
+}
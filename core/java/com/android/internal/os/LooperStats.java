@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.TimeUtils;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Aggregates the messages one {@link Looper} dispatches, per Handler class and what code (or
+ * callback class, for posted Runnables): counts, dispatch time histograms and queueing delay.
+ * <p>
+ * Attach with {@link Looper#setStats}; nothing is measured until {@link #setEnabled enabled}.
+ * Counters live in arrays allocated the first time the stats are enabled, so measuring a
+ * message allocates nothing; messages beyond {@link #MAX_ENTRIES} different kinds are counted
+ * together.
+ */
+public class LooperStats {
+    /** Upper bounds, in microseconds, of every dispatch time bucket but the last. */
+    private static final long[] DISPATCH_BUCKET_LIMITS_MICROS =
+            { 100, 1000, 5000, 10000, 50000, 100000, 500000 };
+
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 256;
+    /** Open addressed index from message kind to slot; a power of two, at most half full. */
+    private static final int INDEX_SIZE = 512;
+
+    /** Slot of the message kinds past {@link #MAX_ENTRIES}. */
+    private static final int OTHER_SLOT = 0;
+
+    private volatile boolean mEnabled;
+
+    private final Object mLock = new Object();
+    /** Allocated the first time the stats are enabled; never changes after that. */
+    private volatile Counters mCounters;
+    @GuardedBy("mLock")
+    private long mStartTime = SystemClock.elapsedRealtime();
+
+    /** The counters of every message kind, guarded by {@link #mLock}. */
+    private static final class Counters {
+        final int[] index = new int[INDEX_SIZE];
+        final Class<?>[] handlerClasses = new Class<?>[MAX_ENTRIES];
+        final Class<?>[] callbackClasses = new Class<?>[MAX_ENTRIES];
+        final int[] whats = new int[MAX_ENTRIES];
+        final BucketedStats dispatchMicros =
+                new BucketedStats(DISPATCH_BUCKET_LIMITS_MICROS, MAX_ENTRIES);
+        final long[] delayMillis = new long[MAX_ENTRIES];
+        final long[] maxDelayMillis = new long[MAX_ENTRIES];
+        int entryCount = OTHER_SLOT + 1;
+
+        int getSlot(Class<?> handlerClass, Class<?> callbackClass, int what) {
+            int i = (System.identityHashCode(handlerClass) * 31
+                    + System.identityHashCode(callbackClass) * 17 + what) & (INDEX_SIZE - 1);
+            while (true) {
+                final int slot = index[i] - 1;
+                if (slot < 0) {
+                    break;
+                }
+                if (whats[slot] == what && handlerClasses[slot] == handlerClass
+                        && callbackClasses[slot] == callbackClass) {
+                    return slot;
+                }
+                i = (i + 1) & (INDEX_SIZE - 1);
+            }
+            if (entryCount >= MAX_ENTRIES) {
+                return OTHER_SLOT;
+            }
+            final int slot = entryCount++;
+            handlerClasses[slot] = handlerClass;
+            callbackClasses[slot] = callbackClass;
+            whats[slot] = what;
+            index[i] = slot + 1;
+            return slot;
+        }
+
+        void reset() {
+            Arrays.fill(index, 0);
+            Arrays.fill(handlerClasses, null);
+            Arrays.fill(callbackClasses, null);
+            Arrays.fill(whats, 0);
+            dispatchMicros.reset();
+            Arrays.fill(delayMillis, 0);
+            Arrays.fill(maxDelayMillis, 0);
+            entryCount = OTHER_SLOT + 1;
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        if (enabled && mCounters == null) {
+            synchronized (mLock) {
+                if (mCounters == null) {
+                    mCounters = new Counters();
+                    mStartTime = SystemClock.elapsedRealtime();
+                }
+            }
+        }
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Called by {@link Looper} after dispatching {@code msg}, before it is recycled. Ignored
+     * if the stats were never enabled.
+     *
+     * @param dispatchStart {@link SystemClock#uptimeMillis} when the dispatch started.
+     * @param dispatchNanos How long the dispatch took.
+     */
+    public void messageDispatched(Message msg, long dispatchStart, long dispatchNanos) {
+        final Counters counters = mCounters;
+        if (counters == null) {
+            return;
+        }
+        final Handler target = msg.getTarget();
+        final Class<?> handlerClass = target != null ? target.getClass() : null;
+        final Runnable callback = msg.getCallback();
+        final Class<?> callbackClass = callback != null ? callback.getClass() : null;
+        final int what = callback != null ? 0 : msg.what;
+        final long dispatchMicros = dispatchNanos / 1000;
+        // Messages sent to the front of the queue have no due time.
+        final long when = msg.getWhen();
+        final long delay = when > 0 ? Math.max(0, dispatchStart - when) : 0;
+        synchronized (mLock) {
+            final int slot = counters.getSlot(handlerClass, callbackClass, what);
+            counters.dispatchMicros.add(slot, dispatchMicros);
+            counters.delayMillis[slot] += delay;
+            if (delay > counters.maxDelayMillis[slot]) {
+                counters.maxDelayMillis[slot] = delay;
+            }
+        }
+    }
+
+    public void reset() {
+        synchronized (mLock) {
+            final Counters counters = mCounters;
+            if (counters != null) {
+                counters.reset();
+            }
+            mStartTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    @VisibleForTesting
+    long getCount(Class<?> handlerClass, int what) {
+        synchronized (mLock) {
+            final Counters counters = mCounters;
+            if (counters == null) {
+                return 0;
+            }
+            for (int i = OTHER_SLOT + 1; i < counters.entryCount; i++) {
+                if (counters.handlerClasses[i] == handlerClass
+                        && counters.callbackClasses[i] == null && counters.whats[i] == what) {
+                    return counters.dispatchMicros.getCount(i);
+                }
+            }
+            return 0;
+        }
+    }
+
+    @VisibleForTesting
+    long getOtherCount() {
+        synchronized (mLock) {
+            final Counters counters = mCounters;
+            return counters != null ? counters.dispatchMicros.getCount(OTHER_SLOT) : 0;
+        }
+    }
+
+    /** Prints the message kinds seen, by descending total dispatch time. */
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.print(prefix); pw.print("Dispatch stats (");
+            pw.print(mEnabled ? "" : "disabled, "); pw.print("over ");
+            TimeUtils.formatDuration(SystemClock.elapsedRealtime() - mStartTime, pw);
+            pw.print(", buckets ");
+            BucketedStats.dumpBucketLimits(pw, DISPATCH_BUCKET_LIMITS_MICROS);
+            pw.println(", in us):");
+
+            final Counters counters = mCounters;
+            if (counters == null) {
+                return;
+            }
+            final BucketedStats dispatchMicros = counters.dispatchMicros;
+            int count = 0;
+            final Integer[] slots = new Integer[counters.entryCount];
+            for (int i = 0; i < counters.entryCount; i++) {
+                if (dispatchMicros.getCount(i) > 0) {
+                    slots[count++] = i;
+                }
+            }
+            final Integer[] sorted = Arrays.copyOf(slots, count);
+            Arrays.sort(sorted, Comparator.comparingLong(
+                    (Integer slot) -> dispatchMicros.getTotal(slot)).reversed());
+            for (int slot : sorted) {
+                final long n = dispatchMicros.getCount(slot);
+                pw.print(prefix); pw.print("  ");
+                if (slot == OTHER_SLOT) {
+                    pw.print("(other)");
+                } else {
+                    pw.print(counters.handlerClasses[slot] != null
+                            ? counters.handlerClasses[slot].getName() : "null");
+                    if (counters.callbackClasses[slot] != null) {
+                        pw.print(" cb="); pw.print(counters.callbackClasses[slot].getName());
+                    } else {
+                        pw.print(" what="); pw.print(counters.whats[slot]);
+                    }
+                }
+                pw.print(": count="); pw.print(n);
+                pw.print(" dispatch total="); pw.print(dispatchMicros.getTotal(slot) / 1000);
+                pw.print("ms avg="); pw.print(dispatchMicros.getTotal(slot) / n);
+                pw.print("us max="); pw.print(dispatchMicros.getMax(slot));
+                pw.print("us delay avg="); pw.print(counters.delayMillis[slot] / n);
+                pw.print("ms max="); pw.print(counters.maxDelayMillis[slot]);
+                pw.print("ms hist="); dispatchMicros.dumpHistogram(pw, slot);
+                pw.println();
+            }
+        }
+    }
+}
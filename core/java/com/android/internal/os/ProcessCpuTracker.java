@@ -22,6 +22,7 @@ import android.os.FileUtils;
 import android.os.Process;
 import android.os.StrictMode;
 import android.os.SystemClock;
+import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
 import android.util.Slog;
@@ -32,7 +33,9 @@ import libcore.io.IoUtils;
 import libcore.io.Libcore;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.text.SimpleDateFormat;
@@ -134,8 +137,34 @@ public class ProcessCpuTracker {
 
     private final float[] mLoadAverageData = new float[3];
 
+    /**
+     * Upper bound on the process stat files kept open at once.  Only processes that used
+     * CPU in the last update keep theirs open, which is a small set; idle processes, threads
+     * and anything past this are opened for each read as before.
+     */
+    private static final int MAX_OPEN_STAT_FILES = 64;
+
     private final boolean mIncludeThreads;
 
+    /**
+     * Whether the /proc files read on every update are kept open and re-read in place,
+     * rather than being opened again each time.
+     */
+    private final boolean mKeepProcFilesOpen;
+
+    private FileDescriptor mSystemStatFd;
+    private FileDescriptor mLoadAverageFd;
+    private int mOpenStatFiles;
+    private final byte[] mStatBuffer = new byte[512];
+
+    // The set of pids only needs to be read again from /proc when its link count, which
+    // includes one per process, moves, or when a task we read has gone away.  Threads coming
+    // and going don't show up in /proc itself, so each task directory's link count is checked
+    // the same way.
+    private long mLastProcLinks = -1;
+    private boolean mPidsChanged = true;
+    private int mPidsGeneration;
+
     // How long a CPU jiffy is in milliseconds.
     private final long mJiffyMillis;
 
@@ -193,6 +222,15 @@ public class ProcessCpuTracker {
         final ArrayList<Stats> threadStats;
         final ArrayList<Stats> workingThreads;
 
+        /** Descriptor for {@link #statFile}, when the tracker keeps its files open. */
+        FileDescriptor statFd;
+
+        /** The tracker's pid generation when {@link #threadsDir} was last listed. */
+        int threadsGeneration = -1;
+
+        /** Link count of {@link #threadsDir} when it was last listed. */
+        long threadsLinks = -1;
+
         public BatteryStatsImpl.Uid.Proc batteryStats;
 
         public boolean interesting;
@@ -294,7 +332,17 @@ public class ProcessCpuTracker {
 
 
     public ProcessCpuTracker(boolean includeThreads) {
+        this(includeThreads, false);
+    }
+
+    /**
+     * @param keepProcFilesOpen keep the /proc files read on each update open between
+     * updates.  Only worth it for a tracker that is updated over and over; the descriptors
+     * are held for as long as the tracked processes live.
+     */
+    public ProcessCpuTracker(boolean includeThreads, boolean keepProcFilesOpen) {
         mIncludeThreads = includeThreads;
+        mKeepProcFilesOpen = keepProcFilesOpen;
         long jiffyHz = Os.sysconf(OsConstants._SC_CLK_TCK);
         mJiffyMillis = 1000/jiffyHz;
     }
@@ -319,9 +367,29 @@ public class ProcessCpuTracker {
         final long nowRealtime = SystemClock.elapsedRealtime();
         final long nowWallTime = System.currentTimeMillis();
 
+        // Permit disk reads here: the /proc files aren't really "on disk" and are fast.
+        final StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskReads();
+        try {
+            if (!updateStats(nowUptime, nowRealtime, nowWallTime)) {
+                return;
+            }
+        } finally {
+            StrictMode.setThreadPolicy(savedPolicy);
+        }
+
+        if (DEBUG) Slog.i(TAG, "*** TIME TO COLLECT STATS: "
+                + (SystemClock.uptimeMillis()-mCurrentSampleTime));
+
+        mWorkingProcsSorted = false;
+        mFirst = false;
+    }
+
+    private boolean updateStats(long nowUptime, long nowRealtime, long nowWallTime) {
         final long[] sysCpu = mSystemCpuData;
-        if (Process.readProcFile("/proc/stat", SYSTEM_CPU_FORMAT,
-                null, sysCpu, null)) {
+        if (mKeepProcFilesOpen && mSystemStatFd == null) {
+            mSystemStatFd = openProcFile("/proc/stat");
+        }
+        if (readSystemFile(mSystemStatFd, "/proc/stat", SYSTEM_CPU_FORMAT, sysCpu, null)) {
             // Total user time is user + nice time.
             final long usertime = (sysCpu[0]+sysCpu[1]) * mJiffyMillis;
             // Total system time is simply system time.
@@ -372,7 +440,7 @@ public class ProcessCpuTracker {
                 mRelIdleTime = 0;
                 mRelStatsAreGood = false;
                 Slog.w(TAG, "/proc/stats has gone backwards; skipping CPU update");
-                return;
+                return false;
             }
         }
 
@@ -383,16 +451,26 @@ public class ProcessCpuTracker {
         mLastSampleWallTime = mCurrentSampleWallTime;
         mCurrentSampleWallTime = nowWallTime;
 
-        final StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskReads();
-        try {
-            mCurPids = collectStats("/proc", -1, mFirst, mCurPids, mProcStats);
-        } finally {
-            StrictMode.setThreadPolicy(savedPolicy);
+        boolean rescan = mPidsChanged || !mKeepProcFilesOpen;
+        if (mKeepProcFilesOpen) {
+            final long links = getLinkCount("/proc");
+            // A process exiting while another starts leaves the count alone, but the read of
+            // the one that exited fails, which sets mPidsChanged for the next update.
+            rescan |= links < 0 || links != mLastProcLinks;
+            mLastProcLinks = links;
+        }
+        mPidsChanged = false;
+        if (rescan) {
+            mPidsGeneration++;
         }
+        mCurPids = collectStats("/proc", -1, mFirst, rescan, mCurPids, mProcStats);
 
+        if (mKeepProcFilesOpen && mLoadAverageFd == null) {
+            mLoadAverageFd = openProcFile("/proc/loadavg");
+        }
         final float[] loadAverages = mLoadAverageData;
-        if (Process.readProcFile("/proc/loadavg", LOAD_AVERAGE_FORMAT,
-                null, null, loadAverages)) {
+        if (readSystemFile(mLoadAverageFd, "/proc/loadavg", LOAD_AVERAGE_FORMAT,
+                null, loadAverages)) {
             float load1 = loadAverages[0];
             float load5 = loadAverages[1];
             float load15 = loadAverages[2];
@@ -403,18 +481,22 @@ public class ProcessCpuTracker {
                 onLoadChanged(load1, load5, load15);
             }
         }
+        return true;
+    }
 
-        if (DEBUG) Slog.i(TAG, "*** TIME TO COLLECT STATS: "
-                + (SystemClock.uptimeMillis()-mCurrentSampleTime));
-
-        mWorkingProcsSorted = false;
-        mFirst = false;
+    /** Returns the link count of a /proc directory, or -1 if it can't be read. */
+    private static long getLinkCount(String path) {
+        try {
+            return Os.stat(path).st_nlink;
+        } catch (ErrnoException e) {
+            return -1;
+        }
     }
 
-    private int[] collectStats(String statsFile, int parentPid, boolean first,
+    private int[] collectStats(String statsFile, int parentPid, boolean first, boolean rescan,
             int[] curPids, ArrayList<Stats> allProcs) {
 
-        int[] pids = Process.getPids(statsFile, curPids);
+        int[] pids = rescan ? Process.getPids(statsFile, curPids) : getPids(allProcs, curPids);
         int NP = (pids == null) ? 0 : pids.length;
         int NS = allProcs.size();
         int curStatsIndex = 0;
@@ -439,8 +521,8 @@ public class ProcessCpuTracker {
                     final long uptime = SystemClock.uptimeMillis();
 
                     final long[] procStats = mProcessStatsData;
-                    if (!Process.readProcFile(st.statFile.toString(),
-                            PROCESS_STATS_FORMAT, null, procStats, null)) {
+                    if (!readStatFile(st, parentPid < 0, PROCESS_STATS_FORMAT, null,
+                            procStats)) {
                         continue;
                     }
 
@@ -456,6 +538,7 @@ public class ProcessCpuTracker {
                         st.rel_majfaults = 0;
                         if (st.active) {
                             st.active = false;
+                            closeStatFile(st);
                         }
                         continue;
                     }
@@ -467,8 +550,15 @@ public class ProcessCpuTracker {
                     if (parentPid < 0) {
                         getName(st, st.cmdlineFile);
                         if (st.threadStats != null) {
+                            boolean rescanThreads = st.threadsGeneration != mPidsGeneration;
+                            st.threadsGeneration = mPidsGeneration;
+                            if (mKeepProcFilesOpen) {
+                                final long links = getLinkCount(st.threadsDir);
+                                rescanThreads |= links < 0 || links != st.threadsLinks;
+                                st.threadsLinks = links;
+                            }
                             mCurThreadPids = collectStats(st.threadsDir, pid, false,
-                                    mCurThreadPids, st.threadStats);
+                                    rescanThreads, mCurThreadPids, st.threadStats);
                         }
                     }
 
@@ -507,10 +597,8 @@ public class ProcessCpuTracker {
                 final String[] procStatsString = mProcessFullStatsStringData;
                 final long[] procStats = mProcessFullStatsData;
                 st.base_uptime = SystemClock.uptimeMillis();
-                String path = st.statFile.toString();
-                //Slog.d(TAG, "Reading proc file: " + path);
-                if (Process.readProcFile(path, PROCESS_FULL_STATS_FORMAT, procStatsString,
-                        procStats, null)) {
+                if (readStatFile(st, false, PROCESS_FULL_STATS_FORMAT, procStatsString,
+                        procStats)) {
                     // This is a possible way to filter out processes that
                     // are actually kernel threads...  do we want to?  Some
                     // of them do use CPU, but there can be a *lot* that are
@@ -538,8 +626,12 @@ public class ProcessCpuTracker {
                 if (parentPid < 0) {
                     getName(st, st.cmdlineFile);
                     if (st.threadStats != null) {
+                        st.threadsGeneration = mPidsGeneration;
+                        if (mKeepProcFilesOpen) {
+                            st.threadsLinks = getLinkCount(st.threadsDir);
+                        }
                         mCurThreadPids = collectStats(st.threadsDir, pid, true,
-                                mCurThreadPids, st.threadStats);
+                                true, mCurThreadPids, st.threadStats);
                     }
                 } else if (st.interesting) {
                     st.name = st.baseName;
@@ -568,6 +660,7 @@ public class ProcessCpuTracker {
             st.rel_majfaults = 0;
             st.removed = true;
             st.working = true;
+            closeStatFile(st);
             allProcs.remove(curStatsIndex);
             NS--;
             if (DEBUG) Slog.v(TAG, "Removed "
@@ -588,6 +681,7 @@ public class ProcessCpuTracker {
             st.rel_majfaults = 0;
             st.removed = true;
             st.working = true;
+            closeStatFile(st);
             allProcs.remove(curStatsIndex);
             NS--;
             if (localLOGV) Slog.v(TAG, "Removed pid " + st.pid + ": " + st);
@@ -596,6 +690,98 @@ public class ProcessCpuTracker {
         return pids;
     }
 
+    /**
+     * Lists the pids of {@code allProcs} the way {@link Process#getPids} lists a directory,
+     * for when the set of pids is known not to have changed.
+     */
+    private static int[] getPids(ArrayList<Stats> allProcs, int[] curPids) {
+        final int N = allProcs.size();
+        int[] pids = curPids;
+        if (pids == null || pids.length < N) {
+            pids = new int[N];
+        }
+        for (int i = 0; i < N; i++) {
+            pids[i] = allProcs.get(i).pid;
+        }
+        if (pids.length > N) {
+            pids[N] = -1;
+        }
+        return pids;
+    }
+
+    private FileDescriptor openProcFile(String path) {
+        try {
+            return Os.open(path, OsConstants.O_RDONLY | OsConstants.O_CLOEXEC, 0);
+        } catch (ErrnoException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads and parses the start of a /proc file through {@code fd} if it is open, or by
+     * opening {@code path} otherwise.
+     */
+    private boolean readSystemFile(FileDescriptor fd, String path, int[] format,
+            long[] outLongs, float[] outFloats) {
+        if (fd != null) {
+            return readProcFile(fd, format, null, outLongs, outFloats);
+        }
+        return Process.readProcFile(path, format, null, outLongs, outFloats);
+    }
+
+    /**
+     * Reads the stat file of {@code st}, through a descriptor kept open if {@code keepOpen}
+     * and the process was active in the last update.  A failed read means the task has most
+     * likely exited, so the next update lists /proc again.
+     */
+    private boolean readStatFile(Stats st, boolean keepOpen, int[] format, String[] outStrings,
+            long[] outLongs) {
+        if (st.statFd == null && keepOpen && mKeepProcFilesOpen && st.active
+                && mOpenStatFiles < MAX_OPEN_STAT_FILES) {
+            st.statFd = openProcFile(st.statFile);
+            if (st.statFd != null) {
+                mOpenStatFiles++;
+            }
+        }
+        final boolean read;
+        if (st.statFd == null) {
+            read = Process.readProcFile(st.statFile, format, outStrings, outLongs, null);
+        } else {
+            read = readProcFile(st.statFd, format, outStrings, outLongs, null);
+            if (!read) {
+                closeStatFile(st);
+            }
+        }
+        if (!read) {
+            mPidsChanged = true;
+        }
+        return read;
+    }
+
+    /**
+     * Like {@link Process#readProcFile}, but re-reads an already open file from its start.
+     */
+    private boolean readProcFile(FileDescriptor fd, int[] format, String[] outStrings,
+            long[] outLongs, float[] outFloats) {
+        final byte[] buffer = mStatBuffer;
+        final int len;
+        try {
+            len = Os.pread(fd, buffer, 0, buffer.length, 0);
+        } catch (ErrnoException | InterruptedIOException e) {
+            return false;
+        }
+        return len > 0 && Process.parseProcLine(buffer, 0, len, format, outStrings, outLongs,
+                outFloats);
+    }
+
+    private void closeStatFile(Stats st) {
+        if (st.statFd != null) {
+            IoUtils.closeQuietly(st.statFd);
+            st.statFd = null;
+            mOpenStatFiles--;
+        }
+    }
+
     /**
      * Returns the total time (in milliseconds) spent executing in
      * both user and system code.  Safe to call without lock held.
@@ -42,10 +42,17 @@ public class PhoneLayoutInflater extends LayoutInflater {
      */
     public PhoneLayoutInflater(Context context) {
         super(context);
+        // Subclasses may make different views for the same element.
+        if (getClass() == PhoneLayoutInflater.class) {
+            setCompiledLayoutsEnabled(true);
+        }
     }
 
     protected PhoneLayoutInflater(LayoutInflater original, Context newContext) {
         super(original, newContext);
+        if (getClass() == PhoneLayoutInflater.class) {
+            setCompiledLayoutsEnabled(true);
+        }
     }
 
     /** Override onCreateView to instantiate names that correspond to the
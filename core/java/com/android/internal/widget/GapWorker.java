@@ -34,6 +34,15 @@ final class GapWorker implements Runnable {
     long mPostTimeNs;
     long mFrameIntervalNs;
 
+    /**
+     * How many frames before the frame it may be needed in a ViewHolder is created for the
+     * RecycledViewPool, at most.
+     */
+    static final int MAX_POOL_WARM_FRAMES = 4;
+
+    /** How many positions past the prefetched one to create pooled ViewHolders for, at most. */
+    static final int MAX_POOL_WARM_POSITIONS = 16;
+
     static class Task {
         public boolean immediate;
         public int viewVelocity;
@@ -340,9 +349,91 @@ final class GapWorker implements Runnable {
         }
     }
 
+    /**
+     * Uses the rest of the gap before the deadline to create ViewHolders for the RecycledViewPool
+     * of each RecyclerView, for view types coming up past the prefetched positions.
+     */
+    private void warmPoolsWithDeadline(long deadlineNs) {
+        final int viewCount = mRecyclerViews.size();
+        for (int i = 0; i < viewCount; i++) {
+            final RecyclerView view = mRecyclerViews.get(i);
+            if (view.getNanoTime() >= deadlineNs) {
+                return;
+            }
+            warmPoolWithDeadline(view, deadlineNs);
+        }
+    }
+
+    /**
+     * Creates ViewHolders for the view types of the positions past the prefetched one, in the
+     * direction the RecyclerView scrolls, that its RecycledViewPool has none of. A type is
+     * created earlier the longer it took to create and bind before, and as early as possible
+     * if it hasn't been created yet, so that a type new to the list or slow to inflate is
+     * created in the gap of some frame before the one that shows it.
+     */
+    private void warmPoolWithDeadline(RecyclerView view, long deadlineNs) {
+        final LayoutPrefetchRegistryImpl prefetchRegistry = view.mPrefetchRegistry;
+        if (prefetchRegistry.mCount == 0 || view.mAdapter == null
+                || view.hasPendingAdapterUpdates() || mFrameIntervalNs <= 0) {
+            return;
+        }
+        final int dx = Math.abs(prefetchRegistry.mPrefetchDx);
+        final int dy = Math.abs(prefetchRegistry.mPrefetchDy);
+        final int childCount = view.mChildHelper.getChildCount();
+        if (dx + dy == 0 || childCount == 0) {
+            return;
+        }
+
+        // Scroll direction in adapter positions, from the attached positions to the prefetched
+        int minPosition = Integer.MAX_VALUE;
+        int maxPosition = Integer.MIN_VALUE;
+        for (int i = 0; i < childCount; i++) {
+            final RecyclerView.ViewHolder holder =
+                    RecyclerView.getChildViewHolderInt(view.mChildHelper.getChildAt(i));
+            if (holder == null || holder.isInvalid() || holder.isRemoved()) {
+                continue;
+            }
+            minPosition = Math.min(minPosition, holder.mPosition);
+            maxPosition = Math.max(maxPosition, holder.mPosition);
+        }
+        final int prefetchPosition = prefetchRegistry.mPrefetchArray[0];
+        final int direction;
+        if (prefetchPosition > maxPosition) {
+            direction = 1;
+        } else if (prefetchPosition < minPosition) {
+            direction = -1;
+        } else {
+            return;
+        }
+
+        // Items scrolled past per frame, from the average size of the attached ones
+        final int extent = dy >= dx ? view.getHeight() : view.getWidth();
+        final float itemsPerFrame = (dx + dy) * childCount / (float) Math.max(extent, 1);
+
+        final RecyclerView.RecycledViewPool pool = view.mRecycler.getRecycledViewPool();
+        final int itemCount = view.mState.getItemCount();
+        for (int i = 1; i <= MAX_POOL_WARM_POSITIONS; i++) {
+            final int position = prefetchPosition + i * direction;
+            if (position < 0 || position >= itemCount
+                    || i > MAX_POOL_WARM_FRAMES * itemsPerFrame) {
+                return;
+            }
+            final int type = view.mAdapter.getItemViewType(position);
+            final long expectedNs = pool.getExpectedCreateAndBindNs(type);
+            final long frames = expectedNs == 0 ? MAX_POOL_WARM_FRAMES : Math.min(
+                    MAX_POOL_WARM_FRAMES, 1 + expectedNs * MAX_POOL_WARM_FRAMES / mFrameIntervalNs);
+            if (i <= frames * itemsPerFrame
+                    && view.mRecycler.createViewHolderForPoolByDeadline(type, deadlineNs)
+                    && view.getNanoTime() >= deadlineNs) {
+                return;
+            }
+        }
+    }
+
     void prefetch(long deadlineNs) {
         buildTaskList();
         flushTasksWithDeadline(deadlineNs);
+        warmPoolsWithDeadline(deadlineNs);
     }
 
     @Override
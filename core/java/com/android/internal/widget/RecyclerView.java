@@ -5020,6 +5020,23 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
             scrapHeap.add(scrap);
         }
 
+        boolean hasRoomForRecycledView(int viewType) {
+            final ScrapData scrapData = mScrap.get(viewType);
+            return scrapData == null || scrapData.mScrapHeap.size() < scrapData.mMaxScrap;
+        }
+
+        /**
+         * Returns the expected time to create and bind a ViewHolder of the given type, or 0 if
+         * none has been created yet.
+         */
+        long getExpectedCreateAndBindNs(int viewType) {
+            final ScrapData scrapData = mScrap.get(viewType);
+            if (scrapData == null || scrapData.mCreateRunningAverageNs == 0) {
+                return 0;
+            }
+            return scrapData.mCreateRunningAverageNs + scrapData.mBindRunningAverageNs;
+        }
+
         long runningAverage(long oldAverage, long newValue) {
             if (oldAverage == 0) {
                 return newValue;
@@ -5775,6 +5792,36 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
             getRecycledViewPool().putRecycledView(holder);
         }
 
+        /**
+         * Creates a ViewHolder of the given type and puts it into the RecycledViewPool, so that a
+         * later layout or prefetch only has to bind it. Does nothing if the pool already holds
+         * one of the type, or has no room for one, or if creating one is not expected to finish
+         * before the deadline.
+         *
+         * @param type View type to create a ViewHolder of.
+         * @param deadlineNs Time, relative to getNanoTime(), by which creation should end.
+         * @return True if a ViewHolder was created.
+         */
+        boolean createViewHolderForPoolByDeadline(int type, long deadlineNs) {
+            final RecycledViewPool pool = getRecycledViewPool();
+            if (pool.getRecycledViewCount(type) != 0 || !pool.hasRoomForRecycledView(type)) {
+                return false;
+            }
+            long start = getNanoTime();
+            if (!pool.willCreateInTime(type, start, deadlineNs)) {
+                return false;
+            }
+            final ViewHolder holder = mAdapter.createViewHolder(RecyclerView.this, type);
+            RecyclerView innerView = findNestedRecyclerView(holder.itemView);
+            if (innerView != null) {
+                holder.mNestedRecyclerView = new WeakReference<>(innerView);
+            }
+            long end = getNanoTime();
+            pool.factorInCreateTime(type, end - start);
+            pool.putRecycledView(holder);
+            return true;
+        }
+
         /**
          * Used as a fast path for unscrapping and recycling a view during a bulk operation.
          * The caller must call {@link #clearScrap()} when it's done to update the recycler's
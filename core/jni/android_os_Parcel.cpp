@@ -230,6 +230,27 @@ static void android_os_Parcel_writeBlob(JNIEnv* env, jclass clazz, jlong nativeP
     blob.release();
 }
 
+static void android_os_Parcel_writeArrayData(JNIEnv* env, jclass clazz, jlong nativePtr,
+                                             jobject data, jint offset, jint length)
+{
+    Parcel* parcel = reinterpret_cast<Parcel*>(nativePtr);
+    if (parcel == NULL) {
+        return;
+    }
+
+    void* dest = parcel->writeInplace(length);
+    if (dest == NULL) {
+        signalExceptionForError(env, clazz, NO_MEMORY);
+        return;
+    }
+
+    jbyte* ar = (jbyte*)env->GetPrimitiveArrayCritical((jarray)data, 0);
+    if (ar) {
+        memcpy(dest, ar + offset, length);
+        env->ReleasePrimitiveArrayCritical((jarray)data, ar, JNI_ABORT);
+    }
+}
+
 static void android_os_Parcel_writeInt(JNIEnv* env, jclass clazz, jlong nativePtr, jint val) {
     Parcel* parcel = reinterpret_cast<Parcel*>(nativePtr);
     if (parcel != NULL) {
@@ -368,6 +389,27 @@ static jboolean android_os_Parcel_readByteArray(JNIEnv* env, jclass clazz, jlong
     return ret;
 }
 
+static jboolean android_os_Parcel_readArrayData(JNIEnv* env, jclass clazz, jlong nativePtr,
+                                                jobject dest, jint length)
+{
+    Parcel* parcel = reinterpret_cast<Parcel*>(nativePtr);
+    if (parcel == NULL || length < 0 || length > (jint)parcel->dataAvail()) {
+        return JNI_FALSE;
+    }
+
+    const void* data = parcel->readInplace(length);
+    if (data == NULL) {
+        return JNI_FALSE;
+    }
+    jbyte* ar = (jbyte*)env->GetPrimitiveArrayCritical((jarray)dest, 0);
+    if (ar == NULL) {
+        return JNI_FALSE;
+    }
+    memcpy(ar, data, length);
+    env->ReleasePrimitiveArrayCritical((jarray)dest, ar, 0);
+    return JNI_TRUE;
+}
+
 static jbyteArray android_os_Parcel_readBlob(JNIEnv* env, jclass clazz, jlong nativePtr)
 {
     jbyteArray ret = NULL;
@@ -781,6 +823,7 @@ static const JNINativeMethod gParcelMethods[] = {
 
     {"nativeWriteByteArray",      "(J[BII)V", (void*)android_os_Parcel_writeByteArray},
     {"nativeWriteBlob",           "(J[BII)V", (void*)android_os_Parcel_writeBlob},
+    {"nativeWriteArrayData",      "(JLjava/lang/Object;II)V", (void*)android_os_Parcel_writeArrayData},
     // @FastNative
     {"nativeWriteInt",            "(JI)V", (void*)android_os_Parcel_writeInt},
     // @FastNative
@@ -796,6 +839,7 @@ static const JNINativeMethod gParcelMethods[] = {
     {"nativeCreateByteArray",     "(J)[B", (void*)android_os_Parcel_createByteArray},
     {"nativeReadByteArray",       "(J[BI)Z", (void*)android_os_Parcel_readByteArray},
     {"nativeReadBlob",            "(J)[B", (void*)android_os_Parcel_readBlob},
+    {"nativeReadArrayData",       "(JLjava/lang/Object;I)Z", (void*)android_os_Parcel_readArrayData},
     // @CriticalNative
     {"nativeReadInt",             "(J)I", (void*)android_os_Parcel_readInt},
     // @CriticalNative
@@ -18,6 +18,7 @@ package android.os;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import android.support.test.runner.AndroidJUnit4;
@@ -137,4 +138,107 @@ public class BundleTest {
         checkBundle(b, withFd);
         p.recycle();
     }
+
+    /**
+     * Parcel {@code source} and read it back into a new, still parcelled, bundle.
+     */
+    private Bundle roundTrip(Bundle source) {
+        final Parcel p = Parcel.obtain();
+        source.writeToParcel(p, 0);
+        p.setDataPosition(0);
+        final Bundle b = new Bundle(p);
+        p.recycle();
+        return b;
+    }
+
+    private Bundle createLazyTestBundle() {
+        final Bundle inner = new Bundle();
+        inner.putLong("long", 42);
+        final Bundle source = new Bundle();
+        source.putString("string", "abc");
+        source.putBundle("bundle", inner);
+        source.putIntArray("ints", new int[] { 1, 2, 3 });
+        return roundTrip(source);
+    }
+
+    @Test
+    public void testLazyValues() {
+        final Bundle b = createLazyTestBundle();
+        assertEquals("abc", b.getString("string"));
+        assertFalse(b.isParcelled());
+        assertEquals(3, b.size());
+        assertTrue(b.containsKey("ints"));
+
+        // Only the value asked for has been read.
+        assertTrue(b.mMap.get("bundle") instanceof BaseBundle.LazyValue);
+        assertTrue(b.mMap.get("ints") instanceof BaseBundle.LazyValue);
+
+        assertEquals(42, b.getBundle("bundle").getLong("long"));
+        assertFalse(b.mMap.get("bundle") instanceof BaseBundle.LazyValue);
+        assertNull(b.getString("missing"));
+    }
+
+    @Test
+    public void testLazyValuesWrittenThrough() {
+        final Bundle b = createLazyTestBundle();
+        b.getString("string");
+        b.putInt("int", 7);
+
+        final Bundle copy = roundTrip(b);
+        assertEquals(4, copy.size());
+        assertEquals("abc", copy.getString("string"));
+        assertEquals(7, copy.getInt("int"));
+        assertEquals(42, copy.getBundle("bundle").getLong("long"));
+        assertEquals(3, copy.getIntArray("ints")[2]);
+    }
+
+    @Test
+    public void testCopyKeepsLazyValues() {
+        final Bundle b = createLazyTestBundle();
+        b.getString("string");
+
+        final Bundle copy = new Bundle(b);
+        assertTrue(copy.mMap.get("ints") instanceof BaseBundle.LazyValue);
+
+        // Resolving everything in one must not disturb the other.
+        b.unparcel();
+        assertEquals(2, b.getIntArray("ints")[1]);
+        assertEquals(2, copy.getIntArray("ints")[1]);
+        assertEquals(42, copy.getBundle("bundle").getLong("long"));
+    }
+
+    @Test
+    public void testLazyValuesHasFileDescriptors() throws Exception {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        pipe[1].close();
+        final Bundle source = new Bundle();
+        source.putString("string", "abc");
+        source.putParcelable("fd", pipe[0]);
+        final Bundle b = roundTrip(source);
+        pipe[0].close();
+
+        b.getString("string");
+        assertTrue(b.hasFileDescriptors());
+        // Only the value actually holding the descriptor counts.
+        b.remove("fd");
+        assertFalse(b.hasFileDescriptors());
+
+        // Without descriptors, nothing needs to be read to tell.
+        final Bundle noFds = createLazyTestBundle();
+        noFds.getString("string");
+        assertFalse(noFds.hasFileDescriptors());
+        assertTrue(noFds.mMap.get("ints") instanceof BaseBundle.LazyValue);
+    }
+
+    @Test
+    public void testPersistableBundleKeepsNativeFormat() {
+        final PersistableBundle source = new PersistableBundle();
+        source.putString("string", "abc");
+        final Parcel p = Parcel.obtain();
+        source.writeToParcel(p, 0);
+        p.setDataPosition(0);
+        p.readInt(); // length
+        assertEquals(BaseBundle.BUNDLE_MAGIC, p.readInt());
+        p.recycle();
+    }
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests the order in which a {@link MessageQueue} delivers due messages.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class MessageQueueOrderTest {
+    private MessageQueue mQueue;
+    private Handler mHandler;
+    private long mNow;
+
+    @Before
+    public void setUp() {
+        mQueue = new MessageQueue(true /* quitAllowed */);
+        mHandler = new Handler(Looper.getMainLooper());
+        mNow = SystemClock.uptimeMillis();
+    }
+
+    @After
+    public void tearDown() {
+        mQueue.quit(false /* safe */);
+    }
+
+    @Test
+    public void testOrderedByWhen() {
+        for (int i = 0; i < 50; i++) {
+            enqueue(i, mNow - 1000 + i, false);
+        }
+        enqueue(100, mNow - 1000 + 10, false);
+        enqueue(101, mNow - 2000, false);
+        mQueue.removeMessages(mHandler, 49, null);
+        enqueue(102, mNow - 1, false);
+        enqueue(103, mNow - 1, false);
+
+        assertEquals(101, next());
+        for (int i = 0; i <= 10; i++) {
+            assertEquals(i, next());
+        }
+        assertEquals(100, next());
+        for (int i = 11; i < 49; i++) {
+            assertEquals(i, next());
+        }
+        assertEquals(102, next());
+        assertEquals(103, next());
+    }
+
+    @Test
+    public void testUrgentIgnoredUnlessEnabled() {
+        enqueue(0, mNow - 10, false);
+        enqueue(1, mNow - 5, true);
+        assertEquals(0, next());
+        assertEquals(1, next());
+    }
+
+    @Test
+    public void testUrgentAheadOfDueMessages() {
+        mQueue.setUrgentMessagesEnabled(true);
+        enqueue(0, mNow - 10, false);
+        enqueue(1, mNow - 10, false);
+        enqueue(2, mNow - 5, true);
+        enqueue(3, mNow - 5, true);
+        enqueue(4, mNow + 60000, true);
+        assertEquals(2, next());
+        assertEquals(3, next());
+        assertEquals(0, next());
+        assertEquals(1, next());
+        assertTrue(mQueue.hasMessages(mHandler, 4, null));
+    }
+
+    @Test
+    public void testUrgentNotPastBarrier() {
+        mQueue.setUrgentMessagesEnabled(true);
+        enqueue(0, mNow - 10, false);
+        final int token = mQueue.postSyncBarrier();
+        enqueue(1, SystemClock.uptimeMillis(), true);
+        assertEquals(0, next());
+        // Stalled behind the barrier.
+        assertTrue(mQueue.hasMessages(mHandler, 1, null));
+        mQueue.removeSyncBarrier(token);
+        assertEquals(1, next());
+    }
+
+    @Test
+    public void testUrgentCannotStarveOthers() {
+        mQueue.setUrgentMessagesEnabled(true);
+        enqueue(-1, mNow - 10, false);
+        for (int i = 0; i <= MessageQueue.MAX_CONSECUTIVE_URGENT; i++) {
+            enqueue(i, mNow - 5, true);
+        }
+        for (int i = 0; i < MessageQueue.MAX_CONSECUTIVE_URGENT; i++) {
+            assertEquals(i, next());
+        }
+        assertEquals(-1, next());
+        assertEquals(MessageQueue.MAX_CONSECUTIVE_URGENT, next());
+    }
+
+    private void enqueue(int what, long when, boolean urgent) {
+        final Message msg = mHandler.obtainMessage(what);
+        msg.setUrgent(urgent);
+        mQueue.enqueueMessage(msg, when);
+    }
+
+    private int next() {
+        final Message msg = mQueue.next();
+        final int what = msg.what;
+        msg.recycleUnchecked();
+        return what;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Unit tests for {@link Parcel} arrays and records.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ParcelTest {
+
+    @Test
+    public void testBulkArraysMatchElementWise() {
+        final int[] ints = new int[100];
+        final long[] longs = new long[100];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = i * 31;
+            longs[i] = (long) i << 40;
+        }
+
+        final Parcel bulk = Parcel.obtain();
+        final Parcel single = Parcel.obtain();
+        try {
+            bulk.writeIntArray(ints);
+            bulk.writeLongArray(longs);
+
+            single.writeInt(ints.length);
+            for (int i : ints) {
+                single.writeInt(i);
+            }
+            single.writeInt(longs.length);
+            for (long l : longs) {
+                single.writeLong(l);
+            }
+            assertArrayEquals(single.marshall(), bulk.marshall());
+
+            bulk.setDataPosition(0);
+            assertArrayEquals(ints, bulk.createIntArray());
+            final long[] readLongs = new long[longs.length];
+            bulk.readLongArray(readLongs);
+            assertArrayEquals(longs, readLongs);
+            assertEquals(0, bulk.dataAvail());
+        } finally {
+            bulk.recycle();
+            single.recycle();
+        }
+    }
+
+    @Test
+    public void testBulkArrayTruncated() {
+        final Parcel p = Parcel.obtain();
+        try {
+            p.writeInt(100);
+            p.writeInt(1);
+            p.setDataPosition(0);
+            try {
+                p.readIntArray(new int[100]);
+                fail("Expected BadParcelableException");
+            } catch (BadParcelableException expected) {
+            }
+        } finally {
+            p.recycle();
+        }
+    }
+
+    @Test
+    public void testRecords() {
+        final int recordSize = 12;
+        final ByteBuffer buffer = ByteBuffer.allocate(recordSize * 3)
+                .order(ByteOrder.nativeOrder());
+        for (int i = 0; i < 3; i++) {
+            buffer.putInt(i).putLong(i * 1000L);
+        }
+
+        final Parcel p = Parcel.obtain();
+        try {
+            p.writeRecords(buffer.array(), recordSize, 3);
+            p.writeRecords(null, recordSize, 0);
+            p.setDataPosition(0);
+
+            final ByteBuffer read = ByteBuffer.wrap(p.createRecords(recordSize))
+                    .order(ByteOrder.nativeOrder());
+            for (int i = 0; i < 3; i++) {
+                assertEquals(i, read.getInt());
+                assertEquals(i * 1000L, read.getLong());
+            }
+            assertNull(p.createRecords(recordSize));
+        } finally {
+            p.recycle();
+        }
+    }
+
+    @Test(expected = BadParcelableException.class)
+    public void testRecordsLayoutMismatch() {
+        final Parcel p = Parcel.obtain();
+        try {
+            p.writeRecords(new byte[16], 8, 2);
+            p.setDataPosition(0);
+            p.createRecords(4);
+        } finally {
+            p.recycle();
+        }
+    }
+}
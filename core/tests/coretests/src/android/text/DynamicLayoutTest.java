@@ -18,6 +18,7 @@ package android.text;
 
 import static android.text.Layout.Alignment.ALIGN_NORMAL;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
@@ -92,6 +93,59 @@ public class DynamicLayoutTest {
         assertTrue(layout.getBlocksAlwaysNeedToBeRedrawn().isEmpty());
     }
 
+    private static void assertSameLines(Layout expected, Layout actual) {
+        assertEquals(expected.getLineCount(), actual.getLineCount());
+        for (int i = 0; i < expected.getLineCount(); i++) {
+            assertEquals("start of line " + i, expected.getLineStart(i), actual.getLineStart(i));
+            assertEquals("top of line " + i, expected.getLineTop(i), actual.getLineTop(i));
+        }
+    }
+
+    @Test
+    public void testReflowLongParagraph() {
+        reflowLongParagraph(new String[] { "word" }, Layout.HYPHENATION_FREQUENCY_NONE);
+    }
+
+    @Test
+    public void testReflowLongParagraph_hyphenated() {
+        // Words long enough that lines start inside them.
+        reflowLongParagraph(new String[] { "internationalization", "extraordinarily", "of" },
+                Layout.HYPHENATION_FREQUENCY_FULL);
+    }
+
+    private static void reflowLongParagraph(String[] words, int hyphenationFrequency) {
+        final SpannableStringBuilder builder = new SpannableStringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            builder.append(words[i % words.length]).append(Integer.toString(i % 7)).append(' ');
+        }
+        builder.append("\nlast paragraph");
+        final TextPaint paint = new TextPaint();
+        paint.setTextSize(20);
+        final int width = 200;
+        final DynamicLayout layout = new DynamicLayout(builder, builder, paint, width,
+                ALIGN_NORMAL, TextDirectionHeuristics.FIRSTSTRONG_LTR, 1.0f, 0, false,
+                Layout.BREAK_STRATEGY_SIMPLE, hyphenationFrequency,
+                Layout.JUSTIFICATION_MODE_NONE, null, 0);
+
+        // Edits that move words across lines, near and far from the paragraph edges.
+        builder.insert(10, "inserted longer words ");
+        builder.delete(2000, 2010);
+        builder.replace(3000, 3001, "X");
+        builder.insert(builder.length() - 20, "end ");
+        builder.delete(0, 6);
+        builder.insert(4000, "\n");
+
+        final String text = builder.toString();
+        assertSameLines(StaticLayout.Builder.obtain(text, 0, text.length(), paint, width)
+                .setAlignment(ALIGN_NORMAL)
+                .setTextDirection(TextDirectionHeuristics.FIRSTSTRONG_LTR)
+                .setLineSpacing(0, 1.0f)
+                .setIncludePad(false)
+                .setBreakStrategy(Layout.BREAK_STRATEGY_SIMPLE)
+                .setHyphenationFrequency(hyphenationFrequency)
+                .build(), layout);
+    }
+
     @Test
     public void testGetBlocksAlwaysNeedToBeRedrawn_thai() {
         final SpannableStringBuilder builder = new SpannableStringBuilder();
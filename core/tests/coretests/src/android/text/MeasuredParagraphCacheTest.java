@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.text;
+
+import static org.junit.Assert.assertEquals;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class MeasuredParagraphCacheTest {
+    private static final String TEXT = "The quick brown fox jumps over the lazy dog.\n"
+            + "Pack my box with five dozen liquor jugs.";
+    private static final int WIDTH = 200;
+
+    private TextPaint mPaint;
+
+    @Before
+    public void setup() {
+        MeasuredParagraphCache.clear();
+        mPaint = new TextPaint();
+        mPaint.setTextSize(32);
+    }
+
+    private StaticLayout build(CharSequence text, TextPaint paint, int width) {
+        return StaticLayout.Builder.obtain(text, 0, text.length(), paint, width).build();
+    }
+
+    private static void assertSameLines(Layout expected, Layout actual) {
+        assertEquals(expected.getLineCount(), actual.getLineCount());
+        for (int i = 0; i < expected.getLineCount(); i++) {
+            assertEquals(expected.getLineEnd(i), actual.getLineEnd(i));
+            assertEquals(expected.getLineTop(i), actual.getLineTop(i));
+            assertEquals(expected.getLineWidth(i), actual.getLineWidth(i), 0.0f);
+        }
+    }
+
+    @Test
+    public void testSameLayoutFromCache() {
+        final StaticLayout measured = build(TEXT, mPaint, WIDTH);
+        final int hits = MeasuredParagraphCache.getHitCount();
+        final StaticLayout cached = build(TEXT, mPaint, WIDTH);
+        assertEquals(hits + 2, MeasuredParagraphCache.getHitCount());
+        assertSameLines(measured, cached);
+    }
+
+    @Test
+    public void testEllipsizedLayoutFromCache() {
+        build(TEXT, mPaint, WIDTH);
+        final StaticLayout ellipsized = StaticLayout.Builder.obtain(TEXT, 0, TEXT.length(),
+                mPaint, WIDTH).setEllipsize(TextUtils.TruncateAt.END).setMaxLines(2).build();
+
+        MeasuredParagraphCache.clear();
+        final StaticLayout expected = StaticLayout.Builder.obtain(TEXT, 0, TEXT.length(),
+                mPaint, WIDTH).setEllipsize(TextUtils.TruncateAt.END).setMaxLines(2).build();
+        assertSameLines(expected, ellipsized);
+        assertEquals(expected.getEllipsisStart(1), ellipsized.getEllipsisStart(1));
+        assertEquals(expected.getEllipsisCount(1), ellipsized.getEllipsisCount(1));
+    }
+
+    @Test
+    public void testPaintAndWidthAreKeys() {
+        build(TEXT, mPaint, WIDTH);
+        final int hits = MeasuredParagraphCache.getHitCount();
+
+        final TextPaint larger = new TextPaint(mPaint);
+        larger.setTextSize(48);
+        build(TEXT, larger, WIDTH);
+        build(TEXT, mPaint, WIDTH * 2);
+        assertEquals(hits, MeasuredParagraphCache.getHitCount());
+
+        // A paint that was changed after its paragraphs were cached doesn't hit either.
+        mPaint.setTextSize(48);
+        mPaint.setLetterSpacing(0.1f);
+        build(TEXT, mPaint, WIDTH);
+        assertEquals(hits, MeasuredParagraphCache.getHitCount());
+    }
+
+    @Test
+    public void testSpannedTextNotCached() {
+        final SpannableString text = new SpannableString(TEXT);
+        final int lookups = getLookupCount();
+        build(text, mPaint, WIDTH);
+        build(text, mPaint, WIDTH);
+        assertEquals(lookups, getLookupCount());
+    }
+
+    private static int getLookupCount() {
+        return MeasuredParagraphCache.getHitCount() + MeasuredParagraphCache.getMissCount();
+    }
+
+    @Test
+    public void testBuiltOnOtherThread() throws Exception {
+        final Thread thread = new Thread(() -> build(TEXT, new TextPaint(mPaint), WIDTH));
+        thread.start();
+        thread.join();
+
+        final int hits = MeasuredParagraphCache.getHitCount();
+        build(TEXT, mPaint, WIDTH);
+        assertEquals(hits + 2, MeasuredParagraphCache.getHitCount());
+    }
+}
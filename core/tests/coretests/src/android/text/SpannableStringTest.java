@@ -14,11 +14,72 @@
  * limitations under the License.
  */
 
+
 package android.text;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import android.text.style.StyleSpan;
+import android.text.style.UnderlineSpan;
+
+import org.junit.Test;
+
+import java.util.Random;
+
 public class SpannableStringTest extends SpannableTest {
 
     protected Spannable newSpannableWithText(String text) {
         return new SpannableString(text);
     }
+
+    @Test
+    public void testManySpans() {
+        final String text = "The quick brown fox jumps over the lazy dog. ";
+        final SpannableString spannable = new SpannableString(text + text + text);
+        final SpannableStringBuilder expected = new SpannableStringBuilder(spannable);
+        final int length = spannable.length();
+        final Random random = new Random(0);
+        final Object[] spans = new Object[200];
+        for (int i = 0; i < spans.length; i++) {
+            spans[i] = random.nextBoolean() ? new StyleSpan(0) : new UnderlineSpan();
+            final int start = random.nextInt(length + 1);
+            final int end = start + random.nextInt(Math.min(20, length - start) + 1);
+            final int priority = random.nextInt(4) == 0 ? random.nextInt(3) : 0;
+            final int flags = Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
+                    | (priority << Spanned.SPAN_PRIORITY_SHIFT);
+            spannable.setSpan(spans[i], start, end, flags);
+            expected.setSpan(spans[i], start, end, flags);
+        }
+        assertSameSpans(expected, spannable);
+
+        for (int i = 0; i < spans.length; i += 3) {
+            spannable.removeSpan(spans[i]);
+            expected.removeSpan(spans[i]);
+        }
+        spannable.setSpan(spans[1], 0, length, 0);
+        expected.setSpan(spans[1], 0, length, 0);
+        assertSameSpans(expected, spannable);
+        assertSameSpans(expected, new SpannedString(spannable));
+    }
+
+    private static void assertSameSpans(Spanned expected, Spanned actual) {
+        final int length = expected.length();
+        for (int start = 0; start <= length; start += 7) {
+            for (int end = start; end <= length; end += 11) {
+                assertArrayEquals(expected.getSpans(start, end, Object.class),
+                        actual.getSpans(start, end, Object.class));
+                assertArrayEquals(expected.getSpans(start, end, StyleSpan.class),
+                        actual.getSpans(start, end, StyleSpan.class));
+                assertEquals(expected.nextSpanTransition(start, end, UnderlineSpan.class),
+                        actual.nextSpanTransition(start, end, UnderlineSpan.class));
+            }
+        }
+        for (Object span : expected.getSpans(0, length, Object.class)) {
+            assertEquals(expected.getSpanStart(span), actual.getSpanStart(span));
+            assertEquals(expected.getSpanEnd(span), actual.getSpanEnd(span));
+            assertEquals(expected.getSpanFlags(span), actual.getSpanFlags(span));
+        }
+        assertEquals(-1, actual.getSpanStart(new Object()));
+    }
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.os.FileUtils;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Parcel;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BatteryStatsHistoryTest {
+    private static final long MAX_BYTES = 1024 * 1024;
+
+    private File mDir;
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getContext().getCacheDir(), "battery-history");
+        FileUtils.deleteContents(mDir);
+        mThread = new HandlerThread("BatteryStatsHistoryTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quitSafely();
+        FileUtils.deleteContents(mDir);
+    }
+
+    @Test
+    public void testSegmentsSurviveReopen() {
+        final BatteryStatsHistory history = new BatteryStatsHistory(mDir, mHandler, MAX_BYTES);
+        addSegment(history, 1, 2, 3);
+        addSegment(history, 4, 5);
+        assertArrayEquals(new int[] { 0, 1 }, history.getSegmentIds());
+        assertSegment(history, 0, 1, 2, 3);
+        flush();
+
+        final BatteryStatsHistory reopened = new BatteryStatsHistory(mDir, mHandler, MAX_BYTES);
+        assertArrayEquals(new int[] { 0, 1 }, reopened.getSegmentIds());
+        assertEquals(2, reopened.getNextSegmentId());
+        assertEquals(history.getTotalBytes(), reopened.getTotalBytes());
+        assertSegment(reopened, 0, 1, 2, 3);
+        assertSegment(reopened, 1, 4, 5);
+    }
+
+    @Test
+    public void testOldestSegmentsDropped() {
+        final BatteryStatsHistory history = new BatteryStatsHistory(mDir, mHandler, MAX_BYTES);
+        for (int i = 0; i < BatteryStatsHistory.MAX_SEGMENTS + 3; i++) {
+            addSegment(history, i);
+        }
+        final int[] ids = history.getSegmentIds();
+        assertEquals(BatteryStatsHistory.MAX_SEGMENTS, ids.length);
+        assertEquals(3, ids[0]);
+        assertNull(history.readSegment(0));
+        assertSegment(history, 3, 3);
+        flush();
+        assertEquals(BatteryStatsHistory.MAX_SEGMENTS, mDir.list().length);
+    }
+
+    @Test
+    public void testSegmentsKeptWithinByteBudget() {
+        // Room for two segments of two ints.
+        final BatteryStatsHistory history = new BatteryStatsHistory(mDir, mHandler, 20);
+        addSegment(history, 1, 2);
+        addSegment(history, 3, 4);
+        assertArrayEquals(new int[] { 0, 1 }, history.getSegmentIds());
+        addSegment(history, 5, 6);
+        assertArrayEquals(new int[] { 1, 2 }, history.getSegmentIds());
+        assertEquals(16, history.getTotalBytes());
+
+        // The newest segment stays even when it is over budget on its own.
+        addSegment(history, 7, 8, 9, 10, 11, 12);
+        assertArrayEquals(new int[] { 3 }, history.getSegmentIds());
+        assertSegment(history, 3, 7, 8, 9, 10, 11, 12);
+    }
+
+    @Test
+    public void testTrimAndReset() {
+        final BatteryStatsHistory history = new BatteryStatsHistory(mDir, mHandler, MAX_BYTES);
+        addSegment(history, 1);
+        final int snapshotId = history.getNextSegmentId();
+        addSegment(history, 2);
+        addSegment(history, 3);
+
+        history.trimFrom(snapshotId);
+        assertArrayEquals(new int[] { 0 }, history.getSegmentIds());
+        // Ids aren't reused.
+        addSegment(history, 4);
+        assertArrayEquals(new int[] { 0, 3 }, history.getSegmentIds());
+
+        history.reset();
+        assertEquals(0, history.getSegmentIds().length);
+        assertEquals(0, history.getTotalBytes());
+        flush();
+        assertEquals(0, mDir.list().length);
+    }
+
+    private void flush() {
+        mHandler.runWithScissors(() -> { }, 0);
+    }
+
+    private static void addSegment(BatteryStatsHistory history, int... values) {
+        final Parcel buffer = Parcel.obtain();
+        for (int value : values) {
+            buffer.writeInt(value);
+        }
+        history.add(buffer);
+        buffer.recycle();
+    }
+
+    private static void assertSegment(BatteryStatsHistory history, int id, int... values) {
+        final Parcel segment = history.readSegment(id);
+        try {
+            assertEquals(values.length * 4, segment.dataSize());
+            for (int value : values) {
+                assertEquals(value, segment.readInt());
+            }
+        } finally {
+            segment.recycle();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Binder;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BinderCallsStatsTest {
+    private static final String DESCRIPTOR = "android.os.ITest";
+
+    @Test
+    public void testDisabled() {
+        final BinderCallsStats stats = new BinderCallsStats();
+        assertNull(stats.callStarted(createBinder(DESCRIPTOR), 1));
+    }
+
+    @Test
+    public void testCallsCounted() {
+        final BinderCallsStats stats = new BinderCallsStats();
+        stats.setEnabled(true);
+        final Binder binder = createBinder(DESCRIPTOR);
+        for (int i = 0; i < 3; i++) {
+            stats.callEnded(stats.callStarted(binder, 1), 100);
+        }
+        stats.callEnded(stats.callStarted(binder, 2), 100);
+        stats.callEnded(stats.callStarted(new Binder(), 1), 100);
+
+        assertEquals(3, stats.getCallCount(DESCRIPTOR, 1));
+        assertEquals(1, stats.getCallCount(DESCRIPTOR, 2));
+        assertEquals(1, stats.getCallCount(Binder.class.getName(), 1));
+
+        final StringWriter out = new StringWriter();
+        stats.dump(new PrintWriter(out, true));
+        assertTrue(out.toString().contains(DESCRIPTOR + "#1: calls=3 "));
+        assertTrue(out.toString().contains("reply avg=100B max=100B"));
+
+        stats.reset();
+        assertEquals(0, stats.getCallCount(DESCRIPTOR, 1));
+    }
+
+    @Test
+    public void testSampling() {
+        final BinderCallsStats stats = new BinderCallsStats();
+        stats.setEnabled(true);
+        stats.setSamplingInterval(4);
+        final Binder binder = createBinder(DESCRIPTOR);
+        int sampled = 0;
+        for (int i = 0; i < 8; i++) {
+            final BinderCallsStats.CallSession s = stats.callStarted(binder, 1);
+            if (s != null) {
+                stats.callEnded(s, 0);
+                sampled++;
+            }
+        }
+        assertEquals(2, sampled);
+        assertEquals(2, stats.getCallCount(DESCRIPTOR, 1));
+    }
+
+    @Test
+    public void testMethodsBounded() {
+        final BinderCallsStats stats = new BinderCallsStats();
+        stats.setEnabled(true);
+        final Binder binder = createBinder(DESCRIPTOR);
+        for (int code = 0; code < BinderCallsStats.MAX_METHODS + 10; code++) {
+            final BinderCallsStats.CallSession s = stats.callStarted(binder, code);
+            assertNotNull(s);
+            stats.callEnded(s, 0);
+        }
+        assertEquals(1, stats.getCallCount(DESCRIPTOR, 0));
+        // One slot is kept for the methods beyond the limit.
+        assertEquals(11, stats.getCallCount("(other)", -1));
+    }
+
+    @Test
+    public void testCallsFromThreadsMerged() throws Exception {
+        final BinderCallsStats stats = new BinderCallsStats();
+        stats.setEnabled(true);
+        final Binder binder = createBinder(DESCRIPTOR);
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100; j++) {
+                    stats.callEnded(stats.callStarted(binder, 1), 10);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(800, stats.getCallCount(DESCRIPTOR, 1));
+
+        final StringWriter out = new StringWriter();
+        stats.dump(new PrintWriter(out, true));
+        assertTrue(out.toString().contains(DESCRIPTOR + "#1: calls=800 "));
+    }
+
+    private static Binder createBinder(String descriptor) {
+        final Binder binder = new Binder();
+        binder.attachInterface(null, descriptor);
+        return binder;
+    }
+}
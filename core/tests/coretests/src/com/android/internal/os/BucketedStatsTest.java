@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BucketedStatsTest {
+    private static final long[] LIMITS = { 10, 100 };
+
+    @Test
+    public void testBuckets() {
+        assertEquals(0, BucketedStats.getBucket(LIMITS, 0));
+        assertEquals(0, BucketedStats.getBucket(LIMITS, 9));
+        assertEquals(1, BucketedStats.getBucket(LIMITS, 10));
+        assertEquals(LIMITS.length, BucketedStats.getBucket(LIMITS, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testAdd() {
+        final BucketedStats stats = new BucketedStats(LIMITS, 2);
+        stats.add(1, 5);
+        stats.add(1, 500);
+        stats.add(1, 50);
+
+        assertEquals(0, stats.getCount(0));
+        assertEquals(3, stats.getCount(1));
+        assertEquals(555, stats.getTotal(1));
+        assertEquals(500, stats.getMax(1));
+        assertEquals(3, stats.getBucketCount());
+        for (int i = 0; i < stats.getBucketCount(); i++) {
+            assertEquals(1, stats.getHistogram(1, i));
+        }
+
+        final StringWriter out = new StringWriter();
+        final PrintWriter pw = new PrintWriter(out);
+        stats.dumpBucketLimits(pw);
+        pw.print(" ");
+        stats.dumpHistogram(pw, 1);
+        pw.flush();
+        assertEquals("<10 <100 more 1 1 1", out.toString());
+
+        stats.reset();
+        assertEquals(0, stats.getCount(1));
+        assertEquals(0, stats.getMax(1));
+        assertEquals(0, stats.getHistogram(1, 2));
+    }
+
+    @Test
+    public void testAddAll() {
+        final BucketedStats stats = new BucketedStats(LIMITS, 2);
+        stats.add(0, 20);
+        final BucketedStats other = new BucketedStats(LIMITS, 2);
+        other.add(1, 5);
+        other.add(1, 30);
+
+        stats.addAll(0, other, 1);
+        assertEquals(3, stats.getCount(0));
+        assertEquals(55, stats.getTotal(0));
+        assertEquals(30, stats.getMax(0));
+        assertEquals(1, stats.getHistogram(0, 0));
+        assertEquals(2, stats.getHistogram(0, 1));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class LooperStatsTest {
+    private static class TestHandler extends Handler {
+        TestHandler(Looper looper) {
+            super(looper);
+        }
+    }
+
+    @Test
+    public void testMessagesCounted() {
+        final LooperStats stats = new LooperStats();
+        stats.setEnabled(true);
+        final Handler handler = new TestHandler(Looper.getMainLooper());
+        stats.messageDispatched(Message.obtain(handler, 1), 0, 2000);
+        stats.messageDispatched(Message.obtain(handler, 1), 0, 2000000);
+        stats.messageDispatched(Message.obtain(handler, 2), 0, 1000);
+
+        assertEquals(2, stats.getCount(TestHandler.class, 1));
+        assertEquals(1, stats.getCount(TestHandler.class, 2));
+
+        final StringWriter out = new StringWriter();
+        stats.dump(new PrintWriter(out, true), "");
+        assertTrue(out.toString().contains(TestHandler.class.getName()
+                + " what=1: count=2 dispatch total=2ms avg=1001us max=2000us"));
+
+        stats.reset();
+        assertEquals(0, stats.getCount(TestHandler.class, 1));
+    }
+
+    @Test
+    public void testEntriesBounded() {
+        final LooperStats stats = new LooperStats();
+        stats.setEnabled(true);
+        final Handler handler = new TestHandler(Looper.getMainLooper());
+        for (int what = 0; what < LooperStats.MAX_ENTRIES + 10; what++) {
+            stats.messageDispatched(Message.obtain(handler, what), 0, 0);
+        }
+        assertEquals(1, stats.getCount(TestHandler.class, 0));
+        // One slot is kept for the messages beyond the limit.
+        assertEquals(11, stats.getOtherCount());
+    }
+
+    @Test
+    public void testNeverEnabled() {
+        final LooperStats stats = new LooperStats();
+        final Handler handler = new TestHandler(Looper.getMainLooper());
+        stats.messageDispatched(Message.obtain(handler, 1), 0, 2000);
+        assertEquals(0, stats.getCount(TestHandler.class, 1));
+
+        final StringWriter out = new StringWriter();
+        stats.dump(new PrintWriter(out, true), "");
+        assertTrue(out.toString().startsWith("Dispatch stats (disabled, "));
+        stats.reset();
+    }
+
+    @Test
+    public void testLooperReportsWhenEnabled() throws Exception {
+        final HandlerThread thread = new HandlerThread("LooperStatsTest");
+        thread.start();
+        try {
+            final LooperStats stats = new LooperStats();
+            final Handler handler = new TestHandler(thread.getLooper());
+            final CountDownLatch latch = new CountDownLatch(1);
+            handler.post(() -> {
+                Looper.myLooper().setStats(stats);
+                latch.countDown();
+            });
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+            handler.sendEmptyMessage(1);
+            stats.setEnabled(true);
+            handler.sendEmptyMessage(2);
+            final CountDownLatch done = new CountDownLatch(1);
+            handler.post(done::countDown);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            thread.quitSafely();
+            thread.join();
+
+            assertEquals(1, stats.getCount(TestHandler.class, 2));
+        } finally {
+            thread.quit();
+        }
+    }
+}
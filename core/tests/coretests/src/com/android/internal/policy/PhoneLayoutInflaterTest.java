@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.policy;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.AttributeSet;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import com.android.frameworks.coretests.R;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PhoneLayoutInflaterTest {
+
+    @Test
+    public void testSubclassCopyDoesNotCompile() throws Exception {
+        final Context context = InstrumentationRegistry.getContext();
+        final SwappingLayoutInflater inflater =
+                new SwappingLayoutInflater(new PhoneLayoutInflater(context), context);
+
+        // Enough inflations that a compiling inflater would have compiled the layout.
+        for (int i = 0; i < 3; i++) {
+            assertEquals(TextView.class, inflateChild(inflater).getClass());
+        }
+
+        // The subclass now makes a different view for the same element.
+        inflater.mSwap = true;
+        assertEquals(SwappedView.class, inflateChild(inflater).getClass());
+    }
+
+    @Test
+    public void testCloneStillInflates() throws Exception {
+        final Context context = InstrumentationRegistry.getContext();
+        final LayoutInflater inflater = new PhoneLayoutInflater(context).cloneInContext(context);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(TextView.class, inflateChild(inflater).getClass());
+        }
+    }
+
+    private static View inflateChild(LayoutInflater inflater) {
+        final ViewGroup root = (ViewGroup) inflater.inflate(R.layout.layout_five, null);
+        return root.getChildAt(0);
+    }
+
+    private static class SwappingLayoutInflater extends PhoneLayoutInflater {
+        boolean mSwap;
+
+        SwappingLayoutInflater(LayoutInflater original, Context newContext) {
+            super(original, newContext);
+        }
+
+        @Override
+        protected View onCreateView(String name, AttributeSet attrs)
+                throws ClassNotFoundException {
+            if (mSwap && "TextView".equals(name)) {
+                return new SwappedView(getContext(), attrs);
+            }
+            return super.onCreateView(name, attrs);
+        }
+    }
+
+    private static class SwappedView extends View {
+        SwappedView(Context context, AttributeSet attrs) {
+            super(context, attrs);
+        }
+    }
+}
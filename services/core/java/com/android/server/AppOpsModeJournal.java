@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.util.Slog;
+
+import com.android.server.utils.JournalFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary journal of the app op mode changes made since appops.xml was last written.
+ * <p>
+ * Changing a mode appends one checksummed entry per change instead of rewriting the state
+ * of every uid. Entries are absolute (set this mode, drop this package), so replaying them
+ * in order on top of any snapshot taken after the first of them gives the current modes.
+ * The journal is deleted once a full write of appops.xml has folded it in. Each write of
+ * appops.xml records a new generation, and the journal is only replayed on top of the
+ * generation it was started against; as a {@link JournalFile}, a torn entry at its tail is
+ * dropped on read.
+ * <p>
+ * Callers serialize access by holding the lock on the state file.
+ */
+final class AppOpsModeJournal {
+    private static final String TAG = AppOpsService.TAG;
+
+    private static final int MAGIC = 0x414f504a; // AOPJ
+    private static final int VERSION = 2;
+
+    static final byte TYPE_UID_MODE = 1;
+    static final byte TYPE_PACKAGE_MODE = 2;
+    static final byte TYPE_REMOVE_PACKAGE = 3;
+    static final byte TYPE_REMOVE_UID = 4;
+
+    /** One change to the persisted modes. */
+    static final class Entry {
+        final byte type;
+        final int uid;
+        /** Package the change applies to; null for {@link #TYPE_UID_MODE} and
+         * {@link #TYPE_REMOVE_UID}. */
+        final String packageName;
+        final boolean isPrivileged;
+        final int op;
+        final int mode;
+
+        Entry(byte type, int uid, String packageName, boolean isPrivileged, int op, int mode) {
+            this.type = type;
+            this.uid = uid;
+            this.packageName = packageName;
+            this.isPrivileged = isPrivileged;
+            this.op = op;
+            this.mode = mode;
+        }
+    }
+
+    private final JournalFile mJournal;
+
+    // Statistics, reported by dump().
+    private int mAppends;
+    private int mEntriesAppended;
+    private int mFolds;
+
+    AppOpsModeJournal(File file) {
+        mJournal = new JournalFile(file, MAGIC, VERSION);
+    }
+
+    long getBytes() {
+        return mJournal.getBytes();
+    }
+
+    /**
+     * Reads the entries journaled on top of the appops.xml with the given generation, oldest
+     * first, dropping a torn tail. A journal started against an older appops.xml has already
+     * been folded into it, and is discarded.
+     */
+    List<Entry> read(int generation) {
+        final List<byte[]> data = mJournal.read(generation);
+        final ArrayList<Entry> entries = new ArrayList<>(data.size());
+        try {
+            for (int i = 0; i < data.size(); i++) {
+                entries.add(readEntry(data.get(i)));
+            }
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed reading mode journal", e);
+        }
+        return entries;
+    }
+
+    private static Entry readEntry(byte[] data) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        final byte type = in.readByte();
+        final int uid = in.readInt();
+        final String packageName = in.readBoolean() ? in.readUTF() : null;
+        final boolean isPrivileged = in.readBoolean();
+        final int op = in.readInt();
+        final int mode = in.readInt();
+        return new Entry(type, uid, packageName, isPrivileged, op, mode);
+    }
+
+    /** Appends {@code entries} and syncs them to disk. */
+    void append(List<Entry> entries) throws IOException {
+        final ArrayList<byte[]> data = new ArrayList<>(entries.size());
+        final ByteArrayOutputStream entryBuffer = new ByteArrayOutputStream();
+        final DataOutputStream entryOut = new DataOutputStream(entryBuffer);
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry entry = entries.get(i);
+            entryBuffer.reset();
+            entryOut.writeByte(entry.type);
+            entryOut.writeInt(entry.uid);
+            entryOut.writeBoolean(entry.packageName != null);
+            if (entry.packageName != null) {
+                entryOut.writeUTF(entry.packageName);
+            }
+            entryOut.writeBoolean(entry.isPrivileged);
+            entryOut.writeInt(entry.op);
+            entryOut.writeInt(entry.mode);
+            entryOut.flush();
+            data.add(entryBuffer.toByteArray());
+        }
+        mJournal.append(data);
+        mAppends++;
+        mEntriesAppended += entries.size();
+    }
+
+    /** Returns the generation of the appops.xml the journal applies to. */
+    int getGeneration() {
+        return mJournal.getGeneration();
+    }
+
+    /**
+     * Discards the journal after its entries have been written to the appops.xml with the
+     * given generation.
+     */
+    void fold(int generation) {
+        mJournal.reset(generation);
+        mFolds++;
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Mode journal: bytes="); pw.print(mJournal.getBytes());
+        pw.print(" appends="); pw.print(mAppends);
+        pw.print(" entries="); pw.print(mEntriesAppended);
+        pw.print(" folds="); pw.println(mFolds);
+    }
+}
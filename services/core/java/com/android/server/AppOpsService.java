@@ -39,6 +39,7 @@ import android.os.ResultReceiver;
 import android.os.ServiceManager;
 import android.os.ShellCallback;
 import android.os.ShellCommand;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageManagerInternal;
@@ -90,6 +91,15 @@ public class AppOpsService extends IAppOpsService.Stub {
     // Write at most every 30 minutes.
     static final long WRITE_DELAY = DEBUG ? 1000 : 30*60*1000;
 
+    // Batch up mode changes made within a second into one journal append.
+    static final long JOURNAL_DELAY = 1000;
+
+    // Fold the mode journal into the full state once it grows past this.
+    static final long MAX_JOURNAL_BYTES = 64 * 1024;
+
+    // Lock acquisitions that wait at least this long are counted as contended.
+    static final long CONTENDED_LOCK_NANOS = 10 * 1000;
+
     Context mContext;
     final AtomicFile mFile;
     final Handler mHandler;
@@ -112,6 +122,44 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     };
 
+    // Mode changes not yet handed to the journal, oldest first.
+    final ArrayList<AppOpsModeJournal.Entry> mPendingModeChanges = new ArrayList<>();
+    boolean mJournalWriteScheduled;
+    // Sequence number of the last batch of mode changes handed to the journal.
+    int mModeChangeBatchSeq;
+    final Runnable mJournalRunner = new Runnable() {
+        public void run() {
+            final ArrayList<AppOpsModeJournal.Entry> changes;
+            final int seq;
+            synchronized (AppOpsService.this) {
+                mJournalWriteScheduled = false;
+                if (mPendingModeChanges.isEmpty()) {
+                    return;
+                }
+                changes = new ArrayList<>(mPendingModeChanges);
+                mPendingModeChanges.clear();
+                seq = ++mModeChangeBatchSeq;
+            }
+            // Batches are posted in sequence order, and the IO thread keeps that order.
+            IoThread.getHandler().post(new Runnable() {
+                @Override public void run() {
+                    appendModeChanges(seq, changes);
+                }
+            });
+        }
+    };
+
+    // Guarded by mFile.
+    final AppOpsModeJournal mModeJournal;
+    // Batches up to this sequence number are part of mFile; guarded by mFile.
+    int mFoldedModeChangeSeq;
+
+    // Contention on the service lock from checkOperation() and noteOperation().
+    long mLockAcquisitions;
+    long mContendedLockAcquisitions;
+    long mLockWaitNanos;
+    long mMaxLockWaitNanos;
+
     private final SparseArray<UidState> mUidStates = new SparseArray<>();
 
     /*
@@ -241,6 +289,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     public AppOpsService(File storagePath, Handler handler) {
         LockGuard.installLock(this, LockGuard.INDEX_APP_OPS);
         mFile = new AtomicFile(storagePath);
+        mModeJournal = new AppOpsModeJournal(new File(storagePath.getPath() + ".journal"));
         mHandler = handler;
         readState();
     }
@@ -252,7 +301,6 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     public void systemReady() {
         synchronized (this) {
-            boolean changed = false;
             for (int i = mUidStates.size() - 1; i >= 0; i--) {
                 UidState uidState = mUidStates.valueAt(i);
 
@@ -260,7 +308,8 @@ public class AppOpsService extends IAppOpsService.Stub {
                 if (ArrayUtils.isEmpty(packageNames)) {
                     uidState.clear();
                     mUidStates.removeAt(i);
-                    changed = true;
+                    recordModeChangeLocked(AppOpsModeJournal.TYPE_REMOVE_UID, uidState.uid,
+                            null, false, 0, 0);
                     continue;
                 }
 
@@ -283,7 +332,8 @@ public class AppOpsService extends IAppOpsService.Stub {
                         Slog.i(TAG, "Pruning old package " + ops.packageName
                                 + "/" + ops.uidState + ": new uid=" + curUid);
                         it.remove();
-                        changed = true;
+                        recordModeChangeLocked(AppOpsModeJournal.TYPE_REMOVE_PACKAGE,
+                                ops.uidState.uid, ops.packageName, false, 0, 0);
                     }
                 }
 
@@ -291,9 +341,6 @@ public class AppOpsService extends IAppOpsService.Stub {
                     mUidStates.removeAt(i);
                 }
             }
-            if (changed) {
-                scheduleFastWriteLocked();
-            }
         }
 
         PackageManagerInternal packageManagerInternal = LocalServices.getService(
@@ -356,16 +403,15 @@ public class AppOpsService extends IAppOpsService.Stub {
             // Remove any package state if such.
             if (uidState.pkgOps != null && uidState.pkgOps.remove(packageName) != null) {
                 changed = true;
+                recordModeChangeLocked(AppOpsModeJournal.TYPE_REMOVE_PACKAGE, uid, packageName,
+                        false, 0, 0);
             }
 
             // If we just nuked the last package state check if the UID is valid.
             if (changed && uidState.pkgOps.isEmpty()
                     && getPackagesForUid(uid).length <= 0) {
                 mUidStates.remove(uid);
-            }
-
-            if (changed) {
-                scheduleFastWriteLocked();
+                recordModeChangeLocked(AppOpsModeJournal.TYPE_REMOVE_UID, uid, null, false, 0, 0);
             }
         }
     }
@@ -374,7 +420,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         synchronized (this) {
             if (mUidStates.indexOfKey(uid) >= 0) {
                 mUidStates.remove(uid);
-                scheduleFastWriteLocked();
+                recordModeChangeLocked(AppOpsModeJournal.TYPE_REMOVE_UID, uid, null, false, 0, 0);
             }
         }
     }
@@ -563,12 +609,14 @@ public class AppOpsService extends IAppOpsService.Stub {
                 uidState.opModes = new SparseIntArray();
                 uidState.opModes.put(code, mode);
                 mUidStates.put(uid, uidState);
-                scheduleWriteLocked();
+                recordModeChangeLocked(AppOpsModeJournal.TYPE_UID_MODE, uid, null, false, code,
+                        mode);
             } else if (uidState.opModes == null) {
                 if (mode != defaultMode) {
                     uidState.opModes = new SparseIntArray();
                     uidState.opModes.put(code, mode);
-                    scheduleWriteLocked();
+                    recordModeChangeLocked(AppOpsModeJournal.TYPE_UID_MODE, uid, null, false, code,
+                            mode);
                 }
             } else {
                 if (uidState.opModes.get(code) == mode) {
@@ -582,7 +630,8 @@ public class AppOpsService extends IAppOpsService.Stub {
                 } else {
                     uidState.opModes.put(code, mode);
                 }
-                scheduleWriteLocked();
+                recordModeChangeLocked(AppOpsModeJournal.TYPE_UID_MODE, uid, null, false, code,
+                        mode);
             }
         }
 
@@ -663,8 +712,8 @@ public class AppOpsService extends IAppOpsService.Stub {
         ArrayList<Callback> repCbs = null;
         code = AppOpsManager.opToSwitch(code);
         synchronized (this) {
-            UidState uidState = getUidStateLocked(uid, false);
-            Op op = getOpLocked(code, uid, packageName, true);
+            Ops ops = getOpsRawLocked(uid, packageName, true);
+            Op op = ops != null ? getOpLocked(ops, code, true) : null;
             if (op != null) {
                 if (op.mode != mode) {
                     op.mode = mode;
@@ -687,7 +736,8 @@ public class AppOpsService extends IAppOpsService.Stub {
                         // if there is nothing else interesting in it.
                         pruneOp(op, uid, packageName);
                     }
-                    scheduleFastWriteLocked();
+                    recordModeChangeLocked(AppOpsModeJournal.TYPE_PACKAGE_MODE, uid, packageName,
+                            ops.isPrivileged, code, mode);
                 }
             }
         }
@@ -776,7 +826,6 @@ public class AppOpsService extends IAppOpsService.Stub {
 
         HashMap<Callback, ArrayList<ChangeRec>> callbacks = null;
         synchronized (this) {
-            boolean changed = false;
             for (int i = mUidStates.size() - 1; i >= 0; i--) {
                 UidState uidState = mUidStates.valueAt(i);
 
@@ -790,6 +839,8 @@ public class AppOpsService extends IAppOpsService.Stub {
                             if (opModes.size() <= 0) {
                                 uidState.opModes = null;
                             }
+                            recordModeChangeLocked(AppOpsModeJournal.TYPE_UID_MODE, uidState.uid,
+                                    null, false, code, AppOpsManager.opToDefaultMode(code));
                             for (String packageName : getPackagesForUid(uidState.uid)) {
                                 callbacks = addCallbacks(callbacks, code, uidState.uid, packageName,
                                         mOpModeWatchers.get(code));
@@ -825,7 +876,8 @@ public class AppOpsService extends IAppOpsService.Stub {
                         if (AppOpsManager.opAllowsReset(curOp.op)
                                 && curOp.mode != AppOpsManager.opToDefaultMode(curOp.op)) {
                             curOp.mode = AppOpsManager.opToDefaultMode(curOp.op);
-                            changed = true;
+                            recordModeChangeLocked(AppOpsModeJournal.TYPE_PACKAGE_MODE, curOp.uid,
+                                    packageName, pkgOps.isPrivileged, curOp.op, curOp.mode);
                             callbacks = addCallbacks(callbacks, curOp.op, curOp.uid, packageName,
                                     mOpModeWatchers.get(curOp.op));
                             callbacks = addCallbacks(callbacks, curOp.op, curOp.uid, packageName,
@@ -843,10 +895,6 @@ public class AppOpsService extends IAppOpsService.Stub {
                     mUidStates.remove(uidState.uid);
                 }
             }
-
-            if (changed) {
-                scheduleFastWriteLocked();
-            }
         }
         if (callbacks != null) {
             for (Map.Entry<Callback, ArrayList<ChangeRec>> ent : callbacks.entrySet()) {
@@ -941,7 +989,9 @@ public class AppOpsService extends IAppOpsService.Stub {
         if (resolvedPackageName == null) {
             return AppOpsManager.MODE_IGNORED;
         }
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
         synchronized (this) {
+            noteLockAcquiredLocked(startNanos);
             if (isOpRestrictedLocked(uid, code, resolvedPackageName)) {
                 return AppOpsManager.MODE_IGNORED;
             }
@@ -1081,7 +1131,9 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     private int noteOperationUnchecked(int code, int uid, String packageName,
             int proxyUid, String proxyPackageName) {
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
         synchronized (this) {
+            noteLockAcquiredLocked(startNanos);
             Ops ops = getOpsRawLocked(uid, packageName, true);
             if (ops == null) {
                 if (DEBUG) Log.d(TAG, "noteOperation: no op for code " + code + " uid " + uid
@@ -1350,6 +1402,123 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     }
 
+    /**
+     * Records a change to the persisted modes. It is appended to the mode journal shortly,
+     * and folded into the full state with the next regular write.
+     */
+    private void recordModeChangeLocked(byte type, int uid, String packageName,
+            boolean isPrivileged, int op, int mode) {
+        mPendingModeChanges.add(new AppOpsModeJournal.Entry(type, uid, packageName,
+                isPrivileged, op, mode));
+        if (!mJournalWriteScheduled) {
+            mJournalWriteScheduled = true;
+            mHandler.postDelayed(mJournalRunner, JOURNAL_DELAY);
+        }
+        scheduleWriteLocked();
+    }
+
+    void appendModeChanges(int seq, List<AppOpsModeJournal.Entry> changes) {
+        synchronized (mFile) {
+            if (seq <= mFoldedModeChangeSeq) {
+                // Already captured by a full write that started after this batch was taken.
+                return;
+            }
+            boolean fold;
+            try {
+                mModeJournal.append(changes);
+                fold = mModeJournal.getBytes() > MAX_JOURNAL_BYTES;
+            } catch (IOException e) {
+                Slog.w(TAG, "Failed to append mode changes, writing full state instead", e);
+                fold = true;
+            }
+            if (fold) {
+                synchronized (this) {
+                    scheduleFastWriteLocked();
+                }
+            }
+        }
+    }
+
+    private void applyModeChangeLocked(AppOpsModeJournal.Entry change) {
+        switch (change.type) {
+            case AppOpsModeJournal.TYPE_UID_MODE: {
+                final UidState uidState = getUidStateLocked(change.uid, true);
+                if (change.mode == AppOpsManager.opToDefaultMode(change.op)) {
+                    if (uidState.opModes != null) {
+                        uidState.opModes.delete(change.op);
+                        if (uidState.opModes.size() <= 0) {
+                            uidState.opModes = null;
+                        }
+                    }
+                } else {
+                    if (uidState.opModes == null) {
+                        uidState.opModes = new SparseIntArray();
+                    }
+                    uidState.opModes.put(change.op, change.mode);
+                }
+                if (uidState.isDefault()) {
+                    mUidStates.remove(change.uid);
+                }
+            } break;
+            case AppOpsModeJournal.TYPE_PACKAGE_MODE: {
+                final UidState uidState = getUidStateLocked(change.uid, true);
+                if (uidState.pkgOps == null) {
+                    uidState.pkgOps = new ArrayMap<>();
+                }
+                Ops ops = uidState.pkgOps.get(change.packageName);
+                if (ops == null) {
+                    ops = new Ops(change.packageName, uidState, change.isPrivileged);
+                    uidState.pkgOps.put(change.packageName, ops);
+                }
+                Op op = ops.get(change.op);
+                if (op == null) {
+                    op = new Op(change.uid, change.packageName, change.op);
+                    ops.put(change.op, op);
+                }
+                op.mode = change.mode;
+                if (change.mode == AppOpsManager.opToDefaultMode(change.op)) {
+                    pruneOp(op, change.uid, change.packageName);
+                }
+            } break;
+            case AppOpsModeJournal.TYPE_REMOVE_PACKAGE: {
+                final UidState uidState = mUidStates.get(change.uid);
+                if (uidState != null && uidState.pkgOps != null) {
+                    uidState.pkgOps.remove(change.packageName);
+                    if (uidState.pkgOps.isEmpty()) {
+                        uidState.pkgOps = null;
+                    }
+                    if (uidState.isDefault()) {
+                        mUidStates.remove(change.uid);
+                    }
+                }
+            } break;
+            case AppOpsModeJournal.TYPE_REMOVE_UID: {
+                mUidStates.remove(change.uid);
+            } break;
+            default:
+                Slog.w(TAG, "Unknown mode journal entry type " + change.type);
+        }
+    }
+
+    private void replayModeJournalLocked(int generation) {
+        final List<AppOpsModeJournal.Entry> changes = mModeJournal.read(generation);
+        for (int i = 0; i < changes.size(); i++) {
+            applyModeChangeLocked(changes.get(i));
+        }
+    }
+
+    private void noteLockAcquiredLocked(long startNanos) {
+        final long waitNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        mLockAcquisitions++;
+        if (waitNanos >= CONTENDED_LOCK_NANOS) {
+            mContendedLockAcquisitions++;
+            mLockWaitNanos += waitNanos;
+            if (waitNanos > mMaxLockWaitNanos) {
+                mMaxLockWaitNanos = waitNanos;
+            }
+        }
+    }
+
     private Op getOpLocked(int code, int uid, String packageName, boolean edit) {
         Ops ops = getOpsRawLocked(uid, packageName, edit);
         if (ops == null) {
@@ -1405,9 +1574,11 @@ public class AppOpsService extends IAppOpsService.Stub {
                     stream = mFile.openRead();
                 } catch (FileNotFoundException e) {
                     Slog.i(TAG, "No existing app ops " + mFile.getBaseFile() + "; starting empty");
+                    replayModeJournalLocked(0);
                     return;
                 }
                 boolean success = false;
+                int generation = 0;
                 mUidStates.clear();
                 try {
                     XmlPullParser parser = Xml.newPullParser();
@@ -1421,6 +1592,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                     if (type != XmlPullParser.START_TAG) {
                         throw new IllegalStateException("no start tag found");
                     }
+                    generation = XmlUtils.readIntAttribute(parser, "journal-generation", 0);
 
                     int outerDepth = parser.getDepth();
                     while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
@@ -1462,6 +1634,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                     } catch (IOException e) {
                     }
                 }
+                replayModeJournalLocked(generation);
             }
         }
     }
@@ -1598,6 +1771,15 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     void writeState() {
         synchronized (mFile) {
+            final int foldedSeq;
+            synchronized (this) {
+                // Every batch handed to the journal so far has already been applied to the
+                // state written below.
+                foldedSeq = mModeChangeBatchSeq;
+            }
+            // Journals started against an older file are ignored on read, so one that
+            // outlives this write (say, the delete doesn't make it to disk) isn't replayed.
+            final int generation = mModeJournal.getGeneration() + 1;
             List<AppOpsManager.PackageOps> allOps = getPackagesForOps(null);
 
             FileOutputStream stream;
@@ -1613,6 +1795,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 out.setOutput(stream, StandardCharsets.UTF_8.name());
                 out.startDocument(null, true);
                 out.startTag(null, "app-ops");
+                out.attribute(null, "journal-generation", Integer.toString(generation));
 
                 final int uidStateCount = mUidStates.size();
                 for (int i = 0; i < uidStateCount; i++) {
@@ -1698,6 +1881,8 @@ public class AppOpsService extends IAppOpsService.Stub {
                 out.endTag(null, "app-ops");
                 out.endDocument();
                 mFile.finishWrite(stream);
+                mModeJournal.fold(generation);
+                mFoldedModeChangeSeq = foldedSeq;
             } catch (IOException e) {
                 Slog.w(TAG, "Failed to write state, restoring backup.", e);
                 mFile.failWrite(stream);
@@ -2157,6 +2342,14 @@ public class AppOpsService extends IAppOpsService.Stub {
             pw.println("Current AppOps Service state:");
             final long now = System.currentTimeMillis();
             boolean needSep = false;
+            pw.print("  Lock: acquisitions="); pw.print(mLockAcquisitions);
+            pw.print(" contended="); pw.print(mContendedLockAcquisitions);
+            pw.print(" totalWait="); TimeUtils.formatDuration(mLockWaitNanos / 1000000, pw);
+            pw.print(" maxWait="); TimeUtils.formatDuration(mMaxLockWaitNanos / 1000000, pw);
+            pw.println();
+            pw.print("  Pending mode changes: "); pw.println(mPendingModeChanges.size());
+            // Only statistics; not worth taking mFile for.
+            mModeJournal.dump(pw, "  ");
             if (mOpModeWatchers.size() > 0) {
                 needSep = true;
                 pw.println("  Op mode watchers:");
@@ -2475,6 +2668,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             final int uid = mUidStates.keyAt(i);
             if (UserHandle.getUserId(uid) == userHandle) {
                 mUidStates.removeAt(i);
+                recordModeChangeLocked(AppOpsModeJournal.TYPE_REMOVE_UID, uid, null, false, 0, 0);
             }
         }
     }
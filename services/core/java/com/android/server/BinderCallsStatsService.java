@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.content.Context;
+import android.os.Binder;
+import android.os.ServiceManager;
+import android.os.SystemProperties;
+import android.util.proto.ProtoOutputStream;
+
+import com.android.internal.os.BinderCallsStats;
+import com.android.internal.util.DumpUtils;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * Reports {@link BinderCallsStats} for system_server through "dumpsys binder_calls_stats".
+ * <p>
+ * Collection is off unless {@code persist.sys.binder_calls_stats} is set, or it is turned on
+ * with --enable. Options: --proto, --reset, --enable, --disable, --sampling N.
+ */
+public class BinderCallsStatsService extends Binder {
+    private static final String TAG = "BinderCallsStatsService";
+
+    private static final String PROPERTY_ENABLED = "persist.sys.binder_calls_stats";
+    private static final String PROPERTY_SAMPLING_INTERVAL =
+            "persist.sys.binder_calls_sampling";
+    private static final int DEFAULT_SAMPLING_INTERVAL = 100;
+
+    private final Context mContext;
+    private final BinderCallsStats mStats = BinderCallsStats.getInstance();
+
+    private BinderCallsStatsService(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Publishes the service, then starts collecting if so configured. Nothing is collected
+     * if the service can't be published, since nobody could read the stats.
+     */
+    public static void start(Context context) {
+        final BinderCallsStatsService service = new BinderCallsStatsService(context);
+        ServiceManager.addService("binder_calls_stats", service);
+        service.mStats.setSamplingInterval(Math.max(1, SystemProperties.getInt(
+                PROPERTY_SAMPLING_INTERVAL, DEFAULT_SAMPLING_INTERVAL)));
+        if (SystemProperties.getBoolean(PROPERTY_ENABLED, false)) {
+            service.mStats.setEnabled(true);
+        }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (!DumpUtils.checkDumpPermission(mContext, TAG, pw)) return;
+
+        boolean protoFormat = false;
+        if (args != null) {
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
+                if ("--proto".equals(arg)) {
+                    protoFormat = true;
+                } else if ("--reset".equals(arg)) {
+                    mStats.reset();
+                    pw.println("Binder calls stats reset.");
+                    return;
+                } else if ("--enable".equals(arg)) {
+                    mStats.setEnabled(true);
+                    pw.println("Binder calls stats enabled.");
+                    return;
+                } else if ("--disable".equals(arg)) {
+                    mStats.setEnabled(false);
+                    pw.println("Binder calls stats disabled.");
+                    return;
+                } else if ("--sampling".equals(arg) && i + 1 < args.length) {
+                    try {
+                        mStats.setSamplingInterval(Integer.parseInt(args[++i]));
+                    } catch (IllegalArgumentException e) {
+                        pw.println("Bad sampling interval: " + args[i]);
+                        return;
+                    }
+                    pw.println("Binder calls sampling interval set to " + args[i]);
+                    return;
+                }
+            }
+        }
+
+        if (protoFormat) {
+            final ProtoOutputStream proto = new ProtoOutputStream(fd);
+            mStats.writeToProto(proto);
+            proto.flush();
+        } else {
+            mStats.dump(pw);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Immutable, precompiled form of one of the filter arrays held by {@link IntentResolver}.
+ * <p>
+ * It answers "which of these filters could possibly match?" with bitsets over the array
+ * indices, so that {@link IntentResolver} only runs the full {@link IntentFilter#match} on the
+ * survivors. A filter is only ruled out when {@code match()} is guaranteed to reject it:
+ * <ul>
+ * <li>the intent has an action the filter does not list,
+ * <li>the intent has a category the filter does not list, or
+ * <li>the filter can only match the intent data through its authorities, and none of them
+ *     is the intent's host.
+ * </ul>
+ * Everything else, including ordering, is left to the regular resolution path, so results
+ * are identical to an unfiltered scan.
+ */
+final class CompiledFilterCut {
+    /** Returned by {@link #getCandidates} when none of the filters can match. */
+    static final long[] NO_CANDIDATES = new long[0];
+
+    /** Category bits available per filter; categories beyond this are not used to prune. */
+    private static final int MAX_INDEXED_CATEGORIES = 64;
+
+    private final int mSize;
+    private final int mWords;
+
+    /** For each action, the filters that list it. */
+    private final ArrayMap<String, long[]> mActionFilters = new ArrayMap<>();
+
+    /** Bit assigned to each category listed by any of the filters. */
+    private final ArrayMap<String, Integer> mCategoryBits = new ArrayMap<>();
+    /** Categories listed by some filter that did not fit in {@link #mCategoryBits}. */
+    private final ArraySet<String> mUnindexedCategories = new ArraySet<>();
+    /** Indexed categories listed by each filter. */
+    private final long[] mFilterCategories;
+
+    /** For each lower-cased host, the filters with an exact authority on it. */
+    private final ArrayMap<String, long[]> mHostFilters = new ArrayMap<>();
+    /** Filters whose data match does not depend on the intent host being listed. */
+    private final long[] mAnyHostFilters;
+
+    /**
+     * @param filters filter array as held by {@link IntentResolver}; only the non-null prefix
+     *            is compiled.
+     */
+    CompiledFilterCut(IntentFilter[] filters) {
+        int size = 0;
+        while (size < filters.length && filters[size] != null) {
+            size++;
+        }
+        mSize = size;
+        mWords = (size + 63) >>> 6;
+        mFilterCategories = new long[size];
+        mAnyHostFilters = new long[mWords];
+
+        for (int i = 0; i < size; i++) {
+            final IntentFilter filter = filters[i];
+            for (int j = filter.countActions() - 1; j >= 0; j--) {
+                setBit(getOrCreate(mActionFilters, filter.getAction(j)), i);
+            }
+            for (int j = filter.countCategories() - 1; j >= 0; j--) {
+                final String category = filter.getCategory(j);
+                Integer bit = mCategoryBits.get(category);
+                if (bit == null && !mUnindexedCategories.contains(category)) {
+                    if (mCategoryBits.size() < MAX_INDEXED_CATEGORIES) {
+                        bit = mCategoryBits.size();
+                        mCategoryBits.put(category, bit);
+                    } else {
+                        mUnindexedCategories.add(category);
+                    }
+                }
+                if (bit != null) {
+                    mFilterCategories[i] |= 1L << bit;
+                }
+            }
+            indexHosts(filter, i);
+        }
+    }
+
+    private void indexHosts(IntentFilter filter, int index) {
+        // Mirrors IntentFilter.matchData(): the authorities are only consulted for filters
+        // with schemes, and not at all if a scheme specific part matched instead.
+        final int authorities = filter.countDataAuthorities();
+        if (filter.countDataSchemes() == 0 || filter.countDataSchemeSpecificParts() > 0
+                || authorities == 0) {
+            setBit(mAnyHostFilters, index);
+            return;
+        }
+        for (int j = 0; j < authorities; j++) {
+            final String host = filter.getDataAuthority(j).getHost();
+            if (host.length() > 0 && host.charAt(0) == '*' || !isAscii(host)) {
+                // Wildcards and hosts that only compare equal ignoring case through
+                // non-ASCII folding are left to the full match.
+                setBit(mAnyHostFilters, index);
+                return;
+            }
+        }
+        for (int j = 0; j < authorities; j++) {
+            final String host = toLowerAscii(filter.getDataAuthority(j).getHost());
+            setBit(getOrCreate(mHostFilters, host), index);
+        }
+    }
+
+    /**
+     * Returns the filters that may match, as a bitset over the array indices, or
+     * {@link #NO_CANDIDATES} if none can.
+     */
+    long[] getCandidates(String action, Uri data, Set<String> categories) {
+        if (mSize == 0) {
+            return NO_CANDIDATES;
+        }
+        final long[] candidates = new long[mWords];
+        if (action != null) {
+            final long[] actionFilters = mActionFilters.get(action);
+            if (actionFilters == null) {
+                return NO_CANDIDATES;
+            }
+            System.arraycopy(actionFilters, 0, candidates, 0, mWords);
+        } else {
+            setAll(candidates);
+        }
+
+        final String host = data != null ? data.getHost() : null;
+        if (host != null && isAscii(host)) {
+            final long[] hostFilters = mHostFilters.get(toLowerAscii(host));
+            boolean any = false;
+            for (int w = 0; w < mWords; w++) {
+                candidates[w] &= mAnyHostFilters[w] | (hostFilters != null ? hostFilters[w] : 0);
+                any |= candidates[w] != 0;
+            }
+            if (!any) {
+                return NO_CANDIDATES;
+            }
+        }
+
+        if (categories != null && !categories.isEmpty()) {
+            long required = 0;
+            final Iterator<String> it = categories.iterator();
+            while (it.hasNext()) {
+                final String category = it.next();
+                final Integer bit = mCategoryBits.get(category);
+                if (bit != null) {
+                    required |= 1L << bit;
+                } else if (!mUnindexedCategories.contains(category)) {
+                    // No filter here lists this category, so none can match.
+                    return NO_CANDIDATES;
+                }
+            }
+            if (required != 0) {
+                boolean any = false;
+                for (int i = 0; i < mSize; i++) {
+                    if ((mFilterCategories[i] & required) != required) {
+                        candidates[i >>> 6] &= ~(1L << i);
+                    }
+                }
+                for (int w = 0; w < mWords; w++) {
+                    any |= candidates[w] != 0;
+                }
+                if (!any) {
+                    return NO_CANDIDATES;
+                }
+            }
+        }
+        return candidates;
+    }
+
+    static boolean isCandidate(long[] candidates, int index) {
+        return (candidates[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private long[] getOrCreate(ArrayMap<String, long[]> map, String key) {
+        long[] bits = map.get(key);
+        if (bits == null) {
+            bits = new long[mWords];
+            map.put(key, bits);
+        }
+        return bits;
+    }
+
+    private static void setBit(long[] bits, int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    private void setAll(long[] bits) {
+        for (int w = 0; w < mWords; w++) {
+            bits[w] = -1L;
+        }
+        final int tail = mSize & 63;
+        if (tail != 0) {
+            bits[mWords - 1] = (1L << tail) - 1;
+        }
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = s.length() - 1; i >= 0; i--) {
+            if (s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String toLowerAscii(String s) {
+        for (int i = s.length() - 1; i >= 0; i--) {
+            final char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                final char[] chars = s.toCharArray();
+                for (int j = i; j >= 0; j--) {
+                    if (chars[j] >= 'A' && chars[j] <= 'Z') {
+                        chars[j] += 'a' - 'A';
+                    }
+                }
+                return new String(chars);
+            }
+        }
+        return s;
+    }
+}
@@ -57,7 +57,9 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Objects;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -77,6 +79,12 @@ public final class DropBoxManagerService extends SystemService {
     private static final int DEFAULT_RESERVE_PERCENT = 10;
     private static final int QUOTA_RESCAN_MILLIS = 5000;
 
+    // Entries up to this size are read into memory by add() and written to disk on the writer
+    // thread, as long as no more than MAX_PENDING_BYTES are waiting in total.  Anything else is
+    // written by the calling binder thread, as before.
+    private static final int MAX_PENDING_ENTRY_BYTES = 256 * 1024;
+    private static final int MAX_PENDING_BYTES = 2 * 1024 * 1024;
+
     // mHandler 'what' value.
     private static final int MSG_SEND_BROADCAST = 1;
 
@@ -110,6 +118,44 @@ public final class DropBoxManagerService extends SystemService {
 
     private int mMaxFiles = -1; // -1 means uninitialized.
 
+    // Entries read by add() and waiting for the writer thread, oldest first.  Guarded by itself.
+    private final ArrayDeque<PendingEntry> mPendingEntries = new ArrayDeque<>();
+    private int mPendingBytes = 0;
+
+    // Held while writing entries to disk, so they land in the order they were added, and so
+    // readers can wait for those already added.  Taken before the service lock.
+    private final Object mWriteLock = new Object();
+
+    private final Handler mWriterHandler;
+
+    // Statistics, reported by dump().
+    private int mNumQueuedWrites = 0;
+    private int mNumDirectWrites = 0;
+
+    private final Runnable mWritePendingEntries = new Runnable() {
+        @Override
+        public void run() {
+            writePendingEntries();
+        }
+    };
+
+    /** An added entry whose data is in memory, waiting to be written. */
+    private static final class PendingEntry {
+        final String tag;
+        final int flags;
+        final long timestampMillis;
+        final byte[] data;
+        final int length;
+
+        PendingEntry(String tag, int flags, long timestampMillis, byte[] data, int length) {
+            this.tag = tag;
+            this.flags = flags;
+            this.timestampMillis = timestampMillis;
+            this.data = data;
+            this.length = length;
+        }
+    }
+
     /** Receives events that might indicate a need to clean up files. */
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
@@ -165,17 +211,33 @@ public final class DropBoxManagerService extends SystemService {
         this(context, new File("/data/system/dropbox"), FgThread.get().getLooper());
     }
 
+    /**
+     * Creates an instance of managed drop box storage that writes queued entries on the shared
+     * I/O thread.
+     *
+     * @param context to use for receiving free space & gservices intents
+     * @param path to store drop box entries in
+     */
+    @VisibleForTesting
+    public DropBoxManagerService(final Context context, File path, Looper looper) {
+        this(context, path, looper, IoThread.get().getLooper());
+    }
+
     /**
      * Creates an instance of managed drop box storage.  Normally there is one of these
      * run by the system, but others can be created for testing and other purposes.
      *
      * @param context to use for receiving free space & gservices intents
      * @param path to store drop box entries in
+     * @param looper to send broadcasts on
+     * @param writerLooper to write queued entries on
      */
     @VisibleForTesting
-    public DropBoxManagerService(final Context context, File path, Looper looper) {
+    DropBoxManagerService(final Context context, File path, Looper looper,
+            Looper writerLooper) {
         super(context);
         mDropBoxDir = path;
+        mWriterHandler = new Handler(writerLooper);
         mContentResolver = getContext().getContentResolver();
         mHandler = new Handler(looper) {
             @Override
@@ -226,9 +288,7 @@ public final class DropBoxManagerService extends SystemService {
     }
 
     public void add(DropBoxManager.Entry entry) {
-        File temp = null;
         InputStream input = null;
-        OutputStream output = null;
         final String tag = entry.getTag();
         try {
             int flags = entry.getFlags();
@@ -236,22 +296,107 @@ public final class DropBoxManagerService extends SystemService {
 
             init();
             if (!isTagEnabled(tag)) return;
-            long max = trimToFit();
-            long lastTrim = System.currentTimeMillis();
-
-            byte[] buffer = new byte[mBlockSize];
-            input = entry.getInputStream();
+            final long time = System.currentTimeMillis();
 
-            // First, accumulate up to one block worth of data in memory before
-            // deciding whether to compress the data or not.
+            // Read what we can afford to hold in memory.  Most entries fit, and are handed to
+            // the writer thread so this (binder) thread doesn't wait on the disk.
 
+            input = entry.getInputStream();
+            byte[] buffer = new byte[Math.min(mBlockSize, MAX_PENDING_ENTRY_BYTES)];
             int read = 0;
-            while (read < buffer.length) {
+            boolean complete = false;
+            while (true) {
+                if (read == buffer.length) {
+                    if (buffer.length >= MAX_PENDING_ENTRY_BYTES) break;
+                    buffer = Arrays.copyOf(buffer,
+                            Math.min(buffer.length * 2, MAX_PENDING_ENTRY_BYTES));
+                }
                 int n = input.read(buffer, read, buffer.length - read);
-                if (n <= 0) break;
+                if (n <= 0) {
+                    complete = true;
+                    break;
+                }
                 read += n;
             }
 
+            if (complete && enqueueEntry(new PendingEntry(tag, flags, time, buffer, read))) {
+                return;
+            }
+
+            synchronized (mWriteLock) {
+                // Keep entries in the order they were added.
+                writePendingEntriesLocked();
+                writeEntryLocked(tag, flags, time, buffer, read, complete ? null : input);
+                mNumDirectWrites++;
+            }
+        } catch (IOException e) {
+            Slog.e(TAG, "Can't write: " + tag, e);
+        } finally {
+            IoUtils.closeQuietly(input);
+            entry.close();
+        }
+    }
+
+    /** Queues an entry for the writer thread, unless too much is waiting already. */
+    private boolean enqueueEntry(PendingEntry pending) {
+        synchronized (mPendingEntries) {
+            if (mPendingBytes + pending.length > MAX_PENDING_BYTES) {
+                return false;
+            }
+            mPendingEntries.add(pending);
+            mPendingBytes += pending.length;
+        }
+        mWriterHandler.post(mWritePendingEntries);
+        return true;
+    }
+
+    /**
+     * Writes all entries queued so far.  Called by the writer thread, and by readers so that
+     * they see every entry added before them.  Must not be called with the service lock held.
+     */
+    private void writePendingEntries() {
+        synchronized (mWriteLock) {
+            writePendingEntriesLocked();
+        }
+    }
+
+    private void writePendingEntriesLocked() {
+        while (true) {
+            final PendingEntry pending;
+            synchronized (mPendingEntries) {
+                pending = mPendingEntries.peek();
+            }
+            if (pending == null) {
+                return;
+            }
+            try {
+                writeEntryLocked(pending.tag, pending.flags, pending.timestampMillis,
+                        pending.data, pending.length, null);
+                mNumQueuedWrites++;
+            } catch (IOException e) {
+                Slog.e(TAG, "Can't write: " + pending.tag, e);
+            } finally {
+                synchronized (mPendingEntries) {
+                    mPendingEntries.poll();
+                    mPendingBytes -= pending.length;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes an entry made of the first {@code read} bytes of {@code buffer}, followed by the
+     * rest of {@code input} if not null, enrolls it and announces it.  Called with
+     * {@link #mWriteLock} held.
+     */
+    private void writeEntryLocked(String tag, int flags, long time, byte[] buffer, int read,
+            InputStream input) throws IOException {
+        File temp = null;
+        OutputStream output = null;
+        try {
+            long max = trimToFit();
+            long lastTrim = System.currentTimeMillis();
+
             // If we have at least one block, compress it -- otherwise, just write
             // the data in uncompressed form.
 
@@ -261,7 +406,7 @@ public final class DropBoxManagerService extends SystemService {
             if (bufferSize < 512) bufferSize = 512;
             FileOutputStream foutput = new FileOutputStream(temp);
             output = new BufferedOutputStream(foutput, bufferSize);
-            if (read == buffer.length && ((flags & DropBoxManager.IS_GZIPPED) == 0)) {
+            if (read >= mBlockSize && ((flags & DropBoxManager.IS_GZIPPED) == 0)) {
                 output = new GZIPOutputStream(output);
                 flags = flags | DropBoxManager.IS_GZIPPED;
             }
@@ -275,7 +420,7 @@ public final class DropBoxManagerService extends SystemService {
                     lastTrim = now;
                 }
 
-                read = input.read(buffer);
+                read = input != null ? input.read(buffer) : 0;
                 if (read <= 0) {
                     FileUtils.sync(foutput);
                     output.close();  // Get a final size measurement
@@ -293,7 +438,7 @@ public final class DropBoxManagerService extends SystemService {
                 }
             } while (read > 0);
 
-            long time = createEntry(temp, tag, flags);
+            time = createEntry(temp, tag, flags, time);
             temp = null;
 
             final Intent dropboxIntent = new Intent(DropBoxManager.ACTION_DROPBOX_ENTRY_ADDED);
@@ -307,12 +452,8 @@ public final class DropBoxManagerService extends SystemService {
             // lock in ActivityManagerService. ActivityManagerService has been caught holding that
             // very lock while waiting for the WindowManagerService lock.
             mHandler.sendMessage(mHandler.obtainMessage(MSG_SEND_BROADCAST, dropboxIntent));
-        } catch (IOException e) {
-            Slog.e(TAG, "Can't write: " + tag, e);
         } finally {
             IoUtils.closeQuietly(output);
-            IoUtils.closeQuietly(input);
-            entry.close();
             if (temp != null) temp.delete();
         }
     }
@@ -327,12 +468,17 @@ public final class DropBoxManagerService extends SystemService {
         }
     }
 
-    public synchronized DropBoxManager.Entry getNextEntry(String tag, long millis) {
+    public DropBoxManager.Entry getNextEntry(String tag, long millis) {
         if (getContext().checkCallingOrSelfPermission(android.Manifest.permission.READ_LOGS)
                 != PackageManager.PERMISSION_GRANTED) {
             throw new SecurityException("READ_LOGS permission required");
         }
 
+        writePendingEntries();
+        return getNextEntryLocked(tag, millis);
+    }
+
+    private synchronized DropBoxManager.Entry getNextEntryLocked(String tag, long millis) {
         try {
             init();
         } catch (IOException e) {
@@ -361,9 +507,14 @@ public final class DropBoxManagerService extends SystemService {
         return null;
     }
 
-    public synchronized void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         if (!DumpUtils.checkDumpAndUsageStatsPermission(getContext(), TAG, pw)) return;
 
+        writePendingEntries();
+        dumpLocked(pw, args);
+    }
+
+    private synchronized void dumpLocked(PrintWriter pw, String[] args) {
         try {
             init();
         } catch (IOException e) {
@@ -399,6 +550,8 @@ public final class DropBoxManagerService extends SystemService {
 
         out.append("Drop box contents: ").append(mAllFiles.contents.size()).append(" entries\n");
         out.append("Max entries: ").append(mMaxFiles).append("\n");
+        out.append("Writes: ").append(mNumQueuedWrites).append(" queued, ")
+                .append(mNumDirectWrites).append(" direct\n");
 
         if (!searchArgs.isEmpty()) {
             out.append("Searching for:");
@@ -772,9 +925,14 @@ public final class DropBoxManagerService extends SystemService {
         }
     }
 
-    /** Moves a temporary file to a final log filename and enrolls it. */
-    private synchronized long createEntry(File temp, String tag, int flags) throws IOException {
-        long t = System.currentTimeMillis();
+    /**
+     * Moves a temporary file to a final log filename and enrolls it.
+     *
+     * @param timestampMillis when the entry was added; bumped if needed to keep it unique
+     */
+    private synchronized long createEntry(File temp, String tag, int flags, long timestampMillis)
+            throws IOException {
+        long t = timestampMillis;
 
         // Require each entry to have a unique timestamp; if there are entries
         // >10sec in the future (due to clock skew), drag them back to avoid
@@ -38,6 +38,7 @@ import android.util.Printer;
 
 import android.content.Intent;
 import android.content.IntentFilter;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FastPrintWriter;
 
 /**
@@ -362,7 +363,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         int N = listCut.size();
         for (int i = 0; i < N; ++i) {
             buildResolveList(intent, categories, debug, defaultOnly, resolvedType, scheme,
-                    listCut.get(i), resultList, userId);
+                    listCut.get(i), null, resultList, userId);
         }
         filterResults(resultList);
         sortResults(resultList);
@@ -444,19 +445,23 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
         if (firstTypeCut != null) {
             buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, firstTypeCut, finalList, userId);
+                    scheme, firstTypeCut, getCandidates(firstTypeCut, intent, categories, debug),
+                    finalList, userId);
         }
         if (secondTypeCut != null) {
             buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, secondTypeCut, finalList, userId);
+                    scheme, secondTypeCut, getCandidates(secondTypeCut, intent, categories, debug),
+                    finalList, userId);
         }
         if (thirdTypeCut != null) {
             buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, thirdTypeCut, finalList, userId);
+                    scheme, thirdTypeCut, getCandidates(thirdTypeCut, intent, categories, debug),
+                    finalList, userId);
         }
         if (schemeCut != null) {
             buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, schemeCut, finalList, userId);
+                    scheme, schemeCut, getCandidates(schemeCut, intent, categories, debug),
+                    finalList, userId);
         }
         filterResults(finalList);
         sortResults(finalList);
@@ -548,6 +553,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             map.put(name,  array);
             array[0] = filter;
         } else {
+            mCompiledCuts.remove(array);
             final int N = array.length;
             int i = N;
             while (i > 0 && array[i-1] == null) {
@@ -661,6 +667,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             Object object) {
         F[] array = map.get(name);
         if (array != null) {
+            mCompiledCuts.remove(array);
             int LAST = array.length-1;
             while (LAST >= 0 && array[LAST] == null) {
                 LAST--;
@@ -693,9 +700,41 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         return new FastImmutableArraySet<String>(categories.toArray(new String[categories.size()]));
     }
 
+    /**
+     * Returns the filters of {@code cut} that may match the intent, as computed by its
+     * {@link CompiledFilterCut}, or {@code null} to consider all of them. The compiled form
+     * is built on first use and kept until the array is modified.
+     */
+    private long[] getCandidates(F[] cut, Intent intent, FastImmutableArraySet<String> categories,
+            boolean debug) {
+        if (!mUseCompiledCuts || debug) {
+            // Debug resolution logs why each filter is rejected, so it needs to see them all.
+            return null;
+        }
+        CompiledFilterCut compiled = mCompiledCuts.get(cut);
+        if (compiled == null) {
+            compiled = new CompiledFilterCut(cut);
+            mCompiledCuts.put(cut, compiled);
+        }
+        return compiled.getCandidates(intent.getAction(), intent.getData(), categories);
+    }
+
+    @VisibleForTesting
+    void setUseCompiledCuts(boolean useCompiledCuts) {
+        mUseCompiledCuts = useCompiledCuts;
+        mCompiledCuts.clear();
+    }
+
+    /**
+     * @param candidates if non-null, only the filters of {@code src} whose index is set in
+     *            this bitset are considered; see {@link CompiledFilterCut}.
+     */
     private void buildResolveList(Intent intent, FastImmutableArraySet<String> categories,
             boolean debug, boolean defaultOnly, String resolvedType, String scheme,
-            F[] src, List<R> dest, int userId) {
+            F[] src, long[] candidates, List<R> dest, int userId) {
+        if (candidates == CompiledFilterCut.NO_CANDIDATES) {
+            return;
+        }
         final String action = intent.getAction();
         final Uri data = intent.getData();
         final String packageName = intent.getPackage();
@@ -718,6 +757,9 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         F filter;
         for (i=0; i<N && (filter=src[i]) != null; i++) {
             int match;
+            if (candidates != null && !CompiledFilterCut.isCandidate(candidates, i)) {
+                continue;
+            }
             if (debug) Slog.v(TAG, "Matching against filter " + filter);
 
             if (excludingStopped && isFilterStopped(filter, userId)) {
@@ -811,6 +853,15 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
      */
     private final ArraySet<F> mFilters = new ArraySet<F>();
 
+    /**
+     * Compiled forms of the filter arrays in the maps below that have been queried, keyed
+     * by array identity. An entry is dropped whenever its array is modified or replaced.
+     */
+    private final ArrayMap<F[], CompiledFilterCut> mCompiledCuts =
+            new ArrayMap<F[], CompiledFilterCut>();
+
+    private boolean mUseCompiledCuts = true;
+
     /**
      * All of the MIME types that have been registered, such as "image/jpeg",
      * "image/*", or "{@literal *}/*".
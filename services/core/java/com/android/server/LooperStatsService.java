@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.content.Context;
+import android.os.Binder;
+
+import com.android.internal.util.DumpUtils;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * Reports the message dispatch stats of system_server's {@link ServiceThread}s through
+ * "dumpsys looper_stats [--enable|--disable|--reset] [thread name filter]".
+ */
+public class LooperStatsService extends Binder {
+    private static final String TAG = "LooperStatsService";
+
+    private final Context mContext;
+
+    public LooperStatsService(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (!DumpUtils.checkDumpPermission(mContext, TAG, pw)) return;
+
+        String filter = null;
+        if (args != null) {
+            for (String arg : args) {
+                if ("--enable".equals(arg)) {
+                    ServiceThread.setLooperStatsEnabled(true);
+                    pw.println("Looper stats enabled.");
+                    return;
+                } else if ("--disable".equals(arg)) {
+                    ServiceThread.setLooperStatsEnabled(false);
+                    pw.println("Looper stats disabled.");
+                    return;
+                } else if ("--reset".equals(arg)) {
+                    ServiceThread.resetLooperStats();
+                    pw.println("Looper stats reset.");
+                    return;
+                } else {
+                    filter = arg;
+                }
+            }
+        }
+        ServiceThread.dumpLooperStats(pw, filter);
+    }
+}
@@ -21,13 +21,23 @@ import android.os.Process;
 import android.os.StrictMode;
 import android.util.Slog;
 
+import com.android.internal.os.LooperStats;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
 /**
  * Special handler thread that we create for system services that require their own loopers.
  */
 public class ServiceThread extends HandlerThread {
     private static final String TAG = "ServiceThread";
 
+    // Running service threads, whose dispatch stats "dumpsys looper_stats" reports.
+    private static final ArrayList<ServiceThread> sThreads = new ArrayList<>();
+    private static boolean sLooperStatsEnabled;
+
     private final boolean mAllowIo;
+    private final LooperStats mLooperStats = new LooperStats();
 
     public ServiceThread(String name, int priority, boolean allowIo) {
         super(name, priority);
@@ -43,6 +53,54 @@ public class ServiceThread extends HandlerThread {
             Slog.i(TAG, "Enabled StrictMode logging for " + getName() + " looper.");
         }
 
-        super.run();
+        try {
+            super.run();
+        } finally {
+            synchronized (sThreads) {
+                sThreads.remove(this);
+            }
+        }
+    }
+
+    @Override
+    protected void onLooperPrepared() {
+        getLooper().getQueue().setUrgentMessagesEnabled(true);
+        getLooper().setStats(mLooperStats);
+        synchronized (sThreads) {
+            mLooperStats.setEnabled(sLooperStatsEnabled);
+            sThreads.add(this);
+        }
+    }
+
+    /** Turns the dispatch stats of all service threads, current and future, on or off. */
+    static void setLooperStatsEnabled(boolean enabled) {
+        synchronized (sThreads) {
+            sLooperStatsEnabled = enabled;
+            for (int i = 0; i < sThreads.size(); i++) {
+                sThreads.get(i).mLooperStats.setEnabled(enabled);
+            }
+        }
+    }
+
+    static void resetLooperStats() {
+        synchronized (sThreads) {
+            for (int i = 0; i < sThreads.size(); i++) {
+                sThreads.get(i).mLooperStats.reset();
+            }
+        }
+    }
+
+    /** Prints the dispatch stats of the service threads whose name contains {@code filter}. */
+    static void dumpLooperStats(PrintWriter pw, String filter) {
+        synchronized (sThreads) {
+            for (int i = 0; i < sThreads.size(); i++) {
+                final ServiceThread thread = sThreads.get(i);
+                if (filter != null && !thread.getName().contains(filter)) {
+                    continue;
+                }
+                pw.print(thread.getName()); pw.println(":");
+                thread.mLooperStats.dump(pw, "  ");
+            }
+        }
     }
 }
\ No newline at end of file
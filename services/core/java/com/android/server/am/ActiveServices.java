@@ -2213,7 +2213,8 @@ public final class ActiveServices {
         bumpServiceExecutingLocked(r, execInFg, "create");
         mAm.updateLruProcessLocked(app, false, null);
         updateServiceForegroundLocked(r.app, /* oomAdj= */ false);
-        mAm.updateOomAdjLocked();
+        // Starting a service only raises app, and the processes app depends on.
+        mAm.updateOomAdjLocked(app, true);
 
         boolean created = false;
         try {
@@ -645,19 +645,28 @@ public class ActivityManagerService extends IActivityManager.Stub
 
     BroadcastQueue mFgBroadcastQueue;
     BroadcastQueue mBgBroadcastQueue;
+    // Long-running ordered broadcasts, kept apart so they don't hold up the background queue.
+    BroadcastQueue mOffloadBroadcastQueue;
     // Convenient for easy iteration over the queues. Foreground is first
     // so that dispatch of foreground broadcasts gets precedence.
-    final BroadcastQueue[] mBroadcastQueues = new BroadcastQueue[2];
+    final BroadcastQueue[] mBroadcastQueues = new BroadcastQueue[3];
 
     BroadcastStats mLastBroadcastStats;
     BroadcastStats mCurBroadcastStats;
 
     BroadcastQueue broadcastQueueForIntent(Intent intent) {
-        final boolean isFg = (intent.getFlags() & Intent.FLAG_RECEIVER_FOREGROUND) != 0;
+        final BroadcastQueue queue = broadcastQueueForFlags(intent.getFlags());
         if (DEBUG_BROADCAST_BACKGROUND) Slog.i(TAG_BROADCAST,
-                "Broadcast intent " + intent + " on "
-                + (isFg ? "foreground" : "background") + " queue");
-        return (isFg) ? mFgBroadcastQueue : mBgBroadcastQueue;
+                "Broadcast intent " + intent + " on " + queue.mQueueName + " queue");
+        return queue;
+    }
+
+    BroadcastQueue broadcastQueueForFlags(int flags) {
+        if ((flags & Intent.FLAG_RECEIVER_OFFLOAD) != 0) {
+            return mOffloadBroadcastQueue;
+        }
+        return (flags & Intent.FLAG_RECEIVER_FOREGROUND) != 0
+                ? mFgBroadcastQueue : mBgBroadcastQueue;
     }
 
     /**
@@ -1381,6 +1390,24 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     int mAdjSeq = 0;
 
+    /**
+     * Scratch list of the processes visited by a partial oom adj update.
+     */
+    final ArrayList<ProcessRecord> mTmpOomAdjTargets = new ArrayList<>();
+
+    /**
+     * Counters for oom adj updates, reported by "dumpsys activity oom". A partial update
+     * recomputes one process and the processes it is a client of; a full update walks the
+     * whole LRU list.
+     */
+    long mNumFullOomAdjUpdates;
+    long mFullOomAdjUpdateNanos;
+    long mNumPartialOomAdjUpdates;
+    long mPartialOomAdjUpdateNanos;
+    long mPartialOomAdjProcsTouched;
+    int mMaxPartialOomAdjProcsTouched;
+    long mNumPartialOomAdjFallbacks;
+
     /**
      * Current sequence id for process LRU updating.
      */
@@ -1598,7 +1625,7 @@ public class ActivityManagerService extends IActivityManager.Stub
      * any critical paths such as when holding the main activity manager lock.
      */
     final ProcessCpuTracker mProcessCpuTracker = new ProcessCpuTracker(
-            MONITOR_THREAD_CPU_USAGE);
+            MONITOR_THREAD_CPU_USAGE, true /* keepProcFilesOpen */);
     final AtomicLong mLastCpuTime = new AtomicLong(0);
     final AtomicBoolean mProcessCpuMutexFree = new AtomicBoolean(true);
     final CountDownLatch mProcessCpuInitLatch = new CountDownLatch(1);
@@ -2815,8 +2842,11 @@ public class ActivityManagerService extends IActivityManager.Stub
                 "foreground", BROADCAST_FG_TIMEOUT, false);
         mBgBroadcastQueue = new BroadcastQueue(this, mHandler,
                 "background", BROADCAST_BG_TIMEOUT, true);
+        mOffloadBroadcastQueue = new BroadcastQueue(this, mHandler,
+                "offload", BROADCAST_BG_TIMEOUT, false);
         mBroadcastQueues[0] = mFgBroadcastQueue;
         mBroadcastQueues[1] = mBgBroadcastQueue;
+        mBroadcastQueues[2] = mOffloadBroadcastQueue;
 
         mServices = new ActiveServices(this);
         mProviderMap = new ProviderMap(this);
@@ -11882,8 +11912,11 @@ public class ActivityManagerService extends IActivityManager.Stub
                 if (conn == null) {
                     throw new NullPointerException("connection is null");
                 }
-                if (decProviderCountLocked(conn, null, null, stable)) {
-                    updateOomAdjLocked();
+                if (decProviderCountLocked(conn, null, null, stable)
+                        && conn.provider.proc != null) {
+                    // Only the provider's process, and what it depends on, can have lost
+                    // importance.
+                    updateOomAdjLocked(conn.provider.proc, true);
                 }
             }
         } finally {
@@ -16186,6 +16219,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         dumpProcessesToGc(fd, pw, args, opti, needSep, dumpAll, null);
 
         pw.println();
+        dumpOomAdjStatsLocked(pw);
         pw.println("  mHomeProcess: " + mHomeProcess);
         pw.println("  mPreviousProcess: " + mPreviousProcess);
         if (mHeavyWeightProcess != null) {
@@ -16195,6 +16229,23 @@ public class ActivityManagerService extends IActivityManager.Stub
         return true;
     }
 
+    void dumpOomAdjStatsLocked(PrintWriter pw) {
+        pw.print("  OOM adj updates: full="); pw.print(mNumFullOomAdjUpdates);
+        if (mNumFullOomAdjUpdates > 0) {
+            pw.print(" (avg "); pw.print(mFullOomAdjUpdateNanos / mNumFullOomAdjUpdates / 1000);
+            pw.print("us)");
+        }
+        pw.print(" partial="); pw.print(mNumPartialOomAdjUpdates);
+        if (mNumPartialOomAdjUpdates > 0) {
+            pw.print(" (avg ");
+            pw.print(mPartialOomAdjUpdateNanos / mNumPartialOomAdjUpdates / 1000);
+            pw.print("us, avg procs ");
+            pw.print(mPartialOomAdjProcsTouched / mNumPartialOomAdjUpdates);
+            pw.print(", max procs "); pw.print(mMaxPartialOomAdjProcsTouched); pw.print(")");
+        }
+        pw.print(" fallbacks to full="); pw.println(mNumPartialOomAdjFallbacks);
+    }
+
     /**
      * There are three ways to call this:
      *  - no provider specified: dump all the providers
@@ -18742,7 +18793,8 @@ public class ActivityManagerService extends IActivityManager.Stub
 
     boolean isPendingBroadcastProcessLocked(int pid) {
         return mFgBroadcastQueue.isPendingBroadcastProcessLocked(pid)
-                || mBgBroadcastQueue.isPendingBroadcastProcessLocked(pid);
+                || mBgBroadcastQueue.isPendingBroadcastProcessLocked(pid)
+                || mOffloadBroadcastQueue.isPendingBroadcastProcessLocked(pid);
     }
 
     void skipPendingBroadcastLocked(int pid) {
@@ -19979,8 +20031,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             BroadcastRecord r;
 
             synchronized(this) {
-                BroadcastQueue queue = (flags & Intent.FLAG_RECEIVER_FOREGROUND) != 0
-                        ? mFgBroadcastQueue : mBgBroadcastQueue;
+                BroadcastQueue queue = broadcastQueueForFlags(flags);
                 r = queue.getMatchingOrderedReceiver(who);
                 if (r != null) {
                     doNext = r.queue.finishReceiverLocked(r, resultCode,
@@ -22551,37 +22602,90 @@ public class ActivityManagerService extends IActivityManager.Stub
     }
 
     /**
-     * Update OomAdj for a specific process.
+     * Update OomAdj for a specific process, and for the processes whose importance depends on
+     * it: the ones it is bound to or holds a provider from, directly or through other
+     * processes.
      * @param app The process to update
      * @param oomAdjAll If it's ok to call updateOomAdjLocked() for all running apps
      *                  if necessary, or skip.
      * @return whether updateOomAdjLocked(app) was successful.
      */
     final boolean updateOomAdjLocked(ProcessRecord app, boolean oomAdjAll) {
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
-        final boolean wasCached = app.cached;
+        final long now = SystemClock.uptimeMillis();
 
         mAdjSeq++;
 
-        // This is the desired cached adjusment we want to tell it to use.
-        // If our app is currently cached, we know it, and that is it.  Otherwise,
-        // we don't know it yet, and it needs to now be cached we will then
-        // need to do a complete oom adj.
-        final int cachedAdj = app.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
-                ? app.curRawAdj : ProcessList.UNKNOWN_ADJ;
-        boolean success = updateOomAdjLocked(app, cachedAdj, TOP_APP, false,
-                SystemClock.uptimeMillis());
-        if (oomAdjAll
-                && (wasCached != app.cached || app.curRawAdj == ProcessList.UNKNOWN_ADJ)) {
-            // Changed to/from cached state, so apps after it in the LRU
+        // Visit the processes in order of distance from app, so each one is computed after
+        // the clients that led to it.
+        final ArrayList<ProcessRecord> targets = mTmpOomAdjTargets;
+        targets.add(app);
+        boolean success = false;
+        boolean becameCached = false;
+        for (int i = 0; i < targets.size(); i++) {
+            final ProcessRecord proc = targets.get(i);
+            final boolean wasCached = proc.cached;
+
+            // This is the desired cached adjusment we want to tell it to use.
+            // If our app is currently cached, we know it, and that is it.  Otherwise,
+            // we don't know it yet, and it needs to now be cached we will then
+            // need to do a complete oom adj.
+            final int cachedAdj = proc.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
+                    ? proc.curRawAdj : ProcessList.UNKNOWN_ADJ;
+            final boolean procSuccess = updateOomAdjLocked(proc, cachedAdj, TOP_APP, false, now);
+            if (proc == app) {
+                success = procSuccess;
+            }
+            // Leaving the cached range only frees a cached slot; the processes still cached
+            // keep valid adjustments until the next full pass spreads them out again.  A
+            // process entering it needs the full pass to be given a cached adjustment.
+            if ((!wasCached && proc.cached) || proc.curRawAdj == ProcessList.UNKNOWN_ADJ) {
+                becameCached = true;
+            }
+            if (proc.thread != null) {
+                addOomAdjDependentsLocked(proc, targets);
+            }
+        }
+        final int touched = targets.size();
+        targets.clear();
+
+        mNumPartialOomAdjUpdates++;
+        mPartialOomAdjUpdateNanos += SystemClock.elapsedRealtimeNanos() - startNanos;
+        mPartialOomAdjProcsTouched += touched;
+        mMaxPartialOomAdjProcsTouched = Math.max(mMaxPartialOomAdjProcsTouched, touched);
+
+        if (oomAdjAll && becameCached) {
+            // Changed to cached state, so apps after it in the LRU
             // list may also be changed.
+            mNumPartialOomAdjFallbacks++;
             updateOomAdjLocked();
         }
         return success;
     }
 
+    /**
+     * Adds the processes that {@code app} is a client of, through service bindings or
+     * provider references, to {@code targets} if they aren't there yet.
+     */
+    private void addOomAdjDependentsLocked(ProcessRecord app, ArrayList<ProcessRecord> targets) {
+        for (int i = app.connections.size() - 1; i >= 0; i--) {
+            final ProcessRecord service = app.connections.valueAt(i).binding.service.app;
+            if (service != null && !targets.contains(service)) {
+                targets.add(service);
+            }
+        }
+        for (int i = app.conProviders.size() - 1; i >= 0; i--) {
+            final ProcessRecord provider = app.conProviders.get(i).provider.proc;
+            if (provider != null && !targets.contains(provider)) {
+                targets.add(provider);
+            }
+        }
+    }
+
     final void updateOomAdjLocked() {
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
         final long now = SystemClock.uptimeMillis();
@@ -23042,6 +23146,9 @@ public class ActivityManagerService extends IActivityManager.Stub
             });
         }
 
+        mNumFullOomAdjUpdates++;
+        mFullOomAdjUpdateNanos += SystemClock.elapsedRealtimeNanos() - startNanos;
+
         if (DEBUG_OOM_ADJ) {
             final long duration = SystemClock.uptimeMillis() - now;
             if (false) {
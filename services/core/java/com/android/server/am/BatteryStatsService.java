@@ -45,6 +45,7 @@ import android.telephony.ModemActivityInfo;
 import android.telephony.SignalStrength;
 import android.telephony.TelephonyManager;
 import android.util.Slog;
+import android.util.SparseArray;
 
 import com.android.internal.app.IBatteryStats;
 import com.android.internal.os.BatteryStatsHelper;
@@ -348,9 +349,13 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         //mStats.dumpLocked(new LogPrinter(Log.INFO, "foo", Log.LOG_ID_SYSTEM));
         Parcel out = Parcel.obtain();
         awaitUninterruptibly(mWorker.scheduleSync("get-stats", BatteryExternalStatsWorker.UPDATE_ALL));
+        // The full history goes out only through here, since it doesn't fit in a binder
+        // transaction. Its segment files are read before taking the lock.
+        final SparseArray<Parcel> segments = mStats.readHistorySegments();
         synchronized (mStats) {
-            mStats.writeToParcel(out, 0);
+            mStats.writeToParcelWithHistory(out, segments);
         }
+        BatteryStatsImpl.recycleHistorySegments(segments);
         byte[] data = out.marshall();
         out.recycle();
         try {
@@ -128,6 +128,11 @@ public final class BroadcastQueue {
     final long[] mSummaryHistoryDispatchTime = new  long[MAX_BROADCAST_SUMMARY_HISTORY];
     final long[] mSummaryHistoryFinishTime = new  long[MAX_BROADCAST_SUMMARY_HISTORY];
 
+    /**
+     * How long each receiver took to finish the ordered broadcasts sent to it, for debugging.
+     */
+    final ReceiverLatencyStats mReceiverLatency = new ReceiverLatencyStats();
+
     /**
      * Set when we current have a BROADCAST_INTENT_MSG in flight.
      */
@@ -286,7 +291,7 @@ public final class BroadcastQueue {
         app.curReceivers.add(r);
         app.forceProcessStateUpTo(ActivityManager.PROCESS_STATE_RECEIVER);
         mService.updateLruProcessLocked(app, false, null);
-        mService.updateOomAdjLocked();
+        mService.updateOomAdjLocked(app, true);
 
         // Tell the application to launch this receiver.
         r.intent.setComponent(r.curComponent);
@@ -409,6 +414,12 @@ public final class BroadcastQueue {
         r.state = BroadcastRecord.IDLE;
         if (state == BroadcastRecord.IDLE) {
             Slog.w(TAG, "finishReceiver [" + mQueueName + "] called but state is IDLE");
+        } else if (r.curFilter != null) {
+            mReceiverLatency.addReceiverTime(r.curFilter.packageName + "/<registered>",
+                    SystemClock.uptimeMillis() - r.receiverTime);
+        } else if (r.curComponent != null) {
+            mReceiverLatency.addReceiverTime(r.curComponent.flattenToShortString(),
+                    SystemClock.uptimeMillis() - r.receiverTime);
         }
         r.receiver = null;
         r.intent.setComponent(null);
@@ -1745,6 +1756,8 @@ public final class BroadcastQueue {
             } while (ringIndex != lastIndex);
         }
 
+        needSep = mReceiverLatency.dumpLocked(pw, mQueueName, dumpPackage, needSep);
+
         return needSep;
     }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.os.BucketedStats;
+
+import java.io.PrintWriter;
+
+/**
+ * Histograms of how long each receiver of a broadcast queue took to finish its ordered
+ * broadcasts, from dispatch (including any process start) to finish.
+ */
+final class ReceiverLatencyStats {
+    /** Upper bounds, in milliseconds, of every bucket but the last. */
+    private static final long[] BUCKET_LIMITS = { 10, 50, 100, 500, 1000, 5000, 10000 };
+
+    /** Receivers beyond this many are counted together, to bound the memory used. */
+    @VisibleForTesting
+    static final int MAX_RECEIVERS = 200;
+
+    @VisibleForTesting
+    static final String OTHER_RECEIVERS = "(other)";
+
+    /** Slot of each receiver in {@link #mTimes}. */
+    final ArrayMap<String, Integer> mReceivers = new ArrayMap<>();
+    final BucketedStats mTimes = new BucketedStats(BUCKET_LIMITS, MAX_RECEIVERS + 1);
+
+    void addReceiverTime(String receiver, long time) {
+        Integer slot = mReceivers.get(receiver);
+        if (slot == null) {
+            if (mReceivers.size() >= MAX_RECEIVERS) {
+                receiver = OTHER_RECEIVERS;
+                slot = mReceivers.get(receiver);
+            }
+            if (slot == null) {
+                slot = mReceivers.size();
+                mReceivers.put(receiver, slot);
+            }
+        }
+        mTimes.add(slot, time);
+    }
+
+    boolean dumpLocked(PrintWriter pw, String queueName, String dumpPackage, boolean needSep) {
+        boolean printed = false;
+        for (int i = 0; i < mReceivers.size(); i++) {
+            final String receiver = mReceivers.keyAt(i);
+            if (dumpPackage != null && !receiver.startsWith(dumpPackage + "/")) {
+                continue;
+            }
+            if (!printed) {
+                if (needSep) {
+                    pw.println();
+                }
+                needSep = true;
+                printed = true;
+                pw.print("  Receiver latency [" + queueName + "] (count ");
+                mTimes.dumpBucketLimits(pw);
+                pw.println(", in ms):");
+            }
+            final int slot = mReceivers.valueAt(i);
+            pw.print("    "); pw.print(receiver); pw.print(": ");
+            mTimes.dumpHistogram(pw, slot);
+            pw.print(" avg="); pw.print(mTimes.getTotal(slot) / mTimes.getCount(slot));
+            pw.print(" max="); pw.println(mTimes.getMax(slot));
+        }
+        return needSep;
+    }
+}
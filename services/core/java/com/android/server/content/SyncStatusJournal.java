@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.content;
+
+import android.content.SyncStatusInfo;
+import android.os.Parcel;
+
+import com.android.server.utils.JournalFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary journal of the sync status records changed since status.bin was last written.
+ * <p>
+ * Each entry is the full {@link SyncStatusInfo} of one authority, so replaying the entries
+ * in order on top of status.bin gives the current status, and updating one authority costs
+ * one record rather than a rewrite of every status. The journal is deleted once a full
+ * write of status.bin has folded it in. Each write of status.bin records a new generation, and
+ * the journal is only replayed on top of the generation it was started against; as a
+ * {@link JournalFile}, a torn entry at its tail is dropped on read.
+ * <p>
+ * Callers serialize access themselves.
+ */
+final class SyncStatusJournal {
+    private static final int MAGIC = 0x53594e4a; // SYNJ
+    private static final int VERSION = 2;
+
+    private final JournalFile mJournal;
+
+    // Statistics, reported by dump().
+    private int mAppends;
+    private int mRecordsAppended;
+    private int mFolds;
+
+    SyncStatusJournal(File file) {
+        mJournal = new JournalFile(file, MAGIC, VERSION);
+    }
+
+    long getBytes() {
+        return mJournal.getBytes();
+    }
+
+    /**
+     * Reads the status records journaled on top of the status.bin with the given generation,
+     * oldest first, dropping a torn tail. A journal started against an older status.bin has
+     * already been folded into it, and is discarded.
+     */
+    List<SyncStatusInfo> read(int generation) {
+        final List<byte[]> data = mJournal.read(generation);
+        final ArrayList<SyncStatusInfo> records = new ArrayList<>(data.size());
+        for (int i = 0; i < data.size(); i++) {
+            final byte[] record = data.get(i);
+            final Parcel parcel = Parcel.obtain();
+            try {
+                parcel.unmarshall(record, 0, record.length);
+                parcel.setDataPosition(0);
+                records.add(new SyncStatusInfo(parcel));
+            } finally {
+                parcel.recycle();
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Flattens {@code status} into a record for {@link #append}. Done while the status is
+     * guarded, so the append itself can happen outside of the lock.
+     */
+    static byte[] marshall(SyncStatusInfo status) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            status.writeToParcel(parcel, 0);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /** Appends the given records, made by {@link #marshall}, and syncs them to disk. */
+    void append(List<byte[]> records) throws IOException {
+        mJournal.append(records);
+        mAppends++;
+        mRecordsAppended += records.size();
+    }
+
+    /** Returns the generation of the status.bin the journal applies to. */
+    int getGeneration() {
+        return mJournal.getGeneration();
+    }
+
+    /**
+     * Discards the journal after its records have been written to the status.bin with the
+     * given generation.
+     */
+    void fold(int generation) {
+        mJournal.reset(generation);
+        mFolds++;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.print("Status journal: bytes="); pw.print(mJournal.getBytes());
+        pw.print(" appends="); pw.print(mAppends);
+        pw.print(" records="); pw.print(mRecordsAppended);
+        pw.print(" folds="); pw.println(mFolds);
+    }
+}
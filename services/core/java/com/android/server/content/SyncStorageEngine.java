@@ -46,6 +46,7 @@ import android.util.*;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.FastXmlSerializer;
+import com.android.server.IoThread;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -54,6 +55,7 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -131,11 +133,15 @@ public class SyncStorageEngine extends Handler {
     public static final int MAX_HISTORY = 100;
 
     private static final int MSG_WRITE_STATUS = 1;
-    private static final long WRITE_STATUS_DELAY = 1000*60*10; // 10 minutes
 
     private static final int MSG_WRITE_STATISTICS = 2;
     private static final long WRITE_STATISTICS_DELAY = 1000*60*30; // 1/2 hour
 
+    /** Changed statuses are journaled this long after the first change, as one batch. */
+    private static final long JOURNAL_STATUS_DELAY = 1000; // 1 second
+    /** The status file is rewritten, folding in the journal, once it grows past this. */
+    private static final long MAX_STATUS_JOURNAL_BYTES = 128 * 1024;
+
     private static final boolean SYNC_ENABLED_DEFAULT = false;
 
     // the version of the accounts xml file format
@@ -447,6 +453,21 @@ public class SyncStorageEngine extends Handler {
      */
     private final AtomicFile mStatusFile;
 
+    /**
+     * The status records changed since mStatusFile was written. Appends happen on the I/O
+     * thread, outside of the mAuthorities lock; access is guarded by the journal itself,
+     * which is always taken after mAuthorities.
+     */
+    private final SyncStatusJournal mStatusJournal;
+
+    /** Authorities whose status changed and hasn't been journaled yet. */
+    private final SparseBooleanArray mPendingStatusIds = new SparseBooleanArray();
+    /** Sequence number of the last batch of status records taken for the journal. */
+    private int mStatusBatchSeq;
+    /** Batches up to this sequence number are in mStatusFile. Guarded by mStatusJournal. */
+    private int mFoldedStatusSeq;
+    private final Runnable mJournalStatusRunner = this::journalPendingStatus;
+
     /**
      * This file contains sync statistics.  This is purely debugging information
      * so is written infrequently and can be thrown away at any time.
@@ -479,6 +500,7 @@ public class SyncStorageEngine extends Handler {
 
         mAccountInfoFile = new AtomicFile(new File(syncDir, "accounts.xml"));
         mStatusFile = new AtomicFile(new File(syncDir, "status.bin"));
+        mStatusJournal = new SyncStatusJournal(new File(syncDir, "status.journal"));
         mStatisticsFile = new AtomicFile(new File(syncDir, "stats.bin"));
 
         readAccountInfoLocked();
@@ -1162,12 +1184,8 @@ public class SyncStorageEngine extends Handler {
             final DayStats ds = mDayStats[0];
 
             final long lastSyncTime = (item.eventTime + elapsedTime);
-            boolean writeStatusNow = false;
             if (MESG_SUCCESS.equals(resultMessage)) {
                 // - if successful, update the successful columns
-                if (status.lastSuccessTime == 0 || status.lastFailureTime != 0) {
-                    writeStatusNow = true;
-                }
                 status.lastSuccessTime = lastSyncTime;
                 status.lastSuccessSource = item.source;
                 status.lastFailureTime = 0;
@@ -1177,9 +1195,6 @@ public class SyncStorageEngine extends Handler {
                 ds.successCount++;
                 ds.successTime += elapsedTime;
             } else if (!MESG_CANCELED.equals(resultMessage)) {
-                if (status.lastFailureTime == 0) {
-                    writeStatusNow = true;
-                }
                 status.lastFailureTime = lastSyncTime;
                 status.lastFailureSource = item.source;
                 status.lastFailureMesg = resultMessage;
@@ -1200,12 +1215,7 @@ public class SyncStorageEngine extends Handler {
 
             status.addEvent(event.toString());
 
-            if (writeStatusNow) {
-                writeStatusLocked();
-            } else if (!hasMessages(MSG_WRITE_STATUS)) {
-                sendMessageDelayed(obtainMessage(MSG_WRITE_STATUS),
-                        WRITE_STATUS_DELAY);
-            }
+            journalStatusLocked(item.authorityId);
             if (writeStatisticsNow) {
                 writeStatisticsLocked();
             } else if (!hasMessages(MSG_WRITE_STATISTICS)) {
@@ -2057,6 +2067,11 @@ public class SyncStorageEngine extends Handler {
 
     public static final int STATUS_FILE_END = 0;
     public static final int STATUS_FILE_ITEM = 100;
+    /**
+     * Followed by the generation of the file, which the status journal is matched against.
+     * Written after the items, where older readers stop at it without losing any.
+     */
+    public static final int STATUS_FILE_GENERATION = 200;
 
     /**
      * Read all sync status back in to the initial engine state.
@@ -2065,6 +2080,7 @@ public class SyncStorageEngine extends Handler {
         if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
             Slog.v(TAG_FILE, "Reading " + mStatusFile.getBaseFile());
         }
+        int generation = 0;
         try {
             byte[] data = mStatusFile.readFully();
             Parcel in = Parcel.obtain();
@@ -2081,6 +2097,8 @@ public class SyncStorageEngine extends Handler {
                         }
                         mSyncStatus.put(status.authorityId, status);
                     }
+                } else if (token == STATUS_FILE_GENERATION) {
+                    generation = in.readInt();
                 } else {
                     // Ooops.
                     Slog.w(TAG, "Unknown status token: " + token);
@@ -2090,6 +2108,70 @@ public class SyncStorageEngine extends Handler {
         } catch (java.io.IOException e) {
             Slog.i(TAG, "No initial status");
         }
+
+        // Apply the records journaled since the status file was written.
+        synchronized (mStatusJournal) {
+            final List<SyncStatusInfo> records = mStatusJournal.read(generation);
+            for (int i = 0; i < records.size(); i++) {
+                final SyncStatusInfo status = records.get(i);
+                if (mAuthorities.indexOfKey(status.authorityId) >= 0) {
+                    status.pending = false;
+                    mSyncStatus.put(status.authorityId, status);
+                }
+            }
+            if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
+                Slog.v(TAG_FILE, "Replayed " + records.size() + " journaled status records");
+            }
+        }
+    }
+
+    /**
+     * Schedules the status of the given authority to be appended to the status journal. This
+     * replaces rewriting the whole status file after each sync.
+     */
+    private void journalStatusLocked(int authorityId) {
+        if (mPendingStatusIds.size() == 0) {
+            IoThread.getHandler().postDelayed(mJournalStatusRunner, JOURNAL_STATUS_DELAY);
+        }
+        mPendingStatusIds.put(authorityId, true);
+    }
+
+    private void journalPendingStatus() {
+        final ArrayList<byte[]> records;
+        final int seq;
+        synchronized (mAuthorities) {
+            final int N = mPendingStatusIds.size();
+            records = new ArrayList<>(N);
+            for (int i = 0; i < N; i++) {
+                final SyncStatusInfo status = mSyncStatus.get(mPendingStatusIds.keyAt(i));
+                if (status != null) {
+                    records.add(SyncStatusJournal.marshall(status));
+                }
+            }
+            mPendingStatusIds.clear();
+            seq = ++mStatusBatchSeq;
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+
+        synchronized (mStatusJournal) {
+            if (seq <= mFoldedStatusSeq) {
+                // A full write of the status file already has these.
+                return;
+            }
+            try {
+                mStatusJournal.append(records);
+                if (mStatusJournal.getBytes() <= MAX_STATUS_JOURNAL_BYTES) {
+                    return;
+                }
+            } catch (java.io.IOException e) {
+                Slog.w(TAG, "Error journaling status", e);
+            }
+        }
+        // Either the journal is due to be folded, or the records didn't make it in; both
+        // are handled by writing the whole status file.
+        sendEmptyMessage(MSG_WRITE_STATUS);
     }
 
     /**
@@ -2103,6 +2185,11 @@ public class SyncStorageEngine extends Handler {
         // The file is being written, so we don't need to have a scheduled
         // write until the next change.
         removeMessages(MSG_WRITE_STATUS);
+        final int foldedSeq = mStatusBatchSeq;
+        final int generation;
+        synchronized (mStatusJournal) {
+            generation = mStatusJournal.getGeneration() + 1;
+        }
 
         FileOutputStream fos = null;
         try {
@@ -2114,11 +2201,20 @@ public class SyncStorageEngine extends Handler {
                 out.writeInt(STATUS_FILE_ITEM);
                 status.writeToParcel(out, 0);
             }
+            out.writeInt(STATUS_FILE_GENERATION);
+            out.writeInt(generation);
             out.writeInt(STATUS_FILE_END);
             fos.write(out.marshall());
             out.recycle();
 
             mStatusFile.finishWrite(fos);
+
+            // Everything journaled or waiting to be journaled is in the file now.
+            mPendingStatusIds.clear();
+            synchronized (mStatusJournal) {
+                mStatusJournal.fold(generation);
+                mFoldedStatusSeq = foldedSeq;
+            }
         } catch (java.io.IOException e1) {
             Slog.w(TAG, "Error writing status", e1);
             if (fos != null) {
@@ -2242,6 +2338,12 @@ public class SyncStorageEngine extends Handler {
         }
     }
 
+    void dumpStatusJournal(PrintWriter pw) {
+        synchronized (mStatusJournal) {
+            mStatusJournal.dump(pw);
+        }
+    }
+
     /**
      * Let the BackupManager know that account sync settings have changed. This will trigger
      * {@link com.android.server.backup.SystemBackupAgent} to run.
@@ -513,6 +513,7 @@ final class DisplayPowerController implements AutomaticBrightnessController.Call
             mPendingUpdatePowerStateLocked = true;
             Message msg = mHandler.obtainMessage(MSG_UPDATE_POWER_STATE);
             msg.setAsynchronous(true);
+            msg.setUrgent(true);
             mHandler.sendMessage(msg);
         }
     }
@@ -2472,6 +2472,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
             pw.println();
             pw.print("PersistStats: ");
             pw.println(mJobs.getPersistStats());
+            mJobs.dump(pw, "");
         }
         pw.println();
     }
@@ -30,6 +30,7 @@ import android.os.UserHandle;
 import android.text.format.DateUtils;
 import android.util.AtomicFile;
 import android.util.ArraySet;
+import android.util.LongSparseArray;
 import android.util.Pair;
 import android.util.Slog;
 import android.util.SparseArray;
@@ -37,17 +38,19 @@ import android.util.Xml;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
-import com.android.internal.util.FastXmlSerializer;
 import com.android.server.IoThread;
 import com.android.server.job.JobSchedulerInternal.JobStorePersistStats;
 import com.android.server.job.controllers.JobStatus;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
@@ -55,12 +58,12 @@ import java.util.Set;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
 
 /**
  * Maintains the master list of jobs that the job scheduler is tracking. These jobs are compared by
  * reference, so none of the functions in this class should make a copy.
- * Also handles read/write of persisted jobs.
+ * Also handles read/write of persisted jobs, which are kept in a {@link JobStoreJournal}. Jobs
+ * persisted by earlier releases in jobs.xml are read once and migrated on the next write.
  *
  * Note on locking:
  *      All callers to this class must <strong>lock on the class object they are calling</strong>.
@@ -74,19 +77,32 @@ public final class JobStore {
 
     /** Threshold to adjust how often we want to write to the db. */
     private static final int MAX_OPS_BEFORE_WRITE = 1;
+    /** How long to collect further changes for once a write has been requested. */
+    private static final long WRITE_COALESCE_DELAY_MS = 100;
 
     final Object mLock;
     final JobSet mJobSet; // per-caller-uid tracking
     final Context mContext;
 
     // Bookkeeping around incorrect boot-time system clock
-    private final long mXmlTimestamp;
+    private final long mPersistedTimestamp;
     private boolean mRtcGood;
 
     private int mDirtyOperations;
+    private boolean mWriteScheduled;
+
+    /**
+     * Persisted jobs changed since the last write, by {@link JobStoreJournal#getKey}. A
+     * {@code null} value means the job was removed.
+     */
+    private final LongSparseArray<JobStatus> mPendingWrites = new LongSparseArray<>();
+    /** Whether the next write must rewrite every persisted job. */
+    private boolean mFullWritePending;
 
     private static final Object sSingletonLock = new Object();
-    private final AtomicFile mJobsFile;
+    private final JobStoreJournal mJournal;
+    /** Where jobs were persisted before {@link JobStoreJournal}; only read for migration. */
+    private final AtomicFile mLegacyJobsFile;
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
@@ -125,7 +141,9 @@ public final class JobStore {
         File systemDir = new File(dataDir, "system");
         File jobDir = new File(systemDir, "job");
         jobDir.mkdirs();
-        mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"));
+        mJournal = new JobStoreJournal(new File(jobDir, "jobs.bin"),
+                new File(jobDir, "jobs.bin.journal"));
+        mLegacyJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"));
 
         mJobSet = new JobSet();
 
@@ -140,10 +158,14 @@ public final class JobStore {
         // an incorrect historical timestamp.  That's fine; at worst we'll reboot with
         // a *correct* timestamp, see a bunch of overdue jobs, and run them; then
         // settle into normal operation.
-        mXmlTimestamp = mJobsFile.getLastModifiedTime();
-        mRtcGood = (System.currentTimeMillis() > mXmlTimestamp);
+        mPersistedTimestamp = mJournal.exists()
+                ? mJournal.getLastModifiedTime() : mLegacyJobsFile.getLastModifiedTime();
+        mRtcGood = (System.currentTimeMillis() > mPersistedTimestamp);
 
         readJobMapFromDisk(mJobSet, mRtcGood);
+        // Fold whatever was replayed from the journal, or migrated from xml, into a fresh
+        // snapshot the first time anything changes.
+        mFullWritePending = true;
     }
 
     public boolean jobTimesInflatedValid() {
@@ -151,7 +173,7 @@ public final class JobStore {
     }
 
     public boolean clockNowValidToInflate(long now) {
-        return now >= mXmlTimestamp;
+        return now >= mPersistedTimestamp;
     }
 
     /**
@@ -187,6 +209,7 @@ public final class JobStore {
         boolean replaced = mJobSet.remove(jobStatus);
         mJobSet.add(jobStatus);
         if (jobStatus.isPersisted()) {
+            mPendingWrites.put(getKey(jobStatus), jobStatus);
             maybeWriteStatusToDiskAsync();
         }
         if (DEBUG) {
@@ -224,26 +247,53 @@ public final class JobStore {
             }
             return false;
         }
-        if (writeBack && jobStatus.isPersisted()) {
-            maybeWriteStatusToDiskAsync();
+        if (jobStatus.isPersisted()) {
+            // Recorded even without writeBack, so that it's part of whichever write comes next.
+            recordRemovedLocked(jobStatus);
+            if (writeBack) {
+                maybeWriteStatusToDiskAsync();
+            }
         }
         return removed;
     }
 
+    private void recordRemovedLocked(JobStatus jobStatus) {
+        // If a replacement with the same id was added first, it's the one to keep on disk.
+        final JobStatus current = mJobSet.get(jobStatus.getUid(), jobStatus.getJobId());
+        mPendingWrites.put(getKey(jobStatus),
+                current != null && current.isPersisted() ? current : null);
+    }
+
+    private static long getKey(JobStatus jobStatus) {
+        return JobStoreJournal.getKey(jobStatus.getUid(), jobStatus.getJobId());
+    }
+
     /**
      * Remove the jobs of users not specified in the whitelist.
      * @param whitelist Array of User IDs whose jobs are not to be removed.
      */
     public void removeJobsOfNonUsers(int[] whitelist) {
+        mJobSet.forEachJob(job -> {
+            if (job.isPersisted()
+                    && !ArrayUtils.contains(whitelist, UserHandle.getUserId(job.getUid()))) {
+                mPendingWrites.put(getKey(job), null);
+            }
+        });
         mJobSet.removeJobsOfNonUsers(whitelist);
     }
 
     @VisibleForTesting
     public void clear() {
         mJobSet.clear();
+        mPendingWrites.clear();
+        mFullWritePending = true;
         maybeWriteStatusToDiskAsync();
     }
 
+    void dump(PrintWriter pw, String prefix) {
+        mJournal.dump(pw, prefix);
+    }
+
     /**
      * @param userHandle User for whom we are querying the list of jobs.
      * @return A list of all the jobs scheduled by the provided user. Never null.
@@ -287,7 +337,7 @@ public final class JobStore {
         public void process(JobStatus jobStatus);
     }
 
-    /** Version of the db schema. */
+    /** Version of the legacy xml db schema. */
     private static final int JOBS_FILE_VERSION = 0;
     /** Tag corresponds to constraints this job needs. */
     private static final String XML_TAG_PARAMS_CONSTRAINTS = "constraints";
@@ -296,18 +346,41 @@ public final class JobStore {
     private static final String XML_TAG_ONEOFF = "one-off";
     private static final String XML_TAG_EXTRAS = "extras";
 
+    /** Version of the binary job record, written at the start of each one. */
+    private static final int JOB_RECORD_VERSION = 1;
+
+    private static final int CONSTRAINT_IDLE = 1 << 0;
+    private static final int CONSTRAINT_CHARGING = 1 << 1;
+    private static final int CONSTRAINT_BATTERY_NOT_LOW = 1 << 2;
+
+    /** Nested extras deeper than this are persisted as null. */
+    private static final int MAX_EXTRAS_DEPTH = 10;
+
+    private static final byte VAL_NULL = 0;
+    private static final byte VAL_STRING = 1;
+    private static final byte VAL_INTEGER = 2;
+    private static final byte VAL_LONG = 3;
+    private static final byte VAL_DOUBLE = 4;
+    private static final byte VAL_BOOLEAN = 5;
+    private static final byte VAL_STRING_ARRAY = 6;
+    private static final byte VAL_INT_ARRAY = 7;
+    private static final byte VAL_LONG_ARRAY = 8;
+    private static final byte VAL_DOUBLE_ARRAY = 9;
+    private static final byte VAL_BOOLEAN_ARRAY = 10;
+    private static final byte VAL_PERSISTABLE_BUNDLE = 11;
+
     /**
-     * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
+     * Schedules a write of the persisted jobs that changed since the last one. Changes made
+     * within {@link #WRITE_COALESCE_DELAY_MS} of the first one go out in the same write.
      */
     private void maybeWriteStatusToDiskAsync() {
         mDirtyOperations++;
-        if (mDirtyOperations >= MAX_OPS_BEFORE_WRITE) {
+        if (mDirtyOperations >= MAX_OPS_BEFORE_WRITE && !mWriteScheduled) {
             if (DEBUG) {
                 Slog.v(TAG, "Writing jobs to disk.");
             }
-            mIoHandler.removeCallbacks(mWriteRunnable);
-            mIoHandler.post(mWriteRunnable);
+            mWriteScheduled = true;
+            mIoHandler.postDelayed(mWriteRunnable, WRITE_COALESCE_DELAY_MS);
         }
     }
 
@@ -317,218 +390,280 @@ public final class JobStore {
     }
 
     /**
-     * Runnable that writes {@link #mJobSet} out to xml.
+     * Runnable that writes the changes to {@link #mJobSet} out to the journal, or all of it to
+     * a new snapshot when the journal is due for compaction.
      * NOTE: This Runnable locks on mLock
      */
     private final Runnable mWriteRunnable = new Runnable() {
         @Override
         public void run() {
             final long startElapsed = SystemClock.elapsedRealtime();
-            final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+            final LongSparseArray<JobStatus> storeCopy = new LongSparseArray<JobStatus>();
+            final int[] counts = new int[3];
+            final boolean fullWrite;
             synchronized (mLock) {
+                mWriteScheduled = false;
+                mDirtyOperations = 0;
+                fullWrite = mFullWritePending || mJournal.shouldCompact();
                 // Clone the jobs so we can release the lock before writing.
                 mJobSet.forEachJob(new JobStatusFunctor() {
                     @Override
                     public void process(JobStatus job) {
-                        if (job.isPersisted()) {
-                            storeCopy.add(new JobStatus(job));
+                        if (!job.isPersisted()) {
+                            return;
+                        }
+                        if (fullWrite) {
+                            storeCopy.put(getKey(job), new JobStatus(job));
+                        }
+                        counts[0]++;
+                        if (job.getUid() == Process.SYSTEM_UID) {
+                            counts[1]++;
+                            if (isSyncJob(job)) {
+                                counts[2]++;
+                            }
                         }
                     }
                 });
+                if (!fullWrite) {
+                    for (int i = 0; i < mPendingWrites.size(); i++) {
+                        final JobStatus job = mPendingWrites.valueAt(i);
+                        storeCopy.put(mPendingWrites.keyAt(i),
+                                job != null ? new JobStatus(job) : null);
+                    }
+                }
+                mPendingWrites.clear();
+                mFullWritePending = false;
             }
-            writeJobsMapImpl(storeCopy);
-            if (DEBUG) {
-                Slog.v(TAG, "Finished writing, took " + (SystemClock.elapsedRealtime()
-                        - startElapsed) + "ms");
-            }
-        }
-
-        private void writeJobsMapImpl(List<JobStatus> jobList) {
-            int numJobs = 0;
-            int numSystemJobs = 0;
-            int numSyncJobs = 0;
             try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                XmlSerializer out = new FastXmlSerializer();
-                out.setOutput(baos, StandardCharsets.UTF_8.name());
-                out.startDocument(null, true);
-                out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-
-                out.startTag(null, "job-info");
-                out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
-                for (int i=0; i<jobList.size(); i++) {
-                    JobStatus jobStatus = jobList.get(i);
-                    if (DEBUG) {
-                        Slog.d(TAG, "Saving job " + jobStatus.getJobId());
-                    }
-                    out.startTag(null, "job");
-                    addAttributesToJobTag(out, jobStatus);
-                    writeConstraintsToXml(out, jobStatus);
-                    writeExecutionCriteriaToXml(out, jobStatus);
-                    writeBundleToXml(jobStatus.getJob().getExtras(), out);
-                    out.endTag(null, "job");
-
-                    numJobs++;
-                    if (jobStatus.getUid() == Process.SYSTEM_UID) {
-                        numSystemJobs++;
-                        if (isSyncJob(jobStatus)) {
-                            numSyncJobs++;
-                        }
-                    }
+                if (fullWrite) {
+                    writeSnapshot(storeCopy);
+                } else {
+                    appendToJournal(storeCopy);
                 }
-                out.endTag(null, "job-info");
-                out.endDocument();
-
-                // Write out to disk in one fell swoop.
-                FileOutputStream fos = mJobsFile.startWrite();
-                fos.write(baos.toByteArray());
-                mJobsFile.finishWrite(fos);
-                mDirtyOperations = 0;
             } catch (IOException e) {
-                if (DEBUG) {
-                    Slog.v(TAG, "Error writing out job data.", e);
-                }
-            } catch (XmlPullParserException e) {
-                if (DEBUG) {
-                    Slog.d(TAG, "Error persisting bundle.", e);
+                Slog.w(TAG, "Error writing out job data.", e);
+                synchronized (mLock) {
+                    // We no longer know what made it to disk.
+                    mFullWritePending = true;
                 }
             } finally {
-                mPersistInfo.countAllJobsSaved = numJobs;
-                mPersistInfo.countSystemServerJobsSaved = numSystemJobs;
-                mPersistInfo.countSystemSyncManagerJobsSaved = numSyncJobs;
+                mPersistInfo.countAllJobsSaved = counts[0];
+                mPersistInfo.countSystemServerJobsSaved = counts[1];
+                mPersistInfo.countSystemSyncManagerJobsSaved = counts[2];
+            }
+            if (DEBUG) {
+                Slog.v(TAG, "Finished writing " + storeCopy.size()
+                        + (fullWrite ? " jobs" : " job changes") + ", took "
+                        + (SystemClock.elapsedRealtime() - startElapsed) + "ms");
             }
         }
 
-        /** Write out a tag with data comprising the required fields and priority of this job and
-         * its client.
-         */
-        private void addAttributesToJobTag(XmlSerializer out, JobStatus jobStatus)
-                throws IOException {
-            out.attribute(null, "jobid", Integer.toString(jobStatus.getJobId()));
-            out.attribute(null, "package", jobStatus.getServiceComponent().getPackageName());
-            out.attribute(null, "class", jobStatus.getServiceComponent().getClassName());
-            if (jobStatus.getSourcePackageName() != null) {
-                out.attribute(null, "sourcePackageName", jobStatus.getSourcePackageName());
-            }
-            if (jobStatus.getSourceTag() != null) {
-                out.attribute(null, "sourceTag", jobStatus.getSourceTag());
-            }
-            out.attribute(null, "sourceUserId", String.valueOf(jobStatus.getSourceUserId()));
-            out.attribute(null, "uid", Integer.toString(jobStatus.getUid()));
-            out.attribute(null, "priority", String.valueOf(jobStatus.getPriority()));
-            out.attribute(null, "flags", String.valueOf(jobStatus.getFlags()));
-
-            out.attribute(null, "lastSuccessfulRunTime",
-                    String.valueOf(jobStatus.getLastSuccessfulRunTime()));
-            out.attribute(null, "lastFailedRunTime",
-                    String.valueOf(jobStatus.getLastFailedRunTime()));
-        }
-
-        private void writeBundleToXml(PersistableBundle extras, XmlSerializer out)
-                throws IOException, XmlPullParserException {
-            out.startTag(null, XML_TAG_EXTRAS);
-            PersistableBundle extrasCopy = deepCopyBundle(extras, 10);
-            extrasCopy.saveToXml(out);
-            out.endTag(null, XML_TAG_EXTRAS);
+        private void writeSnapshot(LongSparseArray<JobStatus> jobs) throws IOException {
+            final LongSparseArray<byte[]> records = new LongSparseArray<>(jobs.size());
+            for (int i = 0; i < jobs.size(); i++) {
+                records.put(jobs.keyAt(i), writeJobRecord(jobs.valueAt(i)));
+            }
+            mJournal.writeSnapshot(records);
+            if (mLegacyJobsFile.getBaseFile().exists()) {
+                mLegacyJobsFile.delete();
+            }
         }
 
-        private PersistableBundle deepCopyBundle(PersistableBundle bundle, int maxDepth) {
-            if (maxDepth <= 0) {
-                return null;
+        private void appendToJournal(LongSparseArray<JobStatus> changes) throws IOException {
+            if (changes.size() == 0) {
+                return;
             }
-            PersistableBundle copy = (PersistableBundle) bundle.clone();
-            Set<String> keySet = bundle.keySet();
-            for (String key: keySet) {
-                Object o = copy.get(key);
-                if (o instanceof PersistableBundle) {
-                    PersistableBundle bCopy = deepCopyBundle((PersistableBundle) o, maxDepth-1);
-                    copy.putPersistableBundle(key, bCopy);
-                }
+            final ArrayList<byte[]> entries = new ArrayList<>(changes.size());
+            for (int i = 0; i < changes.size(); i++) {
+                final JobStatus job = changes.valueAt(i);
+                entries.add(JobStoreJournal.encodeEntry(changes.keyAt(i),
+                        job != null ? writeJobRecord(job) : null));
             }
-            return copy;
+            mJournal.append(entries);
         }
 
         /**
-         * Write out a tag with data identifying this job's constraints. If the constraint isn't here
-         * it doesn't apply.
+         * Encodes the identity, constraints, execution criteria and extras of a job in the form
+         * read back by {@link ReadJobMapFromDiskRunnable#restoreJobFromRecord}.
          */
-        private void writeConstraintsToXml(XmlSerializer out, JobStatus jobStatus) throws IOException {
-            out.startTag(null, XML_TAG_PARAMS_CONSTRAINTS);
-            if (jobStatus.needsAnyConnectivity()) {
-                out.attribute(null, "connectivity", Boolean.toString(true));
-            }
-            if (jobStatus.needsMeteredConnectivity()) {
-                out.attribute(null, "metered", Boolean.toString(true));
-            }
-            if (jobStatus.needsUnmeteredConnectivity()) {
-                out.attribute(null, "unmetered", Boolean.toString(true));
-            }
-            if (jobStatus.needsNonRoamingConnectivity()) {
-                out.attribute(null, "not-roaming", Boolean.toString(true));
+        private byte[] writeJobRecord(JobStatus jobStatus) throws IOException {
+            if (DEBUG) {
+                Slog.d(TAG, "Saving job " + jobStatus.getJobId());
             }
+            final JobInfo job = jobStatus.getJob();
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(JOB_RECORD_VERSION);
+            out.writeInt(jobStatus.getJobId());
+            writeString(out, jobStatus.getServiceComponent().getPackageName());
+            writeString(out, jobStatus.getServiceComponent().getClassName());
+            writeString(out, jobStatus.getSourcePackageName());
+            writeString(out, jobStatus.getSourceTag());
+            out.writeInt(jobStatus.getSourceUserId());
+            out.writeInt(jobStatus.getUid());
+            out.writeInt(jobStatus.getPriority());
+            out.writeInt(jobStatus.getFlags());
+            out.writeLong(jobStatus.getLastSuccessfulRunTime());
+            out.writeLong(jobStatus.getLastFailedRunTime());
+
+            // Constraints.
+            out.writeInt(job.getNetworkType());
+            int constraints = 0;
             if (jobStatus.hasIdleConstraint()) {
-                out.attribute(null, "idle", Boolean.toString(true));
+                constraints |= CONSTRAINT_IDLE;
             }
             if (jobStatus.hasChargingConstraint()) {
-                out.attribute(null, "charging", Boolean.toString(true));
+                constraints |= CONSTRAINT_CHARGING;
             }
             if (jobStatus.hasBatteryNotLowConstraint()) {
-                out.attribute(null, "battery-not-low", Boolean.toString(true));
+                constraints |= CONSTRAINT_BATTERY_NOT_LOW;
             }
-            out.endTag(null, XML_TAG_PARAMS_CONSTRAINTS);
-        }
+            out.writeInt(constraints);
 
-        private void writeExecutionCriteriaToXml(XmlSerializer out, JobStatus jobStatus)
-                throws IOException {
-            final JobInfo job = jobStatus.getJob();
-            if (jobStatus.getJob().isPeriodic()) {
-                out.startTag(null, XML_TAG_PERIODIC);
-                out.attribute(null, "period", Long.toString(job.getIntervalMillis()));
-                out.attribute(null, "flex", Long.toString(job.getFlexMillis()));
-            } else {
-                out.startTag(null, XML_TAG_ONEOFF);
+            // Execution criteria.
+            out.writeBoolean(job.isPeriodic());
+            if (job.isPeriodic()) {
+                out.writeLong(job.getIntervalMillis());
+                out.writeLong(job.getFlexMillis());
             }
 
             // If we still have the persisted times, we need to record those directly because
             // we haven't yet been able to calculate the usual elapsed-timebase bounds
             // correctly due to wall-clock uncertainty.
-            Pair <Long, Long> utcJobTimes = jobStatus.getPersistedUtcTimes();
+            final Pair <Long, Long> utcJobTimes = jobStatus.getPersistedUtcTimes();
             if (DEBUG && utcJobTimes != null) {
                 Slog.i(TAG, "storing original UTC timestamps for " + jobStatus);
             }
-
             final long nowRTC = System.currentTimeMillis();
             final long nowElapsed = SystemClock.elapsedRealtime();
-            if (jobStatus.hasDeadlineConstraint()) {
-                // Wall clock deadline.
-                final long deadlineWallclock = (utcJobTimes == null)
-                        ? nowRTC + (jobStatus.getLatestRunTimeElapsed() - nowElapsed)
-                        : utcJobTimes.second;
-                out.attribute(null, "deadline", Long.toString(deadlineWallclock));
-            }
+            long delayWallclock = JobStatus.NO_EARLIEST_RUNTIME;
             if (jobStatus.hasTimingDelayConstraint()) {
-                final long delayWallclock = (utcJobTimes == null)
+                delayWallclock = (utcJobTimes == null)
                         ? nowRTC + (jobStatus.getEarliestRunTime() - nowElapsed)
                         : utcJobTimes.first;
-                out.attribute(null, "delay", Long.toString(delayWallclock));
             }
+            long deadlineWallclock = JobStatus.NO_LATEST_RUNTIME;
+            if (jobStatus.hasDeadlineConstraint()) {
+                deadlineWallclock = (utcJobTimes == null)
+                        ? nowRTC + (jobStatus.getLatestRunTimeElapsed() - nowElapsed)
+                        : utcJobTimes.second;
+            }
+            out.writeLong(delayWallclock);
+            out.writeLong(deadlineWallclock);
 
             // Only write out back-off policy if it differs from the default.
             // This also helps the case where the job is idle -> these aren't allowed to specify
             // back-off.
-            if (jobStatus.getJob().getInitialBackoffMillis() != JobInfo.DEFAULT_INITIAL_BACKOFF_MILLIS
-                    || jobStatus.getJob().getBackoffPolicy() != JobInfo.DEFAULT_BACKOFF_POLICY) {
-                out.attribute(null, "backoff-policy", Integer.toString(job.getBackoffPolicy()));
-                out.attribute(null, "initial-backoff", Long.toString(job.getInitialBackoffMillis()));
+            final boolean hasBackoff =
+                    job.getInitialBackoffMillis() != JobInfo.DEFAULT_INITIAL_BACKOFF_MILLIS
+                    || job.getBackoffPolicy() != JobInfo.DEFAULT_BACKOFF_POLICY;
+            out.writeBoolean(hasBackoff);
+            if (hasBackoff) {
+                out.writeInt(job.getBackoffPolicy());
+                out.writeLong(job.getInitialBackoffMillis());
             }
-            if (job.isPeriodic()) {
-                out.endTag(null, XML_TAG_PERIODIC);
-            } else {
-                out.endTag(null, XML_TAG_ONEOFF);
+
+            writeBundle(out, job.getExtras(), MAX_EXTRAS_DEPTH);
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private void writeBundle(DataOutputStream out, PersistableBundle bundle, int maxDepth)
+                throws IOException {
+            if (bundle == null || maxDepth <= 0) {
+                out.writeInt(-1);
+                return;
+            }
+            final Set<String> keySet = bundle.keySet();
+            out.writeInt(keySet.size());
+            for (String key : keySet) {
+                writeString(out, key);
+                final Object o = bundle.get(key);
+                if (o == null) {
+                    out.writeByte(VAL_NULL);
+                } else if (o instanceof String) {
+                    out.writeByte(VAL_STRING);
+                    writeString(out, (String) o);
+                } else if (o instanceof Integer) {
+                    out.writeByte(VAL_INTEGER);
+                    out.writeInt((Integer) o);
+                } else if (o instanceof Long) {
+                    out.writeByte(VAL_LONG);
+                    out.writeLong((Long) o);
+                } else if (o instanceof Double) {
+                    out.writeByte(VAL_DOUBLE);
+                    out.writeDouble((Double) o);
+                } else if (o instanceof Boolean) {
+                    out.writeByte(VAL_BOOLEAN);
+                    out.writeBoolean((Boolean) o);
+                } else if (o instanceof String[]) {
+                    final String[] array = (String[]) o;
+                    out.writeByte(VAL_STRING_ARRAY);
+                    out.writeInt(array.length);
+                    for (String value : array) {
+                        writeString(out, value);
+                    }
+                } else if (o instanceof int[]) {
+                    final int[] array = (int[]) o;
+                    out.writeByte(VAL_INT_ARRAY);
+                    out.writeInt(array.length);
+                    for (int value : array) {
+                        out.writeInt(value);
+                    }
+                } else if (o instanceof long[]) {
+                    final long[] array = (long[]) o;
+                    out.writeByte(VAL_LONG_ARRAY);
+                    out.writeInt(array.length);
+                    for (long value : array) {
+                        out.writeLong(value);
+                    }
+                } else if (o instanceof double[]) {
+                    final double[] array = (double[]) o;
+                    out.writeByte(VAL_DOUBLE_ARRAY);
+                    out.writeInt(array.length);
+                    for (double value : array) {
+                        out.writeDouble(value);
+                    }
+                } else if (o instanceof boolean[]) {
+                    final boolean[] array = (boolean[]) o;
+                    out.writeByte(VAL_BOOLEAN_ARRAY);
+                    out.writeInt(array.length);
+                    for (boolean value : array) {
+                        out.writeBoolean(value);
+                    }
+                } else if (o instanceof PersistableBundle) {
+                    out.writeByte(VAL_PERSISTABLE_BUNDLE);
+                    writeBundle(out, (PersistableBundle) o, maxDepth - 1);
+                } else {
+                    throw new IOException("Unsupported extra " + key + ": " + o.getClass());
+                }
             }
         }
     };
 
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.available()) {
+            throw new IOException("Bad string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
     /**
      * Translate the supplied RTC times to the elapsed timebase, with clamping appropriate
      * to interpreting them as a job's delay + deadline times for alarm-setting purposes.
@@ -577,9 +712,13 @@ public final class JobStore {
             int numSyncJobs = 0;
             try {
                 List<JobStatus> jobs;
-                FileInputStream fis = mJobsFile.openRead();
+                FileInputStream fis = null;
+                if (!mJournal.exists()) {
+                    fis = mLegacyJobsFile.openRead();
+                }
                 synchronized (mLock) {
-                    jobs = readJobMapImpl(fis, rtcGood);
+                    jobs = (fis != null)
+                            ? readJobMapImpl(fis, rtcGood) : readJobsFromJournal(rtcGood);
                     if (jobs != null) {
                         long now = SystemClock.elapsedRealtime();
                         IActivityManager am = ActivityManager.getService();
@@ -599,13 +738,17 @@ public final class JobStore {
                         }
                     }
                 }
-                fis.close();
+                if (fis != null) {
+                    fis.close();
+                }
             } catch (FileNotFoundException e) {
                 if (DEBUG) {
                     Slog.d(TAG, "Could not find jobs file, probably there was nothing to load.");
                 }
-            } catch (XmlPullParserException | IOException e) {
+            } catch (XmlPullParserException e) {
                 Slog.wtf(TAG, "Error jobstore xml.", e);
+            } catch (IOException e) {
+                Slog.wtf(TAG, "Error reading jobstore.", e);
             } finally {
                 if (mPersistInfo.countAllJobsLoaded < 0) { // Only set them once.
                     mPersistInfo.countAllJobsLoaded = numJobs;
@@ -616,6 +759,185 @@ public final class JobStore {
             Slog.i(TAG, "Read " + numJobs + " jobs");
         }
 
+        private List<JobStatus> readJobsFromJournal(boolean rtcIsGood) throws IOException {
+            final LongSparseArray<byte[]> records = mJournal.read();
+            final List<JobStatus> jobs = new ArrayList<JobStatus>(records.size());
+            for (int i = 0; i < records.size(); i++) {
+                JobStatus persistedJob;
+                try {
+                    persistedJob = restoreJobFromRecord(rtcIsGood,
+                            new DataInputStream(new ByteArrayInputStream(records.valueAt(i))));
+                } catch (IOException | IllegalArgumentException e) {
+                    Slog.d(TAG, "Error reading job record, skipping.", e);
+                    persistedJob = null;
+                }
+                if (persistedJob != null) {
+                    if (DEBUG) {
+                        Slog.d(TAG, "Read out " + persistedJob);
+                    }
+                    jobs.add(persistedJob);
+                }
+            }
+            return jobs;
+        }
+
+        /**
+         * Decodes a record written by {@link #mWriteRunnable}, field by field and straight into
+         * the builder.
+         * @return Newly instantiated job, or null if the record is from an unknown version.
+         */
+        private JobStatus restoreJobFromRecord(boolean rtcIsGood, DataInputStream in)
+                throws IOException {
+            final int version = in.readInt();
+            if (version != JOB_RECORD_VERSION) {
+                Slog.d(TAG, "Unknown job record version " + version + ", skipping.");
+                return null;
+            }
+            final int jobId = in.readInt();
+            final String packageName = readString(in);
+            final String className = readString(in);
+            final JobInfo.Builder jobBuilder =
+                    new JobInfo.Builder(jobId, new ComponentName(packageName, className));
+            jobBuilder.setPersisted(true);
+            String sourcePackageName = readString(in);
+            final String sourceTag = readString(in);
+            final int sourceUserId = in.readInt();
+            final int uid = in.readInt();
+            jobBuilder.setPriority(in.readInt());
+            jobBuilder.setFlags(in.readInt());
+            final long lastSuccessfulRunTime = in.readLong();
+            final long lastFailedRunTime = in.readLong();
+
+            jobBuilder.setRequiredNetworkType(in.readInt());
+            final int constraints = in.readInt();
+            jobBuilder.setRequiresDeviceIdle((constraints & CONSTRAINT_IDLE) != 0);
+            jobBuilder.setRequiresCharging((constraints & CONSTRAINT_CHARGING) != 0);
+            jobBuilder.setRequiresBatteryNotLow((constraints & CONSTRAINT_BATTERY_NOT_LOW) != 0);
+
+            final boolean periodic = in.readBoolean();
+            final long periodMillis = periodic ? in.readLong() : 0;
+            final long flexMillis = periodic ? in.readLong() : 0;
+            // Tuple of (earliest runtime, latest runtime) in UTC.
+            final long earliestRunTimeRtc = in.readLong();
+            final Pair<Long, Long> rtcRuntimes = Pair.create(earliestRunTimeRtc, in.readLong());
+            final long elapsedNow = SystemClock.elapsedRealtime();
+            Pair<Long, Long> elapsedRuntimes = convertRtcBoundsToElapsed(rtcRuntimes, elapsedNow);
+            if (periodic) {
+                jobBuilder.setPeriodic(periodMillis, flexMillis);
+                elapsedRuntimes = clampPeriodicRuntimes(uid, elapsedRuntimes, elapsedNow,
+                        periodMillis, flexMillis);
+            } else {
+                if (elapsedRuntimes.first != JobStatus.NO_EARLIEST_RUNTIME) {
+                    jobBuilder.setMinimumLatency(elapsedRuntimes.first - elapsedNow);
+                }
+                if (elapsedRuntimes.second != JobStatus.NO_LATEST_RUNTIME) {
+                    jobBuilder.setOverrideDeadline(elapsedRuntimes.second - elapsedNow);
+                }
+            }
+            if (in.readBoolean()) {
+                final int backoffPolicy = in.readInt();
+                jobBuilder.setBackoffCriteria(in.readLong(), backoffPolicy);
+            }
+
+            final PersistableBundle extras = readBundle(in);
+            if (extras != null) {
+                jobBuilder.setExtras(extras);
+            }
+            sourcePackageName = migrateSyncJobSourcePackage(sourcePackageName, extras);
+
+            return new JobStatus(
+                    jobBuilder.build(), uid, sourcePackageName, sourceUserId, sourceTag,
+                    elapsedRuntimes.first, elapsedRuntimes.second,
+                    lastSuccessfulRunTime, lastFailedRunTime,
+                    (rtcIsGood) ? null : rtcRuntimes);
+        }
+
+        private PersistableBundle readBundle(DataInputStream in) throws IOException {
+            final int size = in.readInt();
+            if (size < 0) {
+                return null;
+            }
+            final PersistableBundle bundle = new PersistableBundle(Math.min(size, 16));
+            for (int i = 0; i < size; i++) {
+                final String key = readString(in);
+                final byte type = in.readByte();
+                switch (type) {
+                    case VAL_NULL:
+                        bundle.putString(key, null);
+                        break;
+                    case VAL_STRING:
+                        bundle.putString(key, readString(in));
+                        break;
+                    case VAL_INTEGER:
+                        bundle.putInt(key, in.readInt());
+                        break;
+                    case VAL_LONG:
+                        bundle.putLong(key, in.readLong());
+                        break;
+                    case VAL_DOUBLE:
+                        bundle.putDouble(key, in.readDouble());
+                        break;
+                    case VAL_BOOLEAN:
+                        bundle.putBoolean(key, in.readBoolean());
+                        break;
+                    case VAL_STRING_ARRAY: {
+                        final String[] array = new String[readArrayLength(in)];
+                        for (int j = 0; j < array.length; j++) {
+                            array[j] = readString(in);
+                        }
+                        bundle.putStringArray(key, array);
+                        break;
+                    }
+                    case VAL_INT_ARRAY: {
+                        final int[] array = new int[readArrayLength(in)];
+                        for (int j = 0; j < array.length; j++) {
+                            array[j] = in.readInt();
+                        }
+                        bundle.putIntArray(key, array);
+                        break;
+                    }
+                    case VAL_LONG_ARRAY: {
+                        final long[] array = new long[readArrayLength(in)];
+                        for (int j = 0; j < array.length; j++) {
+                            array[j] = in.readLong();
+                        }
+                        bundle.putLongArray(key, array);
+                        break;
+                    }
+                    case VAL_DOUBLE_ARRAY: {
+                        final double[] array = new double[readArrayLength(in)];
+                        for (int j = 0; j < array.length; j++) {
+                            array[j] = in.readDouble();
+                        }
+                        bundle.putDoubleArray(key, array);
+                        break;
+                    }
+                    case VAL_BOOLEAN_ARRAY: {
+                        final boolean[] array = new boolean[readArrayLength(in)];
+                        for (int j = 0; j < array.length; j++) {
+                            array[j] = in.readBoolean();
+                        }
+                        bundle.putBooleanArray(key, array);
+                        break;
+                    }
+                    case VAL_PERSISTABLE_BUNDLE:
+                        bundle.putPersistableBundle(key, readBundle(in));
+                        break;
+                    default:
+                        throw new IOException("Unknown extra type " + type);
+                }
+            }
+            return bundle;
+        }
+
+        private int readArrayLength(DataInputStream in) throws IOException {
+            final int length = in.readInt();
+            if (length < 0 || length > in.available()) {
+                throw new IOException("Bad array length " + length);
+            }
+            return length;
+        }
+
         private List<JobStatus> readJobMapImpl(FileInputStream fis, boolean rtcIsGood)
                 throws XmlPullParserException, IOException {
             XmlPullParser parser = Xml.newPullParser();
@@ -764,29 +1086,8 @@ public final class JobStore {
                     val = parser.getAttributeValue(null, "flex");
                     final long flexMillis = (val != null) ? Long.valueOf(val) : periodMillis;
                     jobBuilder.setPeriodic(periodMillis, flexMillis);
-                    // As a sanity check, cap the recreated run time to be no later than flex+period
-                    // from now. This is the latest the periodic could be pushed out. This could
-                    // happen if the periodic ran early (at flex time before period), and then the
-                    // device rebooted.
-                    if (elapsedRuntimes.second > elapsedNow + periodMillis + flexMillis) {
-                        final long clampedLateRuntimeElapsed = elapsedNow + flexMillis
-                                + periodMillis;
-                        final long clampedEarlyRuntimeElapsed = clampedLateRuntimeElapsed
-                                - flexMillis;
-                        Slog.w(TAG,
-                                String.format("Periodic job for uid='%d' persisted run-time is" +
-                                                " too big [%s, %s]. Clamping to [%s,%s]",
-                                        uid,
-                                        DateUtils.formatElapsedTime(elapsedRuntimes.first / 1000),
-                                        DateUtils.formatElapsedTime(elapsedRuntimes.second / 1000),
-                                        DateUtils.formatElapsedTime(
-                                                clampedEarlyRuntimeElapsed / 1000),
-                                        DateUtils.formatElapsedTime(
-                                                clampedLateRuntimeElapsed / 1000))
-                        );
-                        elapsedRuntimes =
-                                Pair.create(clampedEarlyRuntimeElapsed, clampedLateRuntimeElapsed);
-                    }
+                    elapsedRuntimes = clampPeriodicRuntimes(uid, elapsedRuntimes, elapsedNow,
+                            periodMillis, flexMillis);
                 } catch (NumberFormatException e) {
                     Slog.d(TAG, "Error reading periodic execution criteria, skipping.");
                     return null;
@@ -831,7 +1132,49 @@ public final class JobStore {
             jobBuilder.setExtras(extras);
             parser.nextTag(); // Consume </extras>
 
-            // Migrate sync jobs forward from earlier, incomplete representation
+            sourcePackageName = migrateSyncJobSourcePackage(sourcePackageName, extras);
+
+            // And now we're done
+            JobStatus js = new JobStatus(
+                    jobBuilder.build(), uid, sourcePackageName, sourceUserId, sourceTag,
+                    elapsedRuntimes.first, elapsedRuntimes.second,
+                    lastSuccessfulRunTime, lastFailedRunTime,
+                    (rtcIsGood) ? null : rtcRuntimes);
+            return js;
+        }
+
+        /**
+         * As a sanity check, cap the recreated run time of a periodic job to be no later than
+         * flex+period from now. This is the latest the periodic could be pushed out. This could
+         * happen if the periodic ran early (at flex time before period), and then the device
+         * rebooted.
+         */
+        private Pair<Long, Long> clampPeriodicRuntimes(int uid, Pair<Long, Long> elapsedRuntimes,
+                long elapsedNow, long periodMillis, long flexMillis) {
+            if (elapsedRuntimes.second > elapsedNow + periodMillis + flexMillis) {
+                final long clampedLateRuntimeElapsed = elapsedNow + flexMillis
+                        + periodMillis;
+                final long clampedEarlyRuntimeElapsed = clampedLateRuntimeElapsed
+                        - flexMillis;
+                Slog.w(TAG,
+                        String.format("Periodic job for uid='%d' persisted run-time is" +
+                                        " too big [%s, %s]. Clamping to [%s,%s]",
+                                uid,
+                                DateUtils.formatElapsedTime(elapsedRuntimes.first / 1000),
+                                DateUtils.formatElapsedTime(elapsedRuntimes.second / 1000),
+                                DateUtils.formatElapsedTime(
+                                        clampedEarlyRuntimeElapsed / 1000),
+                                DateUtils.formatElapsedTime(
+                                        clampedLateRuntimeElapsed / 1000))
+                );
+                return Pair.create(clampedEarlyRuntimeElapsed, clampedLateRuntimeElapsed);
+            }
+            return elapsedRuntimes;
+        }
+
+        /** Migrate sync jobs forward from earlier, incomplete representation. */
+        private String migrateSyncJobSourcePackage(String sourcePackageName,
+                PersistableBundle extras) {
             if ("android".equals(sourcePackageName)
                     && extras != null
                     && extras.getBoolean("SyncManagerJob", false)) {
@@ -841,14 +1184,7 @@ public final class JobStore {
                             + sourcePackageName + "'");
                 }
             }
-
-            // And now we're done
-            JobStatus js = new JobStatus(
-                    jobBuilder.build(), uid, sourcePackageName, sourceUserId, sourceTag,
-                    elapsedRuntimes.first, elapsedRuntimes.second,
-                    lastSuccessfulRunTime, lastFailedRunTime,
-                    (rtcIsGood) ? null : rtcRuntimes);
-            return js;
+            return sourcePackageName;
         }
 
         private JobInfo.Builder buildBuilderFromXml(XmlPullParser parser) throws NumberFormatException {
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.job;
+
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.LongSparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.utils.JournalFile;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * On-disk form of the persisted jobs: a snapshot of one binary record per job, plus a
+ * write-ahead journal of the records added, replaced or removed since that snapshot.
+ * <p>
+ * Records are opaque to this class and keyed by {@link #getKey}. Scheduling or cancelling a
+ * single job appends one checksummed entry to the journal instead of rewriting every job. The
+ * journal is folded back into a new snapshot once it grows past a fraction of the snapshot, or
+ * once it has been accumulating entries for {@link #MAX_JOURNAL_AGE_MS}.
+ * <p>
+ * The journal is a {@link JournalFile}, so it is only replayed on top of the snapshot it was
+ * started against, and a torn entry at its tail is dropped on read. The snapshot ends with a
+ * CRC32 of everything before it, and its counts and lengths are checked against the bytes left,
+ * so a damaged snapshot fails to read with an IOException.
+ * <p>
+ * Writes happen on the IO thread while reads happen on whichever thread loads the jobs, so
+ * the methods touching the files are synchronized.
+ */
+final class JobStoreJournal {
+    private static final int SNAPSHOT_MAGIC = 0x4a4f4253; // JOBS
+    private static final int JOURNAL_MAGIC = 0x4a4f424a; // JOBJ
+    private static final int VERSION = 2;
+
+    /** Bytes of the snapshot besides its records: magic, version, generation, count and CRC. */
+    private static final int SNAPSHOT_OVERHEAD = 20;
+    /** Bytes each record takes at least: key and record length. */
+    private static final int MIN_RECORD_SIZE = 12;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+
+    /** The journal is not compacted for size while it is smaller than this. */
+    private static final long MIN_COMPACT_JOURNAL_BYTES = 16 * 1024;
+    /** Journal entries older than this are folded into the snapshot on the next write. */
+    @VisibleForTesting
+    static final long MAX_JOURNAL_AGE_MS = 60 * 60 * 1000;
+
+    private final AtomicFile mSnapshotFile;
+    private final JournalFile mJournal;
+
+    private int mGeneration;
+    private long mSnapshotBytes;
+    /** Elapsed time of the first entry appended to the current journal. */
+    private long mJournalStartElapsed;
+
+    // Statistics, reported by dump().
+    private int mAppends;
+    private int mCompactions;
+    private long mLastWriteMs;
+
+    JobStoreJournal(File snapshotFile, File journalFile) {
+        mSnapshotFile = new AtomicFile(snapshotFile);
+        mJournal = new JournalFile(journalFile, JOURNAL_MAGIC, VERSION);
+    }
+
+    /** Returns the key identifying the record of the job scheduled by {@code uid}. */
+    static long getKey(int uid, int jobId) {
+        return ((long) uid << 32) | (jobId & 0xffffffffL);
+    }
+
+    boolean exists() {
+        return mSnapshotFile.exists();
+    }
+
+    /** Returns the last time either file was modified, or 0 if neither exists. */
+    long getLastModifiedTime() {
+        return Math.max(mSnapshotFile.getLastModifiedTime(), mJournal.getFile().lastModified());
+    }
+
+    /**
+     * Reads the snapshot and replays the journal on top of it.
+     *
+     * @return the current records, by key.
+     */
+    synchronized LongSparseArray<byte[]> read() throws IOException {
+        final LongSparseArray<byte[]> records = new LongSparseArray<>();
+        final byte[] data = mSnapshotFile.readFully();
+        if (data.length < SNAPSHOT_OVERHEAD) {
+            throw new IOException("Truncated snapshot " + mSnapshotFile.getBaseFile());
+        }
+        final int bodyLength = data.length - 4;
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, bodyLength);
+        final DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(data, 0, bodyLength));
+        if (in.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Bad snapshot magic in " + mSnapshotFile.getBaseFile());
+        }
+        final int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        final int storedCrc = new DataInputStream(
+                new ByteArrayInputStream(data, bodyLength, 4)).readInt();
+        if ((int) crc.getValue() != storedCrc) {
+            throw new IOException("Bad snapshot checksum in " + mSnapshotFile.getBaseFile());
+        }
+        final int generation = in.readInt();
+        final int count = in.readInt();
+        if (count < 0 || count > in.available() / MIN_RECORD_SIZE) {
+            throw new IOException("Bad snapshot record count " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            final long key = in.readLong();
+            records.put(key, readRecord(in));
+        }
+        if (in.available() != 0) {
+            throw new IOException("Trailing bytes in snapshot " + mSnapshotFile.getBaseFile());
+        }
+        mGeneration = generation;
+        mSnapshotBytes = data.length;
+        replayJournal(records);
+        mJournalStartElapsed = SystemClock.elapsedRealtime();
+        return records;
+    }
+
+    /** Reads a length prefixed record, checking the length against the bytes left. */
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Bad record length " + length);
+        }
+        final byte[] record = new byte[length];
+        in.readFully(record);
+        return record;
+    }
+
+    private void replayJournal(LongSparseArray<byte[]> records) throws IOException {
+        final List<byte[]> entries = mJournal.read(mGeneration);
+        for (int i = 0; i < entries.size(); i++) {
+            final DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(entries.get(i)));
+            final byte op = in.readByte();
+            final long key = in.readLong();
+            if (op == OP_PUT) {
+                records.put(key, readRecord(in));
+            } else if (op == OP_DELETE) {
+                records.delete(key);
+            } else {
+                throw new IOException("Unknown journal op " + op);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the next write should be a full snapshot rather than an append to the
+     * journal.
+     */
+    synchronized boolean shouldCompact() {
+        if (!mSnapshotFile.exists()) {
+            return true;
+        }
+        final long journalBytes = mJournal.getBytes();
+        if (journalBytes > Math.max(MIN_COMPACT_JOURNAL_BYTES, mSnapshotBytes / 2)) {
+            return true;
+        }
+        return journalBytes > 0
+                && SystemClock.elapsedRealtime() - mJournalStartElapsed > MAX_JOURNAL_AGE_MS;
+    }
+
+    /**
+     * Encodes a change for {@link #append}. A {@code null} record removes the key.
+     */
+    static byte[] encodeEntry(long key, byte[] record) throws IOException {
+        final ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+        final DataOutputStream entry = new DataOutputStream(entryBytes);
+        entry.writeByte(record != null ? OP_PUT : OP_DELETE);
+        entry.writeLong(key);
+        if (record != null) {
+            entry.writeInt(record.length);
+            entry.write(record);
+        }
+        entry.flush();
+        return entryBytes.toByteArray();
+    }
+
+    /** Appends entries encoded by {@link #encodeEntry} and syncs them to disk. */
+    synchronized void append(List<byte[]> entries) throws IOException {
+        final long startTime = SystemClock.uptimeMillis();
+        if (mJournal.getBytes() == 0) {
+            mJournalStartElapsed = SystemClock.elapsedRealtime();
+        }
+        mJournal.append(entries);
+        mAppends++;
+        mLastWriteMs = SystemClock.uptimeMillis() - startTime;
+    }
+
+    /** Replaces the snapshot with {@code records} and discards the journal. */
+    synchronized void writeSnapshot(LongSparseArray<byte[]> records) throws IOException {
+        final long startTime = SystemClock.uptimeMillis();
+        final int generation = mGeneration + 1;
+        FileOutputStream fstr = null;
+        try {
+            fstr = mSnapshotFile.startWrite();
+            final BufferedOutputStream buffered = new BufferedOutputStream(fstr);
+            final CRC32 crc = new CRC32();
+            final DataOutputStream out =
+                    new DataOutputStream(new CheckedOutputStream(buffered, crc));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(generation);
+            out.writeInt(records.size());
+            for (int i = 0; i < records.size(); i++) {
+                final byte[] record = records.valueAt(i);
+                out.writeLong(records.keyAt(i));
+                out.writeInt(record.length);
+                out.write(record);
+            }
+            out.flush();
+            new DataOutputStream(buffered).writeInt((int) crc.getValue());
+            buffered.flush();
+            mSnapshotFile.finishWrite(fstr);
+            fstr = null;
+        } finally {
+            if (fstr != null) {
+                mSnapshotFile.failWrite(fstr);
+            }
+        }
+
+        mJournal.reset(generation);
+        mGeneration = generation;
+        mSnapshotBytes = mSnapshotFile.getBaseFile().length();
+        mCompactions++;
+        mLastWriteMs = SystemClock.uptimeMillis() - startTime;
+    }
+
+    synchronized void delete() {
+        mSnapshotFile.delete();
+        mJournal.reset(0);
+        mSnapshotBytes = 0;
+    }
+
+    @VisibleForTesting
+    synchronized long getJournalBytes() {
+        return mJournal.getBytes();
+    }
+
+    synchronized void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Persisted jobs: generation="); pw.print(mGeneration);
+        pw.print(" snapshotBytes="); pw.print(mSnapshotBytes);
+        pw.print(" journalBytes="); pw.print(mJournal.getBytes());
+        pw.print(" appends="); pw.print(mAppends);
+        pw.print(" compactions="); pw.print(mCompactions);
+        pw.print(" lastWriteMs="); pw.println(mLastWriteMs);
+    }
+}
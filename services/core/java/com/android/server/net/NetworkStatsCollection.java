@@ -32,6 +32,7 @@ import static android.text.format.DateUtils.WEEK_IN_MILLIS;
 
 import static com.android.server.net.NetworkStatsService.TAG;
 
+import android.annotation.Nullable;
 import android.net.NetworkIdentity;
 import android.net.NetworkStats;
 import android.net.NetworkStatsHistory;
@@ -60,6 +61,7 @@ import com.google.android.collect.Lists;
 import com.google.android.collect.Maps;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -71,6 +73,7 @@ import java.net.ProtocolException;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Objects;
@@ -91,6 +94,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
     private static final int VERSION_UID_WITH_SET = 4;
 
     private static final int VERSION_UNIFIED_INIT = 16;
+    private static final int VERSION_UNIFIED_COLUMNAR = 17;
 
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
 
@@ -449,6 +453,17 @@ public class NetworkStatsCollection implements FileRotator.Reader {
     }
 
     public void read(DataInputStream in) throws IOException {
+        read(in, Long.MIN_VALUE, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Read only the {@link NetworkStatsHistory} buckets that overlap the given
+     * window, optionally limited to the given UIDs. Using the index at the
+     * start of the columnar format, histories that don't match are skipped
+     * without being decoded; older formats are decoded in full.
+     */
+    public void read(DataInputStream in, long start, long end, @Nullable int[] uids)
+            throws IOException {
         // verify file magic header intact
         final int magic = in.readInt();
         if (magic != FILE_MAGIC) {
@@ -471,7 +486,60 @@ public class NetworkStatsCollection implements FileRotator.Reader {
 
                         final Key key = new Key(ident, uid, set, tag);
                         final NetworkStatsHistory history = new NetworkStatsHistory(in);
-                        recordHistory(key, history);
+                        if (uids == null || ArrayUtils.contains(uids, uid)) {
+                            recordHistory(key, history);
+                        }
+                    }
+                }
+                break;
+            }
+            case VERSION_UNIFIED_COLUMNAR: {
+                // uid := size *(NetworkIdentitySet)
+                //        size *(identIndex uid set tag start end length)
+                //        *(compact NetworkStatsHistory)
+                // counts come from the file, so nothing is sized by them up
+                // front; a bogus count runs into the end of the file instead
+                final int identSize = in.readInt();
+                if (identSize < 0) {
+                    throw new ProtocolException("negative ident count");
+                }
+                final ArrayList<NetworkIdentitySet> idents = Lists.newArrayList();
+                for (int i = 0; i < identSize; i++) {
+                    idents.add(new NetworkIdentitySet(in));
+                }
+
+                final int size = in.readInt();
+                if (size < 0) {
+                    throw new ProtocolException("negative key count");
+                }
+                final ArrayList<IndexEntry> index = Lists.newArrayList();
+                for (int i = 0; i < size; i++) {
+                    final int identIndex = in.readInt();
+                    if (identIndex < 0 || identIndex >= identSize) {
+                        throw new ProtocolException("unexpected ident index: " + identIndex);
+                    }
+                    final int uid = in.readInt();
+                    final int set = in.readInt();
+                    final int tag = in.readInt();
+                    final IndexEntry entry = new IndexEntry(
+                            new Key(idents.get(identIndex), uid, set, tag));
+                    entry.start = in.readLong();
+                    entry.end = in.readLong();
+                    entry.length = in.readInt();
+                    if (entry.length < 0) {
+                        throw new ProtocolException("negative history length");
+                    }
+                    index.add(entry);
+                }
+
+                for (int i = 0; i < size; i++) {
+                    final IndexEntry entry = index.get(i);
+                    if (entry.start < end && entry.end > start
+                            && (uids == null || ArrayUtils.contains(uids, entry.key.uid))) {
+                        recordHistory(entry.key, NetworkStatsHistory.readCompactFromStream(
+                                in, entry.length, start, end));
+                    } else {
+                        skipFully(in, entry.length);
                     }
                 }
                 break;
@@ -482,6 +550,16 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         }
     }
 
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            final int skipped = in.skipBytes(length);
+            if (skipped <= 0) {
+                throw new ProtocolException("truncated history");
+            }
+            length -= skipped;
+        }
+    }
+
     public void write(DataOutputStream out) throws IOException {
         // cluster key lists grouped by ident
         final HashMap<NetworkIdentitySet, ArrayList<Key>> keysByIdent = Maps.newHashMap();
@@ -515,6 +593,55 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         out.flush();
     }
 
+    /**
+     * Write in the indexed columnar format, which partial reads can skip
+     * through. Releases that predate the format can't read it, so callers
+     * only use it when asked to; see {@link #write(DataOutputStream)}.
+     */
+    public void writeColumnar(DataOutputStream out) throws IOException {
+        // index ident sets, and cluster keys by uid so partial reads skip
+        // over the histories of other uids in runs
+        final HashMap<NetworkIdentitySet, Integer> identIndexes = Maps.newHashMap();
+        final ArrayList<NetworkIdentitySet> idents = Lists.newArrayList();
+        final ArrayList<Key> keys = getSortedKeys();
+        Collections.sort(keys, UID_COMPARATOR);
+        for (Key key : keys) {
+            if (!identIndexes.containsKey(key.ident)) {
+                identIndexes.put(key.ident, idents.size());
+                idents.add(key.ident);
+            }
+        }
+
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(VERSION_UNIFIED_COLUMNAR);
+
+        out.writeInt(idents.size());
+        for (NetworkIdentitySet ident : idents) {
+            ident.writeToStream(out);
+        }
+
+        final ByteArrayOutputStream histories = new ByteArrayOutputStream();
+        final DataOutputStream historiesOut = new DataOutputStream(histories);
+        out.writeInt(keys.size());
+        for (Key key : keys) {
+            final NetworkStatsHistory history = mStats.get(key);
+            final int offset = historiesOut.size();
+            history.writeCompactToStream(historiesOut);
+
+            out.writeInt(identIndexes.get(key.ident));
+            out.writeInt(key.uid);
+            out.writeInt(key.set);
+            out.writeInt(key.tag);
+            out.writeLong(history.getStart());
+            out.writeLong(history.getEnd());
+            out.writeInt(historiesOut.size() - offset);
+        }
+        historiesOut.flush();
+        histories.writeTo(out);
+
+        out.flush();
+    }
+
     @Deprecated
     public void readLegacyNetwork(File file) throws IOException {
         final AtomicFile inputFile = new AtomicFile(file);
@@ -762,6 +889,25 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         return false;
     }
 
+    private static final Comparator<Key> UID_COMPARATOR = new Comparator<Key>() {
+        @Override
+        public int compare(Key left, Key right) {
+            return Integer.compare(left.uid, right.uid);
+        }
+    };
+
+    /** Row of the index at the start of the columnar format. */
+    private static class IndexEntry {
+        public final Key key;
+        public long start;
+        public long end;
+        public int length;
+
+        public IndexEntry(Key key) {
+            this.key = key;
+        }
+    }
+
     private static class Key implements Comparable<Key> {
         public final NetworkIdentitySet ident;
         public final int uid;
@@ -38,6 +38,7 @@ import android.util.Slog;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.net.VpnInfo;
+import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.FileRotator;
 import com.android.internal.util.IndentingPrintWriter;
 
@@ -46,6 +47,7 @@ import libcore.io.IoUtils;
 import com.google.android.collect.Sets;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
@@ -82,6 +84,7 @@ public class NetworkStatsRecorder {
 
     private final long mBucketDuration;
     private final boolean mOnlyTags;
+    private final boolean mWriteColumnar;
 
     private long mPersistThresholdBytes = 2 * MB_IN_BYTES;
     private NetworkStats mLastSnapshot;
@@ -93,6 +96,14 @@ public class NetworkStatsRecorder {
 
     private WeakReference<NetworkStatsCollection> mComplete;
 
+    /**
+     * Last history loaded by {@link #getOrLoadPartialLocked(long, long, int[])},
+     * along with the start of the window and the UIDs it is complete for.
+     */
+    private WeakReference<NetworkStatsCollection> mPartial;
+    private long mPartialStart;
+    private int[] mPartialUids;
+
     /**
      * Non-persisted recorder, with only one bucket. Used by {@link NetworkStatsObservers}.
      */
@@ -106,6 +117,7 @@ public class NetworkStatsRecorder {
         // slack to avoid overflow
         mBucketDuration = YEAR_IN_MILLIS;
         mOnlyTags = false;
+        mWriteColumnar = false;
 
         mPending = null;
         mSinceBoot = new NetworkStatsCollection(mBucketDuration);
@@ -115,9 +127,13 @@ public class NetworkStatsRecorder {
 
     /**
      * Persisted recorder.
+     *
+     * @param writeColumnar whether to write files in the indexed columnar
+     *            format, which older releases can't read.
      */
     public NetworkStatsRecorder(FileRotator rotator, NonMonotonicObserver<String> observer,
-            DropBoxManager dropBox, String cookie, long bucketDuration, boolean onlyTags) {
+            DropBoxManager dropBox, String cookie, long bucketDuration, boolean onlyTags,
+            boolean writeColumnar) {
         mRotator = checkNotNull(rotator, "missing FileRotator");
         mObserver = checkNotNull(observer, "missing NonMonotonicObserver");
         mDropBox = checkNotNull(dropBox, "missing DropBoxManager");
@@ -125,11 +141,12 @@ public class NetworkStatsRecorder {
 
         mBucketDuration = bucketDuration;
         mOnlyTags = onlyTags;
+        mWriteColumnar = writeColumnar;
 
         mPending = new NetworkStatsCollection(bucketDuration);
         mSinceBoot = new NetworkStatsCollection(bucketDuration);
 
-        mPendingRewriter = new CombiningRewriter(mPending);
+        mPendingRewriter = new CombiningRewriter(mPending, writeColumnar);
     }
 
     public void setPersistThreshold(long thresholdBytes) {
@@ -149,6 +166,9 @@ public class NetworkStatsRecorder {
         if (mComplete != null) {
             mComplete.clear();
         }
+        if (mPartial != null) {
+            mPartial.clear();
+        }
     }
 
     public NetworkStats.Entry getTotalSinceBootLocked(NetworkTemplate template) {
@@ -177,19 +197,68 @@ public class NetworkStatsRecorder {
     }
 
     public NetworkStatsCollection getOrLoadPartialLocked(long start, long end) {
+        return getOrLoadPartialLocked(start, end, null);
+    }
+
+    /**
+     * Load the history overlapping the given window, optionally limited to
+     * the given UIDs, unless the complete history or a previous partial load
+     * covering them is already cached. Only queries within that window and
+     * for those UIDs give complete results on the returned collection.
+     * <p>
+     * Like the complete history, the last partial load is cached internally
+     * as a {@link WeakReference} and updated with future snapshots. It always
+     * extends to the present, which costs little to read, so that repeated
+     * queries whose window ends at the current time keep hitting it.
+     */
+    public NetworkStatsCollection getOrLoadPartialLocked(long start, long end,
+            @Nullable int[] uids) {
         checkNotNull(mRotator, "missing FileRotator");
         NetworkStatsCollection res = mComplete != null ? mComplete.get() : null;
-        if (res == null) {
-            res = loadLocked(start, end);
+        if (res != null) {
+            return res;
+        }
+        res = mPartial != null ? mPartial.get() : null;
+        if (res == null || start < mPartialStart || !containsUids(mPartialUids, uids)) {
+            res = loadLocked(start, Long.MAX_VALUE, uids);
+            mPartial = new WeakReference<NetworkStatsCollection>(res);
+            mPartialStart = start;
+            mPartialUids = uids != null ? uids.clone() : null;
         }
         return res;
     }
 
+    /** Whether the UIDs a load was limited to include all of {@code uids}. */
+    private static boolean containsUids(@Nullable int[] loaded, @Nullable int[] uids) {
+        if (loaded == null) {
+            return true;
+        }
+        if (uids == null) {
+            return false;
+        }
+        for (int uid : uids) {
+            if (!ArrayUtils.contains(loaded, uid)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private NetworkStatsCollection loadLocked(long start, long end) {
+        return loadLocked(start, end, null);
+    }
+
+    private NetworkStatsCollection loadLocked(final long start, final long end,
+            @Nullable final int[] uids) {
         if (LOGD) Slog.d(TAG, "loadLocked() reading from disk for " + mCookie);
         final NetworkStatsCollection res = new NetworkStatsCollection(mBucketDuration);
         try {
-            mRotator.readMatching(res, start, end);
+            mRotator.readMatching(new FileRotator.Reader() {
+                @Override
+                public void read(InputStream in) throws IOException {
+                    res.read(new DataInputStream(in), start, end, uids);
+                }
+            }, start, end);
             res.recordCollection(mPending);
         } catch (IOException e) {
             Log.wtf(TAG, "problem completely reading network stats", e);
@@ -226,6 +295,7 @@ public class NetworkStatsRecorder {
         }
 
         final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
+        final NetworkStatsCollection partial = mPartial != null ? mPartial.get() : null;
 
         final NetworkStats delta = NetworkStats.subtract(
                 snapshot, mLastSnapshot, mObserver, mCookie);
@@ -265,6 +335,11 @@ public class NetworkStatsRecorder {
                 if (complete != null) {
                     complete.recordData(ident, entry.uid, entry.set, entry.tag, start, end, entry);
                 }
+
+                // and against the last partial load
+                if (partial != null) {
+                    partial.recordData(ident, entry.uid, entry.set, entry.tag, start, end, entry);
+                }
             }
         }
 
@@ -318,7 +393,8 @@ public class NetworkStatsRecorder {
         if (mRotator != null) {
             try {
                 // Rewrite all persisted data to migrate UID stats
-                mRotator.rewriteAll(new RemoveUidRewriter(mBucketDuration, uids));
+                mRotator.rewriteAll(new RemoveUidRewriter(mBucketDuration, uids,
+                        mWriteColumnar));
             } catch (IOException e) {
                 Log.wtf(TAG, "problem removing UIDs " + Arrays.toString(uids), e);
                 recoverFromWtf();
@@ -345,6 +421,10 @@ public class NetworkStatsRecorder {
         if (complete != null) {
             complete.removeUids(uids);
         }
+        final NetworkStatsCollection partial = mPartial != null ? mPartial.get() : null;
+        if (partial != null) {
+            partial.removeUids(uids);
+        }
     }
 
     /**
@@ -354,9 +434,11 @@ public class NetworkStatsRecorder {
      */
     private static class CombiningRewriter implements FileRotator.Rewriter {
         private final NetworkStatsCollection mCollection;
+        private final boolean mColumnar;
 
-        public CombiningRewriter(NetworkStatsCollection collection) {
+        public CombiningRewriter(NetworkStatsCollection collection, boolean columnar) {
             mCollection = checkNotNull(collection, "missing NetworkStatsCollection");
+            mColumnar = columnar;
         }
 
         @Override
@@ -376,7 +458,7 @@ public class NetworkStatsRecorder {
 
         @Override
         public void write(OutputStream out) throws IOException {
-            mCollection.write(new DataOutputStream(out));
+            writeCollection(mCollection, new DataOutputStream(out), mColumnar);
             mCollection.reset();
         }
     }
@@ -388,10 +470,12 @@ public class NetworkStatsRecorder {
     public static class RemoveUidRewriter implements FileRotator.Rewriter {
         private final NetworkStatsCollection mTemp;
         private final int[] mUids;
+        private final boolean mColumnar;
 
-        public RemoveUidRewriter(long bucketDuration, int[] uids) {
+        public RemoveUidRewriter(long bucketDuration, int[] uids, boolean columnar) {
             mTemp = new NetworkStatsCollection(bucketDuration);
             mUids = uids;
+            mColumnar = columnar;
         }
 
         @Override
@@ -413,7 +497,16 @@ public class NetworkStatsRecorder {
 
         @Override
         public void write(OutputStream out) throws IOException {
-            mTemp.write(new DataOutputStream(out));
+            writeCollection(mTemp, new DataOutputStream(out), mColumnar);
+        }
+    }
+
+    private static void writeCollection(NetworkStatsCollection collection, DataOutputStream out,
+            boolean columnar) throws IOException {
+        if (columnar) {
+            collection.writeColumnar(out);
+        } else {
+            collection.write(out);
         }
     }
 
@@ -432,7 +525,7 @@ public class NetworkStatsRecorder {
         if (!collection.isEmpty()) {
             // process legacy data, creating active file at starting time, then
             // using end time to possibly trigger rotation.
-            mRotator.rewriteActive(new CombiningRewriter(collection), startMillis);
+            mRotator.rewriteActive(new CombiningRewriter(collection, mWriteColumnar), startMillis);
             mRotator.maybeRotate(endMillis);
         }
     }
@@ -452,7 +545,7 @@ public class NetworkStatsRecorder {
         if (!collection.isEmpty()) {
             // process legacy data, creating active file at starting time, then
             // using end time to possibly trigger rotation.
-            mRotator.rewriteActive(new CombiningRewriter(collection), startMillis);
+            mRotator.rewriteActive(new CombiningRewriter(collection, mWriteColumnar), startMillis);
             mRotator.maybeRotate(endMillis);
         }
     }
@@ -44,6 +44,7 @@ import static android.net.NetworkTemplate.buildTemplateWifiWildcard;
 import static android.net.TrafficStats.KB_IN_BYTES;
 import static android.net.TrafficStats.MB_IN_BYTES;
 import static android.provider.Settings.Global.NETSTATS_AUGMENT_ENABLED;
+import static android.provider.Settings.Global.NETSTATS_COLUMNAR_ENABLED;
 import static android.provider.Settings.Global.NETSTATS_DEV_BUCKET_DURATION;
 import static android.provider.Settings.Global.NETSTATS_DEV_DELETE_AGE;
 import static android.provider.Settings.Global.NETSTATS_DEV_PERSIST_BYTES;
@@ -70,6 +71,7 @@ import static com.android.server.NetworkManagementService.LIMIT_GLOBAL_ALERT;
 import static com.android.server.NetworkManagementSocketTagger.resetKernelUidStats;
 import static com.android.server.NetworkManagementSocketTagger.setKernelCounterSet;
 
+import android.annotation.Nullable;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.app.usage.NetworkStatsManager;
@@ -207,6 +209,8 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         public long getTimeCacheMaxAge();
         public boolean getSampleEnabled();
         public boolean getAugmentEnabled();
+        /** Whether to write stats in a format that releases before it can't read. */
+        public boolean getColumnarEnabled();
 
         public static class Config {
             public final long bucketDuration;
@@ -404,7 +408,8 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 Context.DROPBOX_SERVICE);
         return new NetworkStatsRecorder(new FileRotator(
                 mBaseDir, prefix, config.rotateAgeMillis, config.deleteAgeMillis),
-                mNonMonotonicObserver, dropBox, prefix, config.bucketDuration, includeTags);
+                mNonMonotonicObserver, dropBox, prefix, config.bucketDuration, includeTags,
+                mSettings.getColumnarEnabled());
     }
 
     private void shutdownLocked() {
@@ -546,6 +551,31 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 }
             }
 
+            /**
+             * Return the complete history if this session already holds it,
+             * otherwise just what overlaps the window, which is much cheaper
+             * to read than every rotated file in full.
+             */
+            private NetworkStatsCollection getUidPartial(long start, long end,
+                    @Nullable int[] uids) {
+                synchronized (mStatsLock) {
+                    if (mUidComplete != null) {
+                        return mUidComplete;
+                    }
+                    return mUidRecorder.getOrLoadPartialLocked(start, end, uids);
+                }
+            }
+
+            private NetworkStatsCollection getUidTagPartial(long start, long end,
+                    @Nullable int[] uids) {
+                synchronized (mStatsLock) {
+                    if (mUidTagComplete != null) {
+                        return mUidTagComplete;
+                    }
+                    return mUidTagRecorder.getOrLoadPartialLocked(start, end, uids);
+                }
+            }
+
             @Override
             public int[] getRelevantUids() {
                 return getUidComplete().getRelevantUids(mAccessLevel);
@@ -575,10 +605,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             public NetworkStats getSummaryForAllUid(
                     NetworkTemplate template, long start, long end, boolean includeTags) {
                 try {
-                    final NetworkStats stats = getUidComplete()
+                    final NetworkStats stats = getUidPartial(start, end, null)
                             .getSummary(template, start, end, mAccessLevel, mCallingUid);
                     if (includeTags) {
-                        final NetworkStats tagStats = getUidTagComplete()
+                        final NetworkStats tagStats = getUidTagPartial(start, end, null)
                                 .getSummary(template, start, end, mAccessLevel, mCallingUid);
                         stats.combineAllValues(tagStats);
                     }
@@ -608,12 +638,13 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     NetworkTemplate template, int uid, int set, int tag, int fields,
                     long start, long end) {
                 // NOTE: We don't augment UID-level statistics
+                final int[] uids = new int[] { uid };
                 if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, null, uid, set, tag, fields,
-                            start, end, mAccessLevel, mCallingUid);
+                    return getUidPartial(start, end, uids).getHistory(template, null, uid, set,
+                            tag, fields, start, end, mAccessLevel, mCallingUid);
                 } else if (uid == Binder.getCallingUid()) {
-                    return getUidTagComplete().getHistory(template, null, uid, set, tag, fields,
-                            start, end, mAccessLevel, mCallingUid);
+                    return getUidTagPartial(start, end, uids).getHistory(template, null, uid,
+                            set, tag, fields, start, end, mAccessLevel, mCallingUid);
                 } else {
                     throw new SecurityException("Calling package " + mCallingPackage
                             + " cannot access tag information from a different uid");
@@ -1651,6 +1682,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             return getGlobalBoolean(NETSTATS_AUGMENT_ENABLED, true);
         }
         @Override
+        public boolean getColumnarEnabled() {
+            return getGlobalBoolean(NETSTATS_COLUMNAR_ENABLED, false);
+        }
+        @Override
         public Config getDevConfig() {
             return new Config(getGlobalLong(NETSTATS_DEV_BUCKET_DURATION, HOUR_IN_MILLIS),
                     getGlobalLong(NETSTATS_DEV_ROTATE_AGE, 15 * DAY_IN_MILLIS),
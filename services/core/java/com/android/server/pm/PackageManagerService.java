@@ -1023,6 +1023,9 @@ public class PackageManagerService extends IPackageManager.Stub
 
     private File mCacheDir;
 
+    /** Parse costs from the previous boot scan; only used while scanning at boot. */
+    private PackageParseIndex mPackageParseIndex;
+
     private ArraySet<String> mPrivappPermissionsViolations;
 
     private Future<?> mPrepareAppDataFuture;
@@ -1085,7 +1088,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 synchronized (mPackages) {
                     if (mSettings.createIntentFilterVerificationIfNeededLPw(
                             packageName, domainsSet) != null) {
-                        scheduleWriteSettingsLocked();
+                        scheduleWriteSettingsLocked(packageName);
                     }
                 }
                 sendVerificationRequest(verificationId, ivs);
@@ -1163,7 +1166,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 } else {
                     ivi.setStatus(INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_ASK);
                 }
-                scheduleWriteSettingsLocked();
+                scheduleWriteSettingsLocked(packageName);
 
                 final int userId = ivs.getUserId();
                 if (userId != UserHandle.USER_ALL) {
@@ -1753,7 +1756,7 @@ public class PackageManagerService extends IPackageManager.Stub
                     synchronized (mPackages) {
                         removeMessages(WRITE_SETTINGS);
                         removeMessages(WRITE_PACKAGE_RESTRICTIONS);
-                        mSettings.writeLPr();
+                        mSettings.writeChangedLPr();
                         mDirtyUsers.clear();
                     }
                     Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
@@ -2284,6 +2287,19 @@ public class PackageManagerService extends IPackageManager.Stub
     }
 
     void scheduleWriteSettingsLocked() {
+        // Without knowing what changed, any package's settings may have.
+        mSettings.markAllPackagesDirtyLPw();
+        if (!mHandler.hasMessages(WRITE_SETTINGS)) {
+            mHandler.sendEmptyMessageDelayed(WRITE_SETTINGS, WRITE_SETTINGS_DELAY);
+        }
+    }
+
+    /**
+     * Like {@link #scheduleWriteSettingsLocked()}, for a change confined to the settings of
+     * the given package and its shared user.
+     */
+    void scheduleWriteSettingsLocked(String packageName) {
+        mSettings.markPackageDirtyLPw(packageName);
         if (!mHandler.hasMessages(WRITE_SETTINGS)) {
             mHandler.sendEmptyMessageDelayed(WRITE_SETTINGS, WRITE_SETTINGS_DELAY);
         }
@@ -2611,6 +2627,10 @@ public class PackageManagerService extends IPackageManager.Stub
             }
 
             mCacheDir = preparePackageParserCache(mIsUpgrade);
+            if (mCacheDir != null) {
+                mPackageParseIndex = new PackageParseIndex(mCacheDir);
+                mPackageParseIndex.read();
+            }
 
             // Set flag to monitor and not change apk file paths when
             // scanning install directories.
@@ -2924,6 +2944,11 @@ public class PackageManagerService extends IPackageManager.Stub
             mPackageUsage.read(mPackages);
             mCompilerStats.read();
 
+            if (mPackageParseIndex != null) {
+                mPackageParseIndex.write();
+                mPackageParseIndex = null;
+            }
+
             EventLog.writeEvent(EventLogTags.BOOT_PROGRESS_PMS_SCAN_END,
                     SystemClock.uptimeMillis());
             Slog.i(TAG, "Time to scan packages: "
@@ -5721,7 +5746,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 // normal runtime permissions.  For now they apply to all users.
                 if (permissionsState.grantInstallPermission(bp) !=
                         PermissionsState.PERMISSION_OPERATION_FAILURE) {
-                    scheduleWriteSettingsLocked();
+                    scheduleWriteSettingsLocked(packageName);
                 }
                 return;
             }
@@ -5848,7 +5873,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 // normal runtime permissions.  For now they apply to all users.
                 if (permissionsState.revokeInstallPermission(bp) !=
                         PermissionsState.PERMISSION_OPERATION_FAILURE) {
-                    scheduleWriteSettingsLocked();
+                    scheduleWriteSettingsLocked(packageName);
                 }
                 return;
             }
@@ -6041,7 +6066,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 // Install and runtime permissions are stored in different places,
                 // so figure out what permission changed and persist the change.
                 if (permissionsState.getInstallPermissionState(name) != null) {
-                    scheduleWriteSettingsLocked();
+                    scheduleWriteSettingsLocked(packageName);
                 } else if (permissionsState.getRuntimePermissionState(name, userId) != null
                         || hadState) {
                     mSettings.writeRuntimePermissionsForUserLPr(userId, false);
@@ -9062,10 +9087,10 @@ public class PackageManagerService extends IPackageManager.Stub
         }
         ParallelPackageParser parallelPackageParser = new ParallelPackageParser(
                 mSeparateProcesses, mOnlyCore, mMetrics, mCacheDir,
-                mParallelPackageParserCallback);
+                mParallelPackageParserCallback, mPackageParseIndex);
 
         // Submit files for parsing in parallel
-        int fileCount = 0;
+        final ArrayList<File> packageFiles = new ArrayList<>(files.length);
         for (File file : files) {
             final boolean isPackage = (isApkFile(file) || file.isDirectory())
                     && !PackageInstallerService.isStageName(file.getName());
@@ -9073,12 +9098,13 @@ public class PackageManagerService extends IPackageManager.Stub
                 // Ignore entries which are not packages
                 continue;
             }
-            parallelPackageParser.submit(file, parseFlags);
-            fileCount++;
+            packageFiles.add(file);
         }
+        parallelPackageParser.submitAll(packageFiles, parseFlags);
 
         // Process results one by one
-        for (; fileCount > 0; fileCount--) {
+        long scanNanos = 0;
+        for (int fileCount = packageFiles.size(); fileCount > 0; fileCount--) {
             ParallelPackageParser.ParseResult parseResult = parallelPackageParser.take();
             Throwable throwable = parseResult.throwable;
             int errorCode = PackageManager.INSTALL_SUCCEEDED;
@@ -9088,6 +9114,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 if (parseResult.pkg.applicationInfo.isStaticSharedLibrary()) {
                     renameStaticSharedLibraryPackage(parseResult.pkg);
                 }
+                final long scanStart = System.nanoTime();
                 try {
                     if (errorCode == PackageManager.INSTALL_SUCCEEDED) {
                         scanPackageLI(parseResult.pkg, parseResult.scanFile, parseFlags, scanFlags,
@@ -9097,6 +9124,7 @@ public class PackageManagerService extends IPackageManager.Stub
                     errorCode = e.error;
                     Slog.w(TAG, "Failed to scan " + parseResult.scanFile + ": " + e.getMessage());
                 }
+                scanNanos += System.nanoTime() - scanStart;
             } else if (throwable instanceof PackageParser.PackageParserException) {
                 PackageParser.PackageParserException e = (PackageParser.PackageParserException)
                         throwable;
@@ -9115,6 +9143,8 @@ public class PackageManagerService extends IPackageManager.Stub
                 removeCodePathLI(parseResult.scanFile);
             }
         }
+        Slog.i(TAG, "Scanned app dir " + dir + ": " + parallelPackageParser.getStats()
+                + " scan=" + scanNanos / 1000000 + "ms");
         parallelPackageParser.close();
     }
 
@@ -15820,7 +15850,7 @@ public class PackageManagerService extends IPackageManager.Stub
             if (installerPackageName != null) {
                 mSettings.mInstallerPackages.add(installerPackageName);
             }
-            scheduleWriteSettingsLocked();
+            scheduleWriteSettingsLocked(targetPackage);
         }
     }
 
@@ -15847,7 +15877,7 @@ public class PackageManagerService extends IPackageManager.Stub
 
             if (ps.categoryHint != categoryHint) {
                 ps.categoryHint = categoryHint;
-                scheduleWriteSettingsLocked();
+                scheduleWriteSettingsLocked(packageName);
             }
         }
     }
@@ -22603,6 +22633,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 pw.println("    i[ntent-filter-verifiers]|ifv: print intent filter verifier info");
                 pw.println("    version: print database version info");
                 pw.println("    write: write current settings now");
+                pw.println("    settings-xml: print current settings in packages.xml format");
                 pw.println("    installs: details about install sessions");
                 pw.println("    check-permission <permission> <package> [<user>]: does pkg hold perm?");
                 pw.println("    dexopt: dump dexopt state");
@@ -22749,6 +22780,11 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                     pw.println("Settings written.");
                     return;
                 }
+            } else if ("settings-xml".equals(cmd)) {
+                synchronized (mPackages) {
+                    mSettings.dumpSettingsXmlLPr(pw);
+                    return;
+                }
             }
         }
 
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.pm;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Persistent index of how long each package took to go through {@link ParallelPackageParser}
+ * on the previous scan, keyed by code path and validated against its mtime and size.
+ * <p>
+ * The parser uses it to schedule packages most-expensive-first: an unchanged package whose
+ * parse result is served from the {@link android.content.pm.PackageParser} cache costs
+ * whatever that took last time, while a new or modified package has to be parsed from scratch
+ * and is scheduled before all of them. The index lives next to the parse cache, so it is
+ * dropped along with the cache on platform upgrades.
+ */
+class PackageParseIndex {
+    private static final String TAG = "PackageParseIndex";
+
+    private static final String INDEX_FILE_NAME = "scan-index";
+    private static final int MAGIC = 0x50504958; // PPIX
+    private static final int VERSION = 1;
+
+    // Bytes each entry takes besides its path: mtime, size and cost.
+    private static final int ENTRY_FIXED_BYTES = 3 * 8;
+
+    /** Returned by {@link #getCostMicros} for packages that are not known to be unchanged. */
+    static final long COST_UNKNOWN = -1;
+
+    private static final class Entry {
+        final long mtime;
+        final long size;
+        final long costMicros;
+
+        Entry(long mtime, long size, long costMicros) {
+            this.mtime = mtime;
+            this.size = size;
+            this.costMicros = costMicros;
+        }
+    }
+
+    private final AtomicFile mFile;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final ArrayMap<String, Entry> mPrevious = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private final ArrayMap<String, Entry> mCurrent = new ArrayMap<>();
+
+    PackageParseIndex(File cacheDir) {
+        this(new AtomicFile(new File(cacheDir, INDEX_FILE_NAME)));
+    }
+
+    @VisibleForTesting
+    PackageParseIndex(AtomicFile file) {
+        mFile = file;
+    }
+
+    /** Loads the index written by the previous scan, if any. */
+    void read() {
+        final File file = mFile.getBaseFile();
+        if (!file.exists()) {
+            return;
+        }
+        FileInputStream in = null;
+        try {
+            in = mFile.openRead();
+            final FileChannel channel = in.getChannel();
+            final MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                Slog.w(TAG, "Ignoring index with unknown format");
+                return;
+            }
+            final int count = buf.getInt();
+            if (count < 0 || count > buf.remaining() / (4 + ENTRY_FIXED_BYTES)) {
+                throw new IOException("Bad entry count " + count);
+            }
+            synchronized (mLock) {
+                mPrevious.ensureCapacity(count);
+                byte[] path = new byte[256];
+                for (int i = 0; i < count; i++) {
+                    final int pathLength = buf.getInt();
+                    if (pathLength < 0 || pathLength > buf.remaining() - ENTRY_FIXED_BYTES) {
+                        throw new IOException("Bad path length " + pathLength);
+                    }
+                    if (pathLength > path.length) {
+                        path = new byte[pathLength];
+                    }
+                    buf.get(path, 0, pathLength);
+                    mPrevious.put(new String(path, 0, pathLength, StandardCharsets.UTF_8),
+                            new Entry(buf.getLong(), buf.getLong(), buf.getLong()));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // A corrupt index only costs the scheduling hints; never let it fail the scan.
+            Slog.w(TAG, "Failed to read " + file, e);
+            synchronized (mLock) {
+                mPrevious.clear();
+            }
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Returns how long {@code scanFile} took last time, or {@link #COST_UNKNOWN} if it was not
+     * seen or has changed since.
+     */
+    long getCostMicros(File scanFile, StructStat stat) {
+        if (stat == null) {
+            return COST_UNKNOWN;
+        }
+        final Entry entry;
+        synchronized (mLock) {
+            entry = mPrevious.get(scanFile.getPath());
+        }
+        if (entry == null || entry.mtime != stat.st_mtime || entry.size != stat.st_size) {
+            return COST_UNKNOWN;
+        }
+        return entry.costMicros;
+    }
+
+    /** Records how long it took to produce a result for {@code scanFile} in this scan. */
+    void record(File scanFile, StructStat stat, long costMicros) {
+        if (stat == null) {
+            return;
+        }
+        synchronized (mLock) {
+            mCurrent.put(scanFile.getPath(), new Entry(stat.st_mtime, stat.st_size, costMicros));
+        }
+    }
+
+    /**
+     * Persists the packages recorded during this scan. Packages that were not scanned this
+     * time are dropped.
+     */
+    void write() {
+        FileOutputStream fstr = null;
+        try {
+            fstr = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fstr));
+            synchronized (mLock) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(mCurrent.size());
+                for (int i = 0; i < mCurrent.size(); i++) {
+                    final byte[] path = mCurrent.keyAt(i).getBytes(StandardCharsets.UTF_8);
+                    final Entry entry = mCurrent.valueAt(i);
+                    out.writeInt(path.length);
+                    out.write(path);
+                    out.writeLong(entry.mtime);
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.costMicros);
+                }
+            }
+            out.flush();
+            mFile.finishWrite(fstr);
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to write " + mFile.getBaseFile(), e);
+            mFile.failWrite(fstr);
+        }
+    }
+
+    /** Returns the stat used to validate index entries, or {@code null} if it fails. */
+    static StructStat stat(File scanFile) {
+        try {
+            return Os.stat(scanFile.getAbsolutePath());
+        } catch (ErrnoException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.os.FileUtils;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.server.utils.JournalFile;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary, record-oriented store for package manager settings.
+ * <p>
+ * Settings are kept as a set of keyed records: a compacted snapshot plus an append-only journal
+ * of the records that changed since that snapshot was taken. A commit only appends the records
+ * whose contents differ from the previous commit, so a single install or component change costs
+ * a small append and fsync instead of a rewrite of every package. Once the journal grows past
+ * a fraction of the snapshot it is folded back into a new snapshot.
+ * <p>
+ * The journal is a {@link JournalFile}: it is only replayed on top of the snapshot generation it
+ * was started against, which keeps a crash between writing a new snapshot and resetting the
+ * journal from replaying stale entries, and a torn entry at its tail is dropped on read. The
+ * snapshot ends with a CRC32 of everything before it, and every count and length in it is
+ * checked against the bytes left, so a damaged snapshot fails to read with an IOException.
+ */
+final class PackageSettingsStore {
+    private static final int SNAPSHOT_MAGIC = 0x504b5353; // PKSS
+    private static final int JOURNAL_MAGIC = 0x504b534a; // PKSJ
+    private static final int VERSION = 2;
+
+    /** Bytes of the snapshot besides its records: magic, version, generation, count and CRC. */
+    private static final int SNAPSHOT_OVERHEAD = 20;
+    /** Bytes each record takes at least: key length and value length. */
+    private static final int MIN_RECORD_SIZE = 6;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+
+    /** The journal is never compacted while it is smaller than this. */
+    private static final long MIN_COMPACT_JOURNAL_BYTES = 64 * 1024;
+
+    private final AtomicFile mSnapshotFile;
+    private final JournalFile mJournal;
+
+    /** Records as of the last successful read or commit; the base for the next delta. */
+    private final ArrayMap<String, byte[]> mCommitted = new ArrayMap<>();
+
+    private boolean mLoaded;
+    private boolean mReadFailed;
+    private int mGeneration;
+    private long mSnapshotBytes;
+
+    // Statistics, reported by dump().
+    private int mCommits;
+    private int mCompactions;
+    private int mLastDeltaRecords;
+    private long mLastDeltaBytes;
+    private long mLastCommitMs;
+
+    PackageSettingsStore(File systemDir) {
+        this(new File(systemDir, "packages.bin"), new File(systemDir, "packages.bin.journal"));
+    }
+
+    @VisibleForTesting
+    PackageSettingsStore(File snapshotFile, File journalFile) {
+        mSnapshotFile = new AtomicFile(snapshotFile);
+        mJournal = new JournalFile(journalFile, JOURNAL_MAGIC, VERSION);
+    }
+
+    /** Returns whether a snapshot is present on disk. */
+    boolean exists() {
+        return mSnapshotFile.exists();
+    }
+
+    /**
+     * Returns whether the last {@link #read()} failed. Until the store is deleted or moved
+     * aside, writes are refused rather than replacing what is on disk with whatever little
+     * was read.
+     */
+    boolean isReadFailed() {
+        return mReadFailed;
+    }
+
+    /**
+     * Reads the snapshot and replays the journal on top of it.
+     *
+     * @return the current records, in no particular order.
+     */
+    ArrayMap<String, byte[]> read() throws IOException {
+        mLoaded = false;
+        mReadFailed = true;
+        mCommitted.clear();
+
+        final byte[] data = mSnapshotFile.readFully();
+        if (data.length < SNAPSHOT_OVERHEAD) {
+            throw new IOException("Truncated snapshot " + mSnapshotFile.getBaseFile());
+        }
+        final int bodyLength = data.length - 4;
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, bodyLength);
+        final DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(data, 0, bodyLength));
+        if (in.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Bad snapshot magic in " + mSnapshotFile.getBaseFile());
+        }
+        final int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        if ((int) crc.getValue() != readChecksum(data, bodyLength)) {
+            throw new IOException("Bad snapshot checksum in " + mSnapshotFile.getBaseFile());
+        }
+        mGeneration = in.readInt();
+        final int count = in.readInt();
+        if (count < 0 || count > in.available() / MIN_RECORD_SIZE) {
+            throw new IOException("Bad snapshot record count " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            final String key = in.readUTF();
+            mCommitted.put(key, readValue(in));
+        }
+        if (in.available() != 0) {
+            throw new IOException("Trailing bytes in snapshot " + mSnapshotFile.getBaseFile());
+        }
+        mSnapshotBytes = data.length;
+
+        replayJournal();
+        mLoaded = true;
+        mReadFailed = false;
+        return new ArrayMap<>(mCommitted);
+    }
+
+    private static int readChecksum(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    /** Reads a length prefixed value, checking the length against the bytes left. */
+    private static byte[] readValue(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Bad record length " + length);
+        }
+        final byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+
+    private void replayJournal() throws IOException {
+        final List<byte[]> entries = mJournal.read(mGeneration);
+        for (int i = 0; i < entries.size(); i++) {
+            applyEntry(entries.get(i));
+        }
+    }
+
+    private void applyEntry(byte[] entry) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry));
+        final byte op = in.readByte();
+        final String key = in.readUTF();
+        if (op == OP_PUT) {
+            mCommitted.put(key, readValue(in));
+        } else if (op == OP_DELETE) {
+            mCommitted.remove(key);
+        } else {
+            throw new IOException("Unknown journal op " + op);
+        }
+    }
+
+    /**
+     * Persists the given records. Only the records that changed since the last read or commit
+     * are written, unless the journal has grown large enough to be compacted.
+     * <p>
+     * The values are retained and must not be modified by the caller afterwards.
+     */
+    void write(ArrayMap<String, byte[]> records) throws IOException {
+        if (mReadFailed) {
+            throw new IOException("Not overwriting " + mSnapshotFile.getBaseFile()
+                    + " after it failed to read");
+        }
+        final long startTime = SystemClock.uptimeMillis();
+        if (!mLoaded) {
+            // Nothing on disk to diff against; start over from a full snapshot.
+            writeSnapshot(records);
+            mLastDeltaRecords = records.size();
+            mLastDeltaBytes = mSnapshotBytes;
+            mCommits++;
+            mLastCommitMs = SystemClock.uptimeMillis() - startTime;
+            return;
+        }
+
+        final ArrayList<byte[]> delta = new ArrayList<>();
+        long deltaBytes = 0;
+        for (int i = records.size() - 1; i >= 0; i--) {
+            final String key = records.keyAt(i);
+            final byte[] value = records.valueAt(i);
+            if (!Arrays.equals(mCommitted.get(key), value)) {
+                delta.add(encodeEntry(OP_PUT, key, value));
+            }
+        }
+        for (int i = mCommitted.size() - 1; i >= 0; i--) {
+            final String key = mCommitted.keyAt(i);
+            if (!records.containsKey(key)) {
+                delta.add(encodeEntry(OP_DELETE, key, null));
+            }
+        }
+        if (delta.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < delta.size(); i++) {
+            deltaBytes += JournalFile.ENTRY_OVERHEAD + delta.get(i).length;
+        }
+
+        if (mJournal.getBytes() + deltaBytes
+                > Math.max(MIN_COMPACT_JOURNAL_BYTES, mSnapshotBytes / 2)) {
+            writeSnapshot(records);
+        } else {
+            mJournal.append(delta);
+            mCommitted.clear();
+            mCommitted.putAll(records);
+        }
+        mLastDeltaRecords = delta.size();
+        mLastDeltaBytes = deltaBytes;
+        mCommits++;
+        mLastCommitMs = SystemClock.uptimeMillis() - startTime;
+    }
+
+    private static byte[] encodeEntry(byte op, String key, byte[] value) throws IOException {
+        final ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+        final DataOutputStream entry = new DataOutputStream(entryBytes);
+        entry.writeByte(op);
+        entry.writeUTF(key);
+        if (value != null) {
+            entry.writeInt(value.length);
+            entry.write(value);
+        }
+        entry.flush();
+        return entryBytes.toByteArray();
+    }
+
+    private void writeSnapshot(ArrayMap<String, byte[]> records) throws IOException {
+        final int generation = mGeneration + 1;
+        FileOutputStream fstr = null;
+        try {
+            fstr = mSnapshotFile.startWrite();
+            final BufferedOutputStream buffered = new BufferedOutputStream(fstr);
+            final CRC32 crc = new CRC32();
+            final DataOutputStream out =
+                    new DataOutputStream(new CheckedOutputStream(buffered, crc));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(generation);
+            out.writeInt(records.size());
+            for (int i = 0; i < records.size(); i++) {
+                final byte[] value = records.valueAt(i);
+                out.writeUTF(records.keyAt(i));
+                out.writeInt(value.length);
+                out.write(value);
+            }
+            out.flush();
+            new DataOutputStream(buffered).writeInt((int) crc.getValue());
+            buffered.flush();
+            mSnapshotFile.finishWrite(fstr);
+            fstr = null;
+        } finally {
+            if (fstr != null) {
+                mSnapshotFile.failWrite(fstr);
+            }
+        }
+
+        mJournal.reset(generation);
+        mGeneration = generation;
+        mSnapshotBytes = mSnapshotFile.getBaseFile().length();
+        mCommitted.clear();
+        mCommitted.putAll(records);
+        mLoaded = true;
+        mCompactions++;
+        FileUtils.setPermissions(mSnapshotFile.getBaseFile().toString(),
+                FileUtils.S_IRUSR | FileUtils.S_IWUSR | FileUtils.S_IRGRP | FileUtils.S_IWGRP,
+                -1, -1);
+    }
+
+    /**
+     * Moves a store that failed to read out of the way, keeping its snapshot next to it with a
+     * .bad suffix for inspection, so that the next read doesn't fail on it again and the next
+     * write starts over from a full snapshot.
+     */
+    void moveAside() {
+        final File base = mSnapshotFile.getBaseFile();
+        final File bad = new File(base.getPath() + ".bad");
+        bad.delete();
+        if (!base.renameTo(bad)) {
+            Slog.w(PackageManagerService.TAG, "Unable to move aside " + base);
+        }
+        delete();
+    }
+
+    /** Removes both the snapshot and the journal. */
+    void delete() {
+        mSnapshotFile.delete();
+        mJournal.reset(0);
+        mCommitted.clear();
+        mLoaded = false;
+        mReadFailed = false;
+        mSnapshotBytes = 0;
+    }
+
+    @VisibleForTesting
+    long getJournalBytes() {
+        return mJournal.getBytes();
+    }
+
+    @VisibleForTesting
+    int getGeneration() {
+        return mGeneration;
+    }
+
+    void dump(IndentingPrintWriter pw) {
+        pw.print("generation="); pw.print(mGeneration);
+        pw.print(" records="); pw.print(mCommitted.size());
+        pw.print(" snapshotBytes="); pw.print(mSnapshotBytes);
+        pw.print(" journalBytes="); pw.println(mJournal.getBytes());
+        pw.print("commits="); pw.print(mCommits);
+        pw.print(" compactions="); pw.print(mCompactions);
+        pw.print(" lastDeltaRecords="); pw.print(mLastDeltaRecords);
+        pw.print(" lastDeltaBytes="); pw.print(mLastDeltaBytes);
+        pw.print(" lastCommitMs="); pw.println(mLastCommitMs);
+    }
+}
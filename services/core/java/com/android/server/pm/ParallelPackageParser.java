@@ -18,49 +18,79 @@ package com.android.server.pm;
 
 import android.content.pm.PackageParser;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.Trace;
+import android.system.StructStat;
 import android.util.DisplayMetrics;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ConcurrentUtils;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
 
 /**
  * Helper class for parallel parsing of packages using {@link PackageParser}.
- * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
- * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
+ * <p>Parsing requests are processed by a thread-pool sized to the number of available cores,
+ * capped at {@link #MAX_THREADS}. All threads pull from one shared work queue, so a thread
+ * that finishes early picks up the next package instead of idling behind a slow one. At any
+ * time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
+ * <p>{@link #submitAll} orders packages most-expensive-first using the optional
+ * {@link PackageParseIndex}, so that large or changed packages do not end up as the tail of
+ * the scan.</p>
  */
 class ParallelPackageParser implements AutoCloseable {
 
     private static final int QUEUE_CAPACITY = 10;
-    private static final int MAX_THREADS = 4;
+    private static final int MAX_THREADS = 8;
+
+    static final int THREAD_COUNT = Math.max(1,
+            Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS));
 
     private final String[] mSeparateProcesses;
     private final boolean mOnlyCore;
     private final DisplayMetrics mMetrics;
     private final File mCacheDir;
     private final PackageParser.Callback mPackageParserCallback;
+    private final PackageParseIndex mIndex;
     private volatile String mInterruptedInThread;
 
-    private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(
+            Math.max(QUEUE_CAPACITY, 2 * THREAD_COUNT));
 
-    private final ExecutorService mService = ConcurrentUtils.newFixedThreadPool(MAX_THREADS,
+    private final ExecutorService mService = ConcurrentUtils.newFixedThreadPool(THREAD_COUNT,
             "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
 
+    // Timings for the current scan, see getStats().
+    private final long mStartTime = SystemClock.uptimeMillis();
+    private final AtomicInteger mSubmitted = new AtomicInteger();
+    private final AtomicInteger mIndexed = new AtomicInteger();
+    private final AtomicLong mParseNanos = new AtomicLong();
+    private final AtomicLong mLongestParseNanos = new AtomicLong();
+    private long mTakeWaitNanos;
+
     ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
             DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback) {
+        this(separateProcesses, onlyCoreApps, metrics, cacheDir, callback, null);
+    }
+
+    ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
+            DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback,
+            PackageParseIndex index) {
         mSeparateProcesses = separateProcesses;
         mOnlyCore = onlyCoreApps;
         mMetrics = metrics;
         mCacheDir = cacheDir;
         mPackageParserCallback = callback;
+        mIndex = index;
     }
 
     static class ParseResult {
@@ -89,7 +119,13 @@ class ParallelPackageParser implements AutoCloseable {
             if (mInterruptedInThread != null) {
                 throw new InterruptedException("Interrupted in " + mInterruptedInThread);
             }
-            return mQueue.take();
+            ParseResult result = mQueue.poll();
+            if (result == null) {
+                final long waitStart = System.nanoTime();
+                result = mQueue.take();
+                mTakeWaitNanos += System.nanoTime() - waitStart;
+            }
+            return result;
         } catch (InterruptedException e) {
             // We cannot recover from interrupt here
             Thread.currentThread().interrupt();
@@ -97,14 +133,86 @@ class ParallelPackageParser implements AutoCloseable {
         }
     }
 
+    /**
+     * Submits the files for parsing, most expensive first. Packages that are new or changed
+     * since the last scan go first, largest first; the rest are ordered by how long they took
+     * last time.
+     * @param scanFiles files to scan
+     * @param parseFlags parse flags
+     */
+    public void submitAll(List<File> scanFiles, int parseFlags) {
+        final int count = scanFiles.size();
+        final PendingParse[] pending = new PendingParse[count];
+        for (int i = 0; i < count; i++) {
+            final File scanFile = scanFiles.get(i);
+            final StructStat stat = mIndex != null ? PackageParseIndex.stat(scanFile) : null;
+            final long cost = mIndex != null
+                    ? mIndex.getCostMicros(scanFile, stat) : PackageParseIndex.COST_UNKNOWN;
+            if (cost != PackageParseIndex.COST_UNKNOWN) {
+                mIndexed.incrementAndGet();
+            }
+            pending[i] = new PendingParse(scanFile, stat, cost);
+        }
+        Arrays.sort(pending);
+        for (PendingParse p : pending) {
+            submit(p.scanFile, parseFlags, p.stat);
+        }
+    }
+
+    private static final class PendingParse implements Comparable<PendingParse> {
+        final File scanFile;
+        final StructStat stat;
+        final long costMicros;
+        final long size;
+
+        PendingParse(File scanFile, StructStat stat, long costMicros) {
+            this.scanFile = scanFile;
+            this.stat = stat;
+            this.costMicros = costMicros;
+            this.size = costMicros == PackageParseIndex.COST_UNKNOWN ? sizeOf(scanFile) : 0;
+        }
+
+        @Override
+        public int compareTo(PendingParse other) {
+            final boolean unknown = costMicros == PackageParseIndex.COST_UNKNOWN;
+            final boolean otherUnknown = other.costMicros == PackageParseIndex.COST_UNKNOWN;
+            if (unknown != otherUnknown) {
+                return unknown ? -1 : 1;
+            }
+            return unknown ? Long.compare(other.size, size)
+                    : Long.compare(other.costMicros, costMicros);
+        }
+
+        private static long sizeOf(File scanFile) {
+            if (!scanFile.isDirectory()) {
+                return scanFile.length();
+            }
+            long size = 0;
+            final File[] files = scanFile.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    size += file.length();
+                }
+            }
+            return size;
+        }
+    }
+
     /**
      * Submits the file for parsing
      * @param scanFile file to scan
      * @param parseFlags parse falgs
      */
     public void submit(File scanFile, int parseFlags) {
+        submit(scanFile, parseFlags,
+                mIndex != null ? PackageParseIndex.stat(scanFile) : null);
+    }
+
+    private void submit(File scanFile, int parseFlags, StructStat stat) {
+        mSubmitted.incrementAndGet();
         mService.submit(() -> {
             ParseResult pr = new ParseResult();
+            final long parseStart = System.nanoTime();
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "parallel parsePackage [" + scanFile + "]");
             try {
                 PackageParser pp = new PackageParser();
@@ -120,6 +228,16 @@ class ParallelPackageParser implements AutoCloseable {
             } finally {
                 Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
             }
+            final long parseNanos = System.nanoTime() - parseStart;
+            mParseNanos.addAndGet(parseNanos);
+            long longest = mLongestParseNanos.get();
+            while (parseNanos > longest
+                    && !mLongestParseNanos.compareAndSet(longest, parseNanos)) {
+                longest = mLongestParseNanos.get();
+            }
+            if (mIndex != null && pr.throwable == null) {
+                mIndex.record(scanFile, stat, parseNanos / 1000);
+            }
             try {
                 mQueue.put(pr);
             } catch (InterruptedException e) {
@@ -138,6 +256,21 @@ class ParallelPackageParser implements AutoCloseable {
         return packageParser.parsePackage(scanFile, parseFlags, true /* useCaches */);
     }
 
+    /**
+     * Returns a one-line summary of where time went during this scan: wall time since
+     * creation, total and longest time spent parsing on the worker threads, and how long
+     * callers of {@link #take()} were blocked waiting for results.
+     */
+    String getStats() {
+        return "packages=" + mSubmitted.get()
+                + " indexed=" + mIndexed.get()
+                + " threads=" + THREAD_COUNT
+                + " wall=" + (SystemClock.uptimeMillis() - mStartTime) + "ms"
+                + " parse=" + mParseNanos.get() / 1000000 + "ms"
+                + " longest=" + mLongestParseNanos.get() / 1000000 + "ms"
+                + " waited=" + mTakeWaitNanos / 1000000 + "ms";
+    }
+
     @Override
     public void close() {
         List<Runnable> unfinishedTasks = mService.shutdownNow();
@@ -61,6 +61,7 @@ import android.os.Message;
 import android.os.PatternMatcher;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageManager;
@@ -81,6 +82,7 @@ import android.util.Xml;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.FastXmlSerializer;
@@ -101,6 +103,8 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -130,6 +134,17 @@ import java.util.Set;
 final class Settings {
     private static final String TAG = "PackageSettings";
 
+    /**
+     * When set, settings are persisted through {@link PackageSettingsStore} instead of being
+     * rewritten to packages.xml on every change.
+     */
+    private static final String PROPERTY_BINARY_SETTINGS = "persist.sys.pm.binary_settings";
+
+    // Keys of records in the settings store; see buildSettingsRecordsLPr().
+    private static final String SETTINGS_RECORD_SIGNATURES = "0/signatures";
+    private static final String SETTINGS_RECORD_PACKAGE = "2/package/";
+    private static final String SETTINGS_RECORD_UPDATED_PACKAGE = "3/updated-package/";
+
     /**
      * Current version of the package database. Set it to the latest version in
      * the {@link DatabaseVersion} class below to ensure the database upgrade
@@ -257,6 +272,8 @@ final class Settings {
 
     private final File mSettingsFilename;
     private final File mBackupSettingsFilename;
+    private final PackageSettingsStore mSettingsStore;
+    private boolean mUseSettingsStore;
     private final File mPackageListFilename;
     private final File mStoppedPackagesFilename;
     private final File mBackupStoppedPackagesFilename;
@@ -376,6 +393,17 @@ final class Settings {
     // For reading/writing settings file.
     private final ArrayList<Signature> mPastSignatures =
             new ArrayList<Signature>();
+    /**
+     * Signatures referenced by index from the records in {@link #mSettingsStore}. Only ever
+     * appended to between full rebuilds, so that cached package records stay valid.
+     */
+    private final ArrayList<Signature> mSettingsStoreSignatures = new ArrayList<>();
+    /** Package and updated-package records as last written to {@link #mSettingsStore}. */
+    private final ArrayMap<String, byte[]> mPackageSettingsRecords = new ArrayMap<>();
+    /** Packages whose records have to be serialized again on the next write. */
+    private final ArraySet<String> mDirtyPackages = new ArraySet<>();
+    /** Whether every package record has to be serialized again on the next write. */
+    private boolean mAllPackagesDirty = true;
     private final ArrayMap<Long, Integer> mKeySetRefs =
             new ArrayMap<Long, Integer>();
 
@@ -438,6 +466,8 @@ final class Settings {
                 -1, -1);
         mSettingsFilename = new File(mSystemDir, "packages.xml");
         mBackupSettingsFilename = new File(mSystemDir, "packages-backup.xml");
+        mSettingsStore = new PackageSettingsStore(mSystemDir);
+        mUseSettingsStore = SystemProperties.getBoolean(PROPERTY_BINARY_SETTINGS, false);
         mPackageListFilename = new File(mSystemDir, "packages.list");
         FileUtils.setPermissions(mPackageListFilename, 0640, SYSTEM_UID, PACKAGE_INFO_GID);
 
@@ -2449,9 +2479,50 @@ final class Settings {
         }
     }
 
+    @VisibleForTesting
+    void setUseSettingsStoreLPw(boolean useSettingsStore) {
+        mUseSettingsStore = useSettingsStore;
+    }
+
+    /**
+     * Marks the settings of the given package as changed, for the next
+     * {@link #writeChangedLPr()}.
+     */
+    void markPackageDirtyLPw(String packageName) {
+        mDirtyPackages.add(packageName);
+    }
+
+    /** Marks the settings of every package as changed, for the next write. */
+    void markAllPackagesDirtyLPw() {
+        mAllPackagesDirty = true;
+    }
+
     void writeLPr() {
+        markAllPackagesDirtyLPw();
+        writeChangedLPr();
+    }
+
+    /**
+     * Like {@link #writeLPr()}, but when settings are persisted through the settings store,
+     * only the packages marked with {@link #markPackageDirtyLPw} since the last write are
+     * serialized again, unless {@link #markAllPackagesDirtyLPw()} was called as well.
+     */
+    void writeChangedLPr() {
         //Debug.startMethodTracing("/data/system/packageprof", 8 * 1024 * 1024);
 
+        if (mUseSettingsStore) {
+            if (writeSettingsStoreLPr()) {
+                writeKernelMappingLPr();
+                writePackageListLPr();
+                writeAllUsersPackageRestrictionsLPr();
+                writeAllRuntimePermissionsLPr();
+            }
+            return;
+        }
+
+        // The store and its cached records go away once packages.xml is written.
+        markAllPackagesDirtyLPw();
+
         // Keep the old settings around until we know the new ones have
         // been successfully written.
         if (mSettingsFilename.exists()) {
@@ -2484,104 +2555,7 @@ final class Settings {
             serializer.startDocument(null, true);
             serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
-            serializer.startTag(null, "packages");
-
-            for (int i = 0; i < mVersion.size(); i++) {
-                final String volumeUuid = mVersion.keyAt(i);
-                final VersionInfo ver = mVersion.valueAt(i);
-
-                serializer.startTag(null, TAG_VERSION);
-                XmlUtils.writeStringAttribute(serializer, ATTR_VOLUME_UUID, volumeUuid);
-                XmlUtils.writeIntAttribute(serializer, ATTR_SDK_VERSION, ver.sdkVersion);
-                XmlUtils.writeIntAttribute(serializer, ATTR_DATABASE_VERSION, ver.databaseVersion);
-                XmlUtils.writeStringAttribute(serializer, ATTR_FINGERPRINT, ver.fingerprint);
-                serializer.endTag(null, TAG_VERSION);
-            }
-
-            if (mVerifierDeviceIdentity != null) {
-                serializer.startTag(null, "verifier");
-                serializer.attribute(null, "device", mVerifierDeviceIdentity.toString());
-                serializer.endTag(null, "verifier");
-            }
-
-            if (mReadExternalStorageEnforced != null) {
-                serializer.startTag(null, TAG_READ_EXTERNAL_STORAGE);
-                serializer.attribute(
-                        null, ATTR_ENFORCEMENT, mReadExternalStorageEnforced ? "1" : "0");
-                serializer.endTag(null, TAG_READ_EXTERNAL_STORAGE);
-            }
-
-            serializer.startTag(null, "permission-trees");
-            for (BasePermission bp : mPermissionTrees.values()) {
-                writePermissionLPr(serializer, bp);
-            }
-            serializer.endTag(null, "permission-trees");
-
-            serializer.startTag(null, "permissions");
-            for (BasePermission bp : mPermissions.values()) {
-                writePermissionLPr(serializer, bp);
-            }
-            serializer.endTag(null, "permissions");
-
-            for (final PackageSetting pkg : mPackages.values()) {
-                writePackageLPr(serializer, pkg);
-            }
-
-            for (final PackageSetting pkg : mDisabledSysPackages.values()) {
-                writeDisabledSysPackageLPr(serializer, pkg);
-            }
-
-            for (final SharedUserSetting usr : mSharedUsers.values()) {
-                serializer.startTag(null, "shared-user");
-                serializer.attribute(null, ATTR_NAME, usr.name);
-                serializer.attribute(null, "userId",
-                        Integer.toString(usr.userId));
-                usr.signatures.writeXml(serializer, "sigs", mPastSignatures);
-                writePermissionsLPr(serializer, usr.getPermissionsState()
-                        .getInstallPermissionStates());
-                serializer.endTag(null, "shared-user");
-            }
-
-            if (mPackagesToBeCleaned.size() > 0) {
-                for (PackageCleanItem item : mPackagesToBeCleaned) {
-                    final String userStr = Integer.toString(item.userId);
-                    serializer.startTag(null, "cleaning-package");
-                    serializer.attribute(null, ATTR_NAME, item.packageName);
-                    serializer.attribute(null, ATTR_CODE, item.andCode ? "true" : "false");
-                    serializer.attribute(null, ATTR_USER, userStr);
-                    serializer.endTag(null, "cleaning-package");
-                }
-            }
-
-            if (mRenamedPackages.size() > 0) {
-                for (Map.Entry<String, String> e : mRenamedPackages.entrySet()) {
-                    serializer.startTag(null, "renamed-package");
-                    serializer.attribute(null, "new", e.getKey());
-                    serializer.attribute(null, "old", e.getValue());
-                    serializer.endTag(null, "renamed-package");
-                }
-            }
-
-            final int numIVIs = mRestoredIntentFilterVerifications.size();
-            if (numIVIs > 0) {
-                if (DEBUG_DOMAIN_VERIFICATION) {
-                    Slog.i(TAG, "Writing restored-ivi entries to packages.xml");
-                }
-                serializer.startTag(null, "restored-ivi");
-                for (int i = 0; i < numIVIs; i++) {
-                    IntentFilterVerificationInfo ivi = mRestoredIntentFilterVerifications.valueAt(i);
-                    writeDomainVerificationsLPr(serializer, ivi);
-                }
-                serializer.endTag(null, "restored-ivi");
-            } else {
-                if (DEBUG_DOMAIN_VERIFICATION) {
-                    Slog.i(TAG, "  no restored IVI entries to write");
-                }
-            }
-
-            mKeySetManagerService.writeKeySetManagerServiceLPr(serializer);
-
-            serializer.endTag(null, "packages");
+            writeSettingsXmlLPr(serializer, mPastSignatures);
 
             serializer.endDocument();
 
@@ -2592,6 +2566,9 @@ final class Settings {
             // New settings successfully written, old ones are no longer
             // needed.
             mBackupSettingsFilename.delete();
+            if (mSettingsStore.exists()) {
+                mSettingsStore.delete();
+            }
             FileUtils.setPermissions(mSettingsFilename.toString(),
                     FileUtils.S_IRUSR|FileUtils.S_IWUSR
                     |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
@@ -2620,6 +2597,327 @@ final class Settings {
         //Debug.stopMethodTracing();
     }
 
+    /**
+     * Writes the contents of the top-level {@code <packages>} element of packages.xml.
+     *
+     * @param pastSignatures Signatures written so far, which later elements refer to by index.
+     */
+    private void writeSettingsXmlLPr(XmlSerializer serializer,
+            ArrayList<Signature> pastSignatures) throws IOException, XmlPullParserException {
+        serializer.startTag(null, "packages");
+
+        writeVersionAndVerifierLPr(serializer);
+
+        serializer.startTag(null, "permission-trees");
+        for (BasePermission bp : mPermissionTrees.values()) {
+            writePermissionLPr(serializer, bp);
+        }
+        serializer.endTag(null, "permission-trees");
+
+        serializer.startTag(null, "permissions");
+        for (BasePermission bp : mPermissions.values()) {
+            writePermissionLPr(serializer, bp);
+        }
+        serializer.endTag(null, "permissions");
+
+        for (final PackageSetting pkg : mPackages.values()) {
+            writePackageLPr(serializer, pkg, pastSignatures);
+        }
+
+        for (final PackageSetting pkg : mDisabledSysPackages.values()) {
+            writeDisabledSysPackageLPr(serializer, pkg);
+        }
+
+        for (final SharedUserSetting usr : mSharedUsers.values()) {
+            writeSharedUserLPr(serializer, usr, pastSignatures);
+        }
+
+        writeCleaningAndRenamedPackagesLPr(serializer);
+        writeRestoredIntentFilterVerificationsLPr(serializer);
+
+        mKeySetManagerService.writeKeySetManagerServiceLPr(serializer);
+
+        serializer.endTag(null, "packages");
+    }
+
+    private void writeVersionAndVerifierLPr(XmlSerializer serializer) throws IOException {
+        for (int i = 0; i < mVersion.size(); i++) {
+            final String volumeUuid = mVersion.keyAt(i);
+            final VersionInfo ver = mVersion.valueAt(i);
+
+            serializer.startTag(null, TAG_VERSION);
+            XmlUtils.writeStringAttribute(serializer, ATTR_VOLUME_UUID, volumeUuid);
+            XmlUtils.writeIntAttribute(serializer, ATTR_SDK_VERSION, ver.sdkVersion);
+            XmlUtils.writeIntAttribute(serializer, ATTR_DATABASE_VERSION, ver.databaseVersion);
+            XmlUtils.writeStringAttribute(serializer, ATTR_FINGERPRINT, ver.fingerprint);
+            serializer.endTag(null, TAG_VERSION);
+        }
+
+        if (mVerifierDeviceIdentity != null) {
+            serializer.startTag(null, "verifier");
+            serializer.attribute(null, "device", mVerifierDeviceIdentity.toString());
+            serializer.endTag(null, "verifier");
+        }
+
+        if (mReadExternalStorageEnforced != null) {
+            serializer.startTag(null, TAG_READ_EXTERNAL_STORAGE);
+            serializer.attribute(
+                    null, ATTR_ENFORCEMENT, mReadExternalStorageEnforced ? "1" : "0");
+            serializer.endTag(null, TAG_READ_EXTERNAL_STORAGE);
+        }
+    }
+
+    private void writeSharedUserLPr(XmlSerializer serializer, SharedUserSetting usr,
+            ArrayList<Signature> pastSignatures) throws IOException {
+        serializer.startTag(null, "shared-user");
+        serializer.attribute(null, ATTR_NAME, usr.name);
+        serializer.attribute(null, "userId",
+                Integer.toString(usr.userId));
+        usr.signatures.writeXml(serializer, "sigs", pastSignatures);
+        writePermissionsLPr(serializer, usr.getPermissionsState()
+                .getInstallPermissionStates());
+        serializer.endTag(null, "shared-user");
+    }
+
+    private void writeCleaningAndRenamedPackagesLPr(XmlSerializer serializer)
+            throws IOException {
+        if (mPackagesToBeCleaned.size() > 0) {
+            for (PackageCleanItem item : mPackagesToBeCleaned) {
+                final String userStr = Integer.toString(item.userId);
+                serializer.startTag(null, "cleaning-package");
+                serializer.attribute(null, ATTR_NAME, item.packageName);
+                serializer.attribute(null, ATTR_CODE, item.andCode ? "true" : "false");
+                serializer.attribute(null, ATTR_USER, userStr);
+                serializer.endTag(null, "cleaning-package");
+            }
+        }
+
+        if (mRenamedPackages.size() > 0) {
+            for (Map.Entry<String, String> e : mRenamedPackages.entrySet()) {
+                serializer.startTag(null, "renamed-package");
+                serializer.attribute(null, "new", e.getKey());
+                serializer.attribute(null, "old", e.getValue());
+                serializer.endTag(null, "renamed-package");
+            }
+        }
+    }
+
+    private void writeRestoredIntentFilterVerificationsLPr(XmlSerializer serializer)
+            throws IOException {
+        final int numIVIs = mRestoredIntentFilterVerifications.size();
+        if (numIVIs > 0) {
+            if (DEBUG_DOMAIN_VERIFICATION) {
+                Slog.i(TAG, "Writing restored-ivi entries to packages.xml");
+            }
+            serializer.startTag(null, "restored-ivi");
+            for (int i = 0; i < numIVIs; i++) {
+                IntentFilterVerificationInfo ivi = mRestoredIntentFilterVerifications.valueAt(i);
+                writeDomainVerificationsLPr(serializer, ivi);
+            }
+            serializer.endTag(null, "restored-ivi");
+        } else {
+            if (DEBUG_DOMAIN_VERIFICATION) {
+                Slog.i(TAG, "  no restored IVI entries to write");
+            }
+        }
+    }
+
+    /**
+     * Writes settings as records into {@link #mSettingsStore}. Each record holds the same
+     * elements packages.xml would, so that they can be read back with the XML readers, but
+     * only the records that changed since the previous write are persisted.
+     */
+    private boolean writeSettingsStoreLPr() {
+        try {
+            mSettingsStore.write(buildSettingsRecordsLPr());
+        } catch (XmlPullParserException | IOException e) {
+            Slog.wtf(PackageManagerService.TAG, "Unable to write package manager settings, "
+                    + "current changes will be lost at reboot", e);
+            return false;
+        }
+
+        // The store is authoritative from now on; make sure a stale packages.xml can never
+        // be picked up instead of it.
+        mSettingsFilename.delete();
+        mBackupSettingsFilename.delete();
+        return true;
+    }
+
+    private ArrayMap<String, byte[]> buildSettingsRecordsLPr()
+            throws IOException, XmlPullParserException {
+        final ArrayMap<String, byte[]> records = new ArrayMap<>();
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        final XmlSerializer serializer = new FastXmlSerializer();
+
+        // Signatures are written as indices into a pool that is persisted as a record of its
+        // own. Cached records keep referring to the same indices, so the pool is only rebuilt
+        // along with every package record, once most of it is no longer in use.
+        if (mAllPackagesDirty && countSignaturesInUseLPr() * 2 < mSettingsStoreSignatures.size()) {
+            mSettingsStoreSignatures.clear();
+        }
+        mPastSignatures.clear();
+        mPastSignatures.addAll(mSettingsStoreSignatures);
+
+        // Record keys start with a rank so that readSettingsStoreLPw() can restore the order
+        // in which packages.xml holds these elements; keysets must come last, since they
+        // resolve reference counts collected from the packages.
+        startSettingsRecord(serializer, buf);
+        writeVersionAndVerifierLPr(serializer);
+        finishSettingsRecord(serializer, buf, records, "0/header");
+
+        startSettingsRecord(serializer, buf);
+        serializer.startTag(null, "permission-trees");
+        for (BasePermission bp : mPermissionTrees.values()) {
+            writePermissionLPr(serializer, bp);
+        }
+        serializer.endTag(null, "permission-trees");
+        serializer.startTag(null, "permissions");
+        for (BasePermission bp : mPermissions.values()) {
+            writePermissionLPr(serializer, bp);
+        }
+        serializer.endTag(null, "permissions");
+        finishSettingsRecord(serializer, buf, records, "1/permissions");
+
+        if (mAllPackagesDirty) {
+            mPackageSettingsRecords.clear();
+            for (final PackageSetting pkg : mPackages.values()) {
+                writePackageRecordLPr(serializer, buf, pkg, false);
+            }
+            for (final PackageSetting pkg : mDisabledSysPackages.values()) {
+                writePackageRecordLPr(serializer, buf, pkg, true);
+            }
+        } else {
+            for (int i = mDirtyPackages.size() - 1; i >= 0; i--) {
+                final String name = mDirtyPackages.valueAt(i);
+                final PackageSetting pkg = mPackages.get(name);
+                if (pkg != null) {
+                    writePackageRecordLPr(serializer, buf, pkg, false);
+                } else {
+                    mPackageSettingsRecords.remove(SETTINGS_RECORD_PACKAGE + name);
+                }
+                final PackageSetting disabledPkg = mDisabledSysPackages.get(name);
+                if (disabledPkg != null) {
+                    writePackageRecordLPr(serializer, buf, disabledPkg, true);
+                } else {
+                    mPackageSettingsRecords.remove(SETTINGS_RECORD_UPDATED_PACKAGE + name);
+                }
+            }
+        }
+        mAllPackagesDirty = false;
+        mDirtyPackages.clear();
+        records.putAll(mPackageSettingsRecords);
+
+        for (final SharedUserSetting usr : mSharedUsers.values()) {
+            startSettingsRecord(serializer, buf);
+            addPastSignaturesLPw(usr.signatures);
+            writeSharedUserLPr(serializer, usr, mPastSignatures);
+            finishSettingsRecord(serializer, buf, records, "4/shared-user/" + usr.name);
+        }
+
+        startSettingsRecord(serializer, buf);
+        writeCleaningAndRenamedPackagesLPr(serializer);
+        writeRestoredIntentFilterVerificationsLPr(serializer);
+        finishSettingsRecord(serializer, buf, records, "5/misc");
+
+        startSettingsRecord(serializer, buf);
+        mKeySetManagerService.writeKeySetManagerServiceLPr(serializer);
+        finishSettingsRecord(serializer, buf, records, "6/keysets");
+
+        mSettingsStoreSignatures.clear();
+        mSettingsStoreSignatures.addAll(mPastSignatures);
+        startSettingsRecord(serializer, buf);
+        new PackageSignatures(mSettingsStoreSignatures.toArray(
+                new Signature[mSettingsStoreSignatures.size()]))
+                .writeXml(serializer, "sigs", new ArrayList<Signature>());
+        finishSettingsRecord(serializer, buf, records, SETTINGS_RECORD_SIGNATURES);
+
+        return records;
+    }
+
+    private void writePackageRecordLPr(XmlSerializer serializer, ByteArrayOutputStream buf,
+            PackageSetting pkg, boolean disabled) throws IOException {
+        startSettingsRecord(serializer, buf);
+        addPastSignaturesLPw(pkg.signatures);
+        if (disabled) {
+            writeDisabledSysPackageLPr(serializer, pkg);
+            finishSettingsRecord(serializer, buf, mPackageSettingsRecords,
+                    SETTINGS_RECORD_UPDATED_PACKAGE + pkg.name);
+        } else {
+            writePackageLPr(serializer, pkg, mPastSignatures);
+            finishSettingsRecord(serializer, buf, mPackageSettingsRecords,
+                    SETTINGS_RECORD_PACKAGE + pkg.name);
+        }
+    }
+
+    /**
+     * Adds the given signatures to {@link #mPastSignatures} ahead of writing them, so that
+     * the record being written refers to them by index instead of carrying them.
+     */
+    private void addPastSignaturesLPw(PackageSignatures sigs) {
+        if (sigs.mSignatures == null) {
+            return;
+        }
+        for (Signature sig : sigs.mSignatures) {
+            if (!mPastSignatures.contains(sig)) {
+                mPastSignatures.add(sig);
+            }
+        }
+    }
+
+    private int countSignaturesInUseLPr() {
+        final ArraySet<Signature> inUse = new ArraySet<>();
+        for (int i = mPackages.size() - 1; i >= 0; i--) {
+            addSignatures(inUse, mPackages.valueAt(i).signatures);
+        }
+        for (int i = mDisabledSysPackages.size() - 1; i >= 0; i--) {
+            addSignatures(inUse, mDisabledSysPackages.valueAt(i).signatures);
+        }
+        for (int i = mSharedUsers.size() - 1; i >= 0; i--) {
+            addSignatures(inUse, mSharedUsers.valueAt(i).signatures);
+        }
+        return inUse.size();
+    }
+
+    private static void addSignatures(ArraySet<Signature> out, PackageSignatures sigs) {
+        if (sigs.mSignatures != null) {
+            Collections.addAll(out, sigs.mSignatures);
+        }
+    }
+
+    private static void startSettingsRecord(XmlSerializer serializer, ByteArrayOutputStream buf)
+            throws IOException {
+        buf.reset();
+        serializer.setOutput(buf, StandardCharsets.UTF_8.name());
+        serializer.startTag(null, "packages");
+    }
+
+    private static void finishSettingsRecord(XmlSerializer serializer, ByteArrayOutputStream buf,
+            ArrayMap<String, byte[]> records, String key) throws IOException {
+        serializer.endTag(null, "packages");
+        serializer.flush();
+        records.put(key, buf.toByteArray());
+    }
+
+    /**
+     * Writes the current settings as packages.xml would hold them, for debugging and
+     * migration.
+     */
+    void dumpSettingsXmlLPr(PrintWriter pw) {
+        try {
+            final XmlSerializer serializer = new FastXmlSerializer();
+            serializer.setOutput(pw);
+            serializer.startDocument(null, true);
+            serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+            // Signatures go into a list of their own; the next write still relies on the
+            // ones already in mPastSignatures.
+            writeSettingsXmlLPr(serializer, new ArrayList<>());
+            serializer.endDocument();
+        } catch (XmlPullParserException | IOException e) {
+            pw.println("Failed to write settings: " + e);
+        }
+        pw.flush();
+    }
+
     private void writeKernelRemoveUserLPr(int userId) {
         if (mKernelMappingFilename == null) return;
 
@@ -2860,8 +3158,8 @@ final class Settings {
         serializer.endTag(null, "updated-package");
     }
 
-    void writePackageLPr(XmlSerializer serializer, final PackageSetting pkg)
-            throws java.io.IOException {
+    void writePackageLPr(XmlSerializer serializer, final PackageSetting pkg,
+            ArrayList<Signature> pastSignatures) throws java.io.IOException {
         serializer.startTag(null, "package");
         serializer.attribute(null, ATTR_NAME, pkg.name);
         if (pkg.realName != null) {
@@ -2926,7 +3224,7 @@ final class Settings {
 
         writeUsesStaticLibLPw(serializer, pkg.usesStaticLibraries, pkg.usesStaticLibrariesVersions);
 
-        pkg.signatures.writeXml(serializer, "sigs", mPastSignatures);
+        pkg.signatures.writeXml(serializer, "sigs", pastSignatures);
 
         writePermissionsLPr(serializer, pkg.getPermissionsState()
                     .getInstallPermissionStates());
@@ -3017,7 +3315,12 @@ final class Settings {
         }
     }
 
-    boolean readLPw(@NonNull List<UserInfo> users) {
+    /**
+     * Reads packages.xml, falling back to its backup if a previous write did not complete.
+     *
+     * @return false if there were no settings to read or the file had no root element.
+     */
+    private boolean readSettingsXmlLPw() {
         FileInputStream str = null;
         if (mBackupSettingsFilename.exists()) {
             try {
@@ -3038,11 +3341,6 @@ final class Settings {
             }
         }
 
-        mPendingPackages.clear();
-        mPastSignatures.clear();
-        mKeySetRefs.clear();
-        mInstallerPackages.clear();
-
         try {
             if (str == null) {
                 if (!mSettingsFilename.exists()) {
@@ -3075,114 +3373,7 @@ final class Settings {
                 return false;
             }
 
-            int outerDepth = parser.getDepth();
-            while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
-                    && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
-                if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
-                    continue;
-                }
-
-                String tagName = parser.getName();
-                if (tagName.equals("package")) {
-                    readPackageLPw(parser);
-                } else if (tagName.equals("permissions")) {
-                    readPermissionsLPw(mPermissions, parser);
-                } else if (tagName.equals("permission-trees")) {
-                    readPermissionsLPw(mPermissionTrees, parser);
-                } else if (tagName.equals("shared-user")) {
-                    readSharedUserLPw(parser);
-                } else if (tagName.equals("preferred-packages")) {
-                    // no longer used.
-                } else if (tagName.equals("preferred-activities")) {
-                    // Upgrading from old single-user implementation;
-                    // these are the preferred activities for user 0.
-                    readPreferredActivitiesLPw(parser, 0);
-                } else if (tagName.equals(TAG_PERSISTENT_PREFERRED_ACTIVITIES)) {
-                    // TODO: check whether this is okay! as it is very
-                    // similar to how preferred-activities are treated
-                    readPersistentPreferredActivitiesLPw(parser, 0);
-                } else if (tagName.equals(TAG_CROSS_PROFILE_INTENT_FILTERS)) {
-                    // TODO: check whether this is okay! as it is very
-                    // similar to how preferred-activities are treated
-                    readCrossProfileIntentFiltersLPw(parser, 0);
-                } else if (tagName.equals(TAG_DEFAULT_BROWSER)) {
-                    readDefaultAppsLPw(parser, 0);
-                } else if (tagName.equals("updated-package")) {
-                    readDisabledSysPackageLPw(parser);
-                } else if (tagName.equals("cleaning-package")) {
-                    String name = parser.getAttributeValue(null, ATTR_NAME);
-                    String userStr = parser.getAttributeValue(null, ATTR_USER);
-                    String codeStr = parser.getAttributeValue(null, ATTR_CODE);
-                    if (name != null) {
-                        int userId = UserHandle.USER_SYSTEM;
-                        boolean andCode = true;
-                        try {
-                            if (userStr != null) {
-                                userId = Integer.parseInt(userStr);
-                            }
-                        } catch (NumberFormatException e) {
-                        }
-                        if (codeStr != null) {
-                            andCode = Boolean.parseBoolean(codeStr);
-                        }
-                        addPackageToCleanLPw(new PackageCleanItem(userId, name, andCode));
-                    }
-                } else if (tagName.equals("renamed-package")) {
-                    String nname = parser.getAttributeValue(null, "new");
-                    String oname = parser.getAttributeValue(null, "old");
-                    if (nname != null && oname != null) {
-                        mRenamedPackages.put(nname, oname);
-                    }
-                } else if (tagName.equals("restored-ivi")) {
-                    readRestoredIntentFilterVerifications(parser);
-                } else if (tagName.equals("last-platform-version")) {
-                    // Upgrade from older XML schema
-                    final VersionInfo internal = findOrCreateVersion(
-                            StorageManager.UUID_PRIVATE_INTERNAL);
-                    final VersionInfo external = findOrCreateVersion(
-                            StorageManager.UUID_PRIMARY_PHYSICAL);
-
-                    internal.sdkVersion = XmlUtils.readIntAttribute(parser, "internal", 0);
-                    external.sdkVersion = XmlUtils.readIntAttribute(parser, "external", 0);
-                    internal.fingerprint = external.fingerprint =
-                            XmlUtils.readStringAttribute(parser, "fingerprint");
-
-                } else if (tagName.equals("database-version")) {
-                    // Upgrade from older XML schema
-                    final VersionInfo internal = findOrCreateVersion(
-                            StorageManager.UUID_PRIVATE_INTERNAL);
-                    final VersionInfo external = findOrCreateVersion(
-                            StorageManager.UUID_PRIMARY_PHYSICAL);
-
-                    internal.databaseVersion = XmlUtils.readIntAttribute(parser, "internal", 0);
-                    external.databaseVersion = XmlUtils.readIntAttribute(parser, "external", 0);
-
-                } else if (tagName.equals("verifier")) {
-                    final String deviceIdentity = parser.getAttributeValue(null, "device");
-                    try {
-                        mVerifierDeviceIdentity = VerifierDeviceIdentity.parse(deviceIdentity);
-                    } catch (IllegalArgumentException e) {
-                        Slog.w(PackageManagerService.TAG, "Discard invalid verifier device id: "
-                                + e.getMessage());
-                    }
-                } else if (TAG_READ_EXTERNAL_STORAGE.equals(tagName)) {
-                    final String enforcement = parser.getAttributeValue(null, ATTR_ENFORCEMENT);
-                    mReadExternalStorageEnforced = "1".equals(enforcement);
-                } else if (tagName.equals("keyset-settings")) {
-                    mKeySetManagerService.readKeySetsLPw(parser, mKeySetRefs);
-                } else if (TAG_VERSION.equals(tagName)) {
-                    final String volumeUuid = XmlUtils.readStringAttribute(parser,
-                            ATTR_VOLUME_UUID);
-                    final VersionInfo ver = findOrCreateVersion(volumeUuid);
-                    ver.sdkVersion = XmlUtils.readIntAttribute(parser, ATTR_SDK_VERSION);
-                    ver.databaseVersion = XmlUtils.readIntAttribute(parser, ATTR_SDK_VERSION);
-                    ver.fingerprint = XmlUtils.readStringAttribute(parser, ATTR_FINGERPRINT);
-                } else {
-                    Slog.w(PackageManagerService.TAG, "Unknown element under <packages>: "
-                            + parser.getName());
-                    XmlUtils.skipCurrentTag(parser);
-                }
-            }
+            readSettingsElementsLPw(parser);
 
             str.close();
 
@@ -3196,6 +3387,215 @@ final class Settings {
             PackageManagerService.reportSettingsProblem(Log.ERROR, "Error reading settings: " + e);
             Slog.wtf(PackageManagerService.TAG, "Error reading package manager settings", e);
         }
+        return true;
+    }
+
+    /**
+     * Reads the records written by {@link #writeSettingsStoreLPr()}. Records are replayed in
+     * key order, which matches the order of the corresponding elements in packages.xml.
+     * <p>
+     * A store that fails to read is moved aside, so that the next write replaces it and the
+     * next boot doesn't trip over it again.
+     *
+     * @return false if the store couldn't be read at all, so nothing was read from it.
+     */
+    private boolean readSettingsStoreLPw() {
+        mSettingsStoreSignatures.clear();
+        mPackageSettingsRecords.clear();
+        mAllPackagesDirty = true;
+        final ArrayMap<String, byte[]> records;
+        try {
+            records = mSettingsStore.read();
+        } catch (IOException e) {
+            mReadMessages.append("Error reading: " + e.toString());
+            PackageManagerService.reportSettingsProblem(Log.ERROR, "Error reading settings: " + e);
+            Slog.wtf(PackageManagerService.TAG, "Error reading package manager settings store",
+                    e);
+            mSettingsStore.moveAside();
+            return false;
+        }
+        try {
+            final String[] keys = records.keySet().toArray(new String[records.size()]);
+            Arrays.sort(keys);
+            for (String key : keys) {
+                final XmlPullParser parser = Xml.newPullParser();
+                parser.setInput(new ByteArrayInputStream(records.get(key)),
+                        StandardCharsets.UTF_8.name());
+                int type;
+                while ((type = parser.next()) != XmlPullParser.START_TAG
+                        && type != XmlPullParser.END_DOCUMENT) {
+                    ;
+                }
+                if (type != XmlPullParser.START_TAG) {
+                    continue;
+                }
+                if (SETTINGS_RECORD_SIGNATURES.equals(key)) {
+                    // Sorts ahead of every record that refers to it.
+                    readSignaturePoolLPw(parser);
+                } else {
+                    readSettingsElementsLPw(parser);
+                }
+            }
+            // A pool with holes in it is rebuilt from scratch by the next write instead.
+            if (!mPastSignatures.contains(null)) {
+                mSettingsStoreSignatures.addAll(mPastSignatures);
+            }
+        } catch (XmlPullParserException | IOException e) {
+            // As with a damaged packages.xml, keep going with whatever was read; the next
+            // write replaces the store with it.
+            mReadMessages.append("Error reading: " + e.toString());
+            PackageManagerService.reportSettingsProblem(Log.ERROR, "Error reading settings: " + e);
+            Slog.wtf(PackageManagerService.TAG, "Error reading package manager settings store",
+                    e);
+            mSettingsStore.moveAside();
+        }
+        return true;
+    }
+
+    private void readSignaturePoolLPw(XmlPullParser parser)
+            throws IOException, XmlPullParserException {
+        final int outerDepth = parser.getDepth();
+        int type;
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
+            if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
+                continue;
+            }
+            if (parser.getName().equals("sigs")) {
+                new PackageSignatures().readXml(parser, mPastSignatures);
+            } else {
+                XmlUtils.skipCurrentTag(parser);
+            }
+        }
+    }
+
+    /**
+     * Reads the children of the {@code <packages>} element the parser is positioned on.
+     */
+    private void readSettingsElementsLPw(XmlPullParser parser)
+            throws XmlPullParserException, IOException {
+        int type;
+        int outerDepth = parser.getDepth();
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
+            if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
+                continue;
+            }
+
+            String tagName = parser.getName();
+            if (tagName.equals("package")) {
+                readPackageLPw(parser);
+            } else if (tagName.equals("permissions")) {
+                readPermissionsLPw(mPermissions, parser);
+            } else if (tagName.equals("permission-trees")) {
+                readPermissionsLPw(mPermissionTrees, parser);
+            } else if (tagName.equals("shared-user")) {
+                readSharedUserLPw(parser);
+            } else if (tagName.equals("preferred-packages")) {
+                // no longer used.
+            } else if (tagName.equals("preferred-activities")) {
+                // Upgrading from old single-user implementation;
+                // these are the preferred activities for user 0.
+                readPreferredActivitiesLPw(parser, 0);
+            } else if (tagName.equals(TAG_PERSISTENT_PREFERRED_ACTIVITIES)) {
+                // TODO: check whether this is okay! as it is very
+                // similar to how preferred-activities are treated
+                readPersistentPreferredActivitiesLPw(parser, 0);
+            } else if (tagName.equals(TAG_CROSS_PROFILE_INTENT_FILTERS)) {
+                // TODO: check whether this is okay! as it is very
+                // similar to how preferred-activities are treated
+                readCrossProfileIntentFiltersLPw(parser, 0);
+            } else if (tagName.equals(TAG_DEFAULT_BROWSER)) {
+                readDefaultAppsLPw(parser, 0);
+            } else if (tagName.equals("updated-package")) {
+                readDisabledSysPackageLPw(parser);
+            } else if (tagName.equals("cleaning-package")) {
+                String name = parser.getAttributeValue(null, ATTR_NAME);
+                String userStr = parser.getAttributeValue(null, ATTR_USER);
+                String codeStr = parser.getAttributeValue(null, ATTR_CODE);
+                if (name != null) {
+                    int userId = UserHandle.USER_SYSTEM;
+                    boolean andCode = true;
+                    try {
+                        if (userStr != null) {
+                            userId = Integer.parseInt(userStr);
+                        }
+                    } catch (NumberFormatException e) {
+                    }
+                    if (codeStr != null) {
+                        andCode = Boolean.parseBoolean(codeStr);
+                    }
+                    addPackageToCleanLPw(new PackageCleanItem(userId, name, andCode));
+                }
+            } else if (tagName.equals("renamed-package")) {
+                String nname = parser.getAttributeValue(null, "new");
+                String oname = parser.getAttributeValue(null, "old");
+                if (nname != null && oname != null) {
+                    mRenamedPackages.put(nname, oname);
+                }
+            } else if (tagName.equals("restored-ivi")) {
+                readRestoredIntentFilterVerifications(parser);
+            } else if (tagName.equals("last-platform-version")) {
+                // Upgrade from older XML schema
+                final VersionInfo internal = findOrCreateVersion(
+                        StorageManager.UUID_PRIVATE_INTERNAL);
+                final VersionInfo external = findOrCreateVersion(
+                        StorageManager.UUID_PRIMARY_PHYSICAL);
+
+                internal.sdkVersion = XmlUtils.readIntAttribute(parser, "internal", 0);
+                external.sdkVersion = XmlUtils.readIntAttribute(parser, "external", 0);
+                internal.fingerprint = external.fingerprint =
+                        XmlUtils.readStringAttribute(parser, "fingerprint");
+
+            } else if (tagName.equals("database-version")) {
+                // Upgrade from older XML schema
+                final VersionInfo internal = findOrCreateVersion(
+                        StorageManager.UUID_PRIVATE_INTERNAL);
+                final VersionInfo external = findOrCreateVersion(
+                        StorageManager.UUID_PRIMARY_PHYSICAL);
+
+                internal.databaseVersion = XmlUtils.readIntAttribute(parser, "internal", 0);
+                external.databaseVersion = XmlUtils.readIntAttribute(parser, "external", 0);
+
+            } else if (tagName.equals("verifier")) {
+                final String deviceIdentity = parser.getAttributeValue(null, "device");
+                try {
+                    mVerifierDeviceIdentity = VerifierDeviceIdentity.parse(deviceIdentity);
+                } catch (IllegalArgumentException e) {
+                    Slog.w(PackageManagerService.TAG, "Discard invalid verifier device id: "
+                            + e.getMessage());
+                }
+            } else if (TAG_READ_EXTERNAL_STORAGE.equals(tagName)) {
+                final String enforcement = parser.getAttributeValue(null, ATTR_ENFORCEMENT);
+                mReadExternalStorageEnforced = "1".equals(enforcement);
+            } else if (tagName.equals("keyset-settings")) {
+                mKeySetManagerService.readKeySetsLPw(parser, mKeySetRefs);
+            } else if (TAG_VERSION.equals(tagName)) {
+                final String volumeUuid = XmlUtils.readStringAttribute(parser,
+                        ATTR_VOLUME_UUID);
+                final VersionInfo ver = findOrCreateVersion(volumeUuid);
+                ver.sdkVersion = XmlUtils.readIntAttribute(parser, ATTR_SDK_VERSION);
+                ver.databaseVersion = XmlUtils.readIntAttribute(parser, ATTR_SDK_VERSION);
+                ver.fingerprint = XmlUtils.readStringAttribute(parser, ATTR_FINGERPRINT);
+            } else {
+                Slog.w(PackageManagerService.TAG, "Unknown element under <packages>: "
+                        + parser.getName());
+                XmlUtils.skipCurrentTag(parser);
+            }
+        }
+    }
+
+    boolean readLPw(@NonNull List<UserInfo> users) {
+        mPendingPackages.clear();
+        mPastSignatures.clear();
+        mKeySetRefs.clear();
+        mInstallerPackages.clear();
+
+        // Falls back to packages.xml, or its backup, if the store can't be read at all. With
+        // neither around, this starts from the initial state like a missing packages.xml.
+        if ((!mSettingsStore.exists() || !readSettingsStoreLPw()) && !readSettingsXmlLPw()) {
+            return false;
+        }
 
         // If the build is setup to drop runtime permissions
         // on update drop the files before loading them.
@@ -4566,6 +4966,12 @@ final class Settings {
             pw.println();
             pw.decreaseIndent();
         }
+        if (mUseSettingsStore || mSettingsStore.exists()) {
+            pw.println("Settings store:");
+            pw.increaseIndent();
+            mSettingsStore.dump(pw);
+            pw.decreaseIndent();
+        }
         pw.decreaseIndent();
     }
 
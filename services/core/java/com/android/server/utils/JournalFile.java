@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.utils;
+
+import android.os.FileUtils;
+import android.util.Slog;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of checksummed entries, written ahead of a snapshot that is rewritten in
+ * full from time to time.
+ * <p>
+ * The file starts with a header of magic, version and the generation of the snapshot the
+ * journal was started against, followed by entries of length, opaque payload and CRC32 of the
+ * payload. A journal whose header doesn't match what the caller expects is left over from an
+ * older snapshot (for example, the process died after writing a new snapshot but before
+ * {@link #reset} removed the journal) and is discarded on read rather than replayed. A torn or
+ * corrupt entry at the tail is dropped and truncated away, so later appends land right after
+ * the last good entry.
+ * <p>
+ * Not thread safe; callers serialize access themselves.
+ */
+public final class JournalFile {
+    private static final String TAG = "JournalFile";
+
+    /** Size of the header: magic, version and generation. */
+    public static final int HEADER_SIZE = 12;
+    /** Bytes each entry takes besides its payload: length and checksum. */
+    public static final int ENTRY_OVERHEAD = 8;
+
+    private final File mFile;
+    private final int mMagic;
+    private final int mVersion;
+
+    private int mGeneration;
+    private long mBytes;
+
+    public JournalFile(File file, int magic, int version) {
+        mFile = file;
+        mMagic = magic;
+        mVersion = version;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /** Returns the size of the journal on disk, or 0 if there is none. */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /** Returns the snapshot generation appended entries are recorded against. */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Reads the entries journaled on top of the snapshot with the given generation, oldest
+     * first. Later appends are recorded against that generation as well.
+     */
+    public List<byte[]> read(int generation) {
+        final ArrayList<byte[]> entries = new ArrayList<>();
+        mGeneration = generation;
+        mBytes = 0;
+        if (!mFile.exists()) {
+            return entries;
+        }
+
+        final long length = mFile.length();
+        long goodLength = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != mMagic || in.readInt() != mVersion
+                    || in.readInt() != generation) {
+                // Everything in it is already part of the snapshot, or unreadable anyway.
+                Slog.i(TAG, "Discarding stale journal " + mFile);
+                mFile.delete();
+                return entries;
+            }
+            goodLength = HEADER_SIZE;
+
+            final CRC32 crc = new CRC32();
+            while (goodLength < length) {
+                final int entryLength = in.readInt();
+                if (entryLength <= 0 || entryLength > length - goodLength - ENTRY_OVERHEAD) {
+                    break;
+                }
+                final byte[] entry = new byte[entryLength];
+                in.readFully(entry);
+                crc.reset();
+                crc.update(entry);
+                if ((int) crc.getValue() != in.readInt()) {
+                    break;
+                }
+                entries.add(entry);
+                goodLength += ENTRY_OVERHEAD + entryLength;
+            }
+        } catch (EOFException e) {
+            // Torn tail; handled below.
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed reading " + mFile, e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+
+        if (goodLength < length) {
+            Slog.w(TAG, "Dropping " + (length - goodLength) + " bytes of torn journal "
+                    + mFile + " after " + entries.size() + " entries");
+            if (goodLength < HEADER_SIZE) {
+                mFile.delete();
+                goodLength = 0;
+            } else {
+                try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+                    raf.setLength(goodLength);
+                } catch (IOException e) {
+                    Slog.w(TAG, "Failed truncating " + mFile, e);
+                    mFile.delete();
+                    goodLength = 0;
+                }
+            }
+        }
+        mBytes = goodLength;
+        return entries;
+    }
+
+    /** Appends {@code entries} and syncs them to disk. */
+    public void append(List<byte[]> entries) throws IOException {
+        final boolean newJournal = mBytes == 0;
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(buffer);
+        if (newJournal) {
+            out.writeInt(mMagic);
+            out.writeInt(mVersion);
+            out.writeInt(mGeneration);
+        }
+        final CRC32 crc = new CRC32();
+        for (int i = 0; i < entries.size(); i++) {
+            final byte[] entry = entries.get(i);
+            crc.reset();
+            crc.update(entry);
+            out.writeInt(entry.length);
+            out.write(entry);
+            out.writeInt((int) crc.getValue());
+        }
+        out.flush();
+
+        FileOutputStream fstr = null;
+        try {
+            fstr = new FileOutputStream(mFile, !newJournal);
+            buffer.writeTo(fstr);
+            FileUtils.sync(fstr);
+        } catch (IOException e) {
+            // Don't leave a partial entry for later appends to land behind.
+            truncateQuietly();
+            throw e;
+        } finally {
+            IoUtils.closeQuietly(fstr);
+        }
+        mBytes += buffer.size();
+    }
+
+    private void truncateQuietly() {
+        if (mBytes == 0) {
+            mFile.delete();
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(mBytes);
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed truncating " + mFile, e);
+        }
+    }
+
+    /**
+     * Discards the journal once a snapshot with the given generation has been written.
+     * Should the delete not make it to disk, the old journal is still stale by generation.
+     */
+    public void reset(int generation) {
+        mFile.delete();
+        mGeneration = generation;
+        mBytes = 0;
+    }
+}
@@ -18,25 +18,63 @@ package com.android.server.wm;
 
 import android.annotation.Nullable;
 import android.app.ActivityManager.TaskSnapshot;
+import android.graphics.GraphicBuffer;
+import android.os.SystemClock;
 import android.util.ArrayMap;
 import android.util.LruCache;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 import java.io.PrintWriter;
-import java.util.Map;
-import java.util.Map.Entry;
 
 /**
  * Caches snapshots. See {@link TaskSnapshotController}.
  * <p>
+ * Snapshots of running apps are held in {@link #mRunningCache} for as long as the app runs.
+ * Snapshots restored from disk, and those of apps that have died, are kept in
+ * {@link #mRestoredCache}, bounded in bytes, so that scrolling back and forth through Recents
+ * doesn't decode the same files again and again.
+ * <p>
  * Access to this class should be guarded by the global window manager lock.
  */
 class TaskSnapshotCache {
 
+    /** Budget for {@link #mRestoredCache}, in bytes of snapshot buffer. */
+    @VisibleForTesting
+    static final int RESTORED_CACHE_BYTES = 16 * 1024 * 1024;
+
     private final WindowManagerService mService;
     private final TaskSnapshotLoader mLoader;
     private final ArrayMap<AppWindowToken, Integer> mAppTaskMap = new ArrayMap<>();
     private final ArrayMap<Integer, CacheEntry> mRunningCache = new ArrayMap<>();
 
+    /**
+     * Snapshots that are also on disk, keyed by {@link #restoredKey}.  Thread-safe on its own,
+     * as it is filled while the window manager lock is not held.
+     */
+    private final LruCache<Long, TaskSnapshot> mRestoredCache =
+            new LruCache<Long, TaskSnapshot>(RESTORED_CACHE_BYTES) {
+                @Override
+                protected int sizeOf(Long key, TaskSnapshot snapshot) {
+                    return getSnapshotBytes(snapshot);
+                }
+            };
+
+    /**
+     * Bumped whenever restored snapshots are invalidated, so that a restore that was running
+     * at the time doesn't put a stale snapshot back.
+     */
+    private volatile int mRestoredGeneration;
+
+    // Statistics, reported by dump().  Updated outside of the window manager lock.
+    private final Object mStatsLock = new Object();
+    private int mRunningHits;
+    private int mRestoredHits;
+    private int mDiskLoads;
+    private int mDiskLoadFailures;
+    private long mDiskLoadTotalMs;
+    private long mDiskLoadMaxMs;
+
     TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader) {
         mService = service;
         mLoader = loader;
@@ -47,6 +85,7 @@ class TaskSnapshotCache {
         if (entry != null) {
             mAppTaskMap.remove(entry.topApp);
         }
+        removeRestoredEntries(task.mTaskId);
         final AppWindowToken top = task.getTopChild();
         mAppTaskMap.put(top, task.mTaskId);
         mRunningCache.put(task.mTaskId, new CacheEntry(snapshot, task.getTopChild()));
@@ -62,6 +101,9 @@ class TaskSnapshotCache {
             // Try the running cache.
             final CacheEntry entry = mRunningCache.get(taskId);
             if (entry != null) {
+                synchronized (mStatsLock) {
+                    mRunningHits++;
+                }
                 return entry.snapshot;
             }
         }
@@ -70,6 +112,18 @@ class TaskSnapshotCache {
         if (!restoreFromDisk) {
             return null;
         }
+
+        // A full resolution snapshot will do where a reduced one is asked for.
+        TaskSnapshot snapshot = mRestoredCache.get(restoredKey(taskId, false));
+        if (snapshot == null && reducedResolution) {
+            snapshot = mRestoredCache.get(restoredKey(taskId, true));
+        }
+        if (snapshot != null) {
+            synchronized (mStatsLock) {
+                mRestoredHits++;
+            }
+            return snapshot;
+        }
         return tryRestoreFromDisk(taskId, userId, reducedResolution);
     }
 
@@ -77,20 +131,50 @@ class TaskSnapshotCache {
      * DO NOT HOLD THE WINDOW MANAGER LOCK WHEN CALLING THIS METHOD!
      */
     private TaskSnapshot tryRestoreFromDisk(int taskId, int userId, boolean reducedResolution) {
+        final int generation = mRestoredGeneration;
+        final long start = SystemClock.uptimeMillis();
         final TaskSnapshot snapshot = mLoader.loadTask(taskId, userId, reducedResolution);
+        final long duration = SystemClock.uptimeMillis() - start;
+        synchronized (mStatsLock) {
+            mDiskLoads++;
+            mDiskLoadTotalMs += duration;
+            mDiskLoadMaxMs = Math.max(mDiskLoadMaxMs, duration);
+            if (snapshot == null) {
+                mDiskLoadFailures++;
+            }
+        }
         if (snapshot == null) {
             return null;
         }
+        if (generation == mRestoredGeneration) {
+            mRestoredCache.put(restoredKey(taskId, reducedResolution), snapshot);
+        }
         return snapshot;
     }
 
+    private static long restoredKey(int taskId, boolean reducedResolution) {
+        return ((long) taskId << 1) | (reducedResolution ? 1 : 0);
+    }
+
+    @VisibleForTesting
+    static int getSnapshotBytes(TaskSnapshot snapshot) {
+        final GraphicBuffer buffer = snapshot.getSnapshot();
+        return buffer != null ? buffer.getWidth() * buffer.getHeight() * 4 : 0;
+    }
+
+    private void removeRestoredEntries(int taskId) {
+        mRestoredGeneration++;
+        mRestoredCache.remove(restoredKey(taskId, false));
+        mRestoredCache.remove(restoredKey(taskId, true));
+    }
+
     /**
      * Called when an app token has been removed
      */
     void onAppRemoved(AppWindowToken wtoken) {
         final Integer taskId = mAppTaskMap.get(wtoken);
         if (taskId != null) {
-            removeRunningEntry(taskId);
+            removeRunningEntry(taskId, true /* keepRestored */);
         }
     }
 
@@ -100,19 +184,27 @@ class TaskSnapshotCache {
     void onAppDied(AppWindowToken wtoken) {
         final Integer taskId = mAppTaskMap.get(wtoken);
         if (taskId != null) {
-            removeRunningEntry(taskId);
+            removeRunningEntry(taskId, true /* keepRestored */);
         }
     }
 
     void onTaskRemoved(int taskId) {
-        removeRunningEntry(taskId);
+        removeRunningEntry(taskId, false /* keepRestored */);
+        removeRestoredEntries(taskId);
     }
 
-    private void removeRunningEntry(int taskId) {
+    /**
+     * @param keepRestored Whether the snapshot of the task, which is also on disk by now or
+     *                     soon will be, moves to the restored snapshots rather than being dropped.
+     */
+    private void removeRunningEntry(int taskId, boolean keepRestored) {
         final CacheEntry entry = mRunningCache.get(taskId);
         if (entry != null) {
             mAppTaskMap.remove(entry.topApp);
             mRunningCache.remove(taskId);
+            if (keepRestored && !entry.snapshot.isReducedResolution()) {
+                mRestoredCache.put(restoredKey(taskId, false), entry.snapshot);
+            }
         }
     }
 
@@ -126,6 +218,18 @@ class TaskSnapshotCache {
             pw.println(triplePrefix + "topApp=" + entry.topApp);
             pw.println(triplePrefix + "snapshot=" + entry.snapshot);
         }
+        pw.println(doublePrefix + "Restored snapshots: " + mRestoredCache.size() + "/"
+                + mRestoredCache.maxSize() + " bytes, evictions=" + mRestoredCache.evictionCount());
+        synchronized (mStatsLock) {
+            pw.println(doublePrefix + "Hits: running=" + mRunningHits
+                    + " restored=" + mRestoredHits);
+            pw.print(doublePrefix + "Disk loads: " + mDiskLoads + " failed=" + mDiskLoadFailures);
+            if (mDiskLoads > 0) {
+                pw.print(" avg=" + (mDiskLoadTotalMs / mDiskLoads) + "ms max=" + mDiskLoadMaxMs
+                        + "ms");
+            }
+            pw.println();
+        }
     }
 
     private static final class CacheEntry {
@@ -1351,6 +1351,22 @@ public final class SystemServer {
                 traceEnd();
             }
 
+            traceBeginAndSlog("StartBinderCallsStatsService");
+            try {
+                BinderCallsStatsService.start(context);
+            } catch (Throwable e) {
+                reportWtf("starting BinderCallsStats Service", e);
+            }
+            traceEnd();
+
+            traceBeginAndSlog("StartLooperStatsService");
+            try {
+                ServiceManager.addService("looper_stats", new LooperStatsService(context));
+            } catch (Throwable e) {
+                reportWtf("starting LooperStats Service", e);
+            }
+            traceEnd();
+
             traceBeginAndSlog("StartDiskStatsService");
             try {
                 ServiceManager.addService("diskstats", new DiskStatsService(context));
@@ -21,6 +21,7 @@ import android.content.Context;
 import android.content.ContextWrapper;
 import android.content.Intent;
 import android.os.DropBoxManager;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
@@ -365,6 +366,39 @@ public class DropBoxTest extends AndroidTestCase {
         x2.close();
     }
 
+    public void testQueuedEntries() throws Exception {
+        File dir = getEmptyDir("testQueuedEntries");
+
+        // A writer thread that never runs, so the queue is only written by readers.
+        HandlerThread writer = new HandlerThread("DropBoxTest");
+        writer.start();
+        Looper writerLooper = writer.getLooper();
+        writer.quit();
+
+        DropBoxManagerService service = new DropBoxManagerService(getContext(), dir,
+                Looper.getMainLooper(), writerLooper);
+        DropBoxManager dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+
+        long before = System.currentTimeMillis();
+        dropbox.addText("DropBoxTest", "TEST0");
+        // Too big to queue; written directly, after what was queued before it.
+        addRandomEntry(dropbox, "DropBoxTest", 512 * 1024);
+        dropbox.addText("DropBoxTest", "TEST2");
+
+        DropBoxManager.Entry e0 = dropbox.getNextEntry("DropBoxTest", before);
+        DropBoxManager.Entry e1 = dropbox.getNextEntry("DropBoxTest", e0.getTimeMillis());
+        DropBoxManager.Entry e2 = dropbox.getNextEntry("DropBoxTest", e1.getTimeMillis());
+        assertTrue(null == dropbox.getNextEntry("DropBoxTest", e2.getTimeMillis()));
+
+        assertEquals("TEST0", e0.getText(80));
+        assertEquals(512 * 1024, getEntrySize(e1));
+        assertEquals("TEST2", e2.getText(80));
+
+        e0.close();
+        e1.close();
+        e2.close();
+    }
+
     public void testSizeLimits() throws Exception {
         File dir = getEmptyDir("testSizeLimits");
         int blockSize =  new StatFs(dir.getPath()).getBlockSize();
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for {@link IntentResolver} and {@link CompiledFilterCut}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class IntentResolverTest {
+    private static final String TAG = "IntentResolverTest";
+
+    private static final String[] ACTIONS = {
+            Intent.ACTION_VIEW, Intent.ACTION_SEND, Intent.ACTION_EDIT, Intent.ACTION_MAIN,
+            "com.example.action.ONE", "com.example.action.TWO",
+    };
+    private static final String[] CATEGORIES = {
+            Intent.CATEGORY_DEFAULT, Intent.CATEGORY_BROWSABLE, Intent.CATEGORY_LAUNCHER,
+            "com.example.category.ONE", "com.example.category.TWO",
+    };
+    private static final String[] SCHEMES = { "http", "https", "content", "geo" };
+    private static final String[] HOSTS = {
+            "example.com", "Example.COM", "www.example.com", "*.example.com", "test.org",
+            "*", "maps.test.org",
+    };
+    private static final String[] TYPES = { "image/png", "image/*", "text/plain", "*/*" };
+
+    private TestResolver mResolver;
+    private Random mRandom;
+
+    @Before
+    public void setUp() throws Exception {
+        mResolver = new TestResolver();
+        mRandom = new Random(42);
+    }
+
+    @Test
+    public void testActionAndCategoryPruning() throws Exception {
+        final IntentFilter view = new IntentFilter(Intent.ACTION_VIEW);
+        view.addCategory(Intent.CATEGORY_DEFAULT);
+        view.addCategory(Intent.CATEGORY_BROWSABLE);
+        view.addDataScheme("http");
+        final IntentFilter viewNotBrowsable = new IntentFilter(Intent.ACTION_VIEW);
+        viewNotBrowsable.addCategory(Intent.CATEGORY_DEFAULT);
+        viewNotBrowsable.addDataScheme("http");
+        final IntentFilter send = new IntentFilter(Intent.ACTION_SEND);
+        send.addCategory(Intent.CATEGORY_DEFAULT);
+        send.addDataScheme("http");
+        mResolver.addFilter(view);
+        mResolver.addFilter(viewNotBrowsable);
+        mResolver.addFilter(send);
+
+        final Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse("http://example.com"));
+        intent.addCategory(Intent.CATEGORY_BROWSABLE);
+        assertEquals(1, mResolver.queryIntent(intent, null, false, 0).size());
+        assertEquals(view, mResolver.queryIntent(intent, null, false, 0).get(0));
+
+        intent.addCategory("com.example.category.UNKNOWN");
+        assertEquals(0, mResolver.queryIntent(intent, null, false, 0).size());
+    }
+
+    @Test
+    public void testHostPruning() throws Exception {
+        final IntentFilter exact = newViewFilter("https", "Example.com");
+        final IntentFilter wildcard = newViewFilter("https", "*.example.com");
+        final IntentFilter other = newViewFilter("https", "test.org");
+        mResolver.addFilter(exact);
+        mResolver.addFilter(wildcard);
+        mResolver.addFilter(other);
+
+        List<IntentFilter> results = mResolver.queryIntent(
+                new Intent(Intent.ACTION_VIEW, Uri.parse("https://EXAMPLE.com/path")), null,
+                false, 0);
+        assertEquals(2, results.size());
+        assertEquals(exact, results.get(0));
+        assertEquals(wildcard, results.get(1));
+
+        results = mResolver.queryIntent(
+                new Intent(Intent.ACTION_VIEW, Uri.parse("https://test.org")), null, false, 0);
+        assertEquals(1, results.size());
+        assertEquals(other, results.get(0));
+    }
+
+    @Test
+    public void testUpdatesAfterQuery() throws Exception {
+        final IntentFilter first = newViewFilter("https", "example.com");
+        mResolver.addFilter(first);
+        final Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse("https://example.com"));
+        assertEquals(1, mResolver.queryIntent(intent, null, false, 0).size());
+
+        // The compiled form of the scheme cut must not survive changes to it
+        final IntentFilter second = newViewFilter("https", "example.com");
+        mResolver.addFilter(second);
+        assertEquals(2, mResolver.queryIntent(intent, null, false, 0).size());
+        mResolver.removeFilter(first);
+        final List<IntentFilter> results = mResolver.queryIntent(intent, null, false, 0);
+        assertEquals(1, results.size());
+        assertEquals(second, results.get(0));
+    }
+
+    @Test
+    public void testMatchesUnprunedResolution() throws Exception {
+        final TestResolver reference = new TestResolver();
+        reference.setUseCompiledCuts(false);
+        for (int i = 0; i < 500; i++) {
+            final IntentFilter filter = newRandomFilter();
+            mResolver.addFilter(filter);
+            reference.addFilter(filter);
+        }
+        for (int i = 0; i < 2000; i++) {
+            final Intent intent = newRandomIntent();
+            final String type = intent.getType();
+            assertEquals(intent.toString(),
+                    reference.queryIntent(intent, type, false, 0),
+                    mResolver.queryIntent(intent, type, false, 0));
+            assertEquals(intent.toString(),
+                    reference.queryIntent(intent, type, true, 0),
+                    mResolver.queryIntent(intent, type, true, 0));
+        }
+    }
+
+    @Test
+    public void testQueryTime() throws Exception {
+        final TestResolver reference = new TestResolver();
+        reference.setUseCompiledCuts(false);
+        for (int i = 0; i < 2000; i++) {
+            final IntentFilter filter = newRandomFilter();
+            mResolver.addFilter(filter);
+            reference.addFilter(filter);
+        }
+        final Intent[] intents = new Intent[200];
+        for (int i = 0; i < intents.length; i++) {
+            intents[i] = newRandomIntent();
+        }
+        // Warm up, which also compiles every cut that is queried
+        final long referenceNanos = timeQueries(reference, intents);
+        final long compiledNanos = timeQueries(mResolver, intents);
+        Log.i(TAG, "Average query: " + timeQueries(reference, intents) / intents.length
+                + "ns unpruned, " + timeQueries(mResolver, intents) / intents.length
+                + "ns pruned (first pass " + referenceNanos / intents.length + "ns, "
+                + compiledNanos / intents.length + "ns)");
+    }
+
+    private static long timeQueries(TestResolver resolver, Intent[] intents) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (Intent intent : intents) {
+            resolver.queryIntent(intent, intent.getType(), false, 0);
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    private static IntentFilter newViewFilter(String scheme, String host) {
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_VIEW);
+        filter.addCategory(Intent.CATEGORY_DEFAULT);
+        filter.addDataScheme(scheme);
+        filter.addDataAuthority(host, null);
+        return filter;
+    }
+
+    private IntentFilter newRandomFilter() throws Exception {
+        final IntentFilter filter = new IntentFilter();
+        filter.setPriority(mRandom.nextInt(3));
+        for (int i = 1 + mRandom.nextInt(2); i > 0; i--) {
+            filter.addAction(pick(ACTIONS));
+        }
+        for (int i = mRandom.nextInt(3); i > 0; i--) {
+            filter.addCategory(pick(CATEGORIES));
+        }
+        if (mRandom.nextInt(4) == 0) {
+            filter.addDataType(pick(TYPES));
+        }
+        if (mRandom.nextInt(4) != 0) {
+            filter.addDataScheme(pick(SCHEMES));
+            if (mRandom.nextInt(8) == 0) {
+                filter.addDataSchemeSpecificPart("//example.com", 0);
+            }
+            for (int i = mRandom.nextInt(3); i > 0; i--) {
+                filter.addDataAuthority(pick(HOSTS), mRandom.nextInt(4) == 0 ? "8080" : null);
+            }
+        }
+        return filter;
+    }
+
+    private Intent newRandomIntent() {
+        final Intent intent = new Intent(mRandom.nextInt(10) == 0 ? null : pick(ACTIONS));
+        for (int i = mRandom.nextInt(3); i > 0; i--) {
+            intent.addCategory(pick(CATEGORIES));
+        }
+        final String type = mRandom.nextInt(4) == 0 ? pick(TYPES) : null;
+        Uri data = null;
+        if (mRandom.nextInt(4) != 0) {
+            String host = pick(HOSTS);
+            if (host.startsWith("*")) {
+                host = "sub" + host.substring(1);
+            }
+            data = Uri.parse(pick(SCHEMES) + "://" + host
+                    + (mRandom.nextInt(4) == 0 ? ":8080" : "") + "/path");
+        }
+        intent.setDataAndType(data, type);
+        return intent;
+    }
+
+    private <T> T pick(T[] values) {
+        return values[mRandom.nextInt(values.length)];
+    }
+
+    private static class TestResolver extends IntentResolver<IntentFilter, IntentFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, IntentFilter filter) {
+            return false;
+        }
+
+        @Override
+        protected IntentFilter[] newArray(int size) {
+            return new IntentFilter[size];
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Test class for {@link ReceiverLatencyStats}.
+ *
+ * Run: adb shell am instrument -e class com.android.server.am.ReceiverLatencyStatsTest -w \
+ *     com.android.frameworks.servicestests/android.support.test.runner.AndroidJUnitRunner
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ReceiverLatencyStatsTest {
+    @Test
+    public void testAddReceiverTime() {
+        final ReceiverLatencyStats stats = new ReceiverLatencyStats();
+        stats.addReceiverTime("com.example/.Receiver", 5);
+        stats.addReceiverTime("com.example/.Receiver", 700);
+
+        final int slot = stats.mReceivers.get("com.example/.Receiver");
+        assertEquals(1, stats.mTimes.getHistogram(slot, 0));
+        assertEquals(1, stats.mTimes.getHistogram(slot, 4));
+        assertEquals(705, stats.mTimes.getTotal(slot));
+        assertEquals(700, stats.mTimes.getMax(slot));
+
+        final StringWriter out = new StringWriter();
+        stats.dumpLocked(new PrintWriter(out, true), "background", "com.example", false);
+        assertTrue(out.toString().contains("com.example/.Receiver: 1 0 0 0 1 0 0 0 avg=352"));
+    }
+
+    @Test
+    public void testReceiversBounded() {
+        final ReceiverLatencyStats stats = new ReceiverLatencyStats();
+        for (int i = 0; i < ReceiverLatencyStats.MAX_RECEIVERS + 10; i++) {
+            stats.addReceiverTime("com.example" + i + "/.Receiver", 1);
+        }
+        assertEquals(ReceiverLatencyStats.MAX_RECEIVERS + 1, stats.mReceivers.size());
+        final Integer other = stats.mReceivers.get(ReceiverLatencyStats.OTHER_RECEIVERS);
+        assertNotNull(other);
+        assertEquals(10, stats.mTimes.getHistogram(other, 0));
+    }
+}
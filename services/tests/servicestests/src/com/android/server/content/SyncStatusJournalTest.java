@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.content;
+
+import android.content.SyncStatusInfo;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test for SyncStatusJournal.
+ *
+ * bit FrameworksServicesTests:com.android.server.content.SyncStatusJournalTest
+ */
+@SmallTest
+public class SyncStatusJournalTest extends AndroidTestCase {
+
+    File mFile;
+
+    @Override
+    public void setUp() {
+        mFile = new File(getContext().getCacheDir(), "status.journal");
+        mFile.delete();
+    }
+
+    @Override
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    public void testRecordsSurviveReopen() throws Exception {
+        final SyncStatusJournal journal = new SyncStatusJournal(mFile);
+        journal.append(Arrays.asList(
+                SyncStatusJournal.marshall(createStatus(1, 10)),
+                SyncStatusJournal.marshall(createStatus(2, 20))));
+        journal.append(Arrays.asList(SyncStatusJournal.marshall(createStatus(1, 11))));
+
+        final SyncStatusJournal reopened = new SyncStatusJournal(mFile);
+        final List<SyncStatusInfo> records = reopened.read(0);
+        assertEquals(3, records.size());
+        assertEquals(1, records.get(2).authorityId);
+        assertEquals(11, records.get(2).numSyncs);
+        assertEquals("error", records.get(2).lastFailureMesg);
+        assertEquals(journal.getBytes(), reopened.getBytes());
+    }
+
+    public void testTornTailDropped() throws Exception {
+        final SyncStatusJournal journal = new SyncStatusJournal(mFile);
+        journal.append(Arrays.asList(SyncStatusJournal.marshall(createStatus(1, 10))));
+        final long goodLength = mFile.length();
+        journal.append(Arrays.asList(SyncStatusJournal.marshall(createStatus(2, 20))));
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(mFile.length() - 3);
+        }
+
+        final SyncStatusJournal reopened = new SyncStatusJournal(mFile);
+        assertEquals(1, reopened.read(0).size());
+        assertEquals(goodLength, mFile.length());
+
+        // Appends land right after the last good record.
+        reopened.append(Arrays.asList(SyncStatusJournal.marshall(createStatus(3, 30))));
+        assertEquals(2, new SyncStatusJournal(mFile).read(0).size());
+    }
+
+    public void testFold() throws Exception {
+        final SyncStatusJournal journal = new SyncStatusJournal(mFile);
+        journal.append(Arrays.asList(SyncStatusJournal.marshall(createStatus(1, 10))));
+        journal.fold(1);
+        assertFalse(mFile.exists());
+        assertEquals(0, journal.getBytes());
+        assertEquals(1, journal.getGeneration());
+
+        journal.append(Arrays.asList(SyncStatusJournal.marshall(createStatus(2, 20))));
+        final List<SyncStatusInfo> records = new SyncStatusJournal(mFile).read(1);
+        assertEquals(1, records.size());
+        assertEquals(2, records.get(0).authorityId);
+    }
+
+    public void testOlderGenerationDiscarded() throws Exception {
+        final SyncStatusJournal journal = new SyncStatusJournal(mFile);
+        journal.read(3);
+        journal.append(Arrays.asList(SyncStatusJournal.marshall(createStatus(1, 10))));
+
+        // As if status.bin was rewritten, but the journal not yet deleted.
+        assertEquals(0, new SyncStatusJournal(mFile).read(4).size());
+        assertFalse(mFile.exists());
+    }
+
+    private static SyncStatusInfo createStatus(int authorityId, int numSyncs) {
+        final SyncStatusInfo status = new SyncStatusInfo(authorityId);
+        status.numSyncs = numSyncs;
+        status.lastFailureTime = 1000;
+        status.lastFailureMesg = "error";
+        return status;
+    }
+}
@@ -15,6 +15,9 @@ import android.util.Pair;
 import com.android.server.job.JobStore.JobSet;
 import com.android.server.job.controllers.JobStatus;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
@@ -267,6 +270,129 @@ public class JobStoreTest extends AndroidTestCase {
         assertEquals("Wrong job persisted.", 43, jobStatus.getJobId());
     }
 
+    /**
+     * Test that a damaged snapshot is dropped instead of failing the load.
+     */
+    public void testDamagedSnapshotDropped() throws Exception {
+        final JobStatus js = JobStatus.createFromJobInfo(new Builder(1, mComponent)
+                .setOverrideDeadline(10000).setPersisted(true).build(), SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.add(js);
+        Thread.sleep(IO_WAIT);
+
+        final File snapshot = new File(mTestContext.getFilesDir(), "system/job/jobs.bin");
+        final byte[] data = Files.readAllBytes(snapshot.toPath());
+        final byte[] flipped = data.clone();
+        flipped[data.length / 2] ^= 0xff;
+        for (byte[] damaged : new byte[][] { flipped, Arrays.copyOf(data, data.length / 2) }) {
+            Files.write(snapshot.toPath(), damaged);
+            final JobSet jobStatusSet = new JobSet();
+            mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+            assertEquals("Job count is incorrect.", 0, jobStatusSet.size());
+        }
+    }
+
+    /**
+     * Test that removing a persisted job is written out, without rewriting the others.
+     */
+    public void testRemovedTaskIsNotPersisted() throws Exception {
+        final JobStatus js1 = JobStatus.createFromJobInfo(new Builder(1, mComponent)
+                .setOverrideDeadline(10000).setPersisted(true).build(), SOME_UID, null, -1, null);
+        final JobStatus js2 = JobStatus.createFromJobInfo(new Builder(2, mComponent)
+                .setOverrideDeadline(10000).setPersisted(true).build(), SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.add(js1);
+        mTaskStoreUnderTest.add(js2);
+        Thread.sleep(IO_WAIT);
+        mTaskStoreUnderTest.remove(js1, true);
+        Thread.sleep(IO_WAIT);
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Job count is incorrect.", 1, jobStatusSet.size());
+        assertEquals("Wrong job persisted.", 2,
+                jobStatusSet.getAllJobs().iterator().next().getJobId());
+    }
+
+    /**
+     * Test that a job replaced by one with the same id is persisted in its latest form, in
+     * whichever order the replacement happens.
+     */
+    public void testReplacedTaskIsPersisted() throws Exception {
+        final JobStatus original = JobStatus.createFromJobInfo(new Builder(7, mComponent)
+                .setOverrideDeadline(10000).setPriority(1).setPersisted(true).build(),
+                SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.add(original);
+        Thread.sleep(IO_WAIT);
+
+        final JobStatus replacement = JobStatus.createFromJobInfo(new Builder(7, mComponent)
+                .setOverrideDeadline(10000).setPriority(2).setPersisted(true).build(),
+                SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.remove(original, false);
+        mTaskStoreUnderTest.add(replacement);
+        Thread.sleep(IO_WAIT);
+        JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Job count is incorrect.", 1, jobStatusSet.size());
+        assertEquals("Replacement not persisted.", 2,
+                jobStatusSet.getAllJobs().iterator().next().getPriority());
+
+        final JobStatus second = JobStatus.createFromJobInfo(new Builder(7, mComponent)
+                .setOverrideDeadline(10000).setPriority(3).setPersisted(true).build(),
+                SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.add(second);
+        mTaskStoreUnderTest.remove(replacement, true);
+        Thread.sleep(IO_WAIT);
+        jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Job count is incorrect.", 1, jobStatusSet.size());
+        assertEquals("Replacement not persisted.", 3,
+                jobStatusSet.getAllJobs().iterator().next().getPriority());
+    }
+
+    /**
+     * Test that all the types of extras survive a round trip, including nested bundles.
+     */
+    public void testWritingTaskWithAllExtraTypes() throws Exception {
+        final PersistableBundle nested = new PersistableBundle();
+        nested.putLongArray("longs", new long[] { 1L, Long.MAX_VALUE });
+        nested.putString("null", null);
+        final PersistableBundle extras = new PersistableBundle();
+        extras.putBoolean("boolean", true);
+        extras.putLong("long", 42L);
+        extras.putStringArray("strings", new String[] { "a", null, "\u00e9t\u00e9" });
+        extras.putIntArray("ints", new int[] { -1, 0, 1 });
+        extras.putDoubleArray("doubles", new double[] { 0.5 });
+        extras.putBooleanArray("booleans", new boolean[] { true, false });
+        extras.putPersistableBundle("nested", nested);
+        final JobInfo task = new Builder(9, mComponent)
+                .setOverrideDeadline(10000)
+                .setExtras(extras)
+                .setPersisted(true)
+                .build();
+        mTaskStoreUnderTest.add(JobStatus.createFromJobInfo(task, SOME_UID, null, -1, null));
+        Thread.sleep(IO_WAIT);
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 1, jobStatusSet.size());
+        final PersistableBundle loaded =
+                jobStatusSet.getAllJobs().iterator().next().getJob().getExtras();
+        assertEquals(extras.keySet(), loaded.keySet());
+        assertTrue(loaded.getBoolean("boolean"));
+        assertEquals(42L, loaded.getLong("long"));
+        assertTrue(Arrays.equals(extras.getStringArray("strings"),
+                loaded.getStringArray("strings")));
+        assertTrue(Arrays.equals(extras.getIntArray("ints"), loaded.getIntArray("ints")));
+        assertTrue(Arrays.equals(extras.getDoubleArray("doubles"),
+                loaded.getDoubleArray("doubles")));
+        assertTrue(Arrays.equals(extras.getBooleanArray("booleans"),
+                loaded.getBooleanArray("booleans")));
+        final PersistableBundle loadedNested = loaded.getPersistableBundle("nested");
+        assertTrue(Arrays.equals(nested.getLongArray("longs"),
+                loadedNested.getLongArray("longs")));
+        assertTrue(loadedNested.containsKey("null"));
+        assertNull(loadedNested.getString("null"));
+    }
+
     /**
      * Helper function to throw an error if the provided task and TaskStatus objects are not equal.
      */
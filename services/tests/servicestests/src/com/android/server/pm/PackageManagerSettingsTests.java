@@ -59,6 +59,9 @@ import org.junit.runner.RunWith;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -139,6 +142,103 @@ public class PackageManagerSettingsTests {
         assertThat(ps.getEnabled(1), is(COMPONENT_ENABLED_STATE_DEFAULT));
     }
 
+    /** read in xml, write it to the settings store and read it back in.  Verify same. */
+    @Test
+    public void testSettingsStoreRoundTrip()
+            throws ReflectiveOperationException, IllegalAccessException {
+        writeOldFiles();
+        final File filesDir = InstrumentationRegistry.getContext().getFilesDir();
+        Settings settings = new Settings(filesDir, new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        settings.setUseSettingsStoreLPw(true);
+        settings.writeLPr();
+        assertThat(new File(filesDir, "system/packages.xml").exists(), is(false));
+
+        // Write again on top of the existing store
+        settings.getPackageLPr(PACKAGE_NAME_1).setEnabled(COMPONENT_ENABLED_STATE_DISABLED, 0,
+                null);
+        settings.writeLPr();
+
+        settings = new Settings(filesDir, new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_3), is(notNullValue()));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_1).getEnabled(0),
+                is(COMPONENT_ENABLED_STATE_DISABLED));
+        verifyKeySetMetaData(settings);
+
+        PackageSetting ps = settings.getPackageLPr(PACKAGE_NAME_2);
+        assertThat(ps.getEnabled(0), is(COMPONENT_ENABLED_STATE_DISABLED_USER));
+        assertThat(ps.getEnabled(1), is(COMPONENT_ENABLED_STATE_DEFAULT));
+
+        // Writing without the store migrates back to packages.xml
+        settings.writeLPr();
+        assertThat(new File(filesDir, "system/packages.xml").exists(), is(true));
+        assertThat(new File(filesDir, "system/packages.bin").exists(), is(false));
+    }
+
+    /** boot from a corrupt settings store, then make sure settings are saved again. */
+    @Test
+    public void testSettingsStoreCorrupt()
+            throws ReflectiveOperationException, IllegalAccessException, IOException {
+        writeOldFiles();
+        final File filesDir = InstrumentationRegistry.getContext().getFilesDir();
+        final File storeFile = new File(filesDir, "system/packages.bin");
+        Settings settings = new Settings(filesDir, new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        settings.setUseSettingsStoreLPw(true);
+        settings.writeLPr();
+        corruptFile(storeFile);
+
+        // With packages.xml around, it is read instead
+        writePackagesXml();
+        settings = new Settings(filesDir, new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_1), is(notNullValue()));
+        assertThat(storeFile.exists(), is(false));
+
+        settings.setUseSettingsStoreLPw(true);
+        settings.writeLPr();
+        corruptFile(storeFile);
+
+        // Without it, start over from the initial state, and save again from there
+        settings = new Settings(filesDir, new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(false));
+        assertThat(storeFile.exists(), is(false));
+        settings.setUseSettingsStoreLPw(true);
+        settings.writeLPr();
+        assertThat(storeFile.exists(), is(true));
+
+        settings = new Settings(filesDir, new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+    }
+
+    /** write only a changed package to the settings store and read it back in. */
+    @Test
+    public void testSettingsStoreChangedPackage()
+            throws ReflectiveOperationException, IllegalAccessException {
+        writeOldFiles();
+        final File filesDir = InstrumentationRegistry.getContext().getFilesDir();
+        Settings settings = new Settings(filesDir, new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        settings.setUseSettingsStoreLPw(true);
+        settings.writeLPr();
+        // Dumping must not disturb the signatures the next write refers to.
+        settings.dumpSettingsXmlLPr(new PrintWriter(new StringWriter()));
+
+        settings.getPackageLPr(PACKAGE_NAME_1).categoryHint = ApplicationInfo.CATEGORY_GAME;
+        settings.markPackageDirtyLPw(PACKAGE_NAME_1);
+        settings.writeChangedLPr();
+        final PackageSignatures signatures = settings.getPackageLPr(PACKAGE_NAME_3).signatures;
+
+        settings = new Settings(filesDir, new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_1).categoryHint,
+                is(ApplicationInfo.CATEGORY_GAME));
+        assertTrue(Arrays.equals(signatures.mSignatures,
+                settings.getPackageLPr(PACKAGE_NAME_3).signatures.mSignatures));
+        verifyKeySetMetaData(settings);
+    }
+
     @Test
     public void testEnableDisable() {
         // Write the package files and make sure they're parsed properly the first time
@@ -702,6 +802,12 @@ public class PackageManagerSettingsTests {
         }
     }
 
+    private static void corruptFile(File file) throws IOException {
+        final byte[] data = Files.readAllBytes(file.toPath());
+        data[data.length / 2] ^= 0xff;
+        Files.write(file.toPath(), data);
+    }
+
     private void writePackagesXml() {
         writeFile(new File(InstrumentationRegistry.getContext().getFilesDir(), "system/packages.xml"),
                 ("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>"
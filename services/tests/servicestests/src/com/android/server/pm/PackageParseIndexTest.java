@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertEquals;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.system.StructStat;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.AtomicFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+/**
+ * Tests for {@link PackageParseIndex}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PackageParseIndexTest {
+    private File mDir;
+    private AtomicFile mIndexFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = new File(InstrumentationRegistry.getContext().getFilesDir(), "parse-index-test");
+        mDir.mkdirs();
+        mIndexFile = new AtomicFile(new File(mDir, "scan-index"));
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final File apk = createFile("a.apk", 128);
+        final File other = createFile("b.apk", 16);
+
+        PackageParseIndex index = new PackageParseIndex(mIndexFile);
+        index.read();
+        assertEquals(PackageParseIndex.COST_UNKNOWN,
+                index.getCostMicros(apk, PackageParseIndex.stat(apk)));
+        index.record(apk, PackageParseIndex.stat(apk), 1234);
+        index.record(other, PackageParseIndex.stat(other), 56);
+        index.write();
+
+        index = new PackageParseIndex(mIndexFile);
+        index.read();
+        assertEquals(1234, index.getCostMicros(apk, PackageParseIndex.stat(apk)));
+        assertEquals(56, index.getCostMicros(other, PackageParseIndex.stat(other)));
+    }
+
+    @Test
+    public void testChangedFileIsUnknown() throws Exception {
+        final File apk = createFile("a.apk", 128);
+
+        PackageParseIndex index = new PackageParseIndex(mIndexFile);
+        index.record(apk, PackageParseIndex.stat(apk), 1234);
+        index.write();
+
+        createFile("a.apk", 256);
+        index = new PackageParseIndex(mIndexFile);
+        index.read();
+        final StructStat stat = PackageParseIndex.stat(apk);
+        assertEquals(PackageParseIndex.COST_UNKNOWN, index.getCostMicros(apk, stat));
+    }
+
+    @Test
+    public void testCorruptIndexIsIgnored() throws Exception {
+        final File apk = createFile("a.apk", 128);
+        final PackageParseIndex index = new PackageParseIndex(mIndexFile);
+        index.record(apk, PackageParseIndex.stat(apk), 1234);
+        index.write();
+
+        final byte[] good = mIndexFile.readFully();
+        // Entry count, then the path length of the first entry.
+        for (int offset : new int[] { 8, 12 }) {
+            for (int value : new int[] { -1, Integer.MAX_VALUE }) {
+                final byte[] bad = good.clone();
+                bad[offset] = (byte) (value >>> 24);
+                bad[offset + 1] = (byte) (value >>> 16);
+                bad[offset + 2] = (byte) (value >>> 8);
+                bad[offset + 3] = (byte) value;
+                final FileOutputStream out = mIndexFile.startWrite();
+                out.write(bad);
+                mIndexFile.finishWrite(out);
+
+                final PackageParseIndex corrupt = new PackageParseIndex(mIndexFile);
+                corrupt.read();
+                assertEquals(PackageParseIndex.COST_UNKNOWN,
+                        corrupt.getCostMicros(apk, PackageParseIndex.stat(apk)));
+            }
+        }
+    }
+
+    private File createFile(String name, int size) throws Exception {
+        final File file = new File(mDir, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[size]);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.ArrayMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link PackageSettingsStore}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PackageSettingsStoreTest {
+    private File mSnapshotFile;
+    private File mJournalFile;
+
+    @Before
+    public void setUp() {
+        final File dir = InstrumentationRegistry.getContext().getFilesDir();
+        mSnapshotFile = new File(dir, "test-packages.bin");
+        mJournalFile = new File(dir, "test-packages.bin.journal");
+        tearDown();
+    }
+
+    @After
+    public void tearDown() {
+        newStore().delete();
+        getBadFile().delete();
+    }
+
+    @Test
+    public void testSnapshotThenJournal() throws Exception {
+        PackageSettingsStore store = newStore();
+        assertFalse(store.exists());
+
+        final ArrayMap<String, byte[]> records = new ArrayMap<>();
+        records.put("a", bytes("alpha"));
+        records.put("b", bytes("beta"));
+        store.write(records);
+        assertTrue(store.exists());
+        assertEquals(0, store.getJournalBytes());
+
+        // An identical write is a no-op
+        store.write(new ArrayMap<>(records));
+        assertEquals(0, store.getJournalBytes());
+
+        final ArrayMap<String, byte[]> changed = new ArrayMap<>();
+        changed.put("a", bytes("alpha2"));
+        changed.put("c", bytes("gamma"));
+        store.write(changed);
+        assertTrue(store.getJournalBytes() > 0);
+
+        final ArrayMap<String, byte[]> read = newStore().read();
+        assertEquals(2, read.size());
+        assertArrayEquals(bytes("alpha2"), read.get("a"));
+        assertNull(read.get("b"));
+        assertArrayEquals(bytes("gamma"), read.get("c"));
+    }
+
+    @Test
+    public void testTornJournalTail() throws Exception {
+        PackageSettingsStore store = newStore();
+        final ArrayMap<String, byte[]> records = new ArrayMap<>();
+        records.put("a", bytes("alpha"));
+        store.write(records);
+
+        final ArrayMap<String, byte[]> changed = new ArrayMap<>();
+        changed.put("a", bytes("alpha2"));
+        store.write(changed);
+        final long goodLength = mJournalFile.length();
+
+        changed.put("a", bytes("alpha3"));
+        store.write(changed);
+
+        // Chop the last entry in half, as if we crashed while appending it
+        try (RandomAccessFile raf = new RandomAccessFile(mJournalFile, "rw")) {
+            raf.setLength(goodLength + (raf.length() - goodLength) / 2);
+        }
+
+        store = newStore();
+        final ArrayMap<String, byte[]> read = store.read();
+        assertArrayEquals(bytes("alpha2"), read.get("a"));
+        assertEquals(goodLength, mJournalFile.length());
+
+        // Appending after recovery must still produce a readable journal
+        changed.put("a", bytes("alpha4"));
+        store.write(changed);
+        assertArrayEquals(bytes("alpha4"), newStore().read().get("a"));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        PackageSettingsStore store = newStore();
+        final ArrayMap<String, byte[]> records = new ArrayMap<>();
+        records.put("a", new byte[1024]);
+        store.write(records);
+        final int generation = store.getGeneration();
+
+        // Keep rewriting a record until the journal is folded into a new snapshot
+        for (int i = 0; i < 256; i++) {
+            final byte[] value = new byte[1024];
+            value[0] = (byte) i;
+            records.put("a", value);
+            store.write(records);
+        }
+        assertTrue(store.getGeneration() > generation);
+
+        final ArrayMap<String, byte[]> read = newStore().read();
+        assertEquals((byte) 255, read.get("a")[0]);
+    }
+
+    @Test
+    public void testStaleJournalIgnored() throws Exception {
+        PackageSettingsStore store = newStore();
+        final ArrayMap<String, byte[]> records = new ArrayMap<>();
+        records.put("a", new byte[1024]);
+        store.write(records);
+        records.put("a", new byte[1025]);
+        store.write(records);
+        final byte[] staleJournal = Files.readAllBytes(mJournalFile.toPath());
+
+        final int generation = store.getGeneration();
+        for (int i = 0; store.getGeneration() == generation; i++) {
+            final byte[] value = new byte[1024];
+            value[0] = (byte) i;
+            records.put("a", value);
+            store.write(records);
+        }
+        final byte[] expected = records.get("a");
+
+        // Simulate a crash after the new snapshot was written but before the old journal was
+        // removed: the journal generation no longer matches and must not be replayed.
+        Files.write(mJournalFile.toPath(), staleJournal);
+        assertArrayEquals(expected, newStore().read().get("a"));
+        assertFalse(mJournalFile.exists());
+    }
+
+    @Test
+    public void testNoWriteAfterFailedRead() throws Exception {
+        PackageSettingsStore store = newStore();
+        final ArrayMap<String, byte[]> records = new ArrayMap<>();
+        records.put("a", bytes("alpha"));
+        store.write(records);
+
+        // Damage the snapshot so that it can no longer be read
+        final byte[] snapshot = Files.readAllBytes(mSnapshotFile.toPath());
+        snapshot[0] ^= 0xff;
+        Files.write(mSnapshotFile.toPath(), snapshot);
+
+        store = newStore();
+        try {
+            store.read();
+            fail("Damaged snapshot was read");
+        } catch (IOException expected) {
+        }
+        assertTrue(store.isReadFailed());
+
+        // Whatever the caller salvaged must not replace what is on disk
+        try {
+            store.write(new ArrayMap<>());
+            fail("Wrote over a snapshot that failed to read");
+        } catch (IOException expected) {
+        }
+        assertArrayEquals(snapshot, Files.readAllBytes(mSnapshotFile.toPath()));
+    }
+
+    @Test
+    public void testDamagedSnapshotFails() throws Exception {
+        final ArrayMap<String, byte[]> records = new ArrayMap<>();
+        records.put("a", bytes("alpha"));
+        records.put("b", bytes("beta"));
+        newStore().write(records);
+        final byte[] snapshot = Files.readAllBytes(mSnapshotFile.toPath());
+
+        for (int i = 0; i < snapshot.length; i++) {
+            final byte[] damaged = snapshot.clone();
+            damaged[i] ^= 0xff;
+            assertReadFails(damaged);
+        }
+        for (int length = 0; length < snapshot.length; length++) {
+            assertReadFails(Arrays.copyOf(snapshot, length));
+        }
+    }
+
+    @Test
+    public void testMoveAsideAfterFailedRead() throws Exception {
+        PackageSettingsStore store = newStore();
+        final ArrayMap<String, byte[]> records = new ArrayMap<>();
+        records.put("a", bytes("alpha"));
+        store.write(records);
+        final byte[] snapshot = Files.readAllBytes(mSnapshotFile.toPath());
+        snapshot[snapshot.length - 1] ^= 0xff;
+        Files.write(mSnapshotFile.toPath(), snapshot);
+
+        store = newStore();
+        try {
+            store.read();
+            fail("Damaged snapshot was read");
+        } catch (IOException expected) {
+        }
+        store.moveAside();
+        assertFalse(store.exists());
+        assertFalse(store.isReadFailed());
+        assertArrayEquals(snapshot, Files.readAllBytes(getBadFile().toPath()));
+
+        // The next write starts over
+        records.put("a", bytes("alpha2"));
+        store.write(records);
+        assertArrayEquals(bytes("alpha2"), newStore().read().get("a"));
+    }
+
+    private void assertReadFails(byte[] snapshot) throws IOException {
+        Files.write(mSnapshotFile.toPath(), snapshot);
+        try {
+            newStore().read();
+            fail("Damaged snapshot was read");
+        } catch (IOException expected) {
+        }
+    }
+
+    private File getBadFile() {
+        return new File(mSnapshotFile.getPath() + ".bad");
+    }
+
+    private PackageSettingsStore newStore() {
+        return new PackageSettingsStore(mSnapshotFile, mJournalFile);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
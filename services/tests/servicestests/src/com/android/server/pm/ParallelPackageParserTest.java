@@ -27,7 +27,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -66,6 +68,24 @@ public class ParallelPackageParserTest {
         }
     }
 
+    @Test(timeout = 1000)
+    public void testSubmitAll() {
+        List<File> submittedFiles = new ArrayList<>();
+        int fileCount = 15;
+        for (int i = 0; i < fileCount; i++) {
+            submittedFiles.add(new File("f" + i));
+        }
+        mParser.submitAll(submittedFiles, 0);
+        Set<File> remaining = new HashSet<>(submittedFiles);
+        for (int i = 0; i < fileCount; i++) {
+            ParallelPackageParser.ParseResult result = mParser.take();
+            Assert.assertNotNull(result);
+            Assert.assertTrue("Unexpected file " + result.scanFile,
+                    remaining.remove(result.scanFile));
+        }
+        Assert.assertTrue(mParser.getStats().startsWith("packages=" + fileCount + " "));
+    }
+
     class TestParallelPackageParser extends ParallelPackageParser {
 
         TestParallelPackageParser() {
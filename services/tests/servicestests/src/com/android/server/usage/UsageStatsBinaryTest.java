@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.usage;
+
+import android.app.usage.ConfigurationStats;
+import android.app.usage.TimeSparseArray;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStats;
+import android.content.res.Configuration;
+import android.os.FileUtils;
+import android.os.LocaleList;
+import android.test.AndroidTestCase;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class UsageStatsBinaryTest extends AndroidTestCase {
+
+    static final long BEGIN_TIME = 1000000;
+
+    final static String PACKAGE_1 = "com.android.testpackage1";
+    final static String PACKAGE_2 = "com.android.testpackage2";
+
+    File mStorageDir;
+    AtomicFile mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStorageDir = new File(getContext().getFilesDir(), "usagestats");
+        mStorageDir.mkdirs();
+        mFile = new AtomicFile(new File(mStorageDir, Long.toString(BEGIN_TIME)));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteContents(mStorageDir);
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws Exception {
+        final IntervalStats stats = createStats(10);
+        UsageStatsBinary.write(mFile, stats);
+
+        final IntervalStats read = new IntervalStats();
+        UsageStatsBinary.read(mFile, read);
+        assertEquals(BEGIN_TIME, read.beginTime);
+        assertEquals(stats.endTime, read.endTime);
+
+        assertEquals(2, read.packageStats.size());
+        final UsageStats pkg = read.packageStats.get(PACKAGE_1);
+        assertEquals(BEGIN_TIME + 500, pkg.mLastTimeUsed);
+        assertEquals(200, pkg.mTotalTimeInForeground);
+        assertEquals(UsageEvents.Event.MOVE_TO_BACKGROUND, pkg.mLastEvent);
+        assertEquals(3, (int) pkg.mChooserCounts.get("android.intent.action.SEND").get("text"));
+
+        assertEquals(1, read.configurations.size());
+        final ConfigurationStats config = read.configurations.valueAt(0);
+        assertEquals(stats.activeConfiguration, config.mConfiguration);
+        assertEquals(stats.activeConfiguration, read.activeConfiguration);
+        assertEquals(4, config.mActivationCount);
+
+        assertEquals(10, read.events.size());
+        for (int i = 0; i < 10; i++) {
+            final UsageEvents.Event expected = stats.events.valueAt(i);
+            final UsageEvents.Event event = read.events.valueAt(i);
+            assertEquals(expected.mTimeStamp, event.mTimeStamp);
+            assertEquals(expected.mPackage, event.mPackage);
+            assertEquals(expected.mClass, event.mClass);
+            assertEquals(expected.mEventType, event.mEventType);
+            assertEquals(expected.mShortcutId, event.mShortcutId);
+            assertEquals(expected.mConfiguration, event.mConfiguration);
+        }
+    }
+
+    public void testReadsOnlyRequestedParts() throws Exception {
+        UsageStatsBinary.write(mFile, createStats(10));
+
+        final IntervalStats read = new IntervalStats();
+        UsageStatsBinary.read(mFile, read, UsageStatsBinary.READ_CONFIGURATIONS,
+                Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(0, read.packageStats.size());
+        assertEquals(1, read.configurations.size());
+        assertNull(read.events);
+    }
+
+    public void testSkipsEventBlocksOutsideRange() throws Exception {
+        final int count = UsageStatsBinary.EVENTS_PER_BLOCK * 3;
+        final IntervalStats stats = createStats(count);
+        UsageStatsBinary.write(mFile, stats);
+
+        // Falls in the second block only.
+        final long begin = stats.events.keyAt(UsageStatsBinary.EVENTS_PER_BLOCK + 1);
+        final long end = stats.events.keyAt(UsageStatsBinary.EVENTS_PER_BLOCK * 2 - 1);
+        final IntervalStats read = new IntervalStats();
+        UsageStatsBinary.read(mFile, read, UsageStatsBinary.READ_EVENTS, begin, end);
+        assertEquals(UsageStatsBinary.EVENTS_PER_BLOCK, read.events.size());
+        assertEquals(stats.events.keyAt(UsageStatsBinary.EVENTS_PER_BLOCK),
+                read.events.keyAt(0));
+    }
+
+    public void testReadsXml() throws Exception {
+        final IntervalStats stats = createStats(5);
+        UsageStatsXml.write(mFile, stats);
+
+        final IntervalStats read = new IntervalStats();
+        UsageStatsBinary.read(mFile, read);
+        assertEquals(2, read.packageStats.size());
+        assertEquals(1, read.configurations.size());
+        assertEquals(5, read.events.size());
+    }
+
+    public void testDamagedFileFails() throws Exception {
+        UsageStatsBinary.write(mFile, createStats(10));
+        final byte[] data = Files.readAllBytes(mFile.getBaseFile().toPath());
+
+        // Past the magic number, any flipped byte or missing tail is caught by the reader.
+        for (int i = 4; i < data.length; i++) {
+            data[i] ^= 0x5a;
+            assertReadFails(data, data.length);
+            data[i] ^= 0x5a;
+        }
+        for (int length = 4; length < data.length; length++) {
+            assertReadFails(data, length);
+        }
+    }
+
+    private void assertReadFails(byte[] data, int length) throws Exception {
+        Files.write(mFile.getBaseFile().toPath(), Arrays.copyOf(data, length));
+        try {
+            UsageStatsBinary.read(mFile, new IntervalStats());
+            fail("Damaged file was read");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static IntervalStats createStats(int eventCount) {
+        final IntervalStats stats = new IntervalStats();
+        stats.beginTime = BEGIN_TIME;
+        stats.endTime = BEGIN_TIME + eventCount * 10 + 1000;
+
+        final UsageStats pkg = stats.getOrCreateUsageStats(PACKAGE_1);
+        pkg.mLastTimeUsed = BEGIN_TIME + 500;
+        pkg.mTotalTimeInForeground = 200;
+        pkg.mLastEvent = UsageEvents.Event.MOVE_TO_BACKGROUND;
+        pkg.mChooserCounts = new ArrayMap<>();
+        final ArrayMap<String, Integer> counts = new ArrayMap<>();
+        counts.put("text", 3);
+        pkg.mChooserCounts.put("android.intent.action.SEND", counts);
+        stats.getOrCreateUsageStats(PACKAGE_2).mLastTimeUsed = BEGIN_TIME + 100;
+
+        final Configuration config = new Configuration();
+        config.setLocales(LocaleList.forLanguageTags("en-US"));
+        config.densityDpi = 320;
+        final ConfigurationStats configStats = stats.getOrCreateConfigurationStats(config);
+        configStats.mActivationCount = 4;
+        configStats.mTotalTimeActive = 300;
+        stats.activeConfiguration = config;
+
+        stats.events = new TimeSparseArray<>();
+        for (int i = 0; i < eventCount; i++) {
+            final UsageEvents.Event event = stats.buildEvent(
+                    i % 2 == 0 ? PACKAGE_1 : PACKAGE_2, i % 3 == 0 ? null : "Activity" + (i % 4));
+            event.mTimeStamp = BEGIN_TIME + i * 10;
+            switch (i % 5) {
+                case 0:
+                    event.mEventType = UsageEvents.Event.CONFIGURATION_CHANGE;
+                    event.mConfiguration = new Configuration(config);
+                    break;
+                case 1:
+                    event.mEventType = UsageEvents.Event.SHORTCUT_INVOCATION;
+                    event.mShortcutId = "shortcut" + i;
+                    break;
+                default:
+                    event.mEventType = UsageEvents.Event.MOVE_TO_FOREGROUND;
+                    break;
+            }
+            stats.events.put(event.mTimeStamp, event);
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class JournalFileTest {
+    private static final int MAGIC = 0x54455354; // TEST
+    private static final int VERSION = 1;
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getContext().getCacheDir(), "test.journal");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void testEntriesSurviveReopen() throws Exception {
+        final JournalFile journal = newJournal();
+        journal.read(7);
+        journal.append(Arrays.asList(new byte[] { 1 }, new byte[] { 2, 3 }));
+        journal.append(Arrays.asList(new byte[] { 4 }));
+
+        final JournalFile reopened = newJournal();
+        final List<byte[]> entries = reopened.read(7);
+        assertEquals(3, entries.size());
+        assertArrayEquals(new byte[] { 2, 3 }, entries.get(1));
+        assertArrayEquals(new byte[] { 4 }, entries.get(2));
+        assertEquals(journal.getBytes(), reopened.getBytes());
+        assertEquals(mFile.length(), reopened.getBytes());
+    }
+
+    @Test
+    public void testOtherGenerationDiscarded() throws Exception {
+        final JournalFile journal = newJournal();
+        journal.read(1);
+        journal.append(Arrays.asList(new byte[] { 1 }));
+
+        // As if a snapshot of generation 2 was written, but the journal not yet removed.
+        assertEquals(0, newJournal().read(2).size());
+        assertFalse(mFile.exists());
+    }
+
+    @Test
+    public void testTornTailDropped() throws Exception {
+        final JournalFile journal = newJournal();
+        journal.read(0);
+        journal.append(Arrays.asList(new byte[] { 1 }));
+        final long goodLength = mFile.length();
+        journal.append(Arrays.asList(new byte[] { 2, 3, 4, 5 }));
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(mFile.length() - 3);
+        }
+
+        final JournalFile reopened = newJournal();
+        assertEquals(1, reopened.read(0).size());
+        assertEquals(goodLength, mFile.length());
+
+        // Appends land right after the last good entry.
+        reopened.append(Arrays.asList(new byte[] { 6 }));
+        assertEquals(2, newJournal().read(0).size());
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        final JournalFile journal = newJournal();
+        journal.read(0);
+        journal.append(Arrays.asList(new byte[] { 1 }));
+        journal.reset(1);
+        assertFalse(mFile.exists());
+        assertEquals(0, journal.getBytes());
+
+        // Later appends start a journal on top of the new generation.
+        journal.append(Arrays.asList(new byte[] { 2 }));
+        final List<byte[]> entries = newJournal().read(1);
+        assertEquals(1, entries.size());
+        assertArrayEquals(new byte[] { 2 }, entries.get(0));
+    }
+
+    private JournalFile newJournal() {
+        return new JournalFile(mFile, MAGIC, VERSION);
+    }
+}
@@ -0,0 +1,638 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.usage;
+
+import android.app.usage.ConfigurationStats;
+import android.app.usage.TimeSparseArray;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStats;
+import android.content.res.Configuration;
+import android.graphics.Rect;
+import android.os.LocaleList;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * UsageStats reader/writer for the binary format.
+ * <p>
+ * Package, class, action and shortcut names are stored once in a string pool and referred
+ * to by index. The package and configuration sections are length-prefixed so a reader that
+ * doesn't need them can skip them. Events are written in blocks of {@link #EVENTS_PER_BLOCK},
+ * behind an index holding the time range and size of each block, so a query for a window
+ * of time only decodes the blocks that overlap it.
+ * <p>
+ * Every section and event block carries a CRC32 that is checked before it is decoded, and
+ * counts and string pool indices are checked as they are read, so a damaged file fails
+ * with an {@link IOException} rather than with garbage or a runtime exception.
+ * <p>
+ * All times are stored as offsets from the beginTime of the stats, which comes from the
+ * file name as it does for the XML format.
+ */
+final class UsageStatsBinary {
+
+    static final int MAGIC = 0x55535442; // USTB
+    private static final int VERSION = 2;
+
+    /** Bytes in each event index entry: time range, length and checksum of a block. */
+    private static final int BLOCK_INDEX_ENTRY_SIZE = 24;
+
+    static final int EVENTS_PER_BLOCK = 256;
+
+    /** Flags selecting the parts of the stats to read. */
+    static final int READ_PACKAGES = 1 << 0;
+    static final int READ_CONFIGURATIONS = 1 << 1;
+    static final int READ_EVENTS = 1 << 2;
+    static final int READ_ALL = READ_PACKAGES | READ_CONFIGURATIONS | READ_EVENTS;
+
+    static void read(AtomicFile file, IntervalStats statsOut) throws IOException {
+        read(file, statsOut, READ_ALL, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads the given parts of a stats file, in either the binary or the XML format. The XML
+     * format has no index, so all of it is read regardless of {@code flags}.
+     */
+    static void read(AtomicFile file, IntervalStats statsOut, int flags,
+            long eventsBeginTime, long eventsEndTime) throws IOException {
+        final BufferedInputStream in = new BufferedInputStream(file.openRead());
+        try {
+            statsOut.beginTime = UsageStatsXml.parseBeginTime(file);
+            in.mark(4);
+            final DataInputStream din = new DataInputStream(in);
+            if (din.readInt() == MAGIC) {
+                // openRead() may have restored the backup, so only now is the length final.
+                final SectionReader reader = new SectionReader(din,
+                        file.getBaseFile().length() - 4);
+                read(reader, statsOut, flags, eventsBeginTime, eventsEndTime);
+            } else {
+                in.reset();
+                UsageStatsXml.read(in, statsOut);
+            }
+            statsOut.lastTimeSaved = file.getLastModifiedTime();
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Reads stats written by {@link #write}, positioned just past the magic number.
+     *
+     * @param flags which parts of the stats to read; the others are left empty.
+     * @param eventsBeginTime events in blocks that end before this time are skipped.
+     * @param eventsEndTime events in blocks that start at or after this time are skipped.
+     */
+    private static void read(SectionReader reader, IntervalStats statsOut, int flags,
+            long eventsBeginTime, long eventsEndTime) throws IOException {
+        statsOut.packageStats.clear();
+        statsOut.configurations.clear();
+        statsOut.activeConfiguration = null;
+        if (statsOut.events != null) {
+            statsOut.events.clear();
+        }
+
+        final int version = reader.readInt();
+        if (version != VERSION) {
+            throw new ProtocolException("Unrecognized binary version " + version);
+        }
+        final long beginTime = statsOut.beginTime;
+
+        DataInputStream in = reader.readSection("header");
+        statsOut.endTime = beginTime + in.readLong();
+        final String[] pool = new String[readCount(in)];
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = in.readUTF();
+        }
+
+        if ((flags & READ_PACKAGES) != 0) {
+            readPackages(reader.readSection("packages"), statsOut, pool);
+        } else {
+            reader.skipSection();
+        }
+
+        if ((flags & READ_CONFIGURATIONS) != 0) {
+            readConfigurations(reader.readSection("configurations"), statsOut);
+        } else {
+            reader.skipSection();
+        }
+
+        if ((flags & READ_EVENTS) == 0) {
+            return;
+        }
+        in = reader.readSection("event index");
+        final int blockCount = in.readInt();
+        if (blockCount < 0 || blockCount > in.available() / BLOCK_INDEX_ENTRY_SIZE) {
+            throw new ProtocolException("Bad event block count " + blockCount);
+        }
+        final long[] blockTimes = new long[blockCount * 2];
+        final int[] blockLengths = new int[blockCount];
+        final int[] blockCrcs = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            blockTimes[i * 2] = beginTime + in.readLong();
+            blockTimes[i * 2 + 1] = beginTime + in.readLong();
+            blockLengths[i] = in.readInt();
+            blockCrcs[i] = in.readInt();
+        }
+        for (int i = 0; i < blockCount; i++) {
+            if (blockTimes[i * 2 + 1] < eventsBeginTime || blockTimes[i * 2] >= eventsEndTime) {
+                reader.skip(blockLengths[i]);
+                continue;
+            }
+            if (statsOut.events == null) {
+                statsOut.events = new TimeSparseArray<>();
+            }
+            readEventBlock(reader.readBlock(blockLengths[i], blockCrcs[i]), statsOut, pool,
+                    blockTimes[i * 2]);
+        }
+    }
+
+    private static void readPackages(DataInputStream in, IntervalStats statsOut,
+            String[] pool) throws IOException {
+        final int count = readCount(in);
+        for (int i = 0; i < count; i++) {
+            final UsageStats stats = statsOut.getOrCreateUsageStats(readString(in, pool));
+            stats.mLastTimeUsed = statsOut.beginTime + readVarLong(in);
+            stats.mTotalTimeInForeground = readVarLong(in);
+            stats.mLastEvent = readVarInt(in);
+            final int actionCount = readCount(in);
+            if (actionCount > 0) {
+                stats.mChooserCounts = new ArrayMap<>(actionCount);
+            }
+            for (int j = 0; j < actionCount; j++) {
+                final String action = readString(in, pool);
+                final int categoryCount = readCount(in);
+                final ArrayMap<String, Integer> counts = new ArrayMap<>(categoryCount);
+                for (int k = 0; k < categoryCount; k++) {
+                    counts.put(readString(in, pool), readVarInt(in));
+                }
+                stats.mChooserCounts.put(action, counts);
+            }
+        }
+    }
+
+    private static void readConfigurations(DataInputStream in, IntervalStats statsOut)
+            throws IOException {
+        final int count = readCount(in);
+        for (int i = 0; i < count; i++) {
+            final Configuration config = readConfiguration(in);
+            final ConfigurationStats stats = statsOut.getOrCreateConfigurationStats(config);
+            stats.mLastTimeActive = statsOut.beginTime + readVarLong(in);
+            stats.mTotalTimeActive = readVarLong(in);
+            stats.mActivationCount = readVarInt(in);
+            if (in.readBoolean()) {
+                statsOut.activeConfiguration = stats.mConfiguration;
+            }
+        }
+    }
+
+    private static void readEventBlock(DataInputStream in, IntervalStats statsOut,
+            String[] pool, long time) throws IOException {
+        final int count = readCount(in);
+        for (int i = 0; i < count; i++) {
+            final UsageEvents.Event event = new UsageEvents.Event();
+            time += readVarLong(in);
+            event.mTimeStamp = time;
+            event.mPackage = readString(in, pool);
+            event.mClass = readOptionalString(in, pool);
+            event.mFlags = readVarInt(in);
+            event.mEventType = readVarInt(in);
+            switch (event.mEventType) {
+                case UsageEvents.Event.CONFIGURATION_CHANGE:
+                    if (in.readBoolean()) {
+                        event.mConfiguration = readConfiguration(in);
+                    }
+                    break;
+                case UsageEvents.Event.SHORTCUT_INVOCATION:
+                    event.mShortcutId = readOptionalString(in, pool);
+                    break;
+            }
+            statsOut.events.put(event.mTimeStamp, event);
+        }
+    }
+
+    /**
+     * Reads the count of items that follow. Each item takes at least a byte, so a count
+     * beyond what is left in the section can only come from a damaged file.
+     */
+    private static int readCount(DataInputStream in) throws IOException {
+        final int count = readVarInt(in);
+        if (count < 0 || count > in.available()) {
+            throw new ProtocolException("Bad count " + count);
+        }
+        return count;
+    }
+
+    private static String readString(DataInputStream in, String[] pool) throws IOException {
+        final int index = readVarInt(in);
+        if (index < 0 || index >= pool.length) {
+            throw new ProtocolException("Bad string pool index " + index);
+        }
+        return pool[index];
+    }
+
+    /** Reads a string written with {@link #writeOptionalString}. */
+    private static String readOptionalString(DataInputStream in, String[] pool)
+            throws IOException {
+        final int index = readVarInt(in);
+        if (index < 0 || index > pool.length) {
+            throw new ProtocolException("Bad string pool index " + index);
+        }
+        return index > 0 ? pool[index - 1] : null;
+    }
+
+    private static Configuration readConfiguration(DataInputStream in) throws IOException {
+        final Configuration config = new Configuration();
+        config.fontScale = in.readFloat();
+        config.mcc = readVarInt(in);
+        config.mnc = readVarInt(in);
+        config.setLocales(LocaleList.forLanguageTags(in.readUTF()));
+        config.touchscreen = readVarInt(in);
+        config.keyboard = readVarInt(in);
+        config.keyboardHidden = readVarInt(in);
+        config.hardKeyboardHidden = readVarInt(in);
+        config.navigation = readVarInt(in);
+        config.navigationHidden = readVarInt(in);
+        config.orientation = readVarInt(in);
+        config.screenLayout = readVarInt(in);
+        config.colorMode = readVarInt(in);
+        config.uiMode = readVarInt(in);
+        config.screenWidthDp = readVarInt(in);
+        config.screenHeightDp = readVarInt(in);
+        config.smallestScreenWidthDp = readVarInt(in);
+        config.densityDpi = readVarInt(in);
+        config.appBounds = in.readBoolean() ? Rect.unflattenFromString(in.readUTF()) : null;
+        return config;
+    }
+
+    static void write(AtomicFile file, IntervalStats stats) throws IOException {
+        FileOutputStream fos = file.startWrite();
+        try {
+            write(fos, stats);
+            file.finishWrite(fos);
+            fos = null;
+        } finally {
+            // When fos is null (successful write), this will no-op
+            file.failWrite(fos);
+        }
+    }
+
+    static void write(OutputStream os, IntervalStats stats) throws IOException {
+        final StringPool pool = new StringPool();
+        final long beginTime = stats.beginTime;
+
+        // Encode the sections first, so that the pool is complete before it is written.
+        final ByteArrayOutputStream packagesBytes = new ByteArrayOutputStream();
+        final DataOutputStream packages = new DataOutputStream(packagesBytes);
+        final int packageCount = stats.packageStats.size();
+        writeVarInt(packages, packageCount);
+        for (int i = 0; i < packageCount; i++) {
+            final UsageStats usageStats = stats.packageStats.valueAt(i);
+            writeVarInt(packages, pool.indexOf(usageStats.mPackageName));
+            writeVarLong(packages, usageStats.mLastTimeUsed - beginTime);
+            writeVarLong(packages, usageStats.mTotalTimeInForeground);
+            writeVarInt(packages, usageStats.mLastEvent);
+            writeChooserCounts(packages, pool, usageStats.mChooserCounts);
+        }
+        packages.flush();
+
+        final ByteArrayOutputStream configsBytes = new ByteArrayOutputStream();
+        final DataOutputStream configs = new DataOutputStream(configsBytes);
+        final int configCount = stats.configurations.size();
+        writeVarInt(configs, configCount);
+        for (int i = 0; i < configCount; i++) {
+            final ConfigurationStats configStats = stats.configurations.valueAt(i);
+            writeConfiguration(configs, configStats.mConfiguration);
+            writeVarLong(configs, configStats.mLastTimeActive - beginTime);
+            writeVarLong(configs, configStats.mTotalTimeActive);
+            writeVarInt(configs, configStats.mActivationCount);
+            configs.writeBoolean(stats.activeConfiguration != null
+                    && stats.activeConfiguration.equals(stats.configurations.keyAt(i)));
+        }
+        configs.flush();
+
+        final int eventCount = stats.events != null ? stats.events.size() : 0;
+        final int blockCount = (eventCount + EVENTS_PER_BLOCK - 1) / EVENTS_PER_BLOCK;
+        final ArrayList<byte[]> blocks = new ArrayList<>(blockCount);
+        final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+        final DataOutputStream block = new DataOutputStream(blockBytes);
+        for (int start = 0; start < eventCount; start += EVENTS_PER_BLOCK) {
+            final int end = Math.min(eventCount, start + EVENTS_PER_BLOCK);
+            blockBytes.reset();
+            writeVarInt(block, end - start);
+            long lastTime = stats.events.keyAt(start);
+            for (int i = start; i < end; i++) {
+                final UsageEvents.Event event = stats.events.valueAt(i);
+                final long time = stats.events.keyAt(i);
+                writeVarLong(block, time - lastTime);
+                lastTime = time;
+                writeVarInt(block, pool.indexOf(event.mPackage));
+                writeOptionalString(block, pool, event.mClass);
+                writeVarInt(block, event.mFlags);
+                writeVarInt(block, event.mEventType);
+                switch (event.mEventType) {
+                    case UsageEvents.Event.CONFIGURATION_CHANGE:
+                        block.writeBoolean(event.mConfiguration != null);
+                        if (event.mConfiguration != null) {
+                            writeConfiguration(block, event.mConfiguration);
+                        }
+                        break;
+                    case UsageEvents.Event.SHORTCUT_INVOCATION:
+                        writeOptionalString(block, pool, event.mShortcutId);
+                        break;
+                }
+            }
+            block.flush();
+            blocks.add(blockBytes.toByteArray());
+        }
+
+        final ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        final DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeLong(stats.endTime - beginTime);
+        writeVarInt(header, pool.size());
+        for (int i = 0; i < pool.size(); i++) {
+            header.writeUTF(pool.get(i));
+        }
+        header.flush();
+
+        final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        final DataOutputStream index = new DataOutputStream(indexBytes);
+        final CRC32 crc = new CRC32();
+        index.writeInt(blockCount);
+        for (int i = 0; i < blockCount; i++) {
+            final int start = i * EVENTS_PER_BLOCK;
+            final int end = Math.min(eventCount, start + EVENTS_PER_BLOCK);
+            final byte[] blockData = blocks.get(i);
+            crc.reset();
+            crc.update(blockData);
+            index.writeLong(stats.events.keyAt(start) - beginTime);
+            index.writeLong(stats.events.keyAt(end - 1) - beginTime);
+            index.writeInt(blockData.length);
+            index.writeInt((int) crc.getValue());
+        }
+        index.flush();
+
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeSection(out, crc, headerBytes);
+        writeSection(out, crc, packagesBytes);
+        writeSection(out, crc, configsBytes);
+        writeSection(out, crc, indexBytes);
+        for (int i = 0; i < blockCount; i++) {
+            out.write(blocks.get(i));
+        }
+        out.flush();
+    }
+
+    /** Writes the length of a section, its contents and their checksum. */
+    private static void writeSection(DataOutputStream out, CRC32 crc,
+            ByteArrayOutputStream section) throws IOException {
+        final byte[] data = section.toByteArray();
+        crc.reset();
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /** Writes the pool index of {@code str} plus one, or 0 for null. */
+    private static void writeOptionalString(DataOutputStream out, StringPool pool, String str)
+            throws IOException {
+        writeVarInt(out, str != null ? pool.indexOf(str) + 1 : 0);
+    }
+
+    private static void writeChooserCounts(DataOutputStream out, StringPool pool,
+            ArrayMap<String, ArrayMap<String, Integer>> chooserCounts) throws IOException {
+        int actionCount = 0;
+        final int size = chooserCounts != null ? chooserCounts.size() : 0;
+        for (int i = 0; i < size; i++) {
+            if (isWrittenAction(chooserCounts, i)) {
+                actionCount++;
+            }
+        }
+        writeVarInt(out, actionCount);
+        for (int i = 0; i < size; i++) {
+            if (!isWrittenAction(chooserCounts, i)) {
+                continue;
+            }
+            final ArrayMap<String, Integer> counts = chooserCounts.valueAt(i);
+            int categoryCount = 0;
+            for (int j = 0; j < counts.size(); j++) {
+                if (counts.valueAt(j) > 0) {
+                    categoryCount++;
+                }
+            }
+            writeVarInt(out, pool.indexOf(chooserCounts.keyAt(i)));
+            writeVarInt(out, categoryCount);
+            for (int j = 0; j < counts.size(); j++) {
+                final int count = counts.valueAt(j);
+                if (count > 0) {
+                    writeVarInt(out, pool.indexOf(counts.keyAt(j)));
+                    writeVarInt(out, count);
+                }
+            }
+        }
+    }
+
+    /** Matches what the XML format keeps: named actions with at least one category. */
+    private static boolean isWrittenAction(
+            ArrayMap<String, ArrayMap<String, Integer>> chooserCounts, int index) {
+        final ArrayMap<String, Integer> counts = chooserCounts.valueAt(index);
+        return chooserCounts.keyAt(index) != null && counts != null && !counts.isEmpty();
+    }
+
+    private static void writeConfiguration(DataOutputStream out, Configuration config)
+            throws IOException {
+        out.writeFloat(config.fontScale);
+        writeVarInt(out, config.mcc);
+        writeVarInt(out, config.mnc);
+        out.writeUTF(config.getLocales().toLanguageTags());
+        writeVarInt(out, config.touchscreen);
+        writeVarInt(out, config.keyboard);
+        writeVarInt(out, config.keyboardHidden);
+        writeVarInt(out, config.hardKeyboardHidden);
+        writeVarInt(out, config.navigation);
+        writeVarInt(out, config.navigationHidden);
+        writeVarInt(out, config.orientation);
+        writeVarInt(out, config.screenLayout);
+        writeVarInt(out, config.colorMode);
+        writeVarInt(out, config.uiMode);
+        writeVarInt(out, config.screenWidthDp);
+        writeVarInt(out, config.screenHeightDp);
+        writeVarInt(out, config.smallestScreenWidthDp);
+        writeVarInt(out, config.densityDpi);
+        out.writeBoolean(config.appBounds != null);
+        if (config.appBounds != null) {
+            out.writeUTF(config.appBounds.flattenToString());
+        }
+    }
+
+    /**
+     * Reads the sections written by {@link #writeSection} and the event blocks behind them,
+     * checking each length against what is left of the file and each checksum before any of
+     * the contents are decoded.
+     */
+    private static final class SectionReader {
+        private final DataInputStream mIn;
+        private final CRC32 mCrc = new CRC32();
+        private long mRemaining;
+
+        SectionReader(DataInputStream in, long length) {
+            mIn = in;
+            mRemaining = length;
+        }
+
+        int readInt() throws IOException {
+            checkRemaining(4);
+            mRemaining -= 4;
+            return mIn.readInt();
+        }
+
+        DataInputStream readSection(String name) throws IOException {
+            final int length = readInt();
+            checkRemaining(length);
+            final byte[] data = new byte[length];
+            mIn.readFully(data);
+            mRemaining -= length;
+            if (checksum(data) != readInt()) {
+                throw new ProtocolException("Checksum mismatch in " + name + " section");
+            }
+            return new DataInputStream(new ByteArrayInputStream(data));
+        }
+
+        void skipSection() throws IOException {
+            skip(readInt());
+            readInt();
+        }
+
+        DataInputStream readBlock(int length, int crc) throws IOException {
+            checkRemaining(length);
+            final byte[] data = new byte[length];
+            mIn.readFully(data);
+            mRemaining -= length;
+            if (checksum(data) != crc) {
+                throw new ProtocolException("Checksum mismatch in event block");
+            }
+            return new DataInputStream(new ByteArrayInputStream(data));
+        }
+
+        void skip(int length) throws IOException {
+            checkRemaining(length);
+            int skipped = 0;
+            while (skipped < length) {
+                final int n = mIn.skipBytes(length - skipped);
+                if (n <= 0) {
+                    throw new EOFException();
+                }
+                skipped += n;
+            }
+            mRemaining -= length;
+        }
+
+        private void checkRemaining(long length) throws ProtocolException {
+            if (length < 0 || length > mRemaining) {
+                throw new ProtocolException("Bad length " + length + " with " + mRemaining
+                        + " bytes left");
+            }
+        }
+
+        private int checksum(byte[] data) {
+            mCrc.reset();
+            mCrc.update(data);
+            return (int) mCrc.getValue();
+        }
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        int shift = 0;
+        long result = 0;
+        while (shift < 64) {
+            byte b = in.readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                // Undo the zigzag encoding.
+                return (result >>> 1) ^ -(result & 1);
+            }
+            shift += 7;
+        }
+        throw new ProtocolException("malformed varint");
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        writeVarLong(out, value);
+    }
+
+    /** Writes a zigzag varint, so the occasional negative offset stays small. */
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        value = (value << 1) ^ (value >> 63);
+        while (true) {
+            if ((value & ~0x7FL) == 0) {
+                out.writeByte((int) value);
+                return;
+            } else {
+                out.writeByte(((int) value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+        }
+    }
+
+    /** Assigns each distinct string an index, in order of first use. */
+    private static final class StringPool {
+        private final ArrayMap<String, Integer> mIndices = new ArrayMap<>();
+        private final ArrayList<String> mStrings = new ArrayList<>();
+
+        int indexOf(String str) {
+            Integer index = mIndices.get(str);
+            if (index == null) {
+                index = mStrings.size();
+                mIndices.put(str, index);
+                mStrings.add(str);
+            }
+            return index;
+        }
+
+        int size() {
+            return mStrings.size();
+        }
+
+        String get(int index) {
+            return mStrings.get(index);
+        }
+    }
+
+    private UsageStatsBinary() {
+    }
+}
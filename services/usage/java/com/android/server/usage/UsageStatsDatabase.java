@@ -40,7 +40,9 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Provides an interface to query for UsageStat data from an XML database.
+ * Provides an interface to query for UsageStat data from a database of stats files. Files are
+ * written in the binary format of {@link UsageStatsBinary}; files still in the older XML
+ * format are read as they are and converted on their next write.
  */
 class UsageStatsDatabase {
     private static final int CURRENT_VERSION = 3;
@@ -154,7 +156,7 @@ class UsageStatsDatabase {
             try {
                 IntervalStats stats = new IntervalStats();
                 for (int i = start; i < fileCount - 1; i++) {
-                    UsageStatsXml.read(files.valueAt(i), stats);
+                    UsageStatsBinary.read(files.valueAt(i), stats);
                     if (!checkinAction.checkin(stats)) {
                         return false;
                     }
@@ -357,7 +359,7 @@ class UsageStatsDatabase {
             try {
                 final AtomicFile f = mSortedStatFiles[intervalType].valueAt(fileCount - 1);
                 IntervalStats stats = new IntervalStats();
-                UsageStatsXml.read(f, stats);
+                UsageStatsBinary.read(f, stats);
                 return stats;
             } catch (IOException e) {
                 Slog.e(TAG, "Failed to read usage stats file", e);
@@ -387,10 +389,15 @@ class UsageStatsDatabase {
     }
 
     /**
-     * Find all {@link IntervalStats} for the given range and interval type.
+     * Find all {@link IntervalStats} for the given range and interval type, reading only the
+     * parts selected by {@code readFlags}. Events outside of the range may be skipped.
+     *
+     * @param readFlags a combination of {@link UsageStatsBinary#READ_PACKAGES},
+     *                  {@link UsageStatsBinary#READ_CONFIGURATIONS} and
+     *                  {@link UsageStatsBinary#READ_EVENTS}.
      */
     public <T> List<T> queryUsageStats(int intervalType, long beginTime, long endTime,
-            StatCombiner<T> combiner) {
+            int readFlags, StatCombiner<T> combiner) {
         synchronized (mLock) {
             if (intervalType < 0 || intervalType >= mIntervalDirs.length) {
                 throw new IllegalArgumentException("Bad interval type " + intervalType);
@@ -443,7 +450,7 @@ class UsageStatsDatabase {
                 }
 
                 try {
-                    UsageStatsXml.read(f, stats);
+                    UsageStatsBinary.read(f, stats, readFlags, beginTime, endTime);
                     if (beginTime < stats.endTime) {
                         combiner.combine(stats, false, results);
                     }
@@ -562,7 +569,7 @@ class UsageStatsDatabase {
                     try {
                         final AtomicFile af = new AtomicFile(f);
                         final IntervalStats stats = new IntervalStats();
-                        UsageStatsXml.read(af, stats);
+                        UsageStatsBinary.read(af, stats);
                         final int pkgCount = stats.packageStats.size();
                         for (int i = 0; i < pkgCount; i++) {
                             UsageStats pkgStats = stats.packageStats.valueAt(i);
@@ -570,7 +577,7 @@ class UsageStatsDatabase {
                                 pkgStats.mChooserCounts.clear();
                             }
                         }
-                        UsageStatsXml.write(af, stats);
+                        UsageStatsBinary.write(af, stats);
                     } catch (IOException e) {
                         Slog.e(TAG, "Failed to delete chooser counts from usage stats file", e);
                     }
@@ -596,7 +603,7 @@ class UsageStatsDatabase {
                 mSortedStatFiles[intervalType].put(stats.beginTime, f);
             }
 
-            UsageStatsXml.write(f, stats);
+            UsageStatsBinary.write(f, stats);
             stats.lastTimeSaved = f.getLastModifiedTime();
         }
     }
@@ -730,7 +737,8 @@ class UsageStatsDatabase {
             throws IOException {
         IntervalStats stats = new IntervalStats();
         try {
-            UsageStatsXml.read(statsFile, stats);
+            // Configurations and events aren't backed up.
+            UsageStatsBinary.read(statsFile, stats, UsageStatsBinary.READ_PACKAGES, 0, 0);
         } catch (IOException e) {
             Slog.e(TAG, "Failed to read usage stats file", e);
             out.writeInt(0);
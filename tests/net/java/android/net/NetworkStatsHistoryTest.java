@@ -396,6 +396,35 @@ public class NetworkStatsHistoryTest extends AndroidTestCase {
         assertFullValues(after, 5 * MINUTE_IN_MILLIS, 1034L, 30L, 2078L, 60L, 54L);
     }
 
+    public void testSerializeCompact() throws Exception {
+        final NetworkStatsHistory before = new NetworkStatsHistory(MINUTE_IN_MILLIS, 40, FIELD_ALL);
+        before.recordData(0, 4 * MINUTE_IN_MILLIS,
+                new NetworkStats.Entry(1024L, 10L, 2048L, 20L, 4L));
+        before.recordData(DAY_IN_MILLIS, DAY_IN_MILLIS + MINUTE_IN_MILLIS,
+                new NetworkStats.Entry(10L, 20L, 30L, 40L, 50L));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        before.writeCompactToStream(new DataOutputStream(out));
+        out.close();
+
+        // whole history must come back identical
+        NetworkStatsHistory after = NetworkStatsHistory.readCompactFromStream(
+                new DataInputStream(new ByteArrayInputStream(out.toByteArray())), out.size(),
+                Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(before.size(), after.size());
+        assertEquals(before.getTotalBytes(), after.getTotalBytes());
+        assertFullValues(after, 5 * MINUTE_IN_MILLIS, 1034L, 30L, 2078L, 60L, 54L);
+
+        // and a window must keep only the buckets overlapping it
+        after = NetworkStatsHistory.readCompactFromStream(
+                new DataInputStream(new ByteArrayInputStream(out.toByteArray())), out.size(),
+                MINUTE_IN_MILLIS + SECOND_IN_MILLIS, HOUR_IN_MILLIS);
+        assertEquals(3, after.size());
+        assertEquals(MINUTE_IN_MILLIS, after.getStart());
+        assertEquals(4 * MINUTE_IN_MILLIS, after.getEnd());
+        assertFullValues(after, 3 * MINUTE_IN_MILLIS, 768L, 7L, 1536L, 15L, 3L);
+    }
+
     public void testVarLong() throws Exception {
         assertEquals(0L, performVarLong(0L));
         assertEquals(-1L, performVarLong(-1L));
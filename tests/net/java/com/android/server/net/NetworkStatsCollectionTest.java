@@ -52,9 +52,11 @@ import libcore.io.Streams;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.time.Clock;
@@ -176,6 +178,82 @@ public class NetworkStatsCollectionTest extends AndroidTestCase {
                 77017831L, 100995L, 35436758L, 92344L);
     }
 
+    public void testReadPartial() throws Exception {
+        final File testFile = new File(getContext().getFilesDir(), TEST_FILE);
+        stageFile(R.raw.netstats_uid_v4, testFile);
+
+        final NetworkStatsCollection collection = new NetworkStatsCollection(30 * MINUTE_IN_MILLIS);
+        collection.readLegacyUid(testFile, false);
+
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        collection.writeColumnar(new DataOutputStream(bos));
+
+        // read back only a day from the middle of the history
+        final long start = collection.getStartMillis()
+                + (collection.getEndMillis() - collection.getStartMillis()) / 2;
+        final long end = start + DateUtils.DAY_IN_MILLIS;
+        final NetworkStatsCollection partial = new NetworkStatsCollection(30 * MINUTE_IN_MILLIS);
+        partial.read(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())), start, end,
+                null);
+        assertTrue(partial.getTotalBytes() <= collection.getTotalBytes());
+        assertEntry(collection.getSummary(buildTemplateMobileAll(TEST_IMSI), start, end,
+                        NetworkStatsAccess.Level.DEVICE, myUid()).getTotal(null),
+                partial.getSummary(buildTemplateMobileAll(TEST_IMSI), start, end,
+                        NetworkStatsAccess.Level.DEVICE, myUid()).getTotal(null));
+
+        // and only for a single uid
+        final int uid = collection.getRelevantUids(NetworkStatsAccess.Level.DEVICE, myUid())[0];
+        final NetworkStatsCollection uidPartial = new NetworkStatsCollection(
+                30 * MINUTE_IN_MILLIS);
+        uidPartial.read(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())),
+                Long.MIN_VALUE, Long.MAX_VALUE, new int[] { uid });
+        MoreAsserts.assertEquals(new int[] { uid },
+                uidPartial.getRelevantUids(NetworkStatsAccess.Level.DEVICE, myUid()));
+        final NetworkStatsHistory.Entry expected = collection.getHistory(
+                buildTemplateMobileAll(TEST_IMSI), null, uid, SET_ALL, TAG_NONE, FIELD_ALL,
+                Long.MIN_VALUE, Long.MAX_VALUE, NetworkStatsAccess.Level.DEVICE, myUid())
+                .getValues(Long.MIN_VALUE, Long.MAX_VALUE, null);
+        assertEntry(expected.rxBytes, expected.rxPackets, expected.txBytes, expected.txPackets,
+                uidPartial.getHistory(buildTemplateMobileAll(TEST_IMSI), null, uid, SET_ALL,
+                        TAG_NONE, FIELD_ALL, Long.MIN_VALUE, Long.MAX_VALUE,
+                        NetworkStatsAccess.Level.DEVICE, myUid())
+                        .getValues(Long.MIN_VALUE, Long.MAX_VALUE, null));
+    }
+
+    public void testWriteKeepsUnifiedFormat() throws Exception {
+        final File testFile = new File(getContext().getFilesDir(), TEST_FILE);
+        stageFile(R.raw.netstats_uid_v4, testFile);
+
+        final NetworkStatsCollection collection = new NetworkStatsCollection(30 * MINUTE_IN_MILLIS);
+        collection.readLegacyUid(testFile, false);
+
+        // files must stay readable by releases without the columnar format
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        collection.write(new DataOutputStream(bos));
+        final DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(bos.toByteArray()));
+        in.readInt();
+        assertEquals(16, in.readInt());
+    }
+
+    public void testReadColumnarBogusCount() throws Exception {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(0x414E4554); // FILE_MAGIC
+        out.writeInt(17); // VERSION_UNIFIED_COLUMNAR
+        out.writeInt(0);
+        out.writeInt(Integer.MAX_VALUE);
+        out.flush();
+
+        // must fail on the data rather than allocate for the count
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        try {
+            collection.read(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+            fail("bogus key count was read");
+        } catch (IOException expected) {
+        }
+    }
+
     public void testStartEndAtomicBuckets() throws Exception {
         final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
 